@@ -0,0 +1,90 @@
+package org.rakam.collection.mapper.geoip;
+
+import io.airlift.log.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Watches the directories of the database files and calls the listener when one of the files is created or modified.
+ * The events that come in a short period are merged, the new files should be moved into the directory atomically
+ * since the listener may see a partially written file otherwise.
+ */
+class GeoIPDatabaseWatcher implements Closeable {
+    private static final Logger LOGGER = Logger.get(GeoIPDatabaseWatcher.class);
+    private static final long QUIET_PERIOD_MILLIS = 1000;
+
+    private final WatchService watchService;
+    private final Set<Path> files;
+    private final Runnable listener;
+    private final Thread thread;
+
+    GeoIPDatabaseWatcher(Collection<File> files, Runnable listener) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.files = files.stream().map(file -> file.toPath().toAbsolutePath()).collect(Collectors.toSet());
+        this.listener = listener;
+
+        for (Path directory : this.files.stream().map(Path::getParent).collect(Collectors.toSet())) {
+            directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        }
+
+        this.thread = new Thread(this::watch, "geoip-database-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                if (!isChanged(watchService.take())) {
+                    continue;
+                }
+
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    isChanged(key);
+                }
+
+                try {
+                    listener.run();
+                } catch (Exception e) {
+                    LOGGER.error(e, "Error while reloading GeoIP databases");
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private boolean isChanged(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path && files.contains(directory.resolve((Path) event.context()))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+    }
+}
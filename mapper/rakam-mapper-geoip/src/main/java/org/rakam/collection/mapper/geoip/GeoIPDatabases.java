@@ -0,0 +1,84 @@
+package org.rakam.collection.mapper.geoip;
+
+import com.maxmind.db.Reader;
+import com.maxmind.geoip2.DatabaseReader;
+import io.airlift.log.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The memory-mapped readers of the GeoIP databases that are opened together. The readers are reference counted:
+ * the mapper holds a reference until the databases are replaced and each lookup holds one while it reads, so the
+ * readers of the replaced databases are closed when the in-flight lookups finish.
+ */
+class GeoIPDatabases {
+    private static final Logger LOGGER = Logger.get(GeoIPDatabases.class);
+
+    final DatabaseReader city;
+    final DatabaseReader isp;
+    final DatabaseReader connectionType;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private GeoIPDatabases(DatabaseReader city, DatabaseReader isp, DatabaseReader connectionType) {
+        this.city = city;
+        this.isp = isp;
+        this.connectionType = connectionType;
+    }
+
+    static GeoIPDatabases open(File city, File isp, File connectionType) throws IOException {
+        DatabaseReader cityReader = null, ispReader = null;
+        try {
+            cityReader = open(city);
+            ispReader = open(isp);
+            return new GeoIPDatabases(cityReader, ispReader, open(connectionType));
+        } catch (IOException | RuntimeException e) {
+            close(cityReader);
+            close(ispReader);
+            throw e;
+        }
+    }
+
+    private static DatabaseReader open(File database) throws IOException {
+        if (database == null) {
+            return null;
+        }
+        // the operating system shares the pages of the file between the processes, they're not copied to the heap
+        return new DatabaseReader.Builder(database).fileMode(Reader.FileMode.MEMORY_MAPPED).build();
+    }
+
+    /**
+     * Returns false if the readers are already closed, the caller must read the current databases again.
+     */
+    boolean retain() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            close(city);
+            close(isp);
+            close(connectionType);
+        }
+    }
+
+    private static void close(DatabaseReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (IOException e) {
+            LOGGER.warn(e, "Error while closing GeoIP database");
+        }
+    }
+}
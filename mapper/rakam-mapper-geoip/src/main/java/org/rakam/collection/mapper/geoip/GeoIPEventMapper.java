@@ -3,8 +3,12 @@ package org.rakam.collection.mapper.geoip;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
-import com.maxmind.db.Reader;
+import com.google.common.net.InetAddresses;
+import com.google.common.primitives.Ints;
 import com.maxmind.geoip2.DatabaseReader;
 import com.maxmind.geoip2.exception.AddressNotFoundException;
 import com.maxmind.geoip2.model.CityResponse;
@@ -19,23 +23,26 @@ import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.plugin.CacheStatsProvider;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.user.UserPropertyMapper;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.rakam.collection.FieldType.STRING;
 import static org.rakam.collection.mapper.geoip.GeoIPModule.downloadOrGetFile;
 
-public class GeoIPEventMapper implements EventMapper, UserPropertyMapper {
+public class GeoIPEventMapper implements EventMapper, UserPropertyMapper, CacheStatsProvider {
     private static final Logger LOGGER = Logger.get(GeoIPEventMapper.class);
     private static final String ERROR_MESSAGE = "You need to set %s config in order to have '%s' field.";
 
@@ -43,36 +50,48 @@ public class GeoIPEventMapper implements EventMapper, UserPropertyMapper {
             .of("city", "region", "country_code", "latitude", "longitude", "timezone");
 
     private final String[] attributes;
-    private final DatabaseReader connectionTypeLookup;
-    private final DatabaseReader ispLookup;
-    private final DatabaseReader cityLookup;
+    private final String[] geoFieldNames;
+    private final File connectionTypeDatabase;
+    private final File ispDatabase;
+    private final File cityDatabase;
+    private final AtomicReference<GeoIPDatabases> databases;
+    private final GeoIPDatabaseWatcher watcher;
+    // the lookup results of the recent addresses, the traffic from the same NATs and proxies is highly repetitive
+    private final Cache<Object, Location> cache;
+    private final int ipv4Mask;
 
     public GeoIPEventMapper(GeoIPModuleConfig config) throws IOException {
         Preconditions.checkNotNull(config, "config is null");
+        Preconditions.checkArgument(config.getCacheIpv4PrefixLength() > 0 && config.getCacheIpv4PrefixLength() <= 32,
+                "plugin.geoip.cache.ipv4-prefix-length must be between 1 and 32");
 
-        DatabaseReader connectionTypeLookup = null, ispLookup = null, cityLookup = null;
+        this.cache = config.getCacheMaxSize() > 0 ?
+                CacheBuilder.newBuilder().maximumSize(config.getCacheMaxSize()).recordStats().build() : null;
+        this.ipv4Mask = -1 << (32 - config.getCacheIpv4PrefixLength());
+
+        File connectionTypeDatabase = null, ispDatabase = null, cityDatabase = null;
         if (config.getAttributes() != null) {
             for (String attr : config.getAttributes()) {
                 if (CITY_DATABASE_ATTRIBUTES.contains(attr)) {
                     if (config.getDatabaseUrl() == null) {
                         throw new IllegalStateException(String.format(ERROR_MESSAGE, "plugin.geoip.database.url", attr));
                     }
-                    if (cityLookup == null) {
-                        cityLookup = getReader(config.getDatabaseUrl());
+                    if (cityDatabase == null) {
+                        cityDatabase = getFile(config.getDatabaseUrl());
                     }
                     continue;
                 } else if ("isp".equals(attr)) {
                     if (config.getIspDatabaseUrl() == null) {
                         throw new IllegalStateException(String.format(ERROR_MESSAGE, "plugin.geoip.isp-database.url", attr));
                     }
-                    if (ispLookup == null) ispLookup = getReader(config.getIspDatabaseUrl());
+                    if (ispDatabase == null) ispDatabase = getFile(config.getIspDatabaseUrl());
                     continue;
                 } else if ("connection_type".equals(attr)) {
                     if (config.getConnectionTypeDatabaseUrl() == null) {
                         throw new IllegalStateException(String.format(ERROR_MESSAGE, "plugin.geoip.connection-type-database.url", attr));
                     }
-                    if (connectionTypeLookup == null)
-                        connectionTypeLookup = getReader(config.getConnectionTypeDatabaseUrl());
+                    if (connectionTypeDatabase == null)
+                        connectionTypeDatabase = getFile(config.getConnectionTypeDatabaseUrl());
                     continue;
                 }
                 throw new IllegalArgumentException("Attribute " + attr + " is not valid. Available attributes: " +
@@ -81,7 +100,7 @@ public class GeoIPEventMapper implements EventMapper, UserPropertyMapper {
             attributes = config.getAttributes().stream().toArray(String[]::new);
         } else {
             if (config.getDatabaseUrl() != null) {
-                cityLookup = getReader(config.getDatabaseUrl());
+                cityDatabase = getFile(config.getDatabaseUrl());
                 attributes = CITY_DATABASE_ATTRIBUTES.stream().toArray(String[]::new);
             } else {
                 attributes = null;
@@ -89,54 +108,119 @@ public class GeoIPEventMapper implements EventMapper, UserPropertyMapper {
         }
 
         if (config.getIspDatabaseUrl() != null) {
-            ispLookup = getReader(config.getIspDatabaseUrl());
+            ispDatabase = getFile(config.getIspDatabaseUrl());
         }
         if (config.getConnectionTypeDatabaseUrl() != null) {
-            connectionTypeLookup = getReader(config.getConnectionTypeDatabaseUrl());
+            connectionTypeDatabase = getFile(config.getConnectionTypeDatabaseUrl());
         }
 
-        this.cityLookup = cityLookup;
-        this.ispLookup = ispLookup;
-        this.connectionTypeLookup = connectionTypeLookup;
+        this.geoFieldNames = attributes == null ? null :
+                Arrays.stream(attributes).map(attr -> "_" + attr).toArray(String[]::new);
+        this.cityDatabase = cityDatabase;
+        this.ispDatabase = ispDatabase;
+        this.connectionTypeDatabase = connectionTypeDatabase;
+        this.databases = new AtomicReference<>(GeoIPDatabases.open(cityDatabase, ispDatabase, connectionTypeDatabase));
+
+        List<File> files = Stream.of(cityDatabase, ispDatabase, connectionTypeDatabase)
+                .filter(Objects::nonNull).collect(Collectors.toList());
+        this.watcher = config.getDatabaseHotReload() && !files.isEmpty() ? new GeoIPDatabaseWatcher(files, this::reload) : null;
     }
 
-    private DatabaseReader getReader(String url) {
+    private File getFile(String url) {
         try {
-            FileInputStream cityDatabase = new FileInputStream(downloadOrGetFile(url));
-            return new DatabaseReader.Builder(cityDatabase).fileMode(Reader.FileMode.MEMORY).build();
+            return downloadOrGetFile(url);
         } catch (Exception e) {
             throw Throwables.propagate(e);
         }
     }
 
+    /**
+     * Opens the database files again and swaps the readers, the lookups that use the previous readers are not blocked.
+     */
+    synchronized void reload() {
+        GeoIPDatabases newDatabases;
+        try {
+            newDatabases = GeoIPDatabases.open(cityDatabase, ispDatabase, connectionTypeDatabase);
+        } catch (Exception e) {
+            LOGGER.error(e, "Error while opening the new GeoIP databases, the current databases will be used.");
+            return;
+        }
+
+        databases.getAndSet(newDatabases).release();
+        if (cache != null) {
+            // the in-flight lookups may still cache the results from the previous databases
+            // but they're only a few entries compared to the whole cache.
+            cache.invalidateAll();
+        }
+        LOGGER.info("GeoIP databases are reloaded.");
+    }
+
+    @Override
+    public String getCacheName() {
+        return "geoip";
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    @Override
+    public long getCacheSize() {
+        return cache == null ? 0 : cache.size();
+    }
+
     @Override
     public List<Cookie> map(Event event, HttpHeaders extraProperties, InetAddress sourceAddress) {
         Object ip = event.properties().get("_ip");
 
-        InetAddress addr;
+        Location location;
         if ((ip instanceof String)) {
-            try {
-                // it may be slow because java performs reverse hostname lookup.
-                addr = Inet4Address.getByName((String) ip);
-            } catch (UnknownHostException e) {
-                return null;
-            }
+            location = lookup((String) ip);
         } else if (Boolean.TRUE == ip) {
-            addr = sourceAddress;
+            location = lookup(sourceAddress);
         } else {
             return null;
         }
 
-        if (connectionTypeLookup != null) {
-            setConnectionType(addr, event.properties());
+        if (location != null) {
+            location.set(event.properties());
         }
 
-        if (ispLookup != null) {
-            setIsp(addr, event.properties());
-        }
+        return null;
+    }
 
-        if (cityLookup != null) {
-            setGeoFields(addr, event.properties());
+    @Override
+    public List<Cookie> mapBatch(List<Event> events, HttpHeaders extraProperties, InetAddress sourceAddress) {
+        // the events of a request usually have the same address, look it up once per request.
+        Location sourceLocation = null;
+        boolean sourceResolved = false;
+        String lastIp = null;
+        Location lastLocation = null;
+
+        for (Event event : events) {
+            Object ip = event.properties().get("_ip");
+
+            Location location;
+            if ((ip instanceof String)) {
+                if (!ip.equals(lastIp)) {
+                    lastIp = (String) ip;
+                    lastLocation = lookup(lastIp);
+                }
+                location = lastLocation;
+            } else if (Boolean.TRUE == ip) {
+                if (!sourceResolved) {
+                    sourceLocation = lookup(sourceAddress);
+                    sourceResolved = true;
+                }
+                location = sourceLocation;
+            } else {
+                continue;
+            }
+
+            if (location != null) {
+                location.set(event.properties());
+            }
         }
 
         return null;
@@ -149,27 +233,116 @@ public class GeoIPEventMapper implements EventMapper, UserPropertyMapper {
         if (ip == null)
             return;
 
-        if ((ip instanceof String)) {
-            try {
-                // it may be slow because java performs reverse hostname lookup.
-                sourceAddress = Inet4Address.getByName((String) ip);
-            } catch (UnknownHostException e) {
-                return;
-            }
+        Location location = (ip instanceof String) ? lookup((String) ip) : lookup(sourceAddress);
+
+        if (location != null) {
+            location.set(new MapProxyGenericRecord(properties));
         }
+    }
 
-        GenericRecord record = new MapProxyGenericRecord(properties);
+    private Location lookup(String ip) {
+        int ipv4 = parseIpv4(ip);
+        if (ipv4 != -1 || "255.255.255.255".equals(ip)) {
+            return lookupIpv4(ipv4);
+        }
 
-        if (connectionTypeLookup != null) {
-            setConnectionType(sourceAddress, record);
+        // the hostnames are not resolved, the literal IPv6 addresses are parsed without DNS lookup
+        if (ip.indexOf(':') == -1 || !InetAddresses.isInetAddress(ip)) {
+            return null;
         }
+        return lookup(InetAddresses.forString(ip));
+    }
 
-        if (ispLookup != null) {
-            setIsp(sourceAddress, record);
+    private Location lookup(InetAddress address) {
+        if (address == null) {
+            return null;
+        }
+        if (address instanceof Inet4Address) {
+            return lookupIpv4(Ints.fromByteArray(address.getAddress()));
+        }
+        if (cache == null) {
+            return resolve(address);
         }
 
-        if (cityLookup != null) {
-            setGeoFields(sourceAddress, record);
+        Location location = cache.getIfPresent(address);
+        if (location == null) {
+            location = resolve(address);
+            cache.put(address, location);
+        }
+        return location;
+    }
+
+    private Location lookupIpv4(int address) {
+        if (cache == null) {
+            return resolve(InetAddresses.fromInteger(address));
+        }
+
+        // the addresses in the same prefix share the result of the first address that is looked up
+        Integer key = address & ipv4Mask;
+        Location location = cache.getIfPresent(key);
+        if (location == null) {
+            location = resolve(InetAddresses.fromInteger(address));
+            cache.put(key, location);
+        }
+        return location;
+    }
+
+    /**
+     * Parses the dotted-quad IPv4 literals, returns -1 if the value is not an IPv4 literal. Unlike
+     * {@link InetAddress#getByName(String)}, it never performs hostname lookup.
+     */
+    static int parseIpv4(String ip) {
+        int length = ip.length();
+        if (length < 7 || length > 15) {
+            return -1;
+        }
+
+        int address = 0;
+        int octet = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < length; i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || ++dots > 3) {
+                    return -1;
+                }
+                address = (address << 8) | octet;
+                octet = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9') {
+                // leading zeros are ambiguous (octal in some parsers), reject them like Guava does
+                if (digits > 0 && octet == 0) {
+                    return -1;
+                }
+                octet = octet * 10 + (c - '0');
+                if (++digits > 3 || octet > 255) {
+                    return -1;
+                }
+            } else {
+                return -1;
+            }
+        }
+
+        if (dots != 3 || digits == 0) {
+            return -1;
+        }
+        return (address << 8) | octet;
+    }
+
+    private Location resolve(InetAddress address) {
+        GeoIPDatabases databases;
+        do {
+            databases = this.databases.get();
+        } while (!databases.retain());
+
+        try {
+            String connectionType = databases.connectionType != null ? getConnectionType(databases.connectionType, address) : null;
+            String isp = databases.isp != null ? getIsp(databases.isp, address) : null;
+            Object[] geoFields = databases.city != null ? getGeoFields(databases.city, address) : null;
+            return new Location(connectionType, isp, geoFields);
+        } finally {
+            databases.release();
         }
     }
 
@@ -179,11 +352,11 @@ public class GeoIPEventMapper implements EventMapper, UserPropertyMapper {
                 .map(attr -> new SchemaField("_" + attr, getType(attr)))
                 .collect(Collectors.toList());
 
-        if (ispLookup != null) {
+        if (ispDatabase != null) {
             fields.add(new SchemaField("_isp", STRING));
         }
 
-        if (connectionTypeLookup != null) {
+        if (connectionTypeDatabase != null) {
             fields.add(new SchemaField("_connection_type", STRING));
         }
 
@@ -205,68 +378,99 @@ public class GeoIPEventMapper implements EventMapper, UserPropertyMapper {
         }
     }
 
-    private void setConnectionType(InetAddress address, GenericRecord properties) {
+    private static String getConnectionType(DatabaseReader connectionTypeLookup, InetAddress address) {
         ConnectionTypeResponse connectionType;
         try {
             connectionType = connectionTypeLookup.connectionType(address);
         } catch (AddressNotFoundException e) {
-            return;
+            return null;
         } catch (Exception e) {
             LOGGER.error(e, "Error while search for location information. ");
-            return;
+            return null;
         }
 
-        properties.put("_connection_type", connectionType.getConnectionType().name());
+        return connectionType.getConnectionType().name();
     }
 
-    private void setIsp(InetAddress address, GenericRecord properties) {
+    private static String getIsp(DatabaseReader ispLookup, InetAddress address) {
         IspResponse isp;
         try {
             isp = ispLookup.isp(address);
         } catch (AddressNotFoundException e) {
-            return;
+            return null;
         } catch (Exception e) {
             LOGGER.error(e, "Error while search for location information. ");
-            return;
+            return null;
         }
 
-        properties.put("_isp", isp.getIsp());
+        return isp.getIsp();
     }
 
-    private void setGeoFields(InetAddress address, GenericRecord properties) {
+    private Object[] getGeoFields(DatabaseReader cityLookup, InetAddress address) {
         CityResponse city;
 
         try {
             city = cityLookup.city(address);
         } catch (AddressNotFoundException e) {
-            return;
+            return null;
         } catch (Exception e) {
             LOGGER.error(e, "Error while search for location information. ");
-            return;
+            return null;
         }
 
-        for (String attribute : attributes) {
-            switch (attribute) {
+        Object[] values = new Object[attributes.length];
+        for (int i = 0; i < attributes.length; i++) {
+            switch (attributes[i]) {
                 case "country_code":
-                    properties.put("_country_code", city.getCountry().getIsoCode());
+                    values[i] = city.getCountry().getIsoCode();
                     break;
                 case "region":
-                    properties.put("_region", city.getContinent().getName());
+                    values[i] = city.getContinent().getName();
                     break;
                 case "city":
-                    properties.put("_city", city.getCity().getName());
+                    values[i] = city.getCity().getName();
                     break;
                 case "latitude":
-                    properties.put("_latitude", city.getLocation().getLatitude());
+                    values[i] = city.getLocation().getLatitude();
                     break;
                 case "longitude":
-                    properties.put("_longitude", city.getLocation().getLongitude());
+                    values[i] = city.getLocation().getLongitude();
                     break;
                 case "timezone":
-                    properties.put("_timezone", city.getLocation().getTimeZone());
+                    values[i] = city.getLocation().getTimeZone();
                     break;
             }
         }
+        return values;
+    }
+
+    /**
+     * The enrichment fields of an address, the fields that the databases don't have are null.
+     */
+    private class Location {
+        private final String connectionType;
+        private final String isp;
+        private final Object[] geoFields;
+
+        private Location(String connectionType, String isp, Object[] geoFields) {
+            this.connectionType = connectionType;
+            this.isp = isp;
+            this.geoFields = geoFields;
+        }
+
+        private void set(GenericRecord properties) {
+            if (connectionType != null) {
+                properties.put("_connection_type", connectionType);
+            }
+            if (isp != null) {
+                properties.put("_isp", isp);
+            }
+            if (geoFields != null) {
+                for (int i = 0; i < geoFieldNames.length; i++) {
+                    properties.put(geoFieldNames[i], geoFields[i]);
+                }
+            }
+        }
     }
 
     private static class MapProxyGenericRecord implements GenericRecord {
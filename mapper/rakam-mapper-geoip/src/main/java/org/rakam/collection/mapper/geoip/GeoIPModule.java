@@ -6,6 +6,7 @@ import com.google.common.io.Files;
 import com.google.inject.Binder;
 import com.google.inject.multibindings.Multibinder;
 import org.rakam.util.ConditionalModule;
+import org.rakam.plugin.CacheStatsProvider;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.user.UserPropertyMapper;
@@ -32,6 +33,7 @@ public class GeoIPModule extends RakamModule {
         }
         Multibinder.newSetBinder(binder, UserPropertyMapper.class).addBinding().toInstance(geoIPEventMapper);
         Multibinder.newSetBinder(binder, EventMapper.class).addBinding().toInstance(geoIPEventMapper);
+        Multibinder.newSetBinder(binder, CacheStatsProvider.class).addBinding().toInstance(geoIPEventMapper);
     }
 
     @Override
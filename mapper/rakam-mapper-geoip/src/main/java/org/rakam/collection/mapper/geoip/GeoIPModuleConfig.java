@@ -13,6 +13,9 @@ public class GeoIPModuleConfig {
     private String ispDatabaseUrl;
     private String connectionTypeDatabaseUrl;
     private boolean useExistingFields;
+    private long cacheMaxSize = 100_000;
+    private int cacheIpv4PrefixLength = 32;
+    private boolean databaseHotReload;
 
     @Config("plugin.geoip.database.url")
     public GeoIPModuleConfig setDatabaseUrl(String url)
@@ -69,4 +72,41 @@ public class GeoIPModuleConfig {
     public boolean getUseExistingFields() {
         return useExistingFields;
     }
+
+    @Config("plugin.geoip.cache.max-size")
+    @ConfigDescription("The maximum number of addresses whose lookup results are cached, 0 disables the cache")
+    public GeoIPModuleConfig setCacheMaxSize(long cacheMaxSize)
+    {
+        this.cacheMaxSize = cacheMaxSize;
+        return this;
+    }
+
+    public long getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    @Config("plugin.geoip.cache.ipv4-prefix-length")
+    @ConfigDescription("The IPv4 addresses are cached by their network prefix, " +
+            "24 shares the lookup result of an address with its /24 network. The default is 32, the exact address")
+    public GeoIPModuleConfig setCacheIpv4PrefixLength(int cacheIpv4PrefixLength)
+    {
+        this.cacheIpv4PrefixLength = cacheIpv4PrefixLength;
+        return this;
+    }
+
+    public int getCacheIpv4PrefixLength() {
+        return cacheIpv4PrefixLength;
+    }
+
+    @Config("plugin.geoip.database.hot-reload")
+    @ConfigDescription("Watches the directories of the database files and reloads the databases when the files are replaced")
+    public GeoIPModuleConfig setDatabaseHotReload(boolean databaseHotReload)
+    {
+        this.databaseHotReload = databaseHotReload;
+        return this;
+    }
+
+    public boolean getDatabaseHotReload() {
+        return databaseHotReload;
+    }
 }
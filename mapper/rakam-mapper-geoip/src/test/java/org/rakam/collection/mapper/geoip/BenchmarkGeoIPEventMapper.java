@@ -0,0 +1,134 @@
+package org.rakam.collection.mapper.geoip;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData.Record;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+import org.rakam.collection.Event;
+import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.util.AvroUtil;
+
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static io.netty.handler.codec.http.HttpHeaders.EMPTY_HEADERS;
+import static org.apache.avro.Schema.Type.NULL;
+
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkGeoIPEventMapper {
+    private static final int EVENTS = 10_000;
+
+    // 0 disables the lookup cache
+    @Param({"0", "100000"})
+    private long cacheSize;
+
+    @Param({"32", "24"})
+    private int prefixLength;
+
+    // zipf: a few NATs and proxies send most of the events, uniform: every event comes from a different client
+    @Param({"zipf", "uniform"})
+    private String distribution;
+
+    private GeoIPEventMapper mapper;
+    private Event[] events;
+    private InetAddress sourceAddress;
+
+    @Setup
+    public void setup() throws Exception {
+        mapper = new GeoIPEventMapper(new GeoIPModuleConfig()
+                .setCacheMaxSize(cacheSize)
+                .setCacheIpv4PrefixLength(prefixLength));
+        sourceAddress = InetAddress.getLoopbackAddress();
+
+        FieldDependencyBuilder builder = new FieldDependencyBuilder();
+        mapper.addFieldDependency(builder);
+        Schema schema = Schema.createRecord(ImmutableList.<Schema.Field>builder()
+                .addAll(builder.build().dependentFields.get("_ip").stream()
+                        .map(AvroUtil::generateAvroField).collect(Collectors.toList()))
+                .add(new Schema.Field("_ip", Schema.create(NULL), null, null))
+                .build());
+
+        String[] addresses = generateAddresses(new Random(0));
+        events = new Event[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            Record properties = new Record(schema);
+            properties.put("_ip", addresses[i]);
+            events[i] = new Event("testproject", "testcollection", null, null, properties);
+        }
+    }
+
+    private String[] generateAddresses(Random random) {
+        String[] addresses = new String[EVENTS];
+        if (distribution.equals("uniform")) {
+            for (int i = 0; i < EVENTS; i++) {
+                addresses[i] = randomAddress(random);
+            }
+            return addresses;
+        }
+
+        // 1000 distinct clients, the i-th client sends events proportional to 1 / i
+        String[] clients = new String[1000];
+        double[] cumulative = new double[clients.length];
+        double total = 0;
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = randomAddress(random);
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < EVENTS; i++) {
+            double value = random.nextDouble() * total;
+            int index = 0;
+            while (cumulative[index] < value) {
+                index++;
+            }
+            addresses[i] = clients[index];
+        }
+        return addresses;
+    }
+
+    private static String randomAddress(Random random) {
+        return (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." +
+                random.nextInt(256) + "." + random.nextInt(256);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public Object map() {
+        Object result = null;
+        for (Event event : events) {
+            result = mapper.map(event, EMPTY_HEADERS, sourceAddress);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkGeoIPEventMapper.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
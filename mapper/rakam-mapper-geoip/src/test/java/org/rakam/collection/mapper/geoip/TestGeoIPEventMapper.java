@@ -206,4 +206,63 @@ public class TestGeoIPEventMapper {
         assertEquals(ImmutableSet.builder().addAll(list.stream().map(e -> "_"+e).collect(Collectors.toList())).add("_isp", "_connection_type").build(),
                 build.dependentFields.get("_ip").stream().map(SchemaField::getName).collect(Collectors.toSet()));
     }
+
+    @Test
+    public void testParseIpv4() throws Exception {
+        assertEquals(GeoIPEventMapper.parseIpv4("8.8.8.8"), 0x08080808);
+        assertEquals(GeoIPEventMapper.parseIpv4("192.168.0.1"), 0xC0A80001);
+        assertEquals(GeoIPEventMapper.parseIpv4("0.0.0.0"), 0);
+
+        assertEquals(GeoIPEventMapper.parseIpv4("google.com"), -1);
+        assertEquals(GeoIPEventMapper.parseIpv4("256.1.1.1"), -1);
+        assertEquals(GeoIPEventMapper.parseIpv4("1.1.1"), -1);
+        assertEquals(GeoIPEventMapper.parseIpv4("1.1.1.1.1"), -1);
+        assertEquals(GeoIPEventMapper.parseIpv4("1..1.1"), -1);
+        assertEquals(GeoIPEventMapper.parseIpv4("01.1.1.1"), -1);
+        assertEquals(GeoIPEventMapper.parseIpv4("::1"), -1);
+    }
+
+    @Test
+    public void testCachedPrefixLookup() throws Exception {
+        GeoIPEventMapper mapper = new GeoIPEventMapper(new GeoIPModuleConfig()
+                .setAttributes("")
+                .setCacheIpv4PrefixLength(24)
+                .setIspDatabaseUrl("https://github.com/maxmind/MaxMind-DB/raw/master/test-data/GeoIP2-ISP-Test.mmdb"));
+
+        for (String ip : new String[]{"8.8.8.8", "8.8.8.9", "8.8.8.8"}) {
+            Record properties = new Record(Schema.createRecord(ImmutableList.of(
+                    new Schema.Field("_ip", Schema.create(NULL), null, null),
+                    new Schema.Field("_isp", Schema.create(STRING), null, null))));
+            properties.put("_ip", ip);
+
+            Event event = new Event("testproject", "testcollection", null, null, properties);
+            mapper.map(event, EMPTY_HEADERS, InetAddress.getLocalHost());
+
+            assertEquals(event.getAttribute("_isp"), "Level 3 Communications");
+        }
+
+        // the addresses in the same /24 share the entry
+        assertEquals(mapper.getCacheSize(), 1);
+        assertEquals(mapper.getCacheStats().hitCount(), 2);
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        GeoIPEventMapper mapper = new GeoIPEventMapper(new GeoIPModuleConfig()
+                .setAttributes("")
+                .setIspDatabaseUrl("https://github.com/maxmind/MaxMind-DB/raw/master/test-data/GeoIP2-ISP-Test.mmdb"));
+
+        for (int i = 0; i < 2; i++) {
+            Record properties = new Record(Schema.createRecord(ImmutableList.of(
+                    new Schema.Field("_ip", Schema.create(NULL), null, null),
+                    new Schema.Field("_isp", Schema.create(STRING), null, null))));
+            properties.put("_ip", "8.8.8.8");
+
+            Event event = new Event("testproject", "testcollection", null, null, properties);
+            mapper.map(event, EMPTY_HEADERS, InetAddress.getLocalHost());
+
+            assertEquals(event.getAttribute("_isp"), "Level 3 Communications");
+            mapper.reload();
+        }
+    }
 }
@@ -0,0 +1,45 @@
+package org.rakam.module.website;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.function.Function;
+
+/**
+ * Bounded concurrent cache in front of an expensive parser. The hit rate is recorded so that the size can be tuned
+ * for the traffic, the cache is disabled when the maximum size is 0. The values that the parser returns null for are
+ * not cached.
+ */
+public class LookupCache<K, V> {
+    private final Function<K, V> parser;
+    private final Cache<K, V> cache;
+
+    public LookupCache(long maximumSize, Function<K, V> parser) {
+        this.parser = parser;
+        this.cache = maximumSize > 0 ? CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build() : null;
+    }
+
+    public V get(K key) {
+        if (cache == null) {
+            return parser.apply(key);
+        }
+
+        V value = cache.getIfPresent(key);
+        if (value == null) {
+            value = parser.apply(key);
+            if (value != null) {
+                cache.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    public CacheStats getStats() {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    public long getSize() {
+        return cache == null ? 0 : cache.size();
+    }
+}
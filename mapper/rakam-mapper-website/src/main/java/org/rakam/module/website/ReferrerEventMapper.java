@@ -1,6 +1,7 @@
 package org.rakam.module.website;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.snowplowanalytics.refererparser.CorruptYamlException;
 import com.snowplowanalytics.refererparser.Parser;
@@ -13,25 +14,148 @@ import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.plugin.CacheStatsProvider;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.user.UserPropertyMapper;
+import org.yaml.snakeyaml.Yaml;
 
+import javax.inject.Inject;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
-public class ReferrerEventMapper implements EventMapper, UserPropertyMapper {
+public class ReferrerEventMapper implements EventMapper, UserPropertyMapper, CacheStatsProvider {
+    private static final Optional<Referer> NOT_PARSED = Optional.empty();
 
     private final Parser parser;
+    private final Set<String> searchParameters;
+    private final LookupCache<String, Optional<Referer>> cache;
 
     public ReferrerEventMapper() {
+        this(new WebsiteMapperConfig());
+    }
+
+    @Inject
+    public ReferrerEventMapper(WebsiteMapperConfig config) {
         try {
             parser = new Parser();
         } catch (IOException | CorruptYamlException e) {
             throw Throwables.propagate(e);
         }
+        searchParameters = getSearchParameters();
+        cache = new LookupCache<>(config.getReferrerCacheSize(), this::parse);
+    }
+
+    @Override
+    public String getCacheName() {
+        return "referrer";
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    @Override
+    public long getCacheSize() {
+        return cache.getSize();
+    }
+
+    /**
+     * The names of the query parameters that the search engines in the referrer database use for the search term.
+     */
+    private static Set<String> getSearchParameters() {
+        Map<String, Map<String, Map<String, List<String>>>> referers;
+        try (InputStream stream = Parser.class.getResourceAsStream("/referers.yml")) {
+            referers = (Map) new Yaml().load(stream);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+
+        return referers.values().stream()
+                .flatMap(sources -> sources.values().stream())
+                .map(source -> source.get("parameters"))
+                .filter(Objects::nonNull)
+                .flatMap(List::stream)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * The parser only uses the host and path of the referrer, the search term parameter and whether the referrer
+     * host is the page host. The other parts of the URL such as campaign parameters and session ids are removed from
+     * the cache key so that the referrers from the same source share the same entry. Returns null for the URLs that
+     * are not http or https since the parser ignores them.
+     */
+    String getCacheKey(String referrerUrl, String hostUrl) {
+        int schemeEnd = referrerUrl.indexOf("://");
+        if (schemeEnd == -1) {
+            return null;
+        }
+        String scheme = referrerUrl.substring(0, schemeEnd);
+        if (!scheme.equalsIgnoreCase("http") && !scheme.equalsIgnoreCase("https")) {
+            return null;
+        }
+
+        int fragment = referrerUrl.indexOf('#', schemeEnd);
+        int end = fragment == -1 ? referrerUrl.length() : fragment;
+        int query = referrerUrl.indexOf('?', schemeEnd);
+        if (query > end) {
+            query = -1;
+        }
+        int pathEnd = query == -1 ? end : query;
+        int hostEnd = referrerUrl.indexOf('/', schemeEnd + 3);
+        if (hostEnd == -1 || hostEnd > pathEnd) {
+            hostEnd = pathEnd;
+        }
+
+        StringBuilder key = new StringBuilder(pathEnd - schemeEnd + 16);
+        if (hostUrl != null) {
+            key.append(hostUrl);
+        }
+        key.append(' ').append(scheme.toLowerCase(Locale.ENGLISH)).append("://")
+                .append(referrerUrl.substring(schemeEnd + 3, hostEnd).toLowerCase(Locale.ENGLISH))
+                .append(referrerUrl, hostEnd, pathEnd);
+
+        if (query != -1) {
+            char separator = '?';
+            int start = query + 1;
+            while (start < end) {
+                int parameterEnd = referrerUrl.indexOf('&', start);
+                if (parameterEnd == -1 || parameterEnd > end) {
+                    parameterEnd = end;
+                }
+                int nameEnd = referrerUrl.indexOf('=', start);
+                if (nameEnd == -1 || nameEnd > parameterEnd) {
+                    nameEnd = parameterEnd;
+                }
+                if (searchParameters.contains(referrerUrl.substring(start, nameEnd))) {
+                    key.append(separator).append(referrerUrl, start, parameterEnd);
+                    separator = '&';
+                }
+                start = parameterEnd + 1;
+            }
+        }
+
+        return key.toString();
+    }
+
+    private Optional<Referer> parse(String cacheKey) {
+        int separator = cacheKey.indexOf(' ');
+        String hostUrl = separator == 0 ? null : cacheKey.substring(0, separator);
+        try {
+            Referer referer = parser.parse(cacheKey.substring(separator + 1), hostUrl);
+            return referer == null ? NOT_PARSED : Optional.of(referer);
+        } catch (URISyntaxException e) {
+            return NOT_PARSED;
+        }
     }
 
     private void mapInternal(HttpHeaders extraProperties, Object referrer, Object host, GenericRecord record) {
@@ -50,28 +174,74 @@ public class ReferrerEventMapper implements EventMapper, UserPropertyMapper {
             return;
         }
 
-        Referer parse;
-        if (referrerUrl != null) {
-            try {
-                parse = parser.parse(referrerUrl, hostUrl);
-            } catch (URISyntaxException e) {
-                return;
-            }
-            if (parse == null) {
-                return;
-            }
+        Referer parse = parse(referrerUrl, hostUrl);
+        if (parse != null) {
+            setProperties(record, parse);
+        }
+    }
 
-            if (record.get("_referrer_medium") == null) {
-                record.put("_referrer_medium", parse.medium != null ? parse.medium.toString().toLowerCase() : null);
-            }
-            if (record.get("_referrer_source") == null) {
-                record.put("_referrer_source", parse.source);
+    private Referer parse(String referrerUrl, String hostUrl) {
+        if (referrerUrl == null) {
+            return null;
+        }
+        String cacheKey = getCacheKey(referrerUrl, hostUrl);
+        if (cacheKey == null) {
+            return null;
+        }
+        return cache.get(cacheKey).orElse(null);
+    }
+
+    private static void setProperties(GenericRecord record, Referer parse) {
+        if (record.get("_referrer_medium") == null) {
+            record.put("_referrer_medium", parse.medium != null ? parse.medium.toString().toLowerCase() : null);
+        }
+        if (record.get("_referrer_source") == null) {
+            record.put("_referrer_source", parse.source);
+        }
+
+        if (record.get("_referrer_term") == null) {
+            record.put("_referrer_term", parse.term);
+        }
+    }
+
+    @Override
+    public List<Cookie> mapBatch(List<Event> events, HttpHeaders extraProperties, InetAddress sourceAddress) {
+        // the events of a request usually have the same referrer, parse it once per request.
+        Referer headerReferer = null;
+        boolean headerParsed = false;
+        String lastReferrer = null, lastHost = null;
+        Referer lastReferer = null;
+
+        for (Event event : events) {
+            GenericRecord properties = event.properties();
+            Object referrer = properties.get("_referrer");
+
+            Referer parsed;
+            if (referrer instanceof Boolean && ((Boolean) referrer).booleanValue()) {
+                if (!headerParsed) {
+                    headerReferer = parse(extraProperties.get("Referer"), extraProperties.get("Origin"));
+                    headerParsed = true;
+                }
+                parsed = headerReferer;
+            } else if (referrer instanceof String) {
+                Object host = properties.get("_host");
+                String hostUrl = host instanceof String ? (String) host : null;
+                if (!referrer.equals(lastReferrer) || !Objects.equals(hostUrl, lastHost)) {
+                    lastReferrer = (String) referrer;
+                    lastHost = hostUrl;
+                    lastReferer = parse(lastReferrer, lastHost);
+                }
+                parsed = lastReferer;
+            } else {
+                continue;
             }
 
-            if (record.get("_referrer_term") == null) {
-                record.put("_referrer_term", parse.term);
+            if (parsed != null) {
+                setProperties(properties, parsed);
             }
         }
+
+        return null;
     }
 
     @Override
@@ -1,6 +1,7 @@
 package org.rakam.module.website;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
@@ -11,10 +12,10 @@ import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.plugin.CacheStatsProvider;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.user.UserPropertyMapper;
 import org.rakam.server.http.HttpRequestException;
-import ua_parser.CachingParser;
 import ua_parser.Client;
 import ua_parser.Parser;
 
@@ -24,20 +25,43 @@ import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
 
-public class UserAgentEventMapper implements EventMapper, UserPropertyMapper {
-    private final Parser uaParser;
+public class UserAgentEventMapper implements EventMapper, UserPropertyMapper, CacheStatsProvider {
+    private final LookupCache<String, Client> cache;
     private final boolean trackSpiders;
 
     @Inject
     public UserAgentEventMapper(WebsiteMapperConfig config) {
+        Parser uaParser;
         try {
-            uaParser = new CachingParser();
+            uaParser = new Parser();
         } catch (IOException e) {
             throw Throwables.propagate(e);
         }
+        this.cache = new LookupCache<>(config.getUserAgentCacheSize(), userAgent -> {
+            try {
+                return uaParser.parse(userAgent);
+            } catch (Exception e) {
+                return null;
+            }
+        });
         this.trackSpiders = config.getTrackSpiders();
     }
 
+    @Override
+    public String getCacheName() {
+        return "user-agent";
+    }
+
+    @Override
+    public CacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    @Override
+    public long getCacheSize() {
+        return cache.getSize();
+    }
+
     @Override
     public void map(String project, Map<String, Object> properties, HttpHeaders extraProperties, InetAddress sourceAddress) {
         mapInternal(extraProperties, new MapProxyGenericRecord(properties), properties.get("_user_agent"));
@@ -50,6 +74,43 @@ public class UserAgentEventMapper implements EventMapper, UserPropertyMapper {
         return null;
     }
 
+    @Override
+    public List<Cookie> mapBatch(List<Event> events, HttpHeaders extraProperties, InetAddress sourceAddress) {
+        // the events of a request usually have the same user agent, parse it once per request.
+        Client headerClient = null;
+        boolean headerParsed = false;
+        String lastAgent = null;
+        Client lastClient = null;
+
+        for (Event event : events) {
+            GenericRecord properties = event.properties();
+            Object agent = properties.get("_user_agent");
+
+            Client parsed;
+            if (agent instanceof Boolean && ((Boolean) agent).booleanValue()) {
+                if (!headerParsed) {
+                    headerClient = parse(extraProperties.get("User-Agent"));
+                    headerParsed = true;
+                }
+                parsed = headerClient;
+            } else if (agent instanceof String) {
+                if (!agent.equals(lastAgent)) {
+                    lastAgent = (String) agent;
+                    lastClient = parse(lastAgent);
+                }
+                parsed = lastClient;
+            } else {
+                continue;
+            }
+
+            if (parsed != null) {
+                setProperties(properties, parsed);
+            }
+        }
+
+        return null;
+    }
+
     private void mapInternal(HttpHeaders extraProperties, GenericRecord properties, Object agent) {
         String userAgent;
         if (agent instanceof Boolean && ((Boolean) agent).booleanValue()) {
@@ -60,44 +121,46 @@ public class UserAgentEventMapper implements EventMapper, UserPropertyMapper {
             userAgent = null;
         }
 
-        if (userAgent != null) {
-            Client parsed;
-            try {
-                parsed = uaParser.parse(userAgent);
-            } catch (Exception e) {
-                return;
-            }
+        Client parsed = parse(userAgent);
+        if (parsed != null) {
+            setProperties(properties, parsed);
+        }
+    }
 
-            if (parsed.device != null && "Spider".equals(parsed.device.family)) {
-                // A bit SEO wouldn't hurt.
-                throw new HttpRequestException("Spiders are not allowed in Rakam Analytics.", HttpResponseStatus.FORBIDDEN);
-            }
+    private Client parse(String userAgent) {
+        return userAgent == null ? null : cache.get(userAgent);
+    }
 
-            if (properties.get("user_agent_family") == null) {
-                properties.put("_user_agent_family", parsed.userAgent.family);
-            }
+    private void setProperties(GenericRecord properties, Client parsed) {
+        if (!trackSpiders && parsed.device != null && "Spider".equals(parsed.device.family)) {
+            // A bit SEO wouldn't hurt.
+            throw new HttpRequestException("Spiders are not allowed in Rakam Analytics.", HttpResponseStatus.FORBIDDEN);
+        }
 
-            if (trackSpiders && parsed.userAgent != null && properties.get("_user_agent_version") == null) {
-                try {
-                    properties.put("_user_agent_version", Long.parseLong(parsed.userAgent.major));
-                } catch (NumberFormatException e) {
-                }
-            }
+        if (properties.get("user_agent_family") == null) {
+            properties.put("_user_agent_family", parsed.userAgent.family);
+        }
 
-            if (parsed.device != null && properties.get("_device_family") == null) {
-                properties.put("_device_family", parsed.device.family);
+        if (parsed.userAgent != null && properties.get("_user_agent_version") == null) {
+            try {
+                properties.put("_user_agent_version", Long.parseLong(parsed.userAgent.major));
+            } catch (NumberFormatException e) {
             }
+        }
 
-            if (parsed.os != null) {
-                if (properties.get("_os") == null) {
-                    properties.put("_os", parsed.os.family);
-                }
+        if (parsed.device != null && properties.get("_device_family") == null) {
+            properties.put("_device_family", parsed.device.family);
+        }
 
-                if (parsed.os.major != null && properties.get("_os_version") == null) {
-                    try {
-                        properties.put("_os_version", Long.parseLong(parsed.os.major));
-                    } catch (Exception e) {
-                    }
+        if (parsed.os != null) {
+            if (properties.get("_os") == null) {
+                properties.put("_os", parsed.os.family);
+            }
+
+            if (parsed.os.major != null && properties.get("_os_version") == null) {
+                try {
+                    properties.put("_os_version", Long.parseLong(parsed.os.major));
+                } catch (Exception e) {
                 }
             }
         }
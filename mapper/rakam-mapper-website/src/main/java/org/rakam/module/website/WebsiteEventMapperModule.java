@@ -5,6 +5,7 @@ import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import com.google.inject.multibindings.Multibinder;
 import org.rakam.util.ConditionalModule;
+import org.rakam.plugin.CacheStatsProvider;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.user.UserPropertyMapper;
@@ -16,15 +17,21 @@ public class WebsiteEventMapperModule extends RakamModule {
     protected void setup(Binder binder) {
         Multibinder<UserPropertyMapper> userPropertyMappers = Multibinder.newSetBinder(binder, UserPropertyMapper.class);
         Multibinder<EventMapper> eventMappers = Multibinder.newSetBinder(binder, EventMapper.class);
+        Multibinder<CacheStatsProvider> caches = Multibinder.newSetBinder(binder, CacheStatsProvider.class);
 
         WebsiteMapperConfig config = buildConfigObject(WebsiteMapperConfig.class);
         if(config.getReferrer()) {
+            // the mappers share the same instance so that their caches are shared
+            binder.bind(ReferrerEventMapper.class).in(Scopes.SINGLETON);
             eventMappers.addBinding().to(ReferrerEventMapper.class).in(Scopes.SINGLETON);
             userPropertyMappers.addBinding().to(ReferrerEventMapper.class).in(Scopes.SINGLETON);
+            caches.addBinding().to(ReferrerEventMapper.class);
         }
         if(config.getUserAgent()) {
+            binder.bind(UserAgentEventMapper.class).in(Scopes.SINGLETON);
             eventMappers.addBinding().to(UserAgentEventMapper.class).in(Scopes.SINGLETON);
             userPropertyMappers.addBinding().to(UserAgentEventMapper.class).in(Scopes.SINGLETON);
+            caches.addBinding().to(UserAgentEventMapper.class);
         }
     }
 
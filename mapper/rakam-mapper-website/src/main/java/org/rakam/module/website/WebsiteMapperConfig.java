@@ -1,11 +1,14 @@
 package org.rakam.module.website;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 
 public class WebsiteMapperConfig {
     private boolean userAgent = true;
     private boolean referrer = true;
     private boolean trackSpiders = false;
+    private long userAgentCacheSize = 10_000;
+    private long referrerCacheSize = 10_000;
 
     @Config("module.website.mapper.user-agent")
     public WebsiteMapperConfig setUserAgent(boolean enabled) {
@@ -25,7 +28,7 @@ public class WebsiteMapperConfig {
     @Config("module.website.mapper.referrer")
     public WebsiteMapperConfig setReferrer(boolean referrer)
     {
-        this.referrer = true;
+        this.referrer = referrer;
         return this;
     }
 
@@ -37,7 +40,33 @@ public class WebsiteMapperConfig {
     @Config("module.website.mapper.user_agent.track_spiders")
     public WebsiteMapperConfig setTrackSpiders(boolean trackSpiders)
     {
-        this.trackSpiders = true;
+        this.trackSpiders = trackSpiders;
+        return this;
+    }
+
+    public long getUserAgentCacheSize()
+    {
+        return userAgentCacheSize;
+    }
+
+    @Config("module.website.mapper.user-agent.cache-size")
+    @ConfigDescription("The maximum number of parsed user agents that are cached, 0 disables the cache")
+    public WebsiteMapperConfig setUserAgentCacheSize(long userAgentCacheSize)
+    {
+        this.userAgentCacheSize = userAgentCacheSize;
+        return this;
+    }
+
+    public long getReferrerCacheSize()
+    {
+        return referrerCacheSize;
+    }
+
+    @Config("module.website.mapper.referrer.cache-size")
+    @ConfigDescription("The maximum number of parsed referrers that are cached, 0 disables the cache")
+    public WebsiteMapperConfig setReferrerCacheSize(long referrerCacheSize)
+    {
+        this.referrerCacheSize = referrerCacheSize;
         return this;
     }
 }
@@ -0,0 +1,125 @@
+package org.rakam.module.website;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BenchmarkWebsiteEventMappers {
+    private static final int EVENTS = 1_000;
+
+    private static final String[] USER_AGENTS = {
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/47.0.2526.111 Safari/537.36",
+            "Mozilla/5.0 (Windows NT 10.0; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/48.0.2564.116 Safari/537.36",
+            "Mozilla/5.0 (Windows NT 6.1; WOW64; rv:44.0) Gecko/20100101 Firefox/44.0",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 9_2_1 like Mac OS X) AppleWebKit/601.1.46 (KHTML, like Gecko) Version/9.0 Mobile/13D15 Safari/601.1",
+            "Mozilla/5.0 (Linux; Android 5.1.1; SM-G920F Build/LMY47X) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/48.0.2564.95 Mobile Safari/537.36",
+            "Mozilla/5.0 (compatible; MSIE 10.0; Windows NT 6.1; Trident/6.0)",
+            "Mozilla/5.0 (Windows NT 6.3; Trident/7.0; rv:11.0) like Gecko",
+            "Mozilla/5.0 (iPad; CPU OS 9_2 like Mac OS X) AppleWebKit/601.1.46 (KHTML, like Gecko) Version/9.0 Mobile/13C75 Safari/601.1"
+    };
+
+    private static final String[] REFERRERS = {
+            "https://www.google.com/search?q=%s&ie=utf-8&oe=utf-8",
+            "https://www.bing.com/search?q=%s&form=QBLH",
+            "https://search.yahoo.com/search?p=%s&fr=yfp-t",
+            "https://www.facebook.com/",
+            "https://t.co/%s",
+            "http://example.com/blog/%s?utm_source=newsletter&utm_campaign=%s",
+            "https://mail.google.com/mail/u/0/"
+    };
+
+    // 0 disables the caches
+    @Param({"0", "10000"})
+    private long cacheSize;
+
+    private UserAgentEventMapper userAgentMapper;
+    private ReferrerEventMapper referrerMapper;
+    private Map<String, Object>[] userAgentEvents;
+    private Map<String, Object>[] referrerEvents;
+    private InetAddress sourceAddress;
+
+    @Setup
+    public void setup() throws Exception {
+        WebsiteMapperConfig config = new WebsiteMapperConfig()
+                .setUserAgentCacheSize(cacheSize)
+                .setReferrerCacheSize(cacheSize);
+        userAgentMapper = new UserAgentEventMapper(config);
+        referrerMapper = new ReferrerEventMapper(config);
+        sourceAddress = InetAddress.getLoopbackAddress();
+
+        Random random = new Random(0);
+        userAgentEvents = new Map[EVENTS];
+        referrerEvents = new Map[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            // a few browser versions send most of the traffic
+            userAgentEvents[i] = new HashMap<>();
+            userAgentEvents[i].put("_user_agent", USER_AGENTS[skewed(random, USER_AGENTS.length)]);
+
+            // the search terms repeat less than the sources, the campaign parameters are unique per event
+            String referrer = REFERRERS[skewed(random, REFERRERS.length)];
+            referrerEvents[i] = new HashMap<>();
+            referrerEvents[i].put("_referrer", String.format(referrer, "term" + random.nextInt(100), i));
+        }
+    }
+
+    private static int skewed(Random random, int size) {
+        return (int) (size * Math.pow(random.nextDouble(), 2));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public Object userAgent() {
+        Map<String, Object> properties = null;
+        for (Map<String, Object> event : userAgentEvents) {
+            properties = new HashMap<>(event);
+            userAgentMapper.map("testproject", properties, HttpHeaders.EMPTY_HEADERS, sourceAddress);
+        }
+        return properties;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public Object referrer() {
+        Map<String, Object> properties = null;
+        for (Map<String, Object> event : referrerEvents) {
+            properties = new HashMap<>(event);
+            referrerMapper.map("testproject", properties, HttpHeaders.EMPTY_HEADERS, sourceAddress);
+        }
+        return properties;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .verbosity(VerboseMode.NORMAL)
+                .include(".*" + BenchmarkWebsiteEventMappers.class.getSimpleName() + ".*")
+                .build();
+
+        new Runner(options).run();
+    }
+}
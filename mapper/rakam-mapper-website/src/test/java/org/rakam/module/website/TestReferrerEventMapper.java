@@ -16,6 +16,7 @@ import org.testng.annotations.Test;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -176,4 +177,32 @@ public class TestReferrerEventMapper {
         assertEquals("internal", event.getAttribute("_referrer_medium"));
         GenericData.get().validate(properties.getSchema(), properties);
     }
+
+    @Test()
+    public void testCacheKey() throws Exception {
+        ReferrerEventMapper mapper = new ReferrerEventMapper();
+
+        assertEquals(mapper.getCacheKey("https://Google.com/search?utm_source=x&q=test&utm_medium=email#top", null),
+                " https://google.com/search?q=test");
+        assertEquals(mapper.getCacheKey("https://google.com/search?q=test", null),
+                mapper.getCacheKey("https://google.com/search?q=test&utm_campaign=y", null));
+        assertEquals(mapper.getCacheKey("http://test.com", "test.com"), "test.com http://test.com");
+        assertNull(mapper.getCacheKey("android-app://com.google.android.gm", null));
+        assertNull(mapper.getCacheKey("test.com", null));
+    }
+
+    @Test()
+    public void testCachedReferrer() throws Exception {
+        ReferrerEventMapper mapper = new ReferrerEventMapper();
+
+        for (String referrer : new String[] {"https://google.com/?q=test&utm_source=a", "https://google.com/?q=test&utm_source=b"}) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("_referrer", referrer);
+            mapper.map("testproject", properties, HttpHeaders.EMPTY_HEADERS, InetAddress.getLocalHost());
+
+            assertEquals("Google", properties.get("_referrer_source"));
+            assertEquals("test", properties.get("_referrer_term"));
+        }
+        assertEquals(mapper.getCacheStats().hitCount(), 1);
+    }
 }
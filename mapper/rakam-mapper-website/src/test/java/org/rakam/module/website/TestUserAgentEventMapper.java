@@ -4,18 +4,22 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.cookie.Cookie;
 import org.apache.avro.Schema;
 import org.apache.avro.generic.GenericData;
 import org.rakam.collection.Event;
 import org.rakam.collection.SchemaField;
 import org.rakam.collection.FieldDependencyBuilder;
+import org.rakam.server.http.HttpRequestException;
 import org.rakam.util.AvroUtil;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -23,6 +27,7 @@ import java.util.stream.Collectors;
 import static org.apache.avro.Schema.Type.NULL;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
 
 public class TestUserAgentEventMapper {
     private static final String USER_AGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_11_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/47.0.2526.111 Safari/537.36";
@@ -152,4 +157,58 @@ public class TestUserAgentEventMapper {
             assertNull(event.getAttribute(field.getName()));
         }
     }
+
+    @Test()
+    public void testSpider() throws Exception {
+        String googlebot = "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)";
+        UserAgentEventMapper mapper = new UserAgentEventMapper(new WebsiteMapperConfig().setTrackSpiders(true));
+
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("_user_agent", googlebot);
+            mapper.map("testproject", properties, HttpHeaders.EMPTY_HEADERS, InetAddress.getLocalHost());
+            assertEquals("Spider", properties.get("_device_family"));
+        }
+        assertEquals(mapper.getCacheStats().hitCount(), 1);
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("_user_agent", googlebot);
+        try {
+            new UserAgentEventMapper(new WebsiteMapperConfig())
+                    .map("testproject", properties, HttpHeaders.EMPTY_HEADERS, InetAddress.getLocalHost());
+            fail();
+        } catch (HttpRequestException e) {
+            assertEquals(e.getStatusCode(), HttpResponseStatus.FORBIDDEN);
+        }
+    }
+
+    @Test()
+    public void testBatch() throws Exception {
+        UserAgentEventMapper mapper = new UserAgentEventMapper(new WebsiteMapperConfig());
+        FieldDependencyBuilder builder = new FieldDependencyBuilder();
+        mapper.addFieldDependency(builder);
+
+        List<SchemaField> fields = builder.build().dependentFields.get("_user_agent");
+        Schema schema = Schema.createRecord(ImmutableList.<Schema.Field>builder()
+                .addAll(fields.stream().map(AvroUtil::generateAvroField).collect(Collectors.toList()))
+                .add(new Schema.Field("_user_agent", Schema.create(NULL), null, null))
+                .build());
+
+        List<Event> events = new ArrayList<>();
+        for (Object userAgent : new Object[] {true, true, USER_AGENT, false}) {
+            GenericData.Record properties = new GenericData.Record(schema);
+            properties.put("_user_agent", userAgent);
+            events.add(new Event("testproject", "testcollection", null, null, properties));
+        }
+
+        List<Cookie> resp = mapper.mapBatch(events, new DefaultHttpHeaders().set("User-Agent", USER_AGENT),
+                InetAddress.getLocalHost());
+
+        assertNull(resp);
+        for (Event event : events.subList(0, 3)) {
+            assertEquals("Chrome", event.getAttribute("_user_agent_family"));
+            assertEquals(new Long(47), event.getAttribute("_user_agent_version"));
+        }
+        assertNull(events.get(3).getAttribute("_user_agent_family"));
+    }
 }
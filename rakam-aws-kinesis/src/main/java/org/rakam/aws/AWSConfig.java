@@ -7,6 +7,9 @@ import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.DataSize;
+import org.rakam.plugin.EventPartitioner;
 
 public class AWSConfig {
     private String accessKey;
@@ -16,6 +19,17 @@ public class AWSConfig {
     private String eventStoreBulkS3Bucket;
     private String s3Endpoint;
     private String kinesisEndpoint;
+    private boolean kinesisAggregation;
+    private int kinesisAggregationMaxRecordSize = 256 * 1024;
+    private int kinesisPutThreads = 8;
+    private int kinesisMaxRetries = 3;
+    private EventPartitioner.Strategy kinesisPartitioning = EventPartitioner.Strategy.COLLECTION;
+    private String kinesisPartitioningField;
+    private int kinesisCommitMaxConcurrent = 4;
+    private DataSize bulkS3PartSize = new DataSize(8, DataSize.Unit.MEGABYTE);
+    private int bulkS3MaxConcurrentParts = 8;
+    private S3BulkEventStore.BulkFormat bulkFormat = S3BulkEventStore.BulkFormat.AVRO;
+    private int bulkParquetRowGroupSize = 10000;
 
     public String getEventStoreStreamName() {
         return eventStoreStreamName;
@@ -87,6 +101,150 @@ public class AWSConfig {
         return kinesisEndpoint;
     }
 
+    @Config("event.store.kinesis.aggregation")
+    @ConfigDescription("Packs the events of the same shard into a Kinesis record in the KPL aggregation format, " +
+            "the consumers of the stream must de-aggregate the records")
+    public AWSConfig setKinesisAggregation(boolean kinesisAggregation)
+    {
+        this.kinesisAggregation = kinesisAggregation;
+        return this;
+    }
+
+    public boolean getKinesisAggregation()
+    {
+        return kinesisAggregation;
+    }
+
+    @Config("event.store.kinesis.aggregation.max-record-size")
+    @ConfigDescription("The maximum size of an aggregated record in bytes, Kinesis accepts the records up to 1MB")
+    public AWSConfig setKinesisAggregationMaxRecordSize(int kinesisAggregationMaxRecordSize)
+    {
+        this.kinesisAggregationMaxRecordSize = kinesisAggregationMaxRecordSize;
+        return this;
+    }
+
+    public int getKinesisAggregationMaxRecordSize()
+    {
+        return kinesisAggregationMaxRecordSize;
+    }
+
+    @Config("event.store.kinesis.put-threads")
+    public AWSConfig setKinesisPutThreads(int kinesisPutThreads)
+    {
+        this.kinesisPutThreads = kinesisPutThreads;
+        return this;
+    }
+
+    public int getKinesisPutThreads()
+    {
+        return kinesisPutThreads;
+    }
+
+    @Config("event.store.kinesis.max-retries")
+    @ConfigDescription("The number of times the failed records of a putRecords request are retried")
+    public AWSConfig setKinesisMaxRetries(int kinesisMaxRetries)
+    {
+        this.kinesisMaxRetries = kinesisMaxRetries;
+        return this;
+    }
+
+    public int getKinesisMaxRetries()
+    {
+        return kinesisMaxRetries;
+    }
+
+    @Config("event.store.kinesis.partitioning")
+    @ConfigDescription("The strategy that decides the shards of the events: collection, user, field, random or round-robin")
+    public AWSConfig setKinesisPartitioning(String kinesisPartitioning)
+    {
+        this.kinesisPartitioning = EventPartitioner.Strategy.fromString(kinesisPartitioning);
+        return this;
+    }
+
+    public EventPartitioner.Strategy getKinesisPartitioning()
+    {
+        return kinesisPartitioning;
+    }
+
+    @Config("event.store.kinesis.partitioning.field")
+    @ConfigDescription("The field that the events are partitioned by when the partitioning strategy is field")
+    public AWSConfig setKinesisPartitioningField(String kinesisPartitioningField)
+    {
+        this.kinesisPartitioningField = kinesisPartitioningField;
+        return this;
+    }
+
+    public String getKinesisPartitioningField()
+    {
+        return kinesisPartitioningField;
+    }
+
+    @Config("event.store.kinesis.commit.max-concurrent")
+    @ConfigDescription("The number of collections whose bulk data is inserted to the cold storage concurrently")
+    public AWSConfig setKinesisCommitMaxConcurrent(int kinesisCommitMaxConcurrent)
+    {
+        this.kinesisCommitMaxConcurrent = kinesisCommitMaxConcurrent;
+        return this;
+    }
+
+    public int getKinesisCommitMaxConcurrent()
+    {
+        return kinesisCommitMaxConcurrent;
+    }
+
+    @Config("event.store.bulk.s3.part-size")
+    @ConfigDescription("The size of the parts that the bulk data is uploaded to S3 in, the minimum is 5MB")
+    public AWSConfig setBulkS3PartSize(String bulkS3PartSize)
+    {
+        this.bulkS3PartSize = DataSize.valueOf(bulkS3PartSize);
+        return this;
+    }
+
+    public DataSize getBulkS3PartSize()
+    {
+        return bulkS3PartSize;
+    }
+
+    @Config("event.store.bulk.s3.max-concurrent-parts")
+    @ConfigDescription("The number of the parts that are buffered and uploaded to S3 concurrently")
+    public AWSConfig setBulkS3MaxConcurrentParts(int bulkS3MaxConcurrentParts)
+    {
+        this.bulkS3MaxConcurrentParts = bulkS3MaxConcurrentParts;
+        return this;
+    }
+
+    public int getBulkS3MaxConcurrentParts()
+    {
+        return bulkS3MaxConcurrentParts;
+    }
+
+    @Config("event.store.bulk.format")
+    @ConfigDescription("The file format of the bulk data in S3, AVRO or PARQUET. The Parquet files are sorted by _time and " +
+            "have column statistics, the bulk connector must be able to read the chosen format")
+    public AWSConfig setBulkFormat(String bulkFormat)
+    {
+        this.bulkFormat = S3BulkEventStore.BulkFormat.fromString(bulkFormat);
+        return this;
+    }
+
+    public S3BulkEventStore.BulkFormat getBulkFormat()
+    {
+        return bulkFormat;
+    }
+
+    @Config("event.store.bulk.parquet.row-group-size")
+    @ConfigDescription("The number of the rows in the row groups of the Parquet bulk files")
+    public AWSConfig setBulkParquetRowGroupSize(int bulkParquetRowGroupSize)
+    {
+        this.bulkParquetRowGroupSize = bulkParquetRowGroupSize;
+        return this;
+    }
+
+    public int getBulkParquetRowGroupSize()
+    {
+        return bulkParquetRowGroupSize;
+    }
+
     public Region getAWSRegion() {
         return Region.getRegion(region == null || region.isEmpty() ? Regions.DEFAULT_REGION : Regions.fromName(region));
     }
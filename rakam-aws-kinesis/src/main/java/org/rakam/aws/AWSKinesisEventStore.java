@@ -1,72 +1,70 @@
 package org.rakam.aws;
 
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
 import com.amazonaws.services.kinesis.model.PutRecordsRequest;
 import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
 import com.amazonaws.services.kinesis.model.PutRecordsResult;
 import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
 import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.name.Named;
 import io.airlift.log.Logger;
-import org.apache.avro.generic.FilteredRecordWriter;
-import org.apache.avro.generic.GenericData;
-import org.apache.avro.io.BinaryEncoder;
-import org.apache.avro.io.DatumWriter;
-import org.apache.avro.io.EncoderFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.avro.Schema;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.analysis.metadata.QueryMetadataStore;
 import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
-import org.rakam.plugin.ContinuousQuery;
+import org.rakam.plugin.EventPartitioner;
 import org.rakam.plugin.EventStore;
 import org.rakam.presto.analysis.PrestoConfig;
-import org.rakam.presto.analysis.PrestoQueryExecution;
 import org.rakam.presto.analysis.PrestoQueryExecutor;
-import org.rakam.report.ChainQueryExecution;
 import org.rakam.report.QueryExecution;
-import org.rakam.report.QueryResult;
-import org.rakam.util.KByteArrayOutputStream;
-import org.rakam.util.QueryFormatter;
+import org.rakam.util.AvroRecordWriter;
+import org.rakam.util.ByteBufEncoder;
 
 import javax.inject.Inject;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.sql.Connection;
-import java.sql.SQLException;
-import java.time.Instant;
-import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import static java.lang.String.format;
 import static org.rakam.aws.KinesisUtils.createAndWaitForStreamToBecomeAvailable;
-import static org.rakam.presto.analysis.PrestoQueryExecution.PRESTO_TIMESTAMP_FORMAT;
 
 public class AWSKinesisEventStore implements EventStore {
     private final static Logger LOGGER = Logger.get(AWSKinesisEventStore.class);
 
     private final AmazonKinesisClient kinesis;
     private final AWSConfig config;
-    private static final int BATCH_SIZE = 500;
+    // the limits of a putRecords request
+    private static final int MAX_RECORDS_PER_REQUEST = 500;
+    private static final int MAX_BYTES_PER_REQUEST = 5 * 1024 * 1024;
+    private static final int MAX_BYTES_PER_RECORD = 1024 * 1024;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+    private static final int ESTIMATED_EVENT_SIZE = 256;
+
+    private final boolean aggregation;
+    private final EventPartitioner partitioner;
+    private final boolean partitionByCollection;
+    private final KinesisShardMap shardMap;
+    private final int maxRecordSize;
+    private final ExecutorService putExecutor;
     private final S3BulkEventStore bulkClient;
-    private final PrestoQueryExecutor executor;
-    private final PrestoConfig prestoConfig;
-    private final QueryMetadataStore queryMetadataStore;
-    private final JDBCPoolDataSource dataSource;
-
-    private ThreadLocal<KByteArrayOutputStream> buffer = new ThreadLocal<KByteArrayOutputStream>() {
-        @Override
-        protected KByteArrayOutputStream initialValue() {
-            return new KByteArrayOutputStream(1000000);
-        }
-    };
+    private final BulkCommitter committer;
+    private final AvroRecordWriter recordWriter = new AvroRecordWriter(field -> field.schema().getType() != Schema.Type.NULL);
 
     @Inject
     public AWSKinesisEventStore(AWSConfig config,
@@ -82,57 +80,18 @@ public class AWSKinesisEventStore implements EventStore {
             kinesis.setEndpoint(config.getKinesisEndpoint());
         }
         this.config = config;
-        this.executor = executor;
-        this.prestoConfig = prestoConfig;
-        this.dataSource = dataSource;
-        this.queryMetadataStore = queryMetadataStore;
+        this.aggregation = config.getKinesisAggregation();
+        this.maxRecordSize = Math.min(config.getKinesisAggregationMaxRecordSize(), MAX_BYTES_PER_RECORD);
+        this.partitioner = config.getKinesisPartitioning().create(config.getKinesisPartitioningField());
+        this.partitionByCollection = config.getKinesisPartitioning() == EventPartitioner.Strategy.COLLECTION;
+        this.shardMap = new KinesisShardMap(kinesis, config.getEventStoreStreamName());
+        this.putExecutor = Executors.newFixedThreadPool(config.getKinesisPutThreads(),
+                new ThreadFactoryBuilder().setNameFormat("kinesis-put-records-%s").setDaemon(true).build());
+        this.committer = new BulkCommitter(executor, prestoConfig, queryMetadataStore, dataSource,
+                config.getKinesisCommitMaxConcurrent());
         this.bulkClient = new S3BulkEventStore(metastore, config, fieldDependency);
     }
 
-    public int[] storeBatchInline(List<Event> events, int offset, int limit) {
-        PutRecordsRequestEntry[] records = new PutRecordsRequestEntry[limit];
-
-        for (int i = 0; i < limit; i++) {
-            Event event = events.get(offset + i);
-            PutRecordsRequestEntry putRecordsRequestEntry = new PutRecordsRequestEntry()
-                    .withData(getBuffer(event))
-                    .withPartitionKey(event.project() + "|" + event.collection());
-            records[i] = putRecordsRequestEntry;
-        }
-
-        try {
-            PutRecordsResult putRecordsResult = kinesis.putRecords(new PutRecordsRequest()
-                    .withRecords(records)
-                    .withStreamName(config.getEventStoreStreamName()));
-            if (putRecordsResult.getFailedRecordCount() > 0) {
-                int[] failedRecordIndexes = new int[putRecordsResult.getFailedRecordCount()];
-                int idx = 0;
-
-                Map<String, Integer> errors = new HashMap<>();
-
-                List<PutRecordsResultEntry> recordsResponse = putRecordsResult.getRecords();
-                for (int i = 0; i < recordsResponse.size(); i++) {
-                    if (recordsResponse.get(i).getErrorCode() != null) {
-                        failedRecordIndexes[idx++] = i;
-                        errors.compute(recordsResponse.get(i).getErrorMessage(), (k, v) -> v == null ? 1 : v++);
-                    }
-                }
-
-                LOGGER.warn("Error in Kinesis putRecords: %d records.", putRecordsResult.getFailedRecordCount(), errors.toString());
-                return failedRecordIndexes;
-            } else {
-                return EventStore.SUCCESSFUL_BATCH;
-            }
-        } catch (ResourceNotFoundException e) {
-            try {
-                createAndWaitForStreamToBecomeAvailable(kinesis, config.getEventStoreStreamName(), 1);
-                return storeBatchInline(events, offset, limit);
-            } catch (Exception e1) {
-                throw new RuntimeException("Couldn't send event to Amazon Kinesis", e);
-            }
-        }
-    }
-
     @Override
     public void storeBulk(List<Event> events) {
         String project = events.get(0).project();
@@ -141,138 +100,290 @@ public class AWSKinesisEventStore implements EventStore {
 
     @Override
     public QueryExecution commit(String project, String collection) {
-        Instant now = Instant.now();
-
-        Connection conn;
-        try {
-            conn = dataSource.getConnection();
-
-            String lockKey = "bulk." + project + "." + collection;
-            conn.createStatement().execute(format("SELECT GET_LOCK('%s', -1)", lockKey));
+        return committer.commit(project, ImmutableList.of(collection));
+    }
 
-            String middlewareTable = format("FROM %s.\"%s\".\"%s\" WHERE \"$created_at\" < timestamp '%s UTC'",
-                    prestoConfig.getBulkConnector(), project, collection,
-                    PRESTO_TIMESTAMP_FORMAT.format(now.atZone(ZoneOffset.UTC)));
+    @Override
+    public QueryExecution commit(String project, Collection<String> collections) {
+        return committer.commit(project, collections);
+    }
 
+    @Override
+    public int[] storeBatch(List<Event> events) {
+        // the records are the slices of the pooled buffer, the requests that are sent in the background threads
+        // retain it until they are completed.
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(events.size() * ESTIMATED_EVENT_SIZE);
+        try {
+            return storeBatch(events, buffer);
+        } finally {
+            buffer.release();
+        }
+    }
 
-            QueryExecution insertQuery = executor.executeRawStatement(format("INSERT INTO %s.\"%s\".\"%s\" SELECT * %s",
-                    prestoConfig.getColdStorageConnector(), project, collection, middlewareTable));
+    private int[] storeBatch(List<Event> events, ByteBuf buffer) {
+        ByteBuffer[] data = serialize(events, buffer);
+        // the events that don't fit in a record are rejected by Kinesis so they're not sent at all
+        List<Integer> failed = new ArrayList<>();
+        List<PendingRecord> records = aggregation ? aggregate(events, data, failed) : split(events, data, failed);
+        if (!failed.isEmpty()) {
+            LOGGER.warn("%d events are larger than the Kinesis record limit", failed.size());
+        }
 
-            return new ChainQueryExecution(ImmutableList.of(insertQuery), null, (results) -> {
-                if (results.get(0).isFailed()) {
-                    return insertQuery;
-                }
-                ImmutableList.Builder<QueryExecution> builder = ImmutableList.builder();
-                for (ContinuousQuery continuousQuery : queryMetadataStore.getContinuousQueries(project)) {
-                    AtomicBoolean ref = new AtomicBoolean();
-
-                    String query = QueryFormatter.format(continuousQuery.getQuery(), name -> {
-                        if ((name.getPrefix().map(e -> e.equals("collection")).orElse(true) && name.getSuffix().equals(collection)) ||
-                                !name.getPrefix().isPresent() && name.getSuffix().equals("_all")) {
-                            ref.set(true);
-                            return format("(SELECT '%s' as \"$collection\", * ", collection) + middlewareTable + ")";
-                        }
-                        return executor.formatTableReference(project, name);
-                    });
+        for (int attempt = 0; !records.isEmpty(); attempt++) {
+            List<PendingRecord> retry = putRecords(records, buffer);
+            if (retry.isEmpty()) {
+                break;
+            }
 
-                    if (!ref.get()) {
-                        continue;
+            if (attempt == config.getKinesisMaxRetries()) {
+                for (PendingRecord record : retry) {
+                    for (int eventIndex : record.eventIndexes) {
+                        failed.add(eventIndex);
                     }
-
-                    PrestoQueryExecution processQuery = executor.executeRawQuery(format("CREATE OR REPLACE VIEW %s.\"%s\".\"%s\" AS %s",
-                                    prestoConfig.getStreamingConnector(), project, continuousQuery.tableName, query),
-                            ImmutableMap.of(prestoConfig.getStreamingConnector() + ".append_data", "true"),
-                            prestoConfig.getStreamingConnector());
-                    builder.add(processQuery);
                 }
+                break;
+            }
 
-                return new ChainQueryExecution(builder.build(), null, (viewUpdateResults) -> {
-                    Optional<QueryResult> result = viewUpdateResults.stream().filter(e -> e.isFailed()).findAny();
+            try {
+                Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while sending events to Amazon Kinesis", e);
+            }
+            records = retry;
+        }
 
-                    QueryExecution e;
-                    if (result.isPresent()) {
-                        e = QueryExecution.completedQueryExecution(null, result.get());
-                    } else {
-                        e = executor.executeRawStatement(format("DELETE FROM %s.%s.%s WHERE \"$created_at\" <= timestamp '%s UTC'", prestoConfig.getBulkConnector(),
-                                project, collection, PRESTO_TIMESTAMP_FORMAT.format(now.atZone(ZoneOffset.UTC))));
-                    }
+        if (failed.isEmpty()) {
+            return EventStore.SUCCESSFUL_BATCH;
+        }
+        return failed.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
 
-                    try {
-                        conn.createStatement().execute(format("SELECT RELEASE_LOCK('%s')", lockKey));
-                    } catch (SQLException e1) {
-                    }
+    private ByteBuffer[] serialize(List<Event> events, ByteBuf buffer) {
+        ByteBufEncoder encoder = new ByteBufEncoder(buffer);
+        int[] offsets = new int[events.size() + 1];
+        for (int i = 0; i < events.size(); i++) {
+            offsets[i] = buffer.writerIndex();
+            try {
+                recordWriter.write(events.get(i).properties(), encoder);
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't serialize event", e);
+            }
+        }
+        offsets[events.size()] = buffer.writerIndex();
 
-                    return e;
-                });
-            });
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
+        // the buffer may be reallocated while it grows so the slices are created after all the events are written
+        ByteBuffer[] data = new ByteBuffer[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            data[i] = buffer.nioBuffer(offsets[i], offsets[i + 1] - offsets[i]);
         }
+        return data;
     }
 
-    @Override
-    public int[] storeBatch(List<Event> events) {
+    private List<PendingRecord> split(List<Event> events, ByteBuffer[] data, List<Integer> rejected) {
+        List<PendingRecord> records = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            String partitionKey = event.project() + "|" + event.collection();
+            if (data[i].remaining() + partitionKey.length() > MAX_BYTES_PER_RECORD) {
+                rejected.add(i);
+                continue;
+            }
+            // Kinesis computes the same hash key from the partition key when the events are partitioned by collection
+            String explicitHashKey = partitionByCollection ? null : hashKey(event).toString();
+            records.add(new PendingRecord(data[i], partitionKey, explicitHashKey, new int[]{i}));
+        }
+        return records;
+    }
+
+    private List<PendingRecord> aggregate(List<Event> events, ByteBuffer[] data, List<Integer> rejected) {
+        List<PendingRecord> records = new ArrayList<>();
+        Map<Object, AggregatedRecord> aggregates = new HashMap<>();
+        BigInteger[] shards = shardMap.getStartingHashKeys();
+
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            String partitionKey = event.project() + "|" + event.collection();
+            BigInteger hashKey = hashKey(event);
+            // the events are grouped by their target shard, or by their hash key if the shards are not known
+            Object group = shards == null ? hashKey : KinesisShardMap.shardIndex(shards, hashKey);
+
+            AggregatedRecord aggregate = aggregates.get(group);
+            if (aggregate != null && aggregate.sizeWith(partitionKey, data[i]) + aggregate.getPartitionKey().length() > maxRecordSize) {
+                records.add(aggregate.toPendingRecord());
+                aggregates.remove(group);
+                aggregate = null;
+            }
+            if (aggregate == null) {
+                aggregate = new AggregatedRecord(hashKey.toString());
+                if (aggregate.sizeWith(partitionKey, data[i]) + aggregate.getPartitionKey().length() > MAX_BYTES_PER_RECORD) {
+                    // the event doesn't fit in a record even if it's aggregated alone
+                    rejected.add(i);
+                    continue;
+                }
+                aggregates.put(group, aggregate);
+            }
+            aggregate.add(i, partitionKey, data[i]);
+        }
 
-        if (events.size() > BATCH_SIZE) {
-            ArrayList<Integer> errors = null;
-            int cursor = 0;
+        for (AggregatedRecord aggregate : aggregates.values()) {
+            records.add(aggregate.toPendingRecord());
+        }
+        return records;
+    }
 
-            while (cursor < events.size()) {
-                int loopSize = Math.min(BATCH_SIZE, events.size() - cursor);
+    /**
+     * Returns the hash key of the shard that the event is written to. The partition key of the records is always the
+     * collection of the events since the consumers find the collection of the records using it.
+     */
+    private BigInteger hashKey(Event event) {
+        String key = partitioner.getPartitionKey(event);
+        return key == null ? shardMap.nextHashKey() : KinesisShardMap.hashKey(key);
+    }
 
-                int[] errorIndexes = storeBatchInline(events, cursor, loopSize);
-                if (errorIndexes.length > 0) {
-                    if (errors == null) {
-                        errors = new ArrayList<>(errorIndexes.length);
-                    }
+    /**
+     * Sends the records in parallel putRecords requests that are within the request limits of Kinesis and returns
+     * the records that are failed. The buffer of the records is retained until the requests are completed.
+     */
+    private List<PendingRecord> putRecords(List<PendingRecord> records, ByteBuf buffer) {
+        List<List<PendingRecord>> requests = new ArrayList<>();
+        List<PendingRecord> request = new ArrayList<>();
+        long requestSize = 0;
+        for (PendingRecord record : records) {
+            if (request.size() == MAX_RECORDS_PER_REQUEST || requestSize + record.size() > MAX_BYTES_PER_REQUEST) {
+                requests.add(request);
+                request = new ArrayList<>();
+                requestSize = 0;
+            }
+            request.add(record);
+            requestSize += record.size();
+        }
+        requests.add(request);
+
+        List<Future<PutRecordsResult>> futures = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            PutRecordsRequest putRecordsRequest = toRequest(requests.get(i));
+            // the caller thread sends the last request instead of waiting idle
+            if (i == requests.size() - 1) {
+                try {
+                    futures.add(Futures.immediateFuture(putRecords(putRecordsRequest)));
+                } catch (Exception e) {
+                    futures.add(Futures.immediateFailedFuture(e));
+                }
+            } else {
+                buffer.retain();
+                try {
+                    futures.add(putExecutor.submit(() -> {
+                        try {
+                            return putRecords(putRecordsRequest);
+                        } finally {
+                            buffer.release();
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    buffer.release();
+                    throw e;
+                }
+            }
+        }
+
+        List<PendingRecord> failed = new ArrayList<>();
+        Map<String, Integer> errors = null;
+        for (int i = 0; i < futures.size(); i++) {
+            List<PendingRecord> requestRecords = requests.get(i);
+            PutRecordsResult result;
+            try {
+                result = futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while sending events to Amazon Kinesis", e);
+            } catch (ExecutionException e) {
+                LOGGER.warn(e.getCause(), "Error while sending events to Amazon Kinesis");
+                failed.addAll(requestRecords);
+                continue;
+            }
 
-                    for (int errorIndex : errorIndexes) {
-                        errors.add(errorIndex + cursor);
+            if (result.getFailedRecordCount() > 0) {
+                List<PutRecordsResultEntry> entries = result.getRecords();
+                for (int j = 0; j < entries.size(); j++) {
+                    if (entries.get(j).getErrorCode() != null) {
+                        failed.add(requestRecords.get(j));
+                        if (errors == null) {
+                            errors = new HashMap<>();
+                        }
+                        errors.merge(entries.get(j).getErrorCode(), 1, Integer::sum);
                     }
                 }
-                cursor += loopSize;
             }
+        }
 
-            return errors == null ? EventStore.SUCCESSFUL_BATCH : errors.stream().mapToInt(Integer::intValue).toArray();
-        } else {
-            return storeBatchInline(events, 0, events.size());
+        if (errors != null) {
+            LOGGER.warn("Error in Kinesis putRecords: %d records. %s", failed.size(), errors.toString());
         }
+        return failed;
     }
 
-    @Override
-    public void store(Event event) {
-//        try {
-        kinesis.putRecord(config.getEventStoreStreamName(), getBuffer(event),
-                event.project() + "|" + event.collection());
-//        } catch (ResourceNotFoundException e) {
-//            try {
-//                createAndWaitForStreamToBecomeAvailable(kinesis, config.getEventStoreStreamName(), 1);
-//            } catch (Exception e1) {
-//                throw new RuntimeException("Couldn't send event to Amazon Kinesis", e);
-//            }
-//        }
+    private PutRecordsResult putRecords(PutRecordsRequest request) {
+        try {
+            return kinesis.putRecords(request);
+        } catch (ResourceNotFoundException e) {
+            try {
+                createAndWaitForStreamToBecomeAvailable(kinesis, config.getEventStoreStreamName(), 1);
+            } catch (Exception e1) {
+                throw new RuntimeException("Couldn't send event to Amazon Kinesis", e);
+            }
+            return kinesis.putRecords(request);
+        }
     }
 
-    private ByteBuffer getBuffer(Event event) {
-        DatumWriter writer = new FilteredRecordWriter(event.properties().getSchema(), GenericData.get());
-        KByteArrayOutputStream out = buffer.get();
-
-        int startPosition = out.position();
-        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
-
-        try {
-            writer.write(event.properties(), encoder);
-        } catch (Exception e) {
-            throw new RuntimeException("Couldn't serialize event", e);
+    private PutRecordsRequest toRequest(List<PendingRecord> records) {
+        List<PutRecordsRequestEntry> entries = new ArrayList<>(records.size());
+        for (PendingRecord record : records) {
+            entries.add(new PutRecordsRequestEntry()
+                    // the retries send the same records
+                    .withData(record.data.duplicate())
+                    .withPartitionKey(record.partitionKey)
+                    .withExplicitHashKey(record.explicitHashKey));
         }
+        return new PutRecordsRequest()
+                .withRecords(entries)
+                .withStreamName(config.getEventStoreStreamName());
+    }
 
-        int endPosition = out.position();
-        // TODO: find a way to make it zero-copy
+    static class PendingRecord {
+        private final ByteBuffer data;
+        private final String partitionKey;
+        private final String explicitHashKey;
+        private final int[] eventIndexes;
+
+        PendingRecord(ByteBuffer data, String partitionKey, String explicitHashKey, int[] eventIndexes) {
+            this.data = data;
+            this.partitionKey = partitionKey;
+            this.explicitHashKey = explicitHashKey;
+            this.eventIndexes = eventIndexes;
+        }
 
-        if (out.remaining() < 1000) {
-            out.position(0);
+        int size() {
+            return data.remaining() + partitionKey.length();
         }
+    }
 
-        return out.getBuffer(startPosition, endPosition - startPosition);
+    @Override
+    public void store(Event event) {
+        ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(ESTIMATED_EVENT_SIZE);
+        try {
+            try {
+                recordWriter.write(event.properties(), new ByteBufEncoder(buffer));
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't serialize event", e);
+            }
+            kinesis.putRecord(new PutRecordRequest()
+                    .withStreamName(config.getEventStoreStreamName())
+                    .withData(buffer.nioBuffer())
+                    .withPartitionKey(event.project() + "|" + event.collection())
+                    .withExplicitHashKey(partitionByCollection ? null : hashKey(event).toString()));
+        } finally {
+            buffer.release();
+        }
     }
-}
\ No newline at end of file
+}
@@ -2,8 +2,11 @@ package org.rakam.aws;
 
 import com.google.auto.service.AutoService;
 import com.google.inject.Binder;
+import com.google.inject.Key;
 import com.google.inject.Scopes;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.http.client.HttpClient;
 import io.airlift.log.Logger;
 import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.EventStore;
@@ -11,6 +14,8 @@ import org.rakam.plugin.stream.EventStream;
 import org.rakam.plugin.stream.EventStreamConfig;
 import org.rakam.plugin.RakamModule;
 
+import javax.validation.constraints.Min;
+
 import static io.airlift.configuration.ConfigBinder.configBinder;
 import static io.airlift.http.client.HttpClientBinder.httpClientBinder;
 
@@ -26,6 +31,14 @@ public class AWSKinesisModule extends RakamModule {
         binder.bind(EventStore.class).to(AWSKinesisEventStore.class).in(Scopes.SINGLETON);
         if (buildConfigObject(EventStreamConfig.class).isEventStreamEnabled()) {
             httpClientBinder(binder).bindHttpClient("streamer", ForStreamer.class);
+            PrestoStreamConfig streamConfig = buildConfigObject(PrestoStreamConfig.class);
+            if (streamConfig.getPush()) {
+                // the push connections are long-lived, they must not use the connections of the polling requests
+                httpClientBinder(binder).bindHttpClient("streamer-push", ForStreamerPush.class)
+                        .withConfigDefaults(config -> config.setMaxConnectionsPerServer(streamConfig.getPushMaxConnections()));
+            } else {
+                binder.bind(HttpClient.class).annotatedWith(ForStreamerPush.class).to(Key.get(HttpClient.class, ForStreamer.class));
+            }
             binder.bind(EventStream.class).to(KinesisEventStream.class).in(Scopes.SINGLETON);
         }
     }
@@ -42,6 +55,8 @@ public class AWSKinesisModule extends RakamModule {
 
     public static class PrestoStreamConfig {
         private int port;
+        private boolean push;
+        private int pushMaxConnections = 100;
 
         @Config("presto.streaming.port")
         public void setPort(int port) {
@@ -51,6 +66,29 @@ public class AWSKinesisModule extends RakamModule {
         public int getPort() {
             return port;
         }
+
+        @Config("presto.streaming.push")
+        @ConfigDescription("Keeps a connection open to the streamer for each subscription and sends the events as " +
+                "they arrive instead of polling the streamer, falls back to polling if the streamer doesn't support it")
+        public void setPush(boolean push) {
+            this.push = push;
+        }
+
+        public boolean getPush() {
+            return push;
+        }
+
+        @Config("presto.streaming.push.max-connections")
+        @ConfigDescription("The maximum number of the subscriptions that are pushed at the same time, " +
+                "the other subscriptions poll the streamer")
+        public void setPushMaxConnections(int pushMaxConnections) {
+            this.pushMaxConnections = pushMaxConnections;
+        }
+
+        @Min(1)
+        public int getPushMaxConnections() {
+            return pushMaxConnections;
+        }
     }
 
 }
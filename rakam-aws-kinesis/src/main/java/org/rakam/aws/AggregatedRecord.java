@@ -0,0 +1,176 @@
+package org.rakam.aws;
+
+import com.google.common.base.Throwables;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs the events that go to the same shard into a single Kinesis record in the aggregation format of the Kinesis Producer
+ * Library so that the KCL and the other consumers that support the format de-aggregate them transparently.
+ * <p>
+ * The format is the magic bytes, the protobuf encoded AggregatedRecord message and the MD5 of the message:
+ * <pre>
+ * message AggregatedRecord {
+ *     repeated string partition_key_table = 1;
+ *     repeated string explicit_hash_key_table = 2;
+ *     repeated Record records = 3;
+ * }
+ * message Record {
+ *     required uint64 partition_key_index = 1;
+ *     optional uint64 explicit_hash_key_index = 2;
+ *     required bytes data = 3;
+ * }
+ * </pre>
+ * The events keep their own partition keys in the table, the record is sent with the partition key of the first
+ * event and the explicit hash key of the shard.
+ */
+class AggregatedRecord {
+    static final byte[] MAGIC = {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2};
+    private static final int DIGEST_LENGTH = 16;
+
+    private final String explicitHashKey;
+    private final Map<String, Integer> partitionKeyIndexes = new HashMap<>();
+    private final List<byte[]> partitionKeys = new ArrayList<>();
+    private final List<ByteBuffer> records = new ArrayList<>();
+    private final List<Integer> recordPartitionKeys = new ArrayList<>();
+    private final List<Integer> eventIndexes = new ArrayList<>();
+    private String partitionKey;
+    private int messageSize;
+
+    AggregatedRecord(String explicitHashKey) {
+        this.explicitHashKey = explicitHashKey;
+    }
+
+    String getPartitionKey() {
+        return partitionKey;
+    }
+
+    int[] getEventIndexes() {
+        return eventIndexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * The size of the Kinesis record if the data is added.
+     */
+    int sizeWith(String partitionKey, ByteBuffer data) {
+        Integer keyIndex = partitionKeyIndexes.get(partitionKey);
+        int size = MAGIC.length + messageSize + DIGEST_LENGTH;
+        if (keyIndex == null) {
+            keyIndex = partitionKeys.size();
+            size += fieldSize(partitionKey.getBytes(StandardCharsets.UTF_8).length);
+        }
+        return size + fieldSize(recordSize(keyIndex, data.remaining()));
+    }
+
+    void add(int eventIndex, String partitionKey, ByteBuffer data) {
+        Integer keyIndex = partitionKeyIndexes.get(partitionKey);
+        if (keyIndex == null) {
+            keyIndex = partitionKeys.size();
+            byte[] bytes = partitionKey.getBytes(StandardCharsets.UTF_8);
+            partitionKeyIndexes.put(partitionKey, keyIndex);
+            partitionKeys.add(bytes);
+            messageSize += fieldSize(bytes.length);
+        }
+        if (this.partitionKey == null) {
+            this.partitionKey = partitionKey;
+        }
+
+        records.add(data);
+        recordPartitionKeys.add(keyIndex);
+        eventIndexes.add(eventIndex);
+        messageSize += fieldSize(recordSize(keyIndex, data.remaining()));
+    }
+
+    AWSKinesisEventStore.PendingRecord toPendingRecord() {
+        return new AWSKinesisEventStore.PendingRecord(build(), partitionKey, explicitHashKey, getEventIndexes());
+    }
+
+    /**
+     * Returns the data of the Kinesis record. A single event is sent as it is since the consumers de-aggregate only
+     * the records that start with the magic bytes.
+     */
+    ByteBuffer build() {
+        if (records.size() == 1) {
+            return records.get(0);
+        }
+
+        byte[] output = new byte[MAGIC.length + messageSize + DIGEST_LENGTH];
+        System.arraycopy(MAGIC, 0, output, 0, MAGIC.length);
+
+        int position = MAGIC.length;
+        for (byte[] key : partitionKeys) {
+            // partition_key_table
+            output[position++] = tag(1);
+            position = writeVarint(output, position, key.length);
+            System.arraycopy(key, 0, output, position, key.length);
+            position += key.length;
+        }
+
+        for (int i = 0; i < records.size(); i++) {
+            ByteBuffer data = records.get(i);
+            int keyIndex = recordPartitionKeys.get(i);
+            int length = data.remaining();
+            // records
+            output[position++] = tag(3);
+            position = writeVarint(output, position, recordSize(keyIndex, length));
+            // partition_key_index
+            output[position++] = 1 << 3;
+            position = writeVarint(output, position, keyIndex);
+            // data
+            output[position++] = tag(3);
+            position = writeVarint(output, position, length);
+            data.duplicate().get(output, position, length);
+            position += length;
+        }
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw Throwables.propagate(e);
+        }
+        md5.update(output, MAGIC.length, messageSize);
+        byte[] digest = md5.digest();
+        System.arraycopy(digest, 0, output, position, DIGEST_LENGTH);
+
+        return ByteBuffer.wrap(output);
+    }
+
+    private static byte tag(int field) {
+        // length-delimited wire type
+        return (byte) (field << 3 | 2);
+    }
+
+    private static int recordSize(int partitionKeyIndex, int dataLength) {
+        return 1 + varintSize(partitionKeyIndex) + fieldSize(dataLength);
+    }
+
+    private static int fieldSize(int length) {
+        return 1 + varintSize(length) + length;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] output, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            output[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output[position++] = (byte) value;
+        return position;
+    }
+}
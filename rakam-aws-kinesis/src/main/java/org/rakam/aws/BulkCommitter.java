@@ -0,0 +1,332 @@
+package org.rakam.aws;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.facebook.presto.sql.tree.QualifiedName;
+import io.airlift.log.Logger;
+import org.rakam.analysis.metadata.QueryMetadataStore;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.presto.analysis.PrestoConfig;
+import org.rakam.presto.analysis.PrestoQueryExecutor;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryResult;
+import org.rakam.report.QueryStats;
+import org.rakam.util.QueryFormatter;
+
+import javax.sql.DataSource;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+import static org.rakam.presto.analysis.PrestoQueryExecution.PRESTO_TIMESTAMP_FORMAT;
+
+/**
+ * Moves the bulk data of the collections to the cold storage. The commits of the different collections run in
+ * parallel up to a limit and the commits of the same collection wait for each other, see {@link CollectionLocks}.
+ * The insert of a collection starts as soon as its lock is acquired. The continuous query views are
+ * refreshed once for all the collections that are committed together, the bulk data of a collection is deleted after
+ * the views are refreshed.
+ */
+class BulkCommitter {
+    private final static Logger LOGGER = Logger.get(BulkCommitter.class);
+    // the insert, view refresh and delete steps of each collection
+    private static final int STEPS_PER_COLLECTION = 3;
+
+    private final PrestoQueryExecutor executor;
+    private final PrestoConfig prestoConfig;
+    private final QueryMetadataStore queryMetadataStore;
+    private final ExecutorService insertExecutor;
+    private final ExecutorService commitExecutor;
+    private final CollectionLocks locks;
+
+    BulkCommitter(PrestoQueryExecutor executor, PrestoConfig prestoConfig, QueryMetadataStore queryMetadataStore,
+                  DataSource dataSource, int maxConcurrentInserts) {
+        this.executor = executor;
+        this.prestoConfig = prestoConfig;
+        this.queryMetadataStore = queryMetadataStore;
+        // the threads wait for the inserts so the size limits the concurrent inserts
+        this.insertExecutor = Executors.newFixedThreadPool(maxConcurrentInserts,
+                new ThreadFactoryBuilder().setNameFormat("bulk-commit-insert-%s").setDaemon(true).build());
+        this.commitExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("bulk-commit-%s").setDaemon(true).build());
+        // the threads wait for the locks that are held by the other commits
+        this.locks = new CollectionLocks(dataSource, commitExecutor);
+    }
+
+    QueryExecution commit(String project, Collection<String> collections) {
+        List<CollectionLocks.Lock> collectionLocks = locks.lock(project, collections);
+        CommitExecution execution = new CommitExecution(project, collectionLocks);
+
+        List<CompletableFuture<CollectionCommit>> inserts = new ArrayList<>();
+        for (CollectionLocks.Lock lock : collectionLocks) {
+            inserts.add(insert(new CollectionCommit(lock), execution));
+        }
+
+        CompletableFuture.allOf(inserts.toArray(new CompletableFuture[inserts.size()]))
+                .thenApplyAsync(ignore -> {
+                    List<CollectionCommit> results = inserts.stream().map(CompletableFuture::join).collect(Collectors.toList());
+                    try {
+                        List<CollectionCommit> inserted = results.stream().filter(commit -> commit.error == null)
+                                .collect(Collectors.toList());
+                        refreshViews(project, inserted, execution);
+                        delete(inserted.stream().filter(commit -> commit.error == null).collect(Collectors.toList()), execution);
+                    } finally {
+                        collectionLocks.forEach(CollectionLocks.Lock::release);
+                    }
+                    return results;
+                }, commitExecutor)
+                .whenComplete((results, ex) -> {
+                    if (ex != null) {
+                        LOGGER.error(ex, "Error while committing bulk data of project %s", project);
+                        execution.complete(QueryResult.errorResult(QueryError.create(ex.getMessage())));
+                        return;
+                    }
+
+                    String errors = results.stream().filter(commit -> commit.error != null)
+                            .map(commit -> commit.collection + ": " + commit.error)
+                            .collect(Collectors.joining(", "));
+                    execution.complete(errors.isEmpty() ? QueryResult.empty() : QueryResult.errorResult(QueryError.create(errors)));
+                });
+
+        return execution;
+    }
+
+    private CompletableFuture<CollectionCommit> insert(CollectionCommit commit, CommitExecution execution) {
+        return commit.lock.acquired.handleAsync((lock, lockError) -> {
+            if (lockError != null) {
+                LOGGER.error(lockError, "Error while locking bulk data of %s.%s", commit.project, commit.collection);
+                commit.error = lockError.getMessage() == null ? lockError.getClass().getName() : lockError.getMessage();
+            } else if (execution.killed) {
+                commit.error = "Commit is killed";
+            } else {
+                try {
+                    execution.start();
+                    commit.now = Instant.now();
+                    QueryResult result = execution.run(executor.executeRawStatement(format("INSERT INTO %s.\"%s\".\"%s\" SELECT * %s",
+                            prestoConfig.getColdStorageConnector(), commit.project, commit.collection, commit.getBulkTable())));
+                    if (result.isFailed()) {
+                        commit.error = result.getError().message;
+                    }
+                } catch (Exception e) {
+                    LOGGER.error(e, "Error while committing bulk data of %s.%s", commit.project, commit.collection);
+                    commit.error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+                }
+            }
+            execution.completeStep();
+            return commit;
+        }, insertExecutor);
+    }
+
+    private void refreshViews(String project, List<CollectionCommit> inserted, CommitExecution execution) {
+        if (inserted.isEmpty()) {
+            return;
+        }
+
+        Map<String, CollectionCommit> committed = inserted.stream()
+                .collect(Collectors.toMap(commit -> commit.collection, commit -> commit));
+        Map<QueryExecution, List<CollectionCommit>> refreshes = new LinkedHashMap<>();
+
+        for (ContinuousQuery continuousQuery : queryMetadataStore.getContinuousQueries(project)) {
+            AtomicBoolean readsAll = new AtomicBoolean();
+            List<CollectionCommit> collections = new ArrayList<>();
+            QueryFormatter.format(continuousQuery.getQuery(), name -> {
+                if (isAllTable(name)) {
+                    readsAll.set(true);
+                } else {
+                    CollectionCommit commit = getCollection(committed, name);
+                    if (commit != null && !collections.contains(commit)) {
+                        collections.add(commit);
+                    }
+                }
+                return executor.formatTableReference(project, name);
+            });
+
+            if (readsAll.get()) {
+                // the schemas of the collections are different so the views that read all the collections are
+                // refreshed for each collection
+                for (CollectionCommit commit : inserted) {
+                    Predicate<CollectionCommit> replaced = c -> c == commit;
+                    refreshes.put(refreshView(project, continuousQuery, committed, replaced, commit), ImmutableList.of(commit));
+                }
+            } else if (!collections.isEmpty()) {
+                refreshes.put(refreshView(project, continuousQuery, committed, collections::contains, null), collections);
+            }
+        }
+
+        for (Map.Entry<QueryExecution, List<CollectionCommit>> refresh : refreshes.entrySet()) {
+            QueryResult result = execution.run(refresh.getKey());
+            if (result.isFailed()) {
+                // the bulk data is kept so that it can be committed again
+                for (CollectionCommit commit : refresh.getValue()) {
+                    commit.error = result.getError().message;
+                }
+            }
+        }
+        execution.completeSteps(inserted.size());
+    }
+
+    private QueryExecution refreshView(String project, ContinuousQuery continuousQuery, Map<String, CollectionCommit> committed,
+                                       Predicate<CollectionCommit> replaced, CollectionCommit allTable) {
+        String query = QueryFormatter.format(continuousQuery.getQuery(), name -> {
+            if (allTable != null && isAllTable(name)) {
+                return format("(SELECT '%s' as \"$collection\", * %s)", allTable.collection, allTable.getBulkTable());
+            }
+
+            CollectionCommit commit = getCollection(committed, name);
+            if (commit != null && replaced.test(commit)) {
+                return format("(SELECT '%s' as \"$collection\", * %s)", commit.collection, commit.getBulkTable());
+            }
+            return executor.formatTableReference(project, name);
+        });
+
+        return executor.executeRawQuery(format("CREATE OR REPLACE VIEW %s.\"%s\".\"%s\" AS %s",
+                        prestoConfig.getStreamingConnector(), project, continuousQuery.tableName, query),
+                ImmutableMap.of(prestoConfig.getStreamingConnector() + ".append_data", "true"),
+                prestoConfig.getStreamingConnector());
+    }
+
+    private static boolean isAllTable(QualifiedName name) {
+        return !name.getPrefix().isPresent() && name.getSuffix().equals("_all");
+    }
+
+    private static CollectionCommit getCollection(Map<String, CollectionCommit> committed, QualifiedName name) {
+        if (!name.getPrefix().map(prefix -> prefix.equals("collection")).orElse(true)) {
+            return null;
+        }
+        return committed.get(name.getSuffix());
+    }
+
+    private void delete(List<CollectionCommit> refreshed, CommitExecution execution) {
+        Map<CollectionCommit, QueryExecution> deletes = new HashMap<>();
+        for (CollectionCommit commit : refreshed) {
+            deletes.put(commit, executor.executeRawStatement(format("DELETE FROM %s.\"%s\".\"%s\" WHERE \"$created_at\" <= timestamp '%s UTC'",
+                    prestoConfig.getBulkConnector(), commit.project, commit.collection,
+                    PRESTO_TIMESTAMP_FORMAT.format(commit.now.atZone(ZoneOffset.UTC)))));
+        }
+
+        for (Map.Entry<CollectionCommit, QueryExecution> delete : deletes.entrySet()) {
+            QueryResult result = execution.run(delete.getValue());
+            if (result.isFailed()) {
+                delete.getKey().error = result.getError().message;
+            }
+            execution.completeStep();
+        }
+    }
+
+    private class CollectionCommit {
+        private final String project;
+        private final String collection;
+        private final CollectionLocks.Lock lock;
+        private Instant now;
+        private volatile String error;
+
+        private CollectionCommit(CollectionLocks.Lock lock) {
+            this.project = lock.project;
+            this.collection = lock.collection;
+            this.lock = lock;
+        }
+
+        private String getBulkTable() {
+            return format("FROM %s.\"%s\".\"%s\" WHERE \"$created_at\" < timestamp '%s UTC'",
+                    prestoConfig.getBulkConnector(), project, collection,
+                    PRESTO_TIMESTAMP_FORMAT.format(now.atZone(ZoneOffset.UTC)));
+        }
+    }
+
+    /**
+     * Progress of a commit, the percentage is the ratio of the completed insert, view refresh and delete steps of the
+     * collections.
+     */
+    private static class CommitExecution implements QueryExecution {
+        private final String query;
+        private final int totalSteps;
+        private final AtomicInteger completedSteps = new AtomicInteger();
+        private final Set<QueryExecution> running = ConcurrentHashMap.newKeySet();
+        private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+        private volatile boolean started;
+        private volatile boolean killed;
+
+        private CommitExecution(String project, List<CollectionLocks.Lock> collections) {
+            this.query = format("COMMIT %s (%s)", project, collections.stream().map(lock -> lock.collection).collect(Collectors.joining(", ")));
+            this.totalSteps = Math.max(1, collections.size() * STEPS_PER_COLLECTION);
+        }
+
+        private void start() {
+            started = true;
+        }
+
+        private QueryResult run(QueryExecution execution) {
+            running.add(execution);
+            if (killed) {
+                execution.kill();
+            }
+            try {
+                return execution.getResult().join();
+            } finally {
+                running.remove(execution);
+            }
+        }
+
+        private void completeStep() {
+            completedSteps.incrementAndGet();
+        }
+
+        private void completeSteps(int steps) {
+            completedSteps.addAndGet(steps);
+        }
+
+        private void complete(QueryResult queryResult) {
+            result.complete(queryResult);
+        }
+
+        @Override
+        public QueryStats currentStats() {
+            QueryStats.State state;
+            if (result.isDone()) {
+                state = result.join().isFailed() ? QueryStats.State.FAILED : QueryStats.State.FINISHED;
+            } else {
+                state = started ? QueryStats.State.RUNNING : QueryStats.State.QUEUED;
+            }
+            int percentage = result.isDone() ? 100 : Math.min(99, completedSteps.get() * 100 / totalSteps);
+            return new QueryStats(percentage, state, null, null, null, null, null, null);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult() {
+            return result;
+        }
+
+        @Override
+        public String getQuery() {
+            return query;
+        }
+
+        @Override
+        public void kill() {
+            killed = true;
+            running.forEach(QueryExecution::kill);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.rakam.aws;
+
+import com.google.common.collect.ImmutableList;
+import io.airlift.log.Logger;
+import org.rakam.util.ProjectCollection;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import static java.lang.String.format;
+
+/**
+ * Locks of the collections that are committed. The commits of a collection on this node are chained so that they
+ * don't take the threads while waiting for each other and the commits of the other nodes are excluded with the named
+ * locks of the metadata database. The locks of a commit are acquired one by one in the order of the collection names,
+ * a commit only waits for a lock while it holds the locks of the preceding collections so the commits that have
+ * common collections can't wait for each other.
+ */
+class CollectionLocks {
+    private final static Logger LOGGER = Logger.get(CollectionLocks.class);
+
+    private final DataSource dataSource;
+    private final Executor executor;
+    private final Map<ProjectCollection, CompletableFuture<Void>> locks = new ConcurrentHashMap<>();
+
+    CollectionLocks(DataSource dataSource, Executor executor) {
+        this.dataSource = dataSource;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the locks of the collections in the order they're acquired, the duplicate collections are locked once.
+     * All the locks must be released, including the ones that couldn't be acquired.
+     */
+    List<Lock> lock(String project, Collection<String> collections) {
+        ImmutableList.Builder<Lock> builder = ImmutableList.builder();
+        CompletableFuture<?> previous = CompletableFuture.completedFuture(null);
+        for (String collection : new TreeSet<>(collections)) {
+            Lock lock = new Lock(project, collection);
+            // the failed locks don't prevent the next collections from being locked
+            previous.whenComplete((result, ex) -> lock.acquire());
+            previous = lock.acquired;
+            builder.add(lock);
+        }
+        return builder.build();
+    }
+
+    class Lock {
+        final String project;
+        final String collection;
+        final CompletableFuture<Lock> acquired = new CompletableFuture<>();
+        private final ProjectCollection key;
+        private final CompletableFuture<Void> released = new CompletableFuture<>();
+        private Connection connection;
+
+        private Lock(String project, String collection) {
+            this.project = project;
+            this.collection = collection;
+            this.key = new ProjectCollection(project, collection);
+        }
+
+        private String getLockKey() {
+            return "bulk." + project + "." + collection;
+        }
+
+        private void acquire() {
+            CompletableFuture<Void> previous = locks.put(key, released);
+            (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous).thenRunAsync(() -> {
+                try {
+                    connection = dataSource.getConnection();
+                    // the other nodes may commit the same collection
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute(format("SELECT GET_LOCK('%s', -1)", getLockKey()));
+                    }
+                    acquired.complete(this);
+                } catch (Throwable e) {
+                    acquired.completeExceptionally(e);
+                }
+            }, executor);
+        }
+
+        void release() {
+            try {
+                if (connection != null) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute(format("SELECT RELEASE_LOCK('%s')", getLockKey()));
+                    } finally {
+                        connection.close();
+                    }
+                }
+            } catch (SQLException e) {
+                LOGGER.warn(e, "Error while releasing the commit lock of %s.%s", project, collection);
+            } finally {
+                locks.remove(key, released);
+                released.complete(null);
+            }
+        }
+    }
+}
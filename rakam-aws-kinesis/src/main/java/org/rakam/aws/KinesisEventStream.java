@@ -1,8 +1,13 @@
 package org.rakam.aws;
 
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.http.client.HttpClient;
 import io.airlift.http.client.JsonBodyGenerator;
 import io.airlift.http.client.Request;
+import io.airlift.http.client.Response;
+import io.airlift.http.client.ResponseHandler;
 import io.airlift.http.client.StringResponseHandler;
 import io.airlift.json.JsonCodec;
 import io.airlift.log.Logger;
@@ -13,8 +18,17 @@ import org.rakam.presto.analysis.PrestoConfig;
 
 import javax.inject.Inject;
 import javax.ws.rs.core.UriBuilder;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.net.MediaType.JSON_UTF_8;
@@ -23,18 +37,30 @@ import static javax.ws.rs.core.HttpHeaders.CONTENT_TYPE;
 
 public class KinesisEventStream implements EventStream {
     private final static Logger LOGGER = Logger.get(KinesisEventStream.class);
+    private static final int MAX_FAILURES = 5;
+    private static final long RECONNECT_BACKOFF_MILLIS = 1000;
+    private static final String PUSH_HEADER = "X-Rakam-Stream-Push";
 
     private final HttpClient httpClient;
+    private final HttpClient pushHttpClient;
     private final int streamingPort;
+    private final boolean push;
     private final URI prestoAddress;
     private final JsonCodec<StreamQuery> queryCodec;
+    private final ExecutorService pushExecutor;
 
     @Inject
-    public KinesisEventStream(@ForStreamer HttpClient httpClient, AWSKinesisModule.PrestoStreamConfig config, PrestoConfig prestoConfig) {
+    public KinesisEventStream(@ForStreamer HttpClient httpClient, @ForStreamerPush HttpClient pushHttpClient,
+                              AWSKinesisModule.PrestoStreamConfig config, PrestoConfig prestoConfig) {
         this.httpClient = httpClient;
+        this.pushHttpClient = pushHttpClient;
         this.streamingPort = config.getPort();
+        this.push = config.getPush();
         this.prestoAddress = prestoConfig.getAddress();
         this.queryCodec = JsonCodec.jsonCodec(StreamQuery.class);
+        // the threads wait for the events of the subscriptions on the push connections, a thread holds a connection
+        this.pushExecutor = new ThreadPoolExecutor(0, config.getPushMaxConnections(), 1, TimeUnit.MINUTES, new SynchronousQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("kinesis-stream-push-%s").setDaemon(true).build());
     }
 
     @Override
@@ -55,41 +81,150 @@ public class KinesisEventStream implements EventStream {
 
         String ticket = httpClient.execute(request, StringResponseHandler.createStringResponseHandler()).getBody();
 
-        return new EventStreamer() {
-            private AtomicInteger failed = new AtomicInteger();
+        KinesisEventStreamer streamer = new KinesisEventStreamer(ticket, response);
+        if (push) {
+            streamer.pushing = true;
+            try {
+                pushExecutor.execute(streamer::push);
+            } catch (RejectedExecutionException e) {
+                streamer.pushing = false;
+                LOGGER.warn("All the push connections are in use, falling back to polling for ticket %s", ticket);
+            }
+        }
+        return streamer;
+    }
 
-            @Override
-            public synchronized void sync() {
+    private class KinesisEventStreamer implements EventStreamer {
+        private final String ticket;
+        private final StreamResponse response;
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile boolean pushing;
+        private volatile boolean closed;
+
+        private KinesisEventStreamer(String ticket, StreamResponse response) {
+            this.ticket = ticket;
+            this.response = response;
+        }
+
+        private URI getTicketUri(boolean push) {
+            UriBuilder builder = UriBuilder.fromUri(prestoAddress)
+                    .port(streamingPort)
+                    .path("connector/streamer")
+                    .queryParam("ticket", ticket);
+            if (push) {
+                builder.queryParam("push", true);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Reads the batches that the streamer sends as the events arrive, the batches are separated by new lines and
+         * the streamer marks the push responses with the X-Rakam-Stream-Push header.
+         * The connection is opened again when it's closed by the streamer or the idle timeout of the client.
+         */
+        private void push() {
+            while (pushing && !closed && !response.isClosed()) {
+                PushResponseHandler handler = new PushResponseHandler();
                 try {
-                    URI uri = UriBuilder.fromUri(prestoAddress)
-                            .port(streamingPort)
-                            .path("connector/streamer")
-                            .queryParam("ticket", ticket)
-                            .build();
-
-                    Request request = prepareGet().setUri(uri).build();
-                    String data = httpClient.execute(request, StringResponseHandler.createStringResponseHandler()).getBody();
-
-                    response.send("data", data);
+                    Request request = prepareGet().setUri(getTicketUri(true)).build();
+                    if (!pushHttpClient.execute(request, handler)) {
+                        pushing = false;
+                        LOGGER.warn("Streamer doesn't support push, falling back to polling for ticket %s", ticket);
+                        return;
+                    }
                 } catch (Exception e) {
-                    if (failed.incrementAndGet() > 5) {
+                    if (closed || response.isClosed()) {
+                        break;
+                    }
+                    // the idle connections are closed by the client, only the failed connection attempts are counted
+                    if (!handler.connected && failed.incrementAndGet() > MAX_FAILURES) {
                         LOGGER.error(e, "Error while streaming records to client");
+                        pushing = false;
                         shutdown();
                     }
                 }
+
+                if (!handler.connected) {
+                    try {
+                        Thread.sleep(RECONNECT_BACKOFF_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void sync() {
+            if (pushing || closed) {
+                return;
+            }
+
+            try {
+                Request request = prepareGet().setUri(getTicketUri(false)).build();
+                String data = httpClient.execute(request, StringResponseHandler.createStringResponseHandler()).getBody();
+
+                response.send("data", data);
+            } catch (Exception e) {
+                if (failed.incrementAndGet() > MAX_FAILURES) {
+                    LOGGER.error(e, "Error while streaming records to client");
+                    shutdown();
+                }
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            // the streamer ends the push connection of the ticket
+            Request request = prepareDelete().setUri(getTicketUri(false)).build();
+            httpClient.execute(request, StringResponseHandler.createStringResponseHandler());
+        }
+
+        private class PushResponseHandler implements ResponseHandler<Boolean, RuntimeException> {
+            private boolean connected;
+
+            @Override
+            public Boolean handleException(Request request, Exception exception) {
+                throw Throwables.propagate(exception);
             }
 
             @Override
-            public void shutdown() {
-                URI uri = UriBuilder.fromUri(prestoAddress)
-                        .port(streamingPort)
-                        .path("connector/streamer")
-                        .queryParam("ticket", ticket)
-                        .build();
-
-                Request request = prepareDelete().setUri(uri).build();
-                httpClient.execute(request, StringResponseHandler.createStringResponseHandler());
+            public Boolean handle(Request request, Response httpResponse) {
+                // the errors such as 429 and 5xx are retried, they don't mean that the streamer doesn't support push
+                if (httpResponse.getStatusCode() != 200) {
+                    throw new IllegalStateException(String.format("Streamer returned status %d for ticket %s",
+                            httpResponse.getStatusCode(), ticket));
+                }
+                // the streamers that don't support push return the batch of the ticket as if it's polled
+                if (httpResponse.getHeader(PUSH_HEADER) == null) {
+                    try {
+                        response.send("data", new String(ByteStreams.toByteArray(httpResponse.getInputStream()), StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        throw Throwables.propagate(e);
+                    }
+                    return false;
+                }
+                connected = true;
+                failed.set(0);
+
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(httpResponse.getInputStream(), StandardCharsets.UTF_8))) {
+                    String batch;
+                    while (!closed && !response.isClosed() && (batch = reader.readLine()) != null) {
+                        if (!batch.isEmpty()) {
+                            response.send("data", batch);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw Throwables.propagate(e);
+                }
+                return true;
             }
-        };
+        }
     }
 }
@@ -0,0 +1,99 @@
+package org.rakam.aws;
+
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+import com.google.common.hash.Hashing;
+import io.airlift.log.Logger;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hash key ranges of the open shards of the stream. The ranges are described periodically so that the records can be
+ * grouped by their target shard and distributed to the shards after the stream is resharded.
+ */
+class KinesisShardMap {
+    private final static Logger LOGGER = Logger.get(KinesisShardMap.class);
+    private static final long REFRESH_INTERVAL_MILLIS = 60_000;
+
+    private final AmazonKinesisClient kinesis;
+    private final String streamName;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private volatile BigInteger[] startingHashKeys;
+    private volatile long lastRefresh;
+
+    KinesisShardMap(AmazonKinesisClient kinesis, String streamName) {
+        this.kinesis = kinesis;
+        this.streamName = streamName;
+    }
+
+    /**
+     * Returns the starting hash keys of the open shards in order or null if the stream couldn't be described.
+     */
+    BigInteger[] getStartingHashKeys() {
+        if (System.currentTimeMillis() - lastRefresh > REFRESH_INTERVAL_MILLIS) {
+            refresh();
+        }
+        return startingHashKeys;
+    }
+
+    private synchronized void refresh() {
+        if (System.currentTimeMillis() - lastRefresh <= REFRESH_INTERVAL_MILLIS) {
+            return;
+        }
+        lastRefresh = System.currentTimeMillis();
+
+        try {
+            List<BigInteger> keys = new ArrayList<>();
+            DescribeStreamRequest request = new DescribeStreamRequest().withStreamName(streamName);
+            StreamDescription description;
+            do {
+                description = kinesis.describeStream(request).getStreamDescription();
+                List<Shard> shards = description.getShards();
+                for (Shard shard : shards) {
+                    // the closed shards are parents of the resharded ones and don't accept records
+                    if (shard.getSequenceNumberRange().getEndingSequenceNumber() == null) {
+                        keys.add(new BigInteger(shard.getHashKeyRange().getStartingHashKey()));
+                    }
+                }
+                if (!shards.isEmpty()) {
+                    request.setExclusiveStartShardId(shards.get(shards.size() - 1).getShardId());
+                }
+            } while (description.getHasMoreShards());
+
+            startingHashKeys = keys.isEmpty() ? null : keys.stream().sorted().toArray(BigInteger[]::new);
+        } catch (Exception e) {
+            LOGGER.warn(e, "Couldn't describe the shards of Kinesis stream %s", streamName);
+        }
+    }
+
+    /**
+     * The hash key that Kinesis computes for the partition key.
+     */
+    static BigInteger hashKey(String partitionKey) {
+        return new BigInteger(1, Hashing.md5().hashString(partitionKey, StandardCharsets.UTF_8).asBytes());
+    }
+
+    static int shardIndex(BigInteger[] startingHashKeys, BigInteger hashKey) {
+        int index = Arrays.binarySearch(startingHashKeys, hashKey);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * Returns the hash key of the next shard in round-robin or a random hash key if the shards are not known.
+     */
+    BigInteger nextHashKey() {
+        BigInteger[] keys = getStartingHashKeys();
+        if (keys == null) {
+            return new BigInteger(128, ThreadLocalRandom.current());
+        }
+        return keys[Math.floorMod(nextShard.getAndIncrement(), keys.length)];
+    }
+}
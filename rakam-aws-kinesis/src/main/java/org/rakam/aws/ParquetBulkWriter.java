@@ -0,0 +1,496 @@
+package org.rakam.aws;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.LittleEndianDataOutputStream;
+import com.google.common.primitives.UnsignedBytes;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.parquet.format.ColumnChunk;
+import org.apache.parquet.format.ColumnMetaData;
+import org.apache.parquet.format.CompressionCodec;
+import org.apache.parquet.format.ConvertedType;
+import org.apache.parquet.format.DataPageHeader;
+import org.apache.parquet.format.Encoding;
+import org.apache.parquet.format.FieldRepetitionType;
+import org.apache.parquet.format.FileMetaData;
+import org.apache.parquet.format.PageHeader;
+import org.apache.parquet.format.PageType;
+import org.apache.parquet.format.RowGroup;
+import org.apache.parquet.format.SchemaElement;
+import org.apache.parquet.format.Statistics;
+import org.apache.parquet.format.Type;
+import org.apache.parquet.format.Util;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes the events of a collection as a Parquet file whose schema is generated from the fields of the collection.
+ * The rows are sorted by {@code _time} and split into row groups of a fixed number of rows so that the row groups
+ * cover distinct time ranges. Each column chunk is a single GZIP compressed data page with PLAIN values, the chunks of
+ * the primitive columns have their min, max and null count so that the readers can skip the row groups that don't
+ * match a predicate. The arrays and maps use the three-level LIST and MAP layouts.
+ */
+class ParquetBulkWriter {
+    private static final byte[] MAGIC = "PAR1".getBytes(US_ASCII);
+    private static final String TIME_FIELD = "_time";
+
+    private final List<SchemaField> fields;
+    private final List<Column> columns;
+    private final int rowGroupSize;
+
+    ParquetBulkWriter(List<SchemaField> fields, int rowGroupSize) {
+        checkArgument(rowGroupSize > 0, "rowGroupSize must be positive");
+        this.fields = fields;
+        this.rowGroupSize = rowGroupSize;
+
+        ImmutableList.Builder<Column> columns = ImmutableList.builder();
+        for (int i = 0; i < fields.size(); i++) {
+            String name = fields.get(i).getName();
+            FieldType type = fields.get(i).getType();
+            if (type.isArray()) {
+                columns.add(new Column(i, ColumnKind.ARRAY_ELEMENT, type.getArrayElementType(), 3, 1, name, "list", "element"));
+            } else if (type.isMap()) {
+                columns.add(new Column(i, ColumnKind.MAP_KEY, FieldType.STRING, 2, 1, name, "key_value", "key"));
+                columns.add(new Column(i, ColumnKind.MAP_VALUE, type.getMapValueType(), 3, 1, name, "key_value", "value"));
+            } else {
+                columns.add(new Column(i, ColumnKind.PRIMITIVE, type, 1, 0, name));
+            }
+        }
+        this.columns = columns.build();
+    }
+
+    /**
+     * Writes the records whose values are in the order of the fields, the stream is not closed.
+     */
+    void write(List<GenericRecord> records, OutputStream output) throws IOException {
+        List<GenericRecord> rows = sortByTime(records);
+
+        CountingOutputStream out = new CountingOutputStream(output);
+        out.write(MAGIC);
+
+        List<RowGroup> rowGroups = new ArrayList<>();
+        for (int start = 0; start < rows.size(); start += rowGroupSize) {
+            rowGroups.add(writeRowGroup(rows.subList(start, Math.min(rows.size(), start + rowGroupSize)), out));
+        }
+
+        FileMetaData metadata = new FileMetaData(1, getSchema(), rows.size(), rowGroups);
+        metadata.setCreated_by("rakam");
+
+        long footerStart = out.getCount();
+        Util.writeFileMetaData(metadata, out);
+        LittleEndianDataOutputStream footer = new LittleEndianDataOutputStream(out);
+        footer.writeInt((int) (out.getCount() - footerStart));
+        footer.write(MAGIC);
+        footer.flush();
+    }
+
+    private List<GenericRecord> sortByTime(List<GenericRecord> records) {
+        int time = -1;
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).getName().equals(TIME_FIELD)) {
+                time = i;
+            }
+        }
+        if (time == -1) {
+            return records;
+        }
+
+        int timeIndex = time;
+        List<GenericRecord> rows = new ArrayList<>(records);
+        // the events without _time are written first
+        rows.sort(Comparator.comparing((GenericRecord record) -> (Number) record.get(timeIndex),
+                Comparator.nullsFirst(Comparator.comparingLong(Number::longValue))));
+        return rows;
+    }
+
+    private RowGroup writeRowGroup(List<GenericRecord> rows, CountingOutputStream out) throws IOException {
+        List<ColumnChunk> chunks = new ArrayList<>();
+        long totalSize = 0;
+        for (Column column : columns) {
+            ColumnWriter writer = new ColumnWriter(column);
+            for (GenericRecord row : rows) {
+                writer.add(row.get(column.field));
+            }
+            ColumnChunk chunk = writer.write(out);
+            totalSize += chunk.getMeta_data().getTotal_uncompressed_size();
+            chunks.add(chunk);
+        }
+        return new RowGroup(chunks, totalSize, rows.size());
+    }
+
+    private List<SchemaElement> getSchema() {
+        List<SchemaElement> schema = new ArrayList<>();
+        SchemaElement root = new SchemaElement("collection");
+        root.setNum_children(fields.size());
+        schema.add(root);
+
+        for (SchemaField field : fields) {
+            FieldType type = field.getType();
+            if (type.isArray()) {
+                schema.add(group(field.getName(), FieldRepetitionType.OPTIONAL, ConvertedType.LIST, 1));
+                schema.add(group("list", FieldRepetitionType.REPEATED, null, 1));
+                schema.add(primitive("element", FieldRepetitionType.OPTIONAL, type.getArrayElementType()));
+            } else if (type.isMap()) {
+                schema.add(group(field.getName(), FieldRepetitionType.OPTIONAL, ConvertedType.MAP, 1));
+                schema.add(group("key_value", FieldRepetitionType.REPEATED, ConvertedType.MAP_KEY_VALUE, 2));
+                schema.add(primitive("key", FieldRepetitionType.REQUIRED, FieldType.STRING));
+                schema.add(primitive("value", FieldRepetitionType.OPTIONAL, type.getMapValueType()));
+            } else {
+                schema.add(primitive(field.getName(), FieldRepetitionType.OPTIONAL, type));
+            }
+        }
+        return schema;
+    }
+
+    private static SchemaElement group(String name, FieldRepetitionType repetition, ConvertedType convertedType, int children) {
+        SchemaElement element = new SchemaElement(name);
+        element.setRepetition_type(repetition);
+        element.setNum_children(children);
+        if (convertedType != null) {
+            element.setConverted_type(convertedType);
+        }
+        return element;
+    }
+
+    private static SchemaElement primitive(String name, FieldRepetitionType repetition, FieldType type) {
+        SchemaElement element = new SchemaElement(name);
+        element.setRepetition_type(repetition);
+        element.setType(getPhysicalType(type));
+        ConvertedType convertedType = getConvertedType(type);
+        if (convertedType != null) {
+            element.setConverted_type(convertedType);
+        }
+        return element;
+    }
+
+    private static Type getPhysicalType(FieldType type) {
+        switch (type) {
+            case STRING:
+            case BINARY:
+                return Type.BYTE_ARRAY;
+            case BOOLEAN:
+                return Type.BOOLEAN;
+            case INTEGER:
+            case DATE:
+            case TIME:
+                return Type.INT32;
+            case LONG:
+            case TIMESTAMP:
+                return Type.INT64;
+            case DOUBLE:
+            case DECIMAL:
+                return Type.DOUBLE;
+            default:
+                throw new IllegalArgumentException("Type is not supported: " + type);
+        }
+    }
+
+    private static ConvertedType getConvertedType(FieldType type) {
+        switch (type) {
+            case STRING:
+                return ConvertedType.UTF8;
+            case DATE:
+                return ConvertedType.DATE;
+            case TIME:
+                return ConvertedType.TIME_MILLIS;
+            case TIMESTAMP:
+                return ConvertedType.TIMESTAMP_MILLIS;
+            default:
+                return null;
+        }
+    }
+
+    private enum ColumnKind {
+        PRIMITIVE, ARRAY_ELEMENT, MAP_KEY, MAP_VALUE
+    }
+
+    private static class Column {
+        private final int field;
+        private final ColumnKind kind;
+        private final Type type;
+        private final int maxDefinitionLevel;
+        private final int maxRepetitionLevel;
+        private final List<String> path;
+
+        private Column(int field, ColumnKind kind, FieldType type, int maxDefinitionLevel, int maxRepetitionLevel, String... path) {
+            this.field = field;
+            this.kind = kind;
+            this.type = getPhysicalType(type);
+            this.maxDefinitionLevel = maxDefinitionLevel;
+            this.maxRepetitionLevel = maxRepetitionLevel;
+            this.path = ImmutableList.copyOf(path);
+        }
+    }
+
+    /**
+     * Buffers the levels and the values of a column chunk, the statistics are only kept for the primitive columns.
+     */
+    private static class ColumnWriter {
+        private final Column column;
+        private final Comparator<Object> comparator;
+        private int[] repetitionLevels = new int[1024];
+        private int[] definitionLevels = new int[1024];
+        private int levelCount;
+        private final ByteArrayOutputStream valueBuffer = new ByteArrayOutputStream();
+        private final LittleEndianDataOutputStream values = new LittleEndianDataOutputStream(valueBuffer);
+        private int booleanBits;
+        private int booleanCount;
+        private long nullCount;
+        private Object min;
+        private Object max;
+
+        private ColumnWriter(Column column) {
+            this.column = column;
+            this.comparator = getComparator(column.type);
+        }
+
+        private void add(Object value) throws IOException {
+            if (column.kind == ColumnKind.PRIMITIVE) {
+                if (value == null) {
+                    nullCount++;
+                    addLevels(0, 0);
+                } else {
+                    addLevels(0, 1);
+                    addValue(value);
+                }
+                return;
+            }
+
+            if (value == null) {
+                addLevels(0, 0);
+                return;
+            }
+
+            if (column.kind == ColumnKind.ARRAY_ELEMENT) {
+                List<?> list = (List<?>) value;
+                if (list.isEmpty()) {
+                    addLevels(0, 1);
+                }
+                for (int i = 0; i < list.size(); i++) {
+                    addRepeated(i == 0 ? 0 : 1, list.get(i));
+                }
+                return;
+            }
+
+            Map<?, ?> map = (Map<?, ?>) value;
+            if (map.isEmpty()) {
+                addLevels(0, 1);
+            }
+            // the key and value columns iterate the same map in the same order
+            int i = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                int repetitionLevel = i++ == 0 ? 0 : 1;
+                if (column.kind == ColumnKind.MAP_KEY) {
+                    addLevels(repetitionLevel, 2);
+                    addValue(entry.getKey());
+                } else {
+                    addRepeated(repetitionLevel, entry.getValue());
+                }
+            }
+        }
+
+        private void addRepeated(int repetitionLevel, Object value) throws IOException {
+            if (value == null) {
+                addLevels(repetitionLevel, 2);
+            } else {
+                addLevels(repetitionLevel, 3);
+                addValue(value);
+            }
+        }
+
+        private void addLevels(int repetitionLevel, int definitionLevel) {
+            if (levelCount == definitionLevels.length) {
+                repetitionLevels = Arrays.copyOf(repetitionLevels, levelCount * 2);
+                definitionLevels = Arrays.copyOf(definitionLevels, levelCount * 2);
+            }
+            repetitionLevels[levelCount] = repetitionLevel;
+            definitionLevels[levelCount] = definitionLevel;
+            levelCount++;
+        }
+
+        private void addValue(Object value) throws IOException {
+            Object normalized = normalize(column.type, value);
+            switch (column.type) {
+                case BOOLEAN:
+                    // the booleans are bit packed starting from the least significant bit
+                    if ((Boolean) normalized) {
+                        booleanBits |= 1 << booleanCount;
+                    }
+                    if (++booleanCount == 8) {
+                        values.write(booleanBits);
+                        booleanBits = 0;
+                        booleanCount = 0;
+                    }
+                    break;
+                case BYTE_ARRAY:
+                    values.writeInt(((byte[]) normalized).length);
+                    values.write((byte[]) normalized);
+                    break;
+                default:
+                    values.write(encodePlain(column.type, normalized));
+            }
+
+            if (column.kind == ColumnKind.PRIMITIVE && !(normalized instanceof Double && ((Double) normalized).isNaN())) {
+                if (min == null || comparator.compare(normalized, min) < 0) {
+                    min = normalized;
+                }
+                if (max == null || comparator.compare(normalized, max) > 0) {
+                    max = normalized;
+                }
+            }
+        }
+
+        private ColumnChunk write(CountingOutputStream out) throws IOException {
+            if (booleanCount > 0) {
+                values.write(booleanBits);
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            LittleEndianDataOutputStream page = new LittleEndianDataOutputStream(buffer);
+            if (column.maxRepetitionLevel > 0) {
+                byte[] levels = encodeLevels(repetitionLevels, levelCount, column.maxRepetitionLevel);
+                page.writeInt(levels.length);
+                page.write(levels);
+            }
+            byte[] levels = encodeLevels(definitionLevels, levelCount, column.maxDefinitionLevel);
+            page.writeInt(levels.length);
+            page.write(levels);
+            valueBuffer.writeTo(page);
+            page.flush();
+
+            byte[] uncompressed = buffer.toByteArray();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(uncompressed);
+            }
+
+            PageHeader header = new PageHeader(PageType.DATA_PAGE, uncompressed.length, compressed.size());
+            header.setData_page_header(new DataPageHeader(levelCount, Encoding.PLAIN, Encoding.RLE, Encoding.RLE));
+
+            long start = out.getCount();
+            Util.writePageHeader(header, out);
+            long headerSize = out.getCount() - start;
+            compressed.writeTo(out);
+
+            ColumnMetaData metadata = new ColumnMetaData(column.type, ImmutableList.of(Encoding.PLAIN, Encoding.RLE),
+                    column.path, CompressionCodec.GZIP, levelCount,
+                    headerSize + uncompressed.length, headerSize + compressed.size(), start);
+            if (column.kind == ColumnKind.PRIMITIVE) {
+                Statistics statistics = new Statistics();
+                statistics.setNull_count(nullCount);
+                if (min != null) {
+                    statistics.setMin(encodePlain(column.type, min));
+                    statistics.setMax(encodePlain(column.type, max));
+                }
+                metadata.setStatistics(statistics);
+            }
+
+            ColumnChunk chunk = new ColumnChunk(start);
+            chunk.setMeta_data(metadata);
+            return chunk;
+        }
+    }
+
+    /**
+     * Encodes the levels with the runs of the RLE / bit-packing hybrid encoding.
+     */
+    static byte[] encodeLevels(int[] levels, int count, int maxLevel) {
+        int byteWidth = (32 - Integer.numberOfLeadingZeros(maxLevel) + 7) / 8;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int start = 0;
+        while (start < count) {
+            int end = start;
+            while (end < count && levels[end] == levels[start]) {
+                end++;
+            }
+
+            int header = (end - start) << 1;
+            while ((header & ~0x7F) != 0) {
+                out.write((header & 0x7F) | 0x80);
+                header >>>= 7;
+            }
+            out.write(header);
+            for (int i = 0; i < byteWidth; i++) {
+                out.write(levels[start] >>> (i * 8));
+            }
+            start = end;
+        }
+        return out.toByteArray();
+    }
+
+    private static Object normalize(Type type, Object value) {
+        switch (type) {
+            case BOOLEAN:
+                return value;
+            case INT32:
+                return ((Number) value).intValue();
+            case INT64:
+                return ((Number) value).longValue();
+            case DOUBLE:
+                return ((Number) value).doubleValue();
+            case BYTE_ARRAY:
+                if (value instanceof ByteBuffer) {
+                    ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    return bytes;
+                }
+                if (value instanceof byte[]) {
+                    return value;
+                }
+                return value.toString().getBytes(UTF_8);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private static Comparator<Object> getComparator(Type type) {
+        switch (type) {
+            case BOOLEAN:
+                return (first, second) -> Boolean.compare((Boolean) first, (Boolean) second);
+            case INT32:
+                return (first, second) -> Integer.compare((Integer) first, (Integer) second);
+            case INT64:
+                return (first, second) -> Long.compare((Long) first, (Long) second);
+            case DOUBLE:
+                return (first, second) -> Double.compare((Double) first, (Double) second);
+            case BYTE_ARRAY:
+                return (first, second) -> UnsignedBytes.lexicographicalComparator().compare((byte[]) first, (byte[]) second);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private static byte[] encodePlain(Type type, Object value) {
+        switch (type) {
+            case BOOLEAN:
+                return new byte[] {(byte) ((Boolean) value ? 1 : 0)};
+            case INT32:
+                return ByteBuffer.allocate(4).order(LITTLE_ENDIAN).putInt((Integer) value).array();
+            case INT64:
+                return ByteBuffer.allocate(8).order(LITTLE_ENDIAN).putLong((Long) value).array();
+            case DOUBLE:
+                return ByteBuffer.allocate(8).order(LITTLE_ENDIAN).putDouble((Double) value).array();
+            case BYTE_ARRAY:
+                return (byte[]) value;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+}
@@ -1,45 +1,51 @@
 package org.rakam.aws;
 
-import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClient;
 import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.log.Logger;
-import io.airlift.slice.BasicSliceInput;
-import io.airlift.slice.DynamicSliceOutput;
 import org.apache.avro.Schema;
-import org.apache.avro.generic.FilteredRecordWriter;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.io.BinaryEncoder;
-import org.apache.avro.io.DatumWriter;
 import org.apache.avro.io.EncoderFactory;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.SchemaField;
+import org.rakam.util.AvroRecordWriter;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import static org.rakam.util.AvroUtil.convertAvroSchema;
 
 public class S3BulkEventStore {
     private final static Logger LOGGER = Logger.get(S3BulkEventStore.class);
+    // S3 rejects the parts that are smaller than 5MB except the last one
+    private static final long MIN_PART_SIZE = 5 * 1024 * 1024;
     private final Metastore metastore;
     private final AmazonS3Client s3Client;
     private final AWSConfig config;
     private final int conditionalMagicFieldsSize;
     private final AmazonCloudWatchAsyncClient cloudWatchClient;
+    private final AvroRecordWriter recordWriter = new AvroRecordWriter(field -> field.schema().getType() != Schema.Type.NULL);
+    private final S3MultipartOutputStream.PartBufferPool bufferPool;
+    private final ExecutorService collectionExecutor;
+    private final ExecutorService partExecutor;
 
     public S3BulkEventStore(Metastore metastore, AWSConfig config, FieldDependencyBuilder.FieldDependency fieldDependency) {
         this.metastore = metastore;
@@ -54,134 +60,121 @@ public class S3BulkEventStore {
         cloudWatchClient.setRegion(config.getAWSRegion());
 
         this.conditionalMagicFieldsSize = fieldDependency.dependentFields.size();
+
+        // the memory that is used by the uploads is bounded by the part size times the number of concurrent parts
+        int concurrentParts = config.getBulkS3MaxConcurrentParts();
+        this.bufferPool = new S3MultipartOutputStream.PartBufferPool(
+                (int) Math.max(config.getBulkS3PartSize().toBytes(), MIN_PART_SIZE), concurrentParts);
+        this.partExecutor = Executors.newFixedThreadPool(concurrentParts,
+                new ThreadFactoryBuilder().setNameFormat("s3-bulk-upload-part-%s").setDaemon(true).build());
+        this.collectionExecutor = Executors.newFixedThreadPool(concurrentParts,
+                new ThreadFactoryBuilder().setNameFormat("s3-bulk-upload-%s").setDaemon(true).build());
     }
 
     public void upload(String project, List<Event> events) {
-        GenericData data = GenericData.get();
-
-        DynamicSliceOutput buffer = new DynamicSliceOutput(events.size() * 100);
-
         Map<String, List<Event>> map = new HashMap<>();
         events.forEach(event -> map.computeIfAbsent(event.collection(),
                 (col) -> new ArrayList<>()).add(event));
 
-        BinaryEncoder encoder = null;
-
         String batchId = UUID.randomUUID().toString();
 
-        List<String> uploadedFiles = new ArrayList<>();
+        Map<String, CompletableFuture<Void>> uploads = new HashMap<>();
+        for (Map.Entry<String, List<Event>> entry : map.entrySet()) {
+            String key = project + "/" + entry.getKey() + "/" + batchId + config.getBulkFormat().getExtension();
+            uploads.put(key, CompletableFuture.runAsync(() -> upload(project, entry.getKey(), key, entry.getValue()), collectionExecutor));
+        }
+
         try {
-            for (Map.Entry<String, List<Event>> entry : map.entrySet()) {
-                buffer.reset();
+            CompletableFuture.allOf(uploads.values().toArray(new CompletableFuture[uploads.size()])).join();
+        } catch (CompletionException e) {
+            // the collections that are uploaded successfully are deleted so that the batch can be retried
+            uploads.forEach((key, upload) -> {
+                if (!upload.isCompletedExceptionally()) {
+                    s3Client.deleteObject(config.getEventStoreBulkS3Bucket(), key);
+                }
+            });
+            throw Throwables.propagate(e.getCause());
+        }
 
-                List<SchemaField> collection = metastore.getCollection(project, entry.getKey());
+        LOGGER.debug("Stored batch file '%s', %d events in %d collection.", batchId, events.size(), map.size());
 
-                Schema avroSchema = convertAvroSchema(collection);
-                DatumWriter writer = new FilteredRecordWriter(avroSchema, data);
-                encoder = EncoderFactory.get().directBinaryEncoder(buffer, encoder);
+        cloudWatchClient.putMetricDataAsync(new PutMetricDataRequest()
+                .withNamespace("rakam-middleware-collection")
+                .withMetricData(new MetricDatum()
+                        .withMetricName("bulk")
+                        .withValue(((Number) events.size()).doubleValue())
+                        .withDimensions(new Dimension().withName("project").withValue(project))));
+    }
 
-                encoder.writeInt(collection.size());
-                for (SchemaField schemaField : collection) {
-                    encoder.writeString(schemaField.getName());
-                }
+    private void upload(String project, String collectionName, String key, List<Event> events) {
+        S3MultipartOutputStream output = new S3MultipartOutputStream(s3Client, partExecutor, bufferPool,
+                config.getEventStoreBulkS3Bucket(), key);
+        try {
+            List<SchemaField> collection = metastore.getCollection(project, collectionName);
+
+            Schema avroSchema = convertAvroSchema(collection);
+            if (config.getBulkFormat() == BulkFormat.PARQUET) {
+                List<GenericRecord> records = events.stream()
+                        .map(event -> getRecord(event, collection, avroSchema))
+                        .collect(Collectors.toList());
+                new ParquetBulkWriter(collection, config.getBulkParquetRowGroupSize()).write(records, output);
+                output.close();
+                return;
+            }
 
-                encoder.writeInt(entry.getValue().size());
-
-                int expectedSchemaSize = collection.size() + conditionalMagicFieldsSize;
-                for (Event event : entry.getValue()) {
-                    GenericRecord properties = event.properties();
-
-                    List<Schema.Field> existingFields = properties.getSchema().getFields();
-                    if (existingFields.size() != expectedSchemaSize) {
-                        GenericData.Record record = new GenericData.Record(avroSchema);
-                        for (int i = 0; i < existingFields.size(); i++) {
-                            if (existingFields.get(i).schema().getType() != Schema.Type.NULL) {
-                                record.put(i, properties.get(i));
-                            }
-                        }
-                        properties = record;
-                    }
-                    writer.write(properties, encoder);
-                }
+            // the encoder buffers the small writes, the stream copies them to the part buffers
+            BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(output, null);
 
-                ObjectMetadata objectMetadata = new ObjectMetadata();
-                objectMetadata.setContentLength(buffer.size());
-                String key = events.get(0).project() + "/" + entry.getKey() + "/" + batchId;
-                s3Client.putObject(
-                        config.getEventStoreBulkS3Bucket(),
-                        key,
-                        new SafeSliceInputStream(new BasicSliceInput(buffer.slice())),
-                        objectMetadata);
-                uploadedFiles.add(key);
+            encoder.writeInt(collection.size());
+            for (SchemaField schemaField : collection) {
+                encoder.writeString(schemaField.getName());
             }
 
-            LOGGER.debug("Stored batch file '%s', %d events in %d collection.", batchId, events.size(), map.size());
-
-            cloudWatchClient.putMetricDataAsync(new PutMetricDataRequest()
-                    .withNamespace("rakam-middleware-collection")
-                    .withMetricData(new MetricDatum()
-                            .withMetricName("bulk")
-                            .withValue(((Number) events.size()).doubleValue())
-                            .withDimensions(new Dimension().withName("project").withValue(project))));
+            encoder.writeInt(events.size());
 
-        } catch (IOException | AmazonClientException e) {
-            for (String uploadedFile : uploadedFiles) {
-                s3Client.deleteObject(config.getEventStoreBulkS3Bucket(), uploadedFile);
+            for (Event event : events) {
+                recordWriter.write(getRecord(event, collection, avroSchema), encoder);
             }
+
+            encoder.flush();
+            output.close();
+        } catch (IOException | RuntimeException e) {
+            output.abort();
             throw Throwables.propagate(e);
         }
     }
 
-    private class SafeSliceInputStream extends InputStream {
-        private final BasicSliceInput sliceInput;
-
-        public SafeSliceInputStream(BasicSliceInput sliceInput) {
-            this.sliceInput = sliceInput;
-        }
-
-        @Override
-        public int read() throws IOException {
-            return sliceInput.read();
-        }
-
-        @Override
-        public int read(byte[] b) throws IOException {
-            return sliceInput.read(b);
-        }
-
-        @Override
-        public int read(byte[] b, int off, int len) throws IOException {
-            return sliceInput.read(b, off, len);
-        }
+    private GenericRecord getRecord(Event event, List<SchemaField> collection, Schema avroSchema) {
+        GenericRecord properties = event.properties();
 
-        @Override
-        public long skip(long n) throws IOException {
-            return sliceInput.skip(n);
+        List<Schema.Field> existingFields = properties.getSchema().getFields();
+        if (existingFields.size() != collection.size() + conditionalMagicFieldsSize) {
+            GenericData.Record record = new GenericData.Record(avroSchema);
+            for (int i = 0; i < existingFields.size(); i++) {
+                if (existingFields.get(i).schema().getType() != Schema.Type.NULL) {
+                    record.put(i, properties.get(i));
+                }
+            }
+            properties = record;
         }
+        return properties;
+    }
 
-        @Override
-        public int available() throws IOException {
-            return sliceInput.available();
-        }
+    public enum BulkFormat {
+        AVRO(""), PARQUET(".parquet");
 
-        @Override
-        public void close() throws IOException {
-            sliceInput.close();
-        }
+        private final String extension;
 
-        @Override
-        public synchronized void mark(int readlimit) {
-            throw new RuntimeException("mark/reset not supported");
+        BulkFormat(String extension) {
+            this.extension = extension;
         }
 
-        @Override
-        public synchronized void reset() throws IOException {
-            throw new IOException("mark/reset not supported");
+        public String getExtension() {
+            return extension;
         }
 
-        @Override
-        public boolean markSupported() {
-            return false;
+        public static BulkFormat fromString(String value) {
+            return valueOf(value.toUpperCase());
         }
     }
 }
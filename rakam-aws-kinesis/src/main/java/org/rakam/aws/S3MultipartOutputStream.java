@@ -0,0 +1,217 @@
+package org.rakam.aws;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import io.airlift.log.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Uploads the written bytes to S3 in fixed size parts while they're being written. The parts are uploaded in the
+ * background and the buffers of the parts are taken from a pool that is shared by the streams so the memory that is
+ * used by the uploads is bounded. The objects that fit in a part are uploaded with a single request.
+ */
+class S3MultipartOutputStream extends OutputStream {
+    private final static Logger LOGGER = Logger.get(S3MultipartOutputStream.class);
+
+    private final AmazonS3 s3;
+    private final Executor executor;
+    private final PartBufferPool bufferPool;
+    private final String bucket;
+    private final String key;
+    private final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+
+    private String uploadId;
+    private byte[] buffer;
+    private int position;
+    private boolean closed;
+
+    S3MultipartOutputStream(AmazonS3 s3, Executor executor, PartBufferPool bufferPool, String bucket, String key) {
+        this.s3 = s3;
+        this.executor = executor;
+        this.bufferPool = bufferPool;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBuffer();
+        buffer[position++] = (byte) b;
+        if (position == buffer.length) {
+            uploadPart();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureBuffer();
+            int length = Math.min(len, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, length);
+            position += length;
+            off += length;
+            len -= length;
+            if (position == buffer.length) {
+                uploadPart();
+            }
+        }
+    }
+
+    private void ensureBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (buffer == null) {
+            // blocks until the uploads of the other parts release their buffers
+            try {
+                buffer = bufferPool.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            position = 0;
+        }
+    }
+
+    private void uploadPart() throws IOException {
+        for (CompletableFuture<PartETag> part : parts) {
+            if (part.isCompletedExceptionally()) {
+                // fail fast instead of encoding the rest of the data
+                join(part);
+            }
+        }
+
+        if (uploadId == null) {
+            uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+        }
+
+        byte[] data = buffer;
+        int length = position;
+        UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(bucket)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(parts.size() + 1)
+                .withPartSize(length)
+                .withInputStream(new ByteArrayInputStream(data, 0, length));
+        buffer = null;
+        position = 0;
+
+        parts.add(CompletableFuture.supplyAsync(() -> {
+            try {
+                return s3.uploadPart(request).getPartETag();
+            } finally {
+                bufferPool.release(data);
+            }
+        }, executor));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            if (uploadId == null) {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(position);
+                s3.putObject(bucket, key, new ByteArrayInputStream(buffer == null ? new byte[0] : buffer, 0, position), metadata);
+            } else {
+                if (position > 0) {
+                    uploadPart();
+                }
+                List<PartETag> partETags = new ArrayList<>();
+                for (CompletableFuture<PartETag> part : parts) {
+                    partETags.add(join(part));
+                }
+                s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+            }
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        } finally {
+            closed = true;
+            releaseBuffer();
+        }
+    }
+
+    /**
+     * Discards the written data, the parts that are already uploaded are deleted.
+     */
+    void abort() {
+        closed = true;
+        releaseBuffer();
+        if (uploadId == null) {
+            return;
+        }
+
+        // the parts that are being uploaded are not deleted when the upload is aborted
+        CompletableFuture.allOf(parts.toArray(new CompletableFuture[parts.size()]))
+                .handle((result, ex) -> null)
+                .join();
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (RuntimeException e) {
+            LOGGER.warn(e, "Error while aborting the multipart upload of %s/%s", bucket, key);
+        }
+        uploadId = null;
+    }
+
+    private void releaseBuffer() {
+        if (buffer != null) {
+            bufferPool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw new IOException("Error while uploading a part", e.getCause());
+        }
+    }
+
+    /**
+     * The part buffers that are shared by the streams, the number of the buffers is limited so the callers wait when
+     * all the buffers are in use.
+     */
+    static class PartBufferPool {
+        private final int partSize;
+        private final Semaphore permits;
+        private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+
+        PartBufferPool(int partSize, int maxBuffers) {
+            this.partSize = partSize;
+            this.permits = new Semaphore(maxBuffers);
+        }
+
+        byte[] acquire() throws InterruptedException {
+            permits.acquire();
+            byte[] buffer = buffers.poll();
+            return buffer == null ? new byte[partSize] : buffer;
+        }
+
+        void release(byte[] buffer) {
+            buffers.offer(buffer);
+            permits.release();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.rakam.aws;
+
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestAggregatedRecord {
+    @Test
+    public void testSingleRecord() throws Exception {
+        AggregatedRecord record = new AggregatedRecord("1");
+        byte[] data = {1, 2, 3};
+        record.add(5, "project|collection", ByteBuffer.wrap(data));
+
+        assertEquals(record.build(), ByteBuffer.wrap(data));
+        assertEquals(record.getEventIndexes(), new int[]{5});
+    }
+
+    @Test
+    public void testAggregatedRecord() throws Exception {
+        AggregatedRecord record = new AggregatedRecord("1");
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            byte[] bytes = new byte[i * 100];
+            Arrays.fill(bytes, (byte) i);
+            data.add(bytes);
+        }
+
+        int size = 0;
+        for (int i = 0; i < data.size(); i++) {
+            size = record.sizeWith("project|collection", ByteBuffer.wrap(data.get(i)));
+            record.add(i, "project|collection", ByteBuffer.wrap(data.get(i)));
+        }
+
+        byte[] output = record.build().array();
+        assertEquals(output.length, size);
+        assertEquals(Arrays.copyOf(output, 4), AggregatedRecord.MAGIC);
+
+        byte[] message = Arrays.copyOfRange(output, 4, output.length - 16);
+        assertEquals(Arrays.copyOfRange(output, output.length - 16, output.length),
+                MessageDigest.getInstance("MD5").digest(message));
+
+        // decode the protobuf message
+        int[] position = {0};
+        assertEquals(message[position[0]++], (1 << 3) | 2);
+        assertEquals(new String(readBytes(message, position), StandardCharsets.UTF_8), "project|collection");
+        for (byte[] expected : data) {
+            assertEquals(message[position[0]++], (3 << 3) | 2);
+            byte[] entry = readBytes(message, position);
+            assertEquals(entry[0], 1 << 3);
+            assertEquals(entry[1], 0);
+            assertEquals(entry[2], (3 << 3) | 2);
+            int[] entryPosition = {3};
+            assertEquals(readBytes(entry, entryPosition), expected);
+            assertEquals(entryPosition[0], entry.length);
+        }
+        assertTrue(position[0] == message.length);
+        assertEquals(record.getEventIndexes(), new int[]{0, 1, 2});
+    }
+
+    @Test
+    public void testMultiplePartitionKeys() throws Exception {
+        AggregatedRecord record = new AggregatedRecord("1");
+        String[] partitionKeys = {"project|pageview", "project|click", "project|pageview"};
+        int size = 0;
+        for (int i = 0; i < partitionKeys.length; i++) {
+            ByteBuffer data = ByteBuffer.wrap(new byte[]{(byte) i});
+            size = record.sizeWith(partitionKeys[i], data);
+            record.add(i, partitionKeys[i], data);
+        }
+
+        byte[] output = record.build().array();
+        assertEquals(output.length, size);
+        assertEquals(record.getPartitionKey(), "project|pageview");
+
+        byte[] message = Arrays.copyOfRange(output, 4, output.length - 16);
+        int[] position = {0};
+        for (String partitionKey : new String[]{"project|pageview", "project|click"}) {
+            assertEquals(message[position[0]++], (1 << 3) | 2);
+            assertEquals(new String(readBytes(message, position), StandardCharsets.UTF_8), partitionKey);
+        }
+        int[] partitionKeyIndexes = {0, 1, 0};
+        for (int i = 0; i < partitionKeys.length; i++) {
+            assertEquals(message[position[0]++], (3 << 3) | 2);
+            byte[] entry = readBytes(message, position);
+            assertEquals(entry[1], partitionKeyIndexes[i]);
+            assertEquals(entry[entry.length - 1], i);
+        }
+        assertEquals(position[0], message.length);
+    }
+
+    private static byte[] readBytes(byte[] buffer, int[] position) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer[position[0]++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        byte[] bytes = Arrays.copyOfRange(buffer, position[0], position[0] + length);
+        position[0] += length;
+        return bytes;
+    }
+}
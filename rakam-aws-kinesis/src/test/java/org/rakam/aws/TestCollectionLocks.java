@@ -0,0 +1,140 @@
+package org.rakam.aws;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestCollectionLocks {
+    private static final Pattern LOCK_PATTERN = Pattern.compile("SELECT (GET_LOCK|RELEASE_LOCK)\\('([^']+)'.*");
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterClass
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDuplicateCollections() throws Exception {
+        CollectionLocks locks = new CollectionLocks(namedLockDataSource(new ConcurrentHashMap<>()), executor);
+
+        List<CollectionLocks.Lock> acquired = locks.lock("project", ImmutableList.of("a", "a"));
+        assertEquals(acquired.size(), 1);
+        awaitAndRelease(acquired);
+    }
+
+    @Test
+    public void testCommitsOfCollectionAreSerialized() throws Exception {
+        CollectionLocks locks = new CollectionLocks(namedLockDataSource(new ConcurrentHashMap<>()), executor);
+
+        List<CollectionLocks.Lock> first = locks.lock("project", ImmutableList.of("a"));
+        first.get(0).acquired.get(10, TimeUnit.SECONDS);
+        List<CollectionLocks.Lock> second = locks.lock("project", ImmutableList.of("a"));
+        Thread.sleep(100);
+        assertFalse(second.get(0).acquired.isDone());
+
+        first.forEach(CollectionLocks.Lock::release);
+        awaitAndRelease(second);
+    }
+
+    @Test
+    public void testOppositeOrderOnSameNode() throws Exception {
+        CollectionLocks locks = new CollectionLocks(namedLockDataSource(new ConcurrentHashMap<>()), executor);
+
+        for (int i = 0; i < 100; i++) {
+            List<CollectionLocks.Lock> first = locks.lock("project", ImmutableList.of("a", "b"));
+            List<CollectionLocks.Lock> second = locks.lock("project", ImmutableList.of("b", "a"));
+            assertEquals(second.stream().map(lock -> lock.collection).collect(Collectors.toList()), ImmutableList.of("a", "b"));
+
+            CompletableFuture<Void> firstCommit = CompletableFuture.runAsync(() -> awaitAndRelease(first), executor);
+            awaitAndRelease(second);
+            firstCommit.get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testOppositeOrderOnDifferentNodes() throws Exception {
+        // the nodes share the named locks of the metadata database
+        Map<String, Semaphore> namedLocks = new ConcurrentHashMap<>();
+        CollectionLocks firstNode = new CollectionLocks(namedLockDataSource(namedLocks), executor);
+        CollectionLocks secondNode = new CollectionLocks(namedLockDataSource(namedLocks), executor);
+
+        for (int i = 0; i < 100; i++) {
+            List<CollectionLocks.Lock> first = firstNode.lock("project", ImmutableList.of("a", "b"));
+            List<CollectionLocks.Lock> second = secondNode.lock("project", ImmutableList.of("b", "a"));
+
+            CompletableFuture<Void> firstCommit = CompletableFuture.runAsync(() -> awaitAndRelease(first), executor);
+            awaitAndRelease(second);
+            firstCommit.get(10, TimeUnit.SECONDS);
+        }
+        assertTrue(namedLocks.values().stream().allMatch(lock -> lock.availablePermits() == 1));
+    }
+
+    /**
+     * Holds all the locks until they're acquired like a commit that releases the locks at the end.
+     */
+    private static void awaitAndRelease(List<CollectionLocks.Lock> locks) {
+        try {
+            for (CollectionLocks.Lock lock : locks) {
+                lock.acquired.get(10, TimeUnit.SECONDS);
+            }
+        } catch (Exception e) {
+            throw new AssertionError("The locks couldn't be acquired", e);
+        } finally {
+            locks.forEach(CollectionLocks.Lock::release);
+        }
+    }
+
+    /**
+     * Emulates GET_LOCK and RELEASE_LOCK of MySQL, the locks are not owned by the threads.
+     */
+    private static DataSource namedLockDataSource(Map<String, Semaphore> locks) {
+        Statement statement = proxy(Statement.class, (method, args) -> {
+            if (!method.equals("execute")) {
+                return null;
+            }
+            Matcher matcher = LOCK_PATTERN.matcher((String) args[0]);
+            assertTrue(matcher.matches(), (String) args[0]);
+            Semaphore lock = locks.computeIfAbsent(matcher.group(2), key -> new Semaphore(1));
+            if (matcher.group(1).equals("GET_LOCK")) {
+                lock.acquire();
+            } else {
+                lock.release();
+            }
+            return true;
+        });
+        Connection connection = proxy(Connection.class, (method, args) ->
+                method.equals("createStatement") ? statement : null);
+        return proxy(DataSource.class, (method, args) ->
+                method.equals("getConnection") ? connection : null);
+    }
+
+    private interface Handler {
+        Object invoke(String method, Object[] args) throws Exception;
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(TestCollectionLocks.class.getClassLoader(), new Class[]{type},
+                (proxy, method, args) -> handler.invoke(method.getName(), args)));
+    }
+}
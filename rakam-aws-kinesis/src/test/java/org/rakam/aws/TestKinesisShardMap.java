@@ -0,0 +1,27 @@
+package org.rakam.aws;
+
+import org.testng.annotations.Test;
+
+import java.math.BigInteger;
+
+import static org.testng.Assert.assertEquals;
+
+public class TestKinesisShardMap {
+    @Test
+    public void testShardIndex() throws Exception {
+        BigInteger max = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        BigInteger[] startingHashKeys = {BigInteger.ZERO, max.shiftRight(2), max.shiftRight(1).add(BigInteger.ONE)};
+
+        assertEquals(KinesisShardMap.shardIndex(startingHashKeys, BigInteger.ZERO), 0);
+        assertEquals(KinesisShardMap.shardIndex(startingHashKeys, BigInteger.TEN), 0);
+        assertEquals(KinesisShardMap.shardIndex(startingHashKeys, max.shiftRight(2)), 1);
+        assertEquals(KinesisShardMap.shardIndex(startingHashKeys, max.shiftRight(1)), 1);
+        assertEquals(KinesisShardMap.shardIndex(startingHashKeys, max), 2);
+    }
+
+    @Test
+    public void testHashKey() throws Exception {
+        // md5("") as an unsigned 128-bit integer
+        assertEquals(KinesisShardMap.hashKey(""), new BigInteger("d41d8cd98f00b204e9800998ecf8427e", 16));
+    }
+}
@@ -0,0 +1,195 @@
+package org.rakam.aws;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.parquet.format.ColumnChunk;
+import org.apache.parquet.format.ColumnMetaData;
+import org.apache.parquet.format.ConvertedType;
+import org.apache.parquet.format.FileMetaData;
+import org.apache.parquet.format.PageHeader;
+import org.apache.parquet.format.RowGroup;
+import org.apache.parquet.format.SchemaElement;
+import org.apache.parquet.format.Statistics;
+import org.apache.parquet.format.Util;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.rakam.util.AvroUtil.convertAvroSchema;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestParquetBulkWriter {
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("user", FieldType.STRING),
+            new SchemaField("_time", FieldType.TIMESTAMP),
+            new SchemaField("amount", FieldType.DOUBLE),
+            new SchemaField("tags", FieldType.ARRAY_STRING),
+            new SchemaField("counts", FieldType.MAP_LONG));
+    private static final Schema SCHEMA = convertAvroSchema(FIELDS);
+
+    @Test
+    public void testTimeSortedRowGroups() throws Exception {
+        List<GenericRecord> records = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            records.add(record("user" + i, i < 2 ? null : 1000L + i, i * 1.5, null, null));
+        }
+        Collections.shuffle(records, new Random(0));
+
+        FileMetaData metadata = readMetadata(write(records, 10));
+
+        assertEquals(metadata.getNum_rows(), 25);
+        assertEquals(metadata.getRow_groups().stream().map(RowGroup::getNum_rows).collect(Collectors.toList()),
+                ImmutableList.of(10L, 10L, 5L));
+
+        long previousMax = Long.MIN_VALUE;
+        for (RowGroup rowGroup : metadata.getRow_groups()) {
+            Statistics statistics = column(rowGroup, "_time").getStatistics();
+            long min = ByteBuffer.wrap(statistics.getMin()).order(LITTLE_ENDIAN).getLong();
+            long max = ByteBuffer.wrap(statistics.getMax()).order(LITTLE_ENDIAN).getLong();
+            assertTrue(min >= previousMax, "row groups overlap");
+            previousMax = max;
+        }
+        // the events without _time are in the first row group
+        assertEquals(column(metadata.getRow_groups().get(0), "_time").getStatistics().getNull_count(), 2);
+        assertEquals(previousMax, 1024);
+
+        Statistics amount = column(metadata.getRow_groups().get(2), "amount").getStatistics();
+        assertEquals(ByteBuffer.wrap(amount.getMin()).order(LITTLE_ENDIAN).getDouble(), 20 * 1.5);
+        assertEquals(ByteBuffer.wrap(amount.getMax()).order(LITTLE_ENDIAN).getDouble(), 24 * 1.5);
+    }
+
+    @Test
+    public void testSchema() throws Exception {
+        FileMetaData metadata = readMetadata(write(ImmutableList.of(), 10));
+
+        List<SchemaElement> schema = metadata.getSchema();
+        assertEquals(schema.get(0).getNum_children(), FIELDS.size());
+        assertEquals(schema.stream().map(SchemaElement::getName).collect(Collectors.toList()), ImmutableList.of(
+                "collection", "user", "_time", "amount", "tags", "list", "element", "counts", "key_value", "key", "value"));
+        assertEquals(schema.get(1).getConverted_type(), ConvertedType.UTF8);
+        assertEquals(schema.get(2).getConverted_type(), ConvertedType.TIMESTAMP_MILLIS);
+        assertEquals(schema.get(4).getConverted_type(), ConvertedType.LIST);
+        assertEquals(schema.get(7).getConverted_type(), ConvertedType.MAP);
+        assertTrue(metadata.getRow_groups().isEmpty());
+    }
+
+    @Test
+    public void testValues() throws Exception {
+        List<GenericRecord> records = ImmutableList.of(
+                record("b", 2L, null, ImmutableList.of("x", "y"), ImmutableMap.of("k", 1L)),
+                record(null, 3L, 1.0, ImmutableList.of(), null),
+                record("a", 1L, 2.0, null, ImmutableMap.of()));
+
+        byte[] file = write(records, 10);
+        RowGroup rowGroup = readMetadata(file).getRow_groups().get(0);
+
+        Page user = readPage(file, column(rowGroup, "user"), false);
+        assertEquals(user.definitionLevels, ImmutableList.of(1, 1, 0));
+        assertEquals(new String(user.values, UTF_8), "\u0001\u0000\u0000\u0000a\u0001\u0000\u0000\u0000b");
+
+        Page tags = readPage(file, column(rowGroup, "tags", "list", "element"), true);
+        assertEquals(tags.repetitionLevels, ImmutableList.of(0, 0, 1, 0));
+        assertEquals(tags.definitionLevels, ImmutableList.of(0, 3, 3, 1));
+
+        Page counts = readPage(file, column(rowGroup, "counts", "key_value", "value"), true);
+        assertEquals(counts.repetitionLevels, ImmutableList.of(0, 0, 0));
+        assertEquals(counts.definitionLevels, ImmutableList.of(1, 3, 0));
+        assertEquals(ByteBuffer.wrap(counts.values).order(LITTLE_ENDIAN).getLong(), 1L);
+    }
+
+    private static GenericRecord record(String user, Long time, Double amount, List<String> tags, Map<String, Long> counts) {
+        GenericData.Record record = new GenericData.Record(SCHEMA);
+        record.put("user", user);
+        record.put("_time", time);
+        record.put("amount", amount);
+        record.put("tags", tags);
+        record.put("counts", counts);
+        return record;
+    }
+
+    private static byte[] write(List<GenericRecord> records, int rowGroupSize) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ParquetBulkWriter(FIELDS, rowGroupSize).write(records, output);
+        return output.toByteArray();
+    }
+
+    private static FileMetaData readMetadata(byte[] file) throws IOException {
+        assertEquals(new String(file, 0, 4, UTF_8), "PAR1");
+        assertEquals(new String(file, file.length - 4, 4, UTF_8), "PAR1");
+        int footerLength = ByteBuffer.wrap(file, file.length - 8, 4).order(LITTLE_ENDIAN).getInt();
+        return Util.readFileMetaData(new ByteArrayInputStream(file, file.length - 8 - footerLength, footerLength));
+    }
+
+    private static ColumnMetaData column(RowGroup rowGroup, String... path) {
+        return rowGroup.getColumns().stream().map(ColumnChunk::getMeta_data)
+                .filter(column -> column.getPath_in_schema().equals(Arrays.asList(path)))
+                .findAny().get();
+    }
+
+    private static Page readPage(byte[] file, ColumnMetaData column, boolean repeated) throws IOException {
+        ByteArrayInputStream input = new ByteArrayInputStream(file, (int) column.getData_page_offset(), file.length);
+        PageHeader header = Util.readPageHeader(input);
+        byte[] compressed = new byte[header.getCompressed_page_size()];
+        ByteStreams.readFully(input, compressed);
+        byte[] data = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+        assertEquals(data.length, header.getUncompressed_page_size());
+
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(LITTLE_ENDIAN);
+        int count = header.getData_page_header().getNum_values();
+        Page page = new Page();
+        page.repetitionLevels = repeated ? readLevels(buffer, count) : null;
+        page.definitionLevels = readLevels(buffer, count);
+        page.values = new byte[buffer.remaining()];
+        buffer.get(page.values);
+        return page;
+    }
+
+    // the writer only uses the RLE runs of the hybrid encoding
+    private static List<Integer> readLevels(ByteBuffer buffer, int count) {
+        int end = buffer.getInt() + buffer.position();
+        List<Integer> levels = new ArrayList<>();
+        while (buffer.position() < end) {
+            int header = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                header |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            assertEquals(header & 1, 0);
+            int level = buffer.get();
+            for (int i = 0; i < header >>> 1; i++) {
+                levels.add(level);
+            }
+        }
+        assertEquals(levels.size(), count);
+        return levels;
+    }
+
+    private static class Page {
+        private List<Integer> repetitionLevels;
+        private List<Integer> definitionLevels;
+        private byte[] values;
+    }
+}
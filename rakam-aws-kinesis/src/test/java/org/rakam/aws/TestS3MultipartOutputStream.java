@@ -0,0 +1,182 @@
+package org.rakam.aws;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.io.ByteStreams;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TestS3MultipartOutputStream {
+    private static final int PART_SIZE = 1024;
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterClass
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testMultipartUpload() throws Exception {
+        InMemoryS3 s3 = new InMemoryS3();
+        S3MultipartOutputStream.PartBufferPool pool = new S3MultipartOutputStream.PartBufferPool(PART_SIZE, 2);
+
+        byte[] data = randomBytes(PART_SIZE * 5 + 100);
+        try (S3MultipartOutputStream output = new S3MultipartOutputStream(s3, executor, pool, "bucket", "key")) {
+            // the single bytes and the arrays that span multiple parts
+            output.write(data[0]);
+            output.write(data, 1, PART_SIZE * 3);
+            output.write(data, PART_SIZE * 3 + 1, data.length - PART_SIZE * 3 - 1);
+        }
+
+        assertEquals(s3.objects.get("key"), data);
+        assertEquals(s3.uploadedParts.get(), 6);
+        assertTrue(s3.uploads.isEmpty());
+    }
+
+    @Test
+    public void testPartSizeMultiple() throws Exception {
+        InMemoryS3 s3 = new InMemoryS3();
+        S3MultipartOutputStream.PartBufferPool pool = new S3MultipartOutputStream.PartBufferPool(PART_SIZE, 2);
+
+        byte[] data = randomBytes(PART_SIZE * 3);
+        try (S3MultipartOutputStream output = new S3MultipartOutputStream(s3, executor, pool, "bucket", "key")) {
+            output.write(data);
+        }
+
+        assertEquals(s3.objects.get("key"), data);
+        assertEquals(s3.uploadedParts.get(), 3);
+    }
+
+    @Test
+    public void testSmallObject() throws Exception {
+        InMemoryS3 s3 = new InMemoryS3();
+        S3MultipartOutputStream.PartBufferPool pool = new S3MultipartOutputStream.PartBufferPool(PART_SIZE, 1);
+
+        byte[] data = randomBytes(PART_SIZE - 1);
+        try (S3MultipartOutputStream output = new S3MultipartOutputStream(s3, executor, pool, "bucket", "key")) {
+            output.write(data);
+        }
+
+        assertEquals(s3.objects.get("key"), data);
+        assertEquals(s3.uploadedParts.get(), 0);
+    }
+
+    @Test
+    public void testFailedPart() throws Exception {
+        InMemoryS3 s3 = new InMemoryS3();
+        s3.failingPart = 2;
+        S3MultipartOutputStream.PartBufferPool pool = new S3MultipartOutputStream.PartBufferPool(PART_SIZE, 2);
+
+        S3MultipartOutputStream output = new S3MultipartOutputStream(s3, executor, pool, "bucket", "key");
+        try {
+            output.write(randomBytes(PART_SIZE * 4));
+            output.close();
+            fail("The upload must fail");
+        } catch (IOException e) {
+            output.abort();
+        }
+
+        assertFalse(s3.objects.containsKey("key"));
+        assertTrue(s3.uploads.isEmpty());
+        // the buffers are returned to the pool
+        pool.release(pool.acquire());
+        pool.release(pool.acquire());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class InMemoryS3 extends AmazonS3Client {
+        private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        private final AtomicInteger uploadedParts = new AtomicInteger();
+        private volatile int failingPart = -1;
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            String uploadId = request.getKey() + "-" + uploads.size();
+            uploads.put(uploadId, new ConcurrentHashMap<>());
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(uploadId);
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            if (request.getPartNumber() == failingPart) {
+                throw new AmazonClientException("Part is rejected");
+            }
+            byte[] bytes = read(request.getInputStream());
+            assertEquals(bytes.length, request.getPartSize());
+            uploads.get(request.getUploadId()).put(request.getPartNumber(), bytes);
+            uploadedParts.incrementAndGet();
+
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(Integer.toString(request.getPartNumber()));
+            return result;
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            Map<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int partNumber = 1;
+            for (PartETag partETag : request.getPartETags()) {
+                assertEquals(partETag.getPartNumber(), partNumber++);
+                output.write(parts.get(partETag.getPartNumber()), 0, parts.get(partETag.getPartNumber()).length);
+            }
+            objects.put(request.getKey(), output.toByteArray());
+            return new CompleteMultipartUploadResult();
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+            uploads.remove(request.getUploadId());
+        }
+
+        @Override
+        public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+            byte[] bytes = read(input);
+            assertEquals(bytes.length, metadata.getContentLength());
+            objects.put(key, bytes);
+            return new PutObjectResult();
+        }
+
+        private static byte[] read(InputStream input) {
+            try {
+                return ByteStreams.toByteArray(input);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -37,6 +37,7 @@ import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
 import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.MONTH;
 import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.WEEK;
 import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.report.QueryLane.DASHBOARD;
 import static org.rakam.util.ValidationUtil.checkArgument;
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
@@ -115,7 +116,7 @@ public class PostgresqlRetentionQueryExecutor extends AbstractRetentionQueryExec
                 dimensionColumn, timeSubtraction, CONNECTOR_FIELD, CONNECTOR_FIELD, CONNECTOR_FIELD,
                 range.map(v -> String.format("where %s < %d", timeSubtraction, v)).orElse(""));
 
-        return executor.executeQuery(project, query);
+        return executor.executeQuery(project, query, DASHBOARD);
     }
 
     private String generateQuery(String project,
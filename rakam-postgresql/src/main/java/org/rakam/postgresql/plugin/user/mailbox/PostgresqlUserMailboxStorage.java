@@ -30,6 +30,7 @@ import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
@@ -79,31 +80,35 @@ public class PostgresqlUserMailboxStorage implements UserMailboxStorage {
         }
     }
 
-//    @Override
-//    public void sendBatch(String project, String fromUser, List<String> toUser, Integer parentId, String message, Instant date) {
-//        try (Connection connection = queryExecutor.getConnection()) {
-//            PreparedStatement ps = connection.prepareStatement("INSERT INTO " + project + "._user_mailbox (from_user, to_user, parentId, content, time) VALUES (?, ?, ?, ?, ?)",
-//                    Statement.RETURN_GENERATED_KEYS);
-//            connection.setAutoCommit(false);
-//
-//            for (String user : toUser) {
-//                ps.setString(1, fromUser);
-//                ps.setString(2, user);
-//                ps.setObject(3, parentId);
-//                String escapedMessage = HtmlEscapers.htmlEscaper().escape(message);
-//                ps.setString(4, escapedMessage);
-//                ps.setTimestamp(5, Timestamp.from(date));
-//                ps.executeUpdate();
-//            }
-//
-//            connection.setAutoCommit(true);
-//            connection.commit();
-//
-//        } catch (SQLException e) {
-//            LOGGER.error(e, "Error while saving user message");
-//            throw Throwables.propagate(e);
-//        }
-//    }
+    @Override
+    public void sendBatch(String project, Object fromUser, List<Map.Entry<Object, String>> messages, Instant date) {
+        try (Connection connection = queryExecutor.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement("INSERT INTO " + project + "._user_mailbox (from_user, to_user, parentId, content, time) VALUES (?, ?, ?, ?, ?)")) {
+                Timestamp time = Timestamp.from(date);
+                for (Map.Entry<Object, String> message : messages) {
+                    ps.setObject(1, fromUser);
+                    ps.setObject(2, message.getKey());
+                    ps.setObject(3, null);
+                    ps.setString(4, HtmlEscapers.htmlEscaper().escape(message.getValue()));
+                    ps.setTimestamp(5, time);
+                    ps.addBatch();
+                }
+
+                ps.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                // the connection is returned to the pool
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            LOGGER.error(e, "Error while saving user messages");
+            throw Throwables.propagate(e);
+        }
+    }
 
     @Override
     public void createProjectIfNotExists(String projectId, boolean userIdIsNumeric) {
@@ -34,6 +34,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.String.format;
 import static java.time.format.DateTimeFormatter.ISO_DATE;
 import static org.rakam.analysis.EventExplorer.TimestampTransformation.*;
+import static org.rakam.report.QueryLane.DASHBOARD;
 import static org.rakam.util.ValidationUtil.checkProject;
 
 public class PostgresqlEventExplorer extends AbstractEventExplorer {
@@ -92,7 +93,7 @@ public class PostgresqlEventExplorer extends AbstractEventExplorer {
                     " from %s where %s group by 1", collectionQuery, timePredicate);
         }
 
-        return executorService.executeQuery(project, query, 20000).getResult();
+        return executorService.executeQuery(project, query, 20000, DASHBOARD).getResult();
     }
 
     @Override
@@ -111,9 +112,25 @@ public class PostgresqlEventExplorer extends AbstractEventExplorer {
             case COUNT_UNIQUE:
                 return "count(distinct %s)";
             case APPROXIMATE_UNIQUE:
+                // the sketches are only used for merging the pre-aggregated tables, count(distinct) is faster on raw scans
                 return "count(distinct %s)";
+            case PERCENTILE_50:
+            case PERCENTILE_90:
+            case PERCENTILE_95:
+            case PERCENTILE_99:
+                return format("percentile_cont(%s) within group (order by %%s)", aggType.getPercentile());
             default:
                 throw new IllegalArgumentException("aggregation type is not supported");
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public String getIntermediateForApproximateUniqueFunction() {
+        return "approx_set(%s)";
+    }
+
+    @Override
+    public String getFinalForApproximateUniqueFunction() {
+        return "cardinality(merge(%s))";
+    }
+}
@@ -8,6 +8,12 @@ import org.postgresql.util.PGobject;
 import org.rakam.analysis.JDBCPoolDataSource;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.report.ColumnVector.BooleanVector;
+import org.rakam.report.ColumnVector.DoubleVector;
+import org.rakam.report.ColumnVector.LongVector;
+import org.rakam.report.ColumnVector.StringVector;
+import org.rakam.report.ColumnVector.TimestampVector;
+import org.rakam.report.ColumnarQueryResult;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
@@ -28,7 +34,6 @@ import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
@@ -116,7 +121,6 @@ public class PostgresqlQueryExecution implements QueryExecution {
 
     private static QueryResult resultSetToQueryResult(ResultSet resultSet, long executionTimeInMillis) {
         List<SchemaField> columns;
-        List<List<Object>> data;
         try {
             ResultSetMetaData metaData = resultSet.getMetaData();
             int columnCount = metaData.getColumnCount();
@@ -126,36 +130,61 @@ public class PostgresqlQueryExecution implements QueryExecution {
                 columns.add(new SchemaField(metaData.getColumnName(i), fromSql(metaData.getColumnType(i), metaData.getColumnTypeName(i))));
             }
 
-            ImmutableList.Builder<List<Object>> builder = ImmutableList.builder();
+            ColumnarQueryResult.Builder builder = new ColumnarQueryResult.Builder(columns);
             while (resultSet.next()) {
-                List<Object> rowBuilder = Arrays.asList(new Object[columnCount]);
                 for (int i = 0; i < columnCount; i++) {
-                    Object object;
                     FieldType type = columns.get(i).getType();
+                    // the primitive types are written to the column vectors directly in order to avoid boxing
                     switch (type) {
                         case STRING:
-                            object = resultSet.getString(i + 1);
-                            break;
+                            ((StringVector) builder.getColumn(i)).appendString(resultSet.getString(i + 1));
+                            continue;
                         case LONG:
-                            object = resultSet.getLong(i + 1);
-                            break;
                         case INTEGER:
-                            object = resultSet.getInt(i + 1);
-                            break;
+                            long longValue = resultSet.getLong(i + 1);
+                            if (resultSet.wasNull()) {
+                                builder.getColumn(i).appendNull();
+                            } else {
+                                ((LongVector) builder.getColumn(i)).appendLong(longValue);
+                            }
+                            continue;
                         case DECIMAL:
                             BigDecimal bigDecimal = resultSet.getBigDecimal(i + 1);
-                            object = bigDecimal != null ? bigDecimal.doubleValue() : null;
-                            break;
+                            if (bigDecimal == null) {
+                                builder.getColumn(i).appendNull();
+                            } else {
+                                ((DoubleVector) builder.getColumn(i)).appendDouble(bigDecimal.doubleValue());
+                            }
+                            continue;
                         case DOUBLE:
-                            object = resultSet.getDouble(i + 1);
-                            break;
+                            double doubleValue = resultSet.getDouble(i + 1);
+                            if (resultSet.wasNull()) {
+                                builder.getColumn(i).appendNull();
+                            } else {
+                                ((DoubleVector) builder.getColumn(i)).appendDouble(doubleValue);
+                            }
+                            continue;
                         case BOOLEAN:
-                            object = resultSet.getBoolean(i + 1);
-                            break;
+                            boolean booleanValue = resultSet.getBoolean(i + 1);
+                            if (resultSet.wasNull()) {
+                                builder.getColumn(i).appendNull();
+                            } else {
+                                ((BooleanVector) builder.getColumn(i)).appendBoolean(booleanValue);
+                            }
+                            continue;
                         case TIMESTAMP:
                             Timestamp timestamp = resultSet.getTimestamp(i + 1, UTC_CALENDAR);
-                            object = timestamp != null ? timestamp.toInstant() : null;
-                            break;
+                            if (timestamp == null) {
+                                builder.getColumn(i).appendNull();
+                            } else {
+                                ((TimestampVector) builder.getColumn(i)).appendTimestamp(
+                                        Math.floorDiv(timestamp.getTime(), 1000), timestamp.getNanos());
+                            }
+                            continue;
+                    }
+
+                    Object object;
+                    switch (type) {
                         case DATE:
                             Date date = resultSet.getDate(i + 1, UTC_CALENDAR);
                             object = date != null ? date.toLocalDate() : null;
@@ -201,12 +230,10 @@ public class PostgresqlQueryExecution implements QueryExecution {
                         object = null;
                     }
 
-                    rowBuilder.set(i, object);
+                    builder.appendObject(i, object);
                 }
-                builder.add(rowBuilder);
             }
-            data = builder.build();
-            return new QueryResult(columns, data, ImmutableMap.of(EXECUTION_TIME, executionTimeInMillis));
+            return builder.build(ImmutableMap.of(EXECUTION_TIME, executionTimeInMillis));
         } catch (SQLException e) {
             QueryError error = new QueryError(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, null);
             return QueryResult.errorResult(error);
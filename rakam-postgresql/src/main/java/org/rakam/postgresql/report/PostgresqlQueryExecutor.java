@@ -15,6 +15,7 @@ import org.rakam.util.QueryFormatter;
 import javax.inject.Inject;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -44,11 +45,75 @@ public class PostgresqlQueryExecutor implements QueryExecutor {
                     "    LANGUAGE SQL" +
                     "    IMMUTABLE" +
                     "    RETURNS NULL ON NULL INPUT");
+            createSketchFunctions(connection);
         } catch (SQLException e) {
             LOGGER.error(e, "Error while creating required Postgresql procedures.");
         }
     }
 
+    /**
+     * Installs the HyperLogLog functions that have the same names with the Presto functions, approx_set aggregates
+     * the values into a bytea sketch, merge combines the sketches stored in continuous query and materialized view
+     * tables and cardinality estimates the distinct count. The hash and the dense register layout are the same with
+     * {@link org.rakam.analysis.sketch.HyperLogLog} so the stored sketches can also be merged in Java.
+     */
+    private static void createSketchFunctions(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE OR REPLACE FUNCTION rakam_hll_add(state bytea, value anyelement) RETURNS bytea AS $$\n" +
+                    "DECLARE\n" +
+                    "    hash bigint;\n" +
+                    "    register_index int;\n" +
+                    "    register_rank int := 1;\n" +
+                    "BEGIN\n" +
+                    "    IF value IS NULL THEN RETURN state; END IF;\n" +
+                    "    IF state IS NULL THEN state := decode('010b' || repeat('00', 2048), 'hex'); END IF;\n" +
+                    "    hash := ('x' || substr(md5(value::text), 1, 16))::bit(64)::bigint;\n" +
+                    "    register_index := ((hash >> 53) & 2047)::int;\n" +
+                    "    WHILE register_rank <= 53 AND (hash & (1::bigint << (53 - register_rank))) = 0 LOOP register_rank := register_rank + 1; END LOOP;\n" +
+                    "    IF get_byte(state, register_index + 2) < register_rank THEN state := set_byte(state, register_index + 2, register_rank); END IF;\n" +
+                    "    RETURN state;\n" +
+                    "END\n" +
+                    "$$ LANGUAGE plpgsql IMMUTABLE");
+            statement.execute("CREATE OR REPLACE FUNCTION rakam_hll_union(state bytea, other bytea) RETURNS bytea AS $$\n" +
+                    "BEGIN\n" +
+                    "    IF other IS NULL THEN RETURN state; END IF;\n" +
+                    "    IF state IS NULL THEN RETURN other; END IF;\n" +
+                    "    FOR i IN 2..length(state) - 1 LOOP\n" +
+                    "        IF get_byte(other, i) > get_byte(state, i) THEN state := set_byte(state, i, get_byte(other, i)); END IF;\n" +
+                    "    END LOOP;\n" +
+                    "    RETURN state;\n" +
+                    "END\n" +
+                    "$$ LANGUAGE plpgsql IMMUTABLE");
+            statement.execute("CREATE OR REPLACE FUNCTION cardinality(sketch bytea) RETURNS bigint AS $$\n" +
+                    "DECLARE\n" +
+                    "    m int := length(sketch) - 2;\n" +
+                    "    register int;\n" +
+                    "    total double precision := 0;\n" +
+                    "    zeros int := 0;\n" +
+                    "    estimate double precision;\n" +
+                    "BEGIN\n" +
+                    "    FOR i IN 2..m + 1 LOOP\n" +
+                    "        register := get_byte(sketch, i);\n" +
+                    "        total := total + power(2, -register);\n" +
+                    "        IF register = 0 THEN zeros := zeros + 1; END IF;\n" +
+                    "    END LOOP;\n" +
+                    "    estimate := (0.7213 / (1 + 1.079 / m)) * m * m / total;\n" +
+                    "    IF estimate <= 2.5 * m AND zeros > 0 THEN estimate := m * ln(m::double precision / zeros); END IF;\n" +
+                    "    RETURN round(estimate);\n" +
+                    "END\n" +
+                    "$$ LANGUAGE plpgsql IMMUTABLE RETURNS NULL ON NULL INPUT");
+            // aggregates can't be replaced, they're created only once
+            statement.execute("DO $$ BEGIN\n" +
+                    "    CREATE AGGREGATE approx_set(anyelement) (SFUNC = rakam_hll_add, STYPE = bytea);\n" +
+                    "EXCEPTION WHEN duplicate_function THEN NULL;\n" +
+                    "END $$");
+            statement.execute("DO $$ BEGIN\n" +
+                    "    CREATE AGGREGATE merge(bytea) (SFUNC = rakam_hll_union, STYPE = bytea);\n" +
+                    "EXCEPTION WHEN duplicate_function THEN NULL;\n" +
+                    "END $$");
+        }
+    }
+
     @Override
     public QueryExecution executeRawQuery(String query) {
         return new PostgresqlQueryExecution(connectionPool, query, false);
@@ -0,0 +1,199 @@
+package org.rakam.kafka.collection;
+
+import com.google.common.collect.ImmutableList;
+import io.airlift.log.Logger;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryResult;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Reads the new messages of a collection once for all its subscribers. Each subscriber receives at most
+ * {@link #MAX_EVENTS_PER_POLL} events that match its own filter in a poll. When the shared query fails, the
+ * subscribers are queried one by one and the filters that fail while the others succeed are queried separately in
+ * the next polls so that a subscriber with an invalid filter doesn't stop the others.
+ */
+class CollectionFeed {
+    private final static Logger LOGGER = Logger.get(CollectionFeed.class);
+    static final int MAX_EVENTS_PER_POLL = 1000;
+
+    private final String project;
+    private final String collection;
+    private final String table;
+    private final String collectionFilter;
+    private final Function<String, CompletableFuture<QueryResult>> executor;
+    private final Set<String> failingFilters = ConcurrentHashMap.newKeySet();
+
+    CollectionFeed(String project, String collection, String table, KafkaTopicLayout topicLayout,
+                   Function<String, CompletableFuture<QueryResult>> executor) {
+        this.project = project;
+        this.collection = collection;
+        this.table = table;
+        // the messages of the other collections in the shared topic are filtered out by their keys
+        this.collectionFilter = topicLayout == KafkaTopicLayout.PROJECT ?
+                format(" AND _key = '%s'", collection.replace("'", "''")) : "";
+        this.executor = executor;
+    }
+
+    /**
+     * Adds the events in the offset range to the subscriptions, the returned future is completed with false if the
+     * events couldn't be read for any of the subscriptions so that the range is read again in the next poll.
+     */
+    CompletableFuture<Boolean> read(String offsetRange, List<SchemaField> schema, List<Subscription> subscriptions) {
+        // the filters of the subscribers that are gone are forgotten
+        failingFilters.retainAll(subscriptions.stream().map(subscription -> subscription.filter).collect(Collectors.toSet()));
+
+        List<Subscription> shared = new ArrayList<>();
+        List<CompletableFuture<Boolean>> queries = new ArrayList<>();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.filter != null && failingFilters.contains(subscription.filter)) {
+                queries.add(readSeparately(offsetRange, schema, subscription));
+            } else {
+                shared.add(subscription);
+            }
+        }
+        if (!shared.isEmpty()) {
+            queries.add(readShared(offsetRange, schema, shared));
+        }
+
+        return CompletableFuture.allOf(queries.toArray(new CompletableFuture[queries.size()]))
+                .thenApply(v -> queries.stream().anyMatch(CompletableFuture::join));
+    }
+
+    private CompletableFuture<Boolean> readShared(String offsetRange, List<SchemaField> schema, List<Subscription> subscriptions) {
+        return query(offsetRange, schema, subscriptions).thenCompose(result -> {
+            if (!result.isFailed()) {
+                dispatch(result, subscriptions);
+                return CompletableFuture.completedFuture(true);
+            }
+
+            LOGGER.warn("Error while reading the events of %s.%s: %s", project, collection, result.getError().message);
+            if (subscriptions.size() == 1) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            List<CompletableFuture<Boolean>> queries = subscriptions.stream()
+                    .map(subscription -> readSeparately(offsetRange, schema, subscription))
+                    .collect(Collectors.toList());
+            return CompletableFuture.allOf(queries.toArray(new CompletableFuture[queries.size()])).thenApply(v -> {
+                if (queries.stream().noneMatch(CompletableFuture::join)) {
+                    // the database is not available, the filters are not the cause
+                    return false;
+                }
+                for (int i = 0; i < subscriptions.size(); i++) {
+                    String filter = subscriptions.get(i).filter;
+                    if (!queries.get(i).join() && filter != null) {
+                        LOGGER.warn("The filter '%s' of %s.%s fails, it's queried separately", filter, project, collection);
+                        failingFilters.add(filter);
+                    }
+                }
+                return true;
+            });
+        });
+    }
+
+    private CompletableFuture<Boolean> readSeparately(String offsetRange, List<SchemaField> schema, Subscription subscription) {
+        return query(offsetRange, schema, ImmutableList.of(subscription)).thenApply(result -> {
+            if (result.isFailed()) {
+                return false;
+            }
+            dispatch(result, ImmutableList.of(subscription));
+            return true;
+        });
+    }
+
+    /**
+     * The result has a JSON column for each distinct column list of the subscriptions and a boolean column for each
+     * distinct filter that selects the first matching rows of the subscriptions that have the filter.
+     */
+    private CompletableFuture<QueryResult> query(String offsetRange, List<SchemaField> schema, List<Subscription> subscriptions) {
+        Map<List<SchemaField>, Integer> projections = new LinkedHashMap<>();
+        Map<String, Integer> filters = new LinkedHashMap<>();
+        boolean allFiltered = true;
+        for (Subscription subscription : subscriptions) {
+            List<SchemaField> cols = subscription.columns != null ? subscription.columns : schema;
+            subscription.projection = projections.computeIfAbsent(cols, key -> projections.size());
+            String matches = subscription.filter == null ? "true" : format("coalesce((%s), false)", subscription.filter);
+            subscription.selected = filters.computeIfAbsent(matches, key -> filters.size());
+            allFiltered &= subscription.filter != null;
+        }
+
+        List<String> innerSelects = new ArrayList<>();
+        List<String> outerSelects = new ArrayList<>();
+        projections.forEach((cols, i) -> {
+            innerSelects.add(format("%s as _json%d", toJson(collection, cols), i));
+            outerSelects.add("_json" + i);
+        });
+        filters.forEach((matches, i) -> {
+            innerSelects.add(format("%s as _matches%d", matches, i));
+            innerSelects.add(format("count_if(%s) over (order by _partition_id, _offset) as _rank%d", matches, i));
+            outerSelects.add(format("(_matches%1$d and _rank%1$d <= %2$d)", i, MAX_EVENTS_PER_POLL));
+        });
+        for (Subscription subscription : subscriptions) {
+            subscription.selected += projections.size();
+        }
+
+        String query = format("select %s from (select %s from %s where %s%s%s) where %s",
+                String.join(", ", outerSelects),
+                String.join(", ", innerSelects),
+                table,
+                offsetRange,
+                collectionFilter,
+                allFiltered ? subscriptions.stream().map(subscription -> "(" + subscription.filter + ")").distinct()
+                        .collect(Collectors.joining(" OR ", " AND (", ")")) : "",
+                String.join(" OR ", outerSelects.subList(projections.size(), outerSelects.size())));
+
+        return executor.apply(query);
+    }
+
+    private void dispatch(QueryResult result, List<Subscription> subscriptions) {
+        for (List<Object> row : result.getResult()) {
+            for (Subscription subscription : subscriptions) {
+                if (Boolean.TRUE.equals(row.get(subscription.selected))) {
+                    subscription.events.add((String) row.get(subscription.projection));
+                }
+            }
+        }
+    }
+
+    static class Subscription {
+        final String filter;
+        final List<SchemaField> columns;
+        final List<String> events = new ArrayList<>();
+        private int projection;
+        private int selected;
+
+        Subscription(String filter, List<SchemaField> columns) {
+            this.filter = filter;
+            this.columns = columns;
+        }
+    }
+
+    private static String toJson(String collection, List<SchemaField> cols) {
+        return String.format("'{\"_collection\": \"%s\",'||'", collection) + cols.stream()
+                .map(field -> {
+                    switch (field.getType()) {
+                        case LONG:
+                        case DOUBLE:
+                        case INTEGER:
+                        case DECIMAL:
+                        case BOOLEAN:
+                            return format("\"%1$s\": '||COALESCE(cast(%1$s as varchar), 'null')||'", field.getName());
+                        default:
+                            return format("\"%1$s\": \"'||COALESCE(replace(try_cast(%1$s as varchar), '\n', '\\n'), 'null')||'\"", field.getName());
+                    }
+
+                })
+                .collect(Collectors.joining(", ")) + " }'";
+    }
+}
@@ -4,9 +4,11 @@ import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.net.HostAndPort;
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 import io.airlift.units.DataSize;
 import io.airlift.units.Duration;
 import io.airlift.units.MinDuration;
+import org.rakam.plugin.EventPartitioner;
 
 import java.util.Set;
 
@@ -15,13 +17,20 @@ import static com.google.common.collect.Iterables.transform;
 public class KafkaConfig
 {
     private static final int KAFKA_DEFAULT_PORT = 9092;
-    public static final String SERIALIZER = "kafka.serializer.DefaultEncoder";
 
     private Set<HostAndPort> nodes = ImmutableSet.of();
     private Duration kafkaConnectTimeout = Duration.valueOf("10s");
     private DataSize kafkaBufferSize = new DataSize(64, DataSize.Unit.KILOBYTE);
     private Duration commitInterval = Duration.valueOf("5s");
     private HostAndPort zookeeperNode;
+    private Duration lingerTime = Duration.valueOf("5ms");
+    private DataSize batchSize = new DataSize(256, DataSize.Unit.KILOBYTE);
+    private String compressionType = "lz4";
+    private String acks = "1";
+    private Duration sendTimeout = Duration.valueOf("30s");
+    private EventPartitioner.Strategy partitioning = EventPartitioner.Strategy.ROUND_ROBIN;
+    private String partitioningField;
+    private KafkaTopicLayout topicLayout = KafkaTopicLayout.COLLECTION;
 
 //    @Size(min = 1)
     public Set<HostAndPort> getNodes()
@@ -87,6 +96,111 @@ public class KafkaConfig
         return zookeeperNode;
     }
 
+    public Duration getLingerTime()
+    {
+        return lingerTime;
+    }
+
+    @Config("producer.linger")
+    @ConfigDescription("The time the producer waits for the other events of the same partition before sending a batch")
+    public KafkaConfig setLingerTime(String lingerTime)
+    {
+        this.lingerTime = Duration.valueOf(lingerTime);
+        return this;
+    }
+
+    public DataSize getBatchSize()
+    {
+        return batchSize;
+    }
+
+    @Config("producer.batch-size")
+    @ConfigDescription("The maximum size of a batch that is sent to a partition")
+    public KafkaConfig setBatchSize(String batchSize)
+    {
+        this.batchSize = DataSize.valueOf(batchSize);
+        return this;
+    }
+
+    public String getCompressionType()
+    {
+        return compressionType;
+    }
+
+    @Config("producer.compression-type")
+    @ConfigDescription("none, gzip, snappy or lz4")
+    public KafkaConfig setCompressionType(String compressionType)
+    {
+        this.compressionType = compressionType;
+        return this;
+    }
+
+    public String getAcks()
+    {
+        return acks;
+    }
+
+    @Config("producer.acks")
+    public KafkaConfig setAcks(String acks)
+    {
+        this.acks = acks;
+        return this;
+    }
+
+    public Duration getSendTimeout()
+    {
+        return sendTimeout;
+    }
+
+    @Config("producer.send-timeout")
+    @ConfigDescription("The maximum time to wait for the acknowledgements of the events")
+    public KafkaConfig setSendTimeout(String sendTimeout)
+    {
+        this.sendTimeout = Duration.valueOf(sendTimeout);
+        return this;
+    }
+
+    public EventPartitioner.Strategy getPartitioning()
+    {
+        return partitioning;
+    }
+
+    @Config("producer.partitioning")
+    @ConfigDescription("The strategy that decides the partitions of the events in the topic of the collection: " +
+            "collection, user, field, random or round-robin")
+    public KafkaConfig setPartitioning(String partitioning)
+    {
+        this.partitioning = EventPartitioner.Strategy.fromString(partitioning);
+        return this;
+    }
+
+    public String getPartitioningField()
+    {
+        return partitioningField;
+    }
+
+    @Config("producer.partitioning.field")
+    @ConfigDescription("The field that the events are partitioned by when the partitioning strategy is field")
+    public KafkaConfig setPartitioningField(String partitioningField)
+    {
+        this.partitioningField = partitioningField;
+        return this;
+    }
+
+    public KafkaTopicLayout getTopicLayout()
+    {
+        return topicLayout;
+    }
+
+    @Config("topic-layout")
+    @ConfigDescription("collection writes each collection to its own topic, project writes the collections of a project " +
+            "to a shared topic and keys the messages by collection")
+    public KafkaConfig setTopicLayout(String topicLayout)
+    {
+        this.topicLayout = KafkaTopicLayout.fromString(topicLayout);
+        return this;
+    }
+
     public static ImmutableSet<HostAndPort> parseNodes(String nodes)
     {
         Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
@@ -6,35 +6,44 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import io.airlift.log.Logger;
-import kafka.common.FailedToSendMessageException;
-import kafka.javaapi.producer.Producer;
-import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
-import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericDatumWriter;
-import org.apache.avro.generic.SourceFilteredRecordWriter;
-import org.apache.avro.io.BinaryEncoder;
-import org.apache.avro.io.EncoderFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.recipes.leader.LeaderSelector;
 import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.utils.Utils;
 import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 import org.rakam.collection.SchemaField;
+import org.rakam.plugin.EventPartitioner;
 import org.rakam.plugin.EventStore;
-import org.rakam.util.KByteArrayOutputStream;
+import org.rakam.util.AvroRecordWriter;
+import org.rakam.util.ByteBufEncoder;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.String.format;
@@ -44,30 +53,44 @@ public class KafkaEventStore implements EventStore, LeaderSelectorListener {
     private final static Logger LOGGER = Logger.get(KafkaEventStore.class);
     private final static String ZK_OFFSET_PATH = "/collectionOffsets";
 
-    private final Producer<byte[], byte[]> producer;
-    private final Set<String> sourceFields;
+    private static final int SENT = 1, FAILED = 2;
+
+    private final KafkaProducer<byte[], byte[]> producer;
+    private final AvroRecordWriter recordWriter;
+    private final EventPartitioner partitioner;
+    private final KafkaTopicLayout topicLayout;
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    private final long sendTimeoutMillis;
     private ScheduledExecutorService executorService;
 
-    private ThreadLocal<KByteArrayOutputStream> buffer = new ThreadLocal<KByteArrayOutputStream>() {
+    private ThreadLocal<ByteBufEncoder> encoder = new ThreadLocal<ByteBufEncoder>() {
         @Override
-        protected KByteArrayOutputStream initialValue() {
-            return new KByteArrayOutputStream(50000);
+        protected ByteBufEncoder initialValue() {
+            return new ByteBufEncoder(Unpooled.buffer(50000));
         }
     };
 
     @Inject
     public KafkaEventStore(@Named("event.store.kafka") KafkaConfig config, FieldDependencyBuilder.FieldDependency fieldDependency) {
         config = checkNotNull(config, "config is null");
-        this.sourceFields = Sets.union(fieldDependency.dependentFields.keySet(),
+        Set<String> sourceFields = Sets.union(fieldDependency.dependentFields.keySet(),
                 fieldDependency.constantFields.stream().map(SchemaField::getName)
                         .collect(Collectors.toSet()));
+        this.recordWriter = new AvroRecordWriter(field -> !sourceFields.contains(field.name()));
+        this.partitioner = config.getPartitioning().create(config.getPartitioningField());
+        this.topicLayout = config.getTopicLayout();
 
         Properties props = new Properties();
-        props.put("metadata.broker.list", config.getNodes().stream().map(HostAndPort::toString).collect(Collectors.joining(",")));
-        props.put("serializer.class", config.SERIALIZER);
+        props.put("bootstrap.servers", config.getNodes().stream().map(HostAndPort::toString).collect(Collectors.joining(",")));
+        props.put("acks", config.getAcks());
+        props.put("linger.ms", String.valueOf(config.getLingerTime().toMillis()));
+        props.put("batch.size", String.valueOf(config.getBatchSize().toBytes()));
+        props.put("compression.type", config.getCompressionType());
+        // the events are sent asynchronously, the producer blocks the ingestion threads only when its buffer is full
+        props.put("block.on.buffer.full", "true");
 
-        ProducerConfig producerConfig = new ProducerConfig(props);
-        this.producer = new Producer(producerConfig);
+        this.producer = new KafkaProducer<>(props, new ByteArraySerializer(), new ByteArraySerializer());
+        this.sendTimeoutMillis = config.getSendTimeout().toMillis();
 
         CuratorFramework client = CuratorFrameworkFactory.newClient(config.getZookeeperNode().toString(),
                 new ExponentialBackoffRetry(1000, 3));
@@ -83,39 +106,98 @@ public class KafkaEventStore implements EventStore, LeaderSelectorListener {
         new LeaderSelector(client, ZK_OFFSET_PATH, this).start();
     }
 
-    @Override
-    public void store(Event event) {
-        GenericDatumWriter writer = new SourceFilteredRecordWriter(event.properties().getSchema(), GenericData.get(), sourceFields);
-        KByteArrayOutputStream out = buffer.get();
-
-        int startPosition = out.position();
-        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+    private ProducerRecord<byte[], byte[]> createRecord(Event event) {
+        // the producer copies the value into its own batch buffer so the event is encoded into a reused buffer
+        // and copied only once into the array that the serializer of the producer accepts.
+        ByteBufEncoder encoder = this.encoder.get();
+        ByteBuf buffer = encoder.getBuffer().clear();
 
         try {
-            writer.write(event.properties(), encoder);
-        } catch (Exception e) {
+            recordWriter.write(event.properties(), encoder);
+        } catch (IOException e) {
             throw new RuntimeException("Couldn't serialize event", e);
         }
 
-        int endPosition = out.position();
-        // TODO: find a way to make it zero-copy
-        byte[] copy = out.copy(startPosition, endPosition);
+        byte[] value = new byte[buffer.readableBytes()];
+        buffer.readBytes(value);
 
-        if(out.remaining() < 1000) {
-            out.position(0);
+        String topic = topicLayout.getTopic(event.project(), event.collection());
+        String key = partitioner.getPartitionKey(event);
+        if (topicLayout == KafkaTopicLayout.COLLECTION) {
+            // the producer hashes the key to find the partition and distributes the events without a key in round-robin
+            return new ProducerRecord<>(topic, key == null ? null : key.getBytes(StandardCharsets.UTF_8), value);
         }
+
+        // the key of the messages is the collection in the shared topic so the partition is chosen here
+        return new ProducerRecord<>(topic, partition(topic, key), event.collection().getBytes(StandardCharsets.UTF_8), value);
+    }
+
+    private int partition(String topic, String key) {
+        int partitions = producer.partitionsFor(topic).size();
+        int hash = key == null ? nextPartition.getAndIncrement() : Utils.murmur2(key.getBytes(StandardCharsets.UTF_8));
+        return (hash & 0x7fffffff) % partitions;
+    }
+
+    @Override
+    public void store(Event event) {
         try {
-            producer.send(new KeyedMessage<>(event.project()+"_"+event.collection(), copy));
-        } catch (FailedToSendMessageException e) {
+            producer.send(createRecord(event)).get(sendTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sending event to Kafka", e);
+        } catch (ExecutionException | TimeoutException e) {
             throw new RuntimeException("Couldn't send event to Kafka", e);
         }
     }
 
     @Override
     public int[] storeBatch(List<Event> events) {
-        // TODO: implement this
-        events.forEach(this::store);
-        return EventStore.SUCCESSFUL_BATCH;
+        // the events are sent without waiting for the acknowledgements of the previous ones so that the producer
+        // batches and compresses them together, the callbacks mark the events that are failed.
+        AtomicIntegerArray states = new AtomicIntegerArray(events.size());
+        CountDownLatch latch = new CountDownLatch(events.size());
+
+        for (int i = 0; i < events.size(); i++) {
+            int index = i;
+            try {
+                producer.send(createRecord(events.get(i)), (metadata, exception) -> {
+                    if (exception != null) {
+                        LOGGER.warn(exception, "Couldn't send event to Kafka");
+                    }
+                    states.set(index, exception == null ? SENT : FAILED);
+                    latch.countDown();
+                });
+            } catch (Exception e) {
+                LOGGER.warn(e, "Couldn't send event to Kafka");
+                states.set(index, FAILED);
+                latch.countDown();
+            }
+        }
+
+        try {
+            if (!latch.await(sendTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Timed out while waiting for %d events to be sent to Kafka", latch.getCount());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // the events that are not acknowledged yet are also failed from the client's point of view.
+        int[] failed = IntStream.range(0, events.size()).filter(i -> states.get(i) != SENT).toArray();
+        return failed.length == 0 ? EventStore.SUCCESSFUL_BATCH : failed;
+    }
+
+    @Override
+    public void storeBulk(List<Event> events) {
+        int[] failed = storeBatch(events);
+        if (failed.length > 0) {
+            throw new RuntimeException(format("%d of %d events couldn't be sent to Kafka", failed.length, events.size()));
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        producer.close();
     }
 
     @Override
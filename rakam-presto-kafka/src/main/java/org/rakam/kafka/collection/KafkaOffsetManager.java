@@ -1,5 +1,8 @@
 package org.rakam.kafka.collection;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.net.HostAndPort;
 import com.google.inject.Singleton;
@@ -21,9 +24,11 @@ import org.rakam.util.RakamException;
 import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -34,6 +39,9 @@ public class KafkaOffsetManager {
     private final static Logger LOGGER = Logger.get(KafkaOffsetManager.class);
     private final KafkaSimpleConsumerManager consumerManager;
     private final KafkaConfig config;
+    // the partition leaders of the topics, the entries are invalidated when a leader is not available
+    private final Cache<String, List<PartitionMetadata>> topicMetadataCache = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES).build();
 
     @Inject
     public KafkaOffsetManager(@Named("event.store.kafka") KafkaConfig config) {
@@ -41,60 +49,100 @@ public class KafkaOffsetManager {
         this.consumerManager = new KafkaSimpleConsumerManager();
     }
 
-    public Map<String, Long> getOffset(String project, Set<String> collections) {
-        return getTopicOffsets(collections.stream()
-                .map(col -> project+"_"+col.toLowerCase()).collect(Collectors.toList()));
+    /**
+     * Returns the latest offsets of the partitions of the collections. The collections of a project share the
+     * offsets of the project topic when the topic layout is project.
+     */
+    public Map<String, Map<Integer, Long>> getOffset(String project, Set<String> collections) {
+        KafkaTopicLayout layout = config.getTopicLayout();
+        Map<String, Map<Integer, Long>> topicOffsets = getTopicOffsets(collections.stream()
+                .map(col -> layout.getTopic(project, col.toLowerCase())).distinct().collect(Collectors.toList()));
+
+        Map<String, Map<Integer, Long>> offsets = new HashMap<>();
+        for (String collection : collections) {
+            offsets.put(collection, topicOffsets.getOrDefault(layout.getTopic(project, collection.toLowerCase()),
+                    ImmutableMap.of()));
+        }
+        return offsets;
+    }
+
+    private Map<String, Map<Integer, Long>> getTopicOffsets(List<String> topics) {
+        // the offsets of the partitions that have the same leader are fetched with a single request
+        Map<HostAndPort, List<TopicAndPartition>> partitionsByLeader = new HashMap<>();
+        for (String topic : topics) {
+            for (PartitionMetadata part : getTopicMetadata(topic)) {
+                Broker leader = part.leader();
+                if (leader == null) { // Leader election going on...
+                    LOGGER.warn(format("No leader for partition %s/%s found!", topic, part.partitionId()));
+                    topicMetadataCache.invalidate(topic);
+                } else {
+                    partitionsByLeader.computeIfAbsent(HostAndPort.fromParts(leader.host(), leader.port()), host -> new ArrayList<>())
+                            .add(new TopicAndPartition(topic, part.partitionId()));
+                }
+            }
+        }
+
+        Map<String, Map<Integer, Long>> offsets = new HashMap<>();
+        for (Map.Entry<HostAndPort, List<TopicAndPartition>> entry : partitionsByLeader.entrySet()) {
+            SimpleConsumer leaderConsumer = consumerManager.getConsumer(entry.getKey());
+            try {
+                findLatestOffsets(leaderConsumer, entry.getValue()).forEach((partition, offset) ->
+                        offsets.computeIfAbsent(partition.topic(), topic -> new HashMap<>()).put(partition.partition(), offset));
+            } catch (RuntimeException e) {
+                // the leaders may be changed, the metadata is fetched again in the next call
+                entry.getValue().forEach(partition -> topicMetadataCache.invalidate(partition.topic()));
+                throw e;
+            }
+        }
+
+        return offsets;
     }
 
-    private Map<String, Long> getTopicOffsets(List<String> topics) {
+    private List<PartitionMetadata> getTopicMetadata(String topic) {
+        List<PartitionMetadata> partitions = topicMetadataCache.getIfPresent(topic);
+        if (partitions != null) {
+            return partitions;
+        }
+
         ArrayList<HostAndPort> nodes = new ArrayList<>(config.getNodes());
         Collections.shuffle(nodes);
 
         SimpleConsumer simpleConsumer = consumerManager.getConsumer(nodes.get(0));
-        TopicMetadataRequest topicMetadataRequest = new TopicMetadataRequest(topics);
-        TopicMetadataResponse topicMetadataResponse = simpleConsumer.send(topicMetadataRequest);
-
-        ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+        TopicMetadataResponse topicMetadataResponse = simpleConsumer.send(new TopicMetadataRequest(ImmutableList.of(topic)));
 
+        partitions = new ArrayList<>();
         for (TopicMetadata metadata : topicMetadataResponse.topicsMetadata()) {
             for (PartitionMetadata part : metadata.partitionsMetadata()) {
                 LOGGER.debug(format("Adding Partition %s/%s", metadata.topic(), part.partitionId()));
-                Broker leader = part.leader();
-                if (leader == null) { // Leader election going on...
-                    LOGGER.warn(format("No leader for partition %s/%s found!", metadata.topic(), part.partitionId()));
-                } else {
-                    HostAndPort leaderHost = HostAndPort.fromParts(leader.host(), leader.port());
-                    SimpleConsumer leaderConsumer = consumerManager.getConsumer(leaderHost);
-
-                    long offset = findAllOffsets(leaderConsumer, metadata.topic(), part.partitionId())[0];
-                    builder.put(metadata.topic(), offset);
-                }
+                partitions.add(part);
             }
         }
-
-        return builder.build();
+        // the topics that are not created yet are looked up again
+        if (!partitions.isEmpty()) {
+            topicMetadataCache.put(topic, partitions);
+        }
+        return partitions;
     }
 
-    private static long[] findAllOffsets(SimpleConsumer consumer, String topicName, int partitionId) {
-        TopicAndPartition topicAndPartition = new TopicAndPartition(topicName, partitionId);
-
-        // The API implies that this will always return all of the offsets. So it seems a partition can not have
-        // more than Integer.MAX_VALUE-1 segments.
-        //
-        // This also assumes that the lowest value returned will be the first segment available. So if segments have been dropped off, this value
-        // should not be 0.
-        PartitionOffsetRequestInfo partitionOffsetRequestInfo = new PartitionOffsetRequestInfo(kafka.api.OffsetRequest.LatestTime(), 10000);
-        OffsetRequest offsetRequest = new OffsetRequest(ImmutableMap.of(topicAndPartition, partitionOffsetRequestInfo), kafka.api.OffsetRequest.CurrentVersion(), consumer.clientId());
+    private static Map<TopicAndPartition, Long> findLatestOffsets(SimpleConsumer consumer, List<TopicAndPartition> partitions) {
+        PartitionOffsetRequestInfo partitionOffsetRequestInfo = new PartitionOffsetRequestInfo(kafka.api.OffsetRequest.LatestTime(), 1);
+        Map<TopicAndPartition, PartitionOffsetRequestInfo> requestInfo = new HashMap<>();
+        for (TopicAndPartition partition : partitions) {
+            requestInfo.put(partition, partitionOffsetRequestInfo);
+        }
+        OffsetRequest offsetRequest = new OffsetRequest(requestInfo, kafka.api.OffsetRequest.CurrentVersion(), consumer.clientId());
         OffsetResponse offsetResponse = consumer.getOffsetsBefore(offsetRequest);
 
-        if (offsetResponse.hasError()) {
-            short errorCode = offsetResponse.errorCode(topicName, partitionId);
-            LOGGER.warn(format("Offset response has error: %d", errorCode));
-            throw new RakamException("could not fetch data from Kafka, error code is '" + errorCode + "'", HttpResponseStatus.INTERNAL_SERVER_ERROR);
+        Map<TopicAndPartition, Long> offsets = new HashMap<>();
+        for (TopicAndPartition partition : partitions) {
+            short errorCode = offsetResponse.errorCode(partition.topic(), partition.partition());
+            if (errorCode != 0) {
+                LOGGER.warn(format("Offset response has error: %d", errorCode));
+                throw new RakamException("could not fetch data from Kafka, error code is '" + errorCode + "'", HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            }
+            offsets.put(partition, offsetResponse.offsets(partition.topic(), partition.partition())[0]);
         }
 
-        long[] offsets = offsetResponse.offsets(topicName, partitionId);
-
         return offsets;
     }
 }
@@ -1,5 +1,8 @@
 package org.rakam.kafka.collection;
 
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.airlift.log.Logger;
 import org.rakam.collection.SchemaField;
 import org.rakam.analysis.metadata.Metastore;
 import org.rakam.plugin.stream.CollectionStreamQuery;
@@ -9,23 +12,42 @@ import org.rakam.presto.analysis.PrestoConfig;
 import org.rakam.presto.analysis.PrestoQueryExecutor;
 
 import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import static java.lang.String.format;
 
+/**
+ * The subscribers of a project share a feed that reads the new messages of the subscribed collections once and
+ * dispatches the events to the subscribers. The filters of the subscribers are evaluated in the same query so that
+ * the messages are fetched from Kafka once no matter how many subscribers there are.
+ */
+@Singleton
 public class KafkaStream implements EventStream {
+    private final static Logger LOGGER = Logger.get(KafkaStream.class);
+    // the subscribers sync periodically, the feed is polled at most once in the interval
+    private static final long POLL_INTERVAL_MILLIS = 1000;
 
     private final KafkaOffsetManager offsetManager;
     private final PrestoQueryExecutor prestoExecutor;
     private final PrestoConfig prestoConfig;
     private final Metastore metastore;
+    private final KafkaTopicLayout topicLayout;
+    private final Map<String, ProjectFeed> feeds = new ConcurrentHashMap<>();
 
     @Inject
-    public KafkaStream(KafkaOffsetManager offsetManager, Metastore metastore, PrestoQueryExecutor prestoExecutor, PrestoConfig prestoConfig) {
+    public KafkaStream(KafkaOffsetManager offsetManager, Metastore metastore, PrestoQueryExecutor prestoExecutor, PrestoConfig prestoConfig,
+                       @Named("event.store.kafka") KafkaConfig config) {
         this.offsetManager = offsetManager;
+        this.topicLayout = config.getTopicLayout();
         this.prestoExecutor = prestoExecutor;
         this.prestoConfig = prestoConfig;
         this.metastore = metastore;
@@ -33,28 +55,30 @@ public class KafkaStream implements EventStream {
 
     @Override
     public EventStreamer subscribe(String project, List<CollectionStreamQuery> collections, List<String> columns, StreamResponse response) {
-        return new KafkaEventSupplier(project, collections, columns, response);
+        KafkaEventSupplier supplier = new KafkaEventSupplier(project, collections, columns, response);
+        ProjectFeed feed = feeds.compute(project, (key, existing) -> {
+            ProjectFeed projectFeed = existing == null ? new ProjectFeed(project) : existing;
+            projectFeed.subscribers.add(supplier);
+            return projectFeed;
+        });
+        feed.track(supplier.collectionNames);
+        return supplier;
     }
 
     public class KafkaEventSupplier implements EventStreamer {
         private final StreamResponse response;
-        private Map<String, Long> lastOffsets;
         private final List<CollectionStreamQuery> collections;
         private final Set<String> collectionNames;
         private final String project;
         private final List<SchemaField> columns;
 
-        private Map<String, List<SchemaField>> metadata;
-
         public KafkaEventSupplier(String project, List<CollectionStreamQuery> collections, List<String> columns, StreamResponse response) {
             this.collectionNames = collections.stream().map(c -> c.getCollection()).collect(Collectors.toSet());
-
-            this.lastOffsets = offsetManager.getOffset(project, collectionNames);
             this.collections = collections;
             this.project = project;
-            List<SchemaField> sample = getMetadata().get(collections.get(0));
 
             if (columns != null) {
+                List<SchemaField> sample = metastore.getCollection(project, collections.get(0).getCollection());
                 this.columns = columns.stream().map(colName -> sample.stream()
                         .filter(field -> field.getName().equals(colName)).findFirst().get())
                         .collect(Collectors.toList());
@@ -65,70 +89,130 @@ public class KafkaStream implements EventStream {
             this.response = response;
         }
 
-        private Map<String, List<SchemaField>> getMetadata() {
-            if (metadata == null) {
-                metadata = metastore.getCollections(project).entrySet().stream()
-                        .filter(entry -> collectionNames.contains(entry.getKey()))
-                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        @Override
+        public void sync() {
+            ProjectFeed feed = feeds.get(project);
+            if (feed != null) {
+                feed.poll();
             }
-            return metadata;
         }
 
         @Override
-        public void sync() {
-            Map<String, Long> offsets = offsetManager.getOffset(project, collectionNames);
-
-            String query = collections.stream().map(e -> {
-                String select;
-
-                List<SchemaField> cols = columns != null ? columns : getMetadata().get(e.getCollection());
-                select = String.format("'{\"_collection\": \"%s\",'||'", e.getCollection()) + cols.stream()
-                        .map(field -> {
-                            switch (field.getType()) {
-                                case LONG:
-                                case DOUBLE:
-                                case INTEGER:
-                                case DECIMAL:
-                                case BOOLEAN:
-                                    return format("\"%1$s\": '||COALESCE(cast(%1$s as varchar), 'null')||'", field.getName());
-                                default:
-                                    return format("\"%1$s\": \"'||COALESCE(replace(try_cast(%1$s as varchar), '\n', '\\n'), 'null')||'\"", field.getName());
-                            }
+        public void shutdown() {
+            feeds.computeIfPresent(project, (key, feed) -> {
+                feed.subscribers.remove(this);
+                return feed.subscribers.isEmpty() ? null : feed;
+            });
+        }
+    }
 
-                        })
-                        .collect(Collectors.joining(", ")) + " }'";
+    private class ProjectFeed {
+        private final String project;
+        private final Set<KafkaEventSupplier> subscribers = ConcurrentHashMap.newKeySet();
+        private final Map<String, Map<Integer, Long>> lastOffsets = new ConcurrentHashMap<>();
+        // the feeds keep the failing filters of the subscribers between the polls
+        private final Map<String, CollectionFeed> collectionFeeds = new ConcurrentHashMap<>();
+        private final AtomicBoolean polling = new AtomicBoolean();
+        private volatile long lastPoll;
+
+        private ProjectFeed(String project) {
+            this.project = project;
+        }
 
+        /**
+         * The subscribers of the collections that are already tracked by the feed receive the events after the
+         * last poll, the new collections are read from their latest offsets.
+         */
+        private synchronized void track(Set<String> collections) {
+            Set<String> newCollections = collections.stream()
+                    .filter(collection -> !lastOffsets.containsKey(collection))
+                    .collect(Collectors.toSet());
+            if (!newCollections.isEmpty()) {
+                lastOffsets.putAll(offsetManager.getOffset(project, newCollections));
+            }
+        }
 
-                long offsetNow = offsets.get(project + "_" + e.getCollection().toLowerCase());
-                long offsetBefore = this.lastOffsets.get(project + "_" + e.getCollection().toLowerCase());
-                if (offsetBefore == offsetNow) {
-                    return null;
+        private void poll() {
+            if (System.currentTimeMillis() - lastPoll < POLL_INTERVAL_MILLIS || !polling.compareAndSet(false, true)) {
+                return;
+            }
+            lastPoll = System.currentTimeMillis();
+
+            try {
+                Map<String, List<CollectionFeed.Subscription>> subscriptions = new HashMap<>();
+                Map<KafkaEventSupplier, List<CollectionFeed.Subscription>> subscriberSubscriptions = new HashMap<>();
+                for (KafkaEventSupplier subscriber : subscribers) {
+                    for (CollectionStreamQuery query : subscriber.collections) {
+                        CollectionFeed.Subscription subscription = new CollectionFeed.Subscription(query.getFilter(), subscriber.columns);
+                        subscriptions.computeIfAbsent(query.getCollection(), k -> new ArrayList<>()).add(subscription);
+                        subscriberSubscriptions.computeIfAbsent(subscriber, k -> new ArrayList<>()).add(subscription);
+                    }
                 }
-                return format("select %s from %s where _offset > %d and _offset <= %d %s",
-                        select,
-                        prestoConfig.getHotStorageConnector() + "." + project + "." + e.getCollection(),
-                        offsetBefore,
-                        offsetNow,
-                        e.getFilter() == null ? "" : " AND " + e.getFilter().toString());
 
-            }).filter(d -> d != null).collect(Collectors.joining(" union all "));
-
-            if (query.isEmpty())
-                return;
+                Map<String, Map<Integer, Long>> offsets = offsetManager.getOffset(project, subscriptions.keySet());
+                collectionFeeds.keySet().retainAll(subscriptions.keySet());
+
+                Set<CollectionFeed.Subscription> read = new HashSet<>();
+                List<CompletableFuture<Void>> queries = new ArrayList<>();
+                for (Map.Entry<String, List<CollectionFeed.Subscription>> entry : subscriptions.entrySet()) {
+                    String collection = entry.getKey();
+                    Map<Integer, Long> now = offsets.get(collection);
+                    String offsetRange = getOffsetRange(lastOffsets.getOrDefault(collection, now), now);
+                    if (offsetRange == null) {
+                        continue;
+                    }
+
+                    read.addAll(entry.getValue());
+                    CollectionFeed feed = collectionFeeds.computeIfAbsent(collection, key -> new CollectionFeed(project, collection,
+                            prestoConfig.getHotStorageConnector() + "." + project + "." + collection, topicLayout,
+                            query -> prestoExecutor.executeRawQuery(query).getResult()));
+                    queries.add(feed.read(offsetRange, metastore.getCollection(project, collection), entry.getValue())
+                            .thenAccept(success -> {
+                                if (success) {
+                                    lastOffsets.merge(collection, now, KafkaStream::mergeOffsets);
+                                }
+                            }));
+                }
 
-            prestoExecutor.executeRawQuery(query + " limit 1000").getResult()
-                    .thenAccept(r -> {
-                        lastOffsets = offsets;
-                        response.send("data", "[" + r.getResult().stream()
-                                .map(s -> (String) s.get(0)).collect(Collectors.joining(",")) + "]");
-                    });
+                CompletableFuture.allOf(queries.toArray(new CompletableFuture[queries.size()]))
+                        .whenComplete((result, ex) -> {
+                            polling.set(false);
+                            if (ex != null) {
+                                LOGGER.error(ex, "Error while reading the events of project %s", project);
+                            }
+                            subscriberSubscriptions.forEach((subscriber, list) -> {
+                                if (list.stream().anyMatch(read::contains)) {
+                                    String data = list.stream().flatMap(subscription -> subscription.events.stream())
+                                            .collect(Collectors.joining(","));
+                                    subscriber.response.send("data", "[" + data + "]");
+                                }
+                            });
+                        });
+            } catch (RuntimeException e) {
+                polling.set(false);
+                throw e;
+            }
         }
+    }
 
-        @Override
-        public void shutdown() {
-
-        }
+    /**
+     * The partitions that have no leader are missing in the latest offsets, their last offsets are kept so that
+     * they're not read from the beginning when they're back.
+     */
+    static Map<Integer, Long> mergeOffsets(Map<Integer, Long> previous, Map<Integer, Long> now) {
+        Map<Integer, Long> merged = new HashMap<>(previous);
+        merged.putAll(now);
+        return merged;
+    }
 
+    private static String getOffsetRange(Map<Integer, Long> before, Map<Integer, Long> now) {
+        // the offsets are per partition, the partitions that are added later are read from the beginning
+        String range = now.entrySet().stream()
+                .filter(entry -> before.getOrDefault(entry.getKey(), -1L) < entry.getValue())
+                .map(entry -> format("(_partition_id = %d and _offset > %d and _offset <= %d)",
+                        entry.getKey(), before.getOrDefault(entry.getKey(), -1L), entry.getValue()))
+                .collect(Collectors.joining(" or "));
+        return range.isEmpty() ? null : "(" + range + ")";
     }
 
 //    private Object convertPrestoValue(FieldType type, Object o) {
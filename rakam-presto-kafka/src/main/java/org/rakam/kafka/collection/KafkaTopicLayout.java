@@ -0,0 +1,28 @@
+package org.rakam.kafka.collection;
+
+import java.util.Locale;
+
+/**
+ * The topics that the events are written to. The collections of a project share a topic in the project layout so
+ * that the number of partitions in the cluster doesn't grow with the number of collections, the collection of the
+ * events is written to the key of the messages.
+ */
+public enum KafkaTopicLayout {
+    COLLECTION,
+    PROJECT;
+
+    public static KafkaTopicLayout fromString(String value) {
+        return valueOf(value.toUpperCase(Locale.ENGLISH));
+    }
+
+    public String getTopic(String project, String collection) {
+        switch (this) {
+            case COLLECTION:
+                return project + "_" + collection;
+            case PROJECT:
+                return project;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.rakam.kafka.collection;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
+import org.rakam.report.QueryError;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static org.rakam.kafka.collection.CollectionFeed.MAX_EVENTS_PER_POLL;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestCollectionFeed {
+    private static final List<SchemaField> SCHEMA = ImmutableList.of(new SchemaField("id", FieldType.LONG));
+    private static final String RANGE = "(_partition_id = 0 and _offset > 1 and _offset <= 5)";
+
+    @Test
+    public void testSubscribersShareQuery() throws Exception {
+        List<String> queries = new ArrayList<>();
+        CollectionFeed feed = feed(queries, query -> new QueryResult(ImmutableList.of(), ImmutableList.of(
+                ImmutableList.of("{\"id\": 1}", true, false),
+                ImmutableList.of("{\"id\": 2}", true, true))));
+
+        CollectionFeed.Subscription all = new CollectionFeed.Subscription(null, null);
+        CollectionFeed.Subscription filtered = new CollectionFeed.Subscription("id > 1", null);
+        assertTrue(feed.read(RANGE, SCHEMA, ImmutableList.of(all, filtered)).get());
+
+        assertEquals(queries.size(), 1);
+        assertEquals(all.events, ImmutableList.of("{\"id\": 1}", "{\"id\": 2}"));
+        assertEquals(filtered.events, ImmutableList.of("{\"id\": 2}"));
+    }
+
+    @Test
+    public void testLimitPerSubscriber() throws Exception {
+        List<String> queries = new ArrayList<>();
+        CollectionFeed feed = feed(queries, query -> QueryResult.empty());
+
+        CollectionFeed.Subscription first = new CollectionFeed.Subscription("id > 1", null);
+        CollectionFeed.Subscription second = new CollectionFeed.Subscription("id < 1", null);
+        CollectionFeed.Subscription same = new CollectionFeed.Subscription("id > 1", null);
+        feed.read(RANGE, SCHEMA, ImmutableList.of(first, second, same)).get();
+
+        String query = queries.get(0);
+        // the limit is applied to the matching rows of each filter, not to the rows of all the subscribers
+        assertFalse(query.contains("limit"), query);
+        assertTrue(query.contains("count_if(coalesce((id > 1), false)) over (order by _partition_id, _offset) as _rank0"), query);
+        assertTrue(query.contains("count_if(coalesce((id < 1), false)) over (order by _partition_id, _offset) as _rank1"), query);
+        assertTrue(query.contains("(_matches0 and _rank0 <= " + MAX_EVENTS_PER_POLL + ")"), query);
+        assertTrue(query.contains("(_matches1 and _rank1 <= " + MAX_EVENTS_PER_POLL + ")"), query);
+        assertFalse(query.contains("_rank2"), query);
+    }
+
+    @Test
+    public void testFailingFilterIsIsolated() throws Exception {
+        List<String> queries = new ArrayList<>();
+        CollectionFeed feed = feed(queries, query -> query.contains("invalid") ?
+                QueryResult.errorResult(QueryError.create("Column 'invalid' cannot be resolved")) :
+                new QueryResult(ImmutableList.of(), ImmutableList.of(ImmutableList.of("{\"id\": 1}", true))));
+
+        CollectionFeed.Subscription valid = new CollectionFeed.Subscription("id > 0", null);
+        CollectionFeed.Subscription invalid = new CollectionFeed.Subscription("invalid > 0", null);
+        assertTrue(feed.read(RANGE, SCHEMA, ImmutableList.of(valid, invalid)).get());
+
+        assertEquals(queries.size(), 3);
+        assertEquals(valid.events, ImmutableList.of("{\"id\": 1}"));
+        assertEquals(invalid.events, ImmutableList.of());
+    }
+
+    @Test
+    public void testFailingFilterIsQueriedSeparately() throws Exception {
+        List<String> queries = new ArrayList<>();
+        CollectionFeed feed = feed(queries, query -> query.contains("invalid") ?
+                QueryResult.errorResult(QueryError.create("Column 'invalid' cannot be resolved")) :
+                new QueryResult(ImmutableList.of(), ImmutableList.of(ImmutableList.of("{\"id\": 1}", true, true))));
+
+        feed.read(RANGE, SCHEMA, ImmutableList.of(new CollectionFeed.Subscription("id > 0", null),
+                new CollectionFeed.Subscription("invalid > 0", null))).get();
+        queries.clear();
+
+        // the other subscribers still share a query in the next polls
+        CollectionFeed.Subscription first = new CollectionFeed.Subscription("id > 0", null);
+        CollectionFeed.Subscription second = new CollectionFeed.Subscription("id > 1", null);
+        CollectionFeed.Subscription invalid = new CollectionFeed.Subscription("invalid > 0", null);
+        assertTrue(feed.read(RANGE, SCHEMA, ImmutableList.of(first, second, invalid)).get());
+
+        assertEquals(queries.size(), 2);
+        assertTrue(queries.stream().anyMatch(query -> query.contains("id > 0") && query.contains("id > 1") && !query.contains("invalid")));
+        assertEquals(first.events, ImmutableList.of("{\"id\": 1}"));
+        assertEquals(second.events, ImmutableList.of("{\"id\": 1}"));
+    }
+
+    @Test
+    public void testFiltersAreNotIsolatedWhenAllFail() throws Exception {
+        List<String> queries = new ArrayList<>();
+        AtomicBoolean available = new AtomicBoolean();
+        CollectionFeed feed = feed(queries, query -> available.get() ? QueryResult.empty() :
+                QueryResult.errorResult(QueryError.create("Presto is not available")));
+
+        List<CollectionFeed.Subscription> subscriptions = ImmutableList.of(
+                new CollectionFeed.Subscription("id > 0", null), new CollectionFeed.Subscription("id > 1", null));
+        assertFalse(feed.read(RANGE, SCHEMA, subscriptions).get());
+
+        available.set(true);
+        queries.clear();
+        assertTrue(feed.read(RANGE, SCHEMA, subscriptions).get());
+        assertEquals(queries.size(), 1);
+    }
+
+    @Test
+    public void testFailedSubscribersAreReadAgain() throws Exception {
+        CollectionFeed feed = feed(new ArrayList<>(),
+                query -> QueryResult.errorResult(QueryError.create("Presto is not available")));
+
+        CollectionFeed.Subscription first = new CollectionFeed.Subscription(null, null);
+        CollectionFeed.Subscription second = new CollectionFeed.Subscription("id > 0", null);
+        assertFalse(feed.read(RANGE, SCHEMA, ImmutableList.of(first, second)).get());
+    }
+
+    @Test
+    public void testOffsetsOfPartitionsWithoutLeader() {
+        // the partition 1 has no leader while the latest offsets are fetched
+        assertEquals(KafkaStream.mergeOffsets(ImmutableMap.of(0, 10L, 1, 20L), ImmutableMap.of(0, 15L)),
+                ImmutableMap.of(0, 15L, 1, 20L));
+    }
+
+    private static CollectionFeed feed(List<String> queries, Function<String, QueryResult> executor) {
+        return new CollectionFeed("project", "pageview", "kafka.project.pageview", KafkaTopicLayout.COLLECTION, query -> {
+            synchronized (queries) {
+                queries.add(query);
+            }
+            return CompletableFuture.completedFuture(executor.apply(query));
+        });
+    }
+}
@@ -0,0 +1,250 @@
+package org.rakam.presto.analysis;
+
+import com.facebook.presto.jdbc.internal.airlift.http.client.FullJsonResponseHandler;
+import com.facebook.presto.jdbc.internal.airlift.http.client.FullJsonResponseHandler.JsonResponse;
+import com.facebook.presto.jdbc.internal.airlift.http.client.HttpClient;
+import com.facebook.presto.jdbc.internal.airlift.http.client.Request;
+import com.facebook.presto.jdbc.internal.airlift.json.JsonCodec;
+import com.facebook.presto.jdbc.internal.airlift.units.Duration;
+import com.facebook.presto.jdbc.internal.client.ClientSession;
+import com.facebook.presto.jdbc.internal.client.QueryResults;
+import com.facebook.presto.jdbc.internal.guava.util.concurrent.FutureCallback;
+import com.facebook.presto.jdbc.internal.guava.util.concurrent.Futures;
+import com.facebook.presto.jdbc.internal.guava.util.concurrent.ListenableFuture;
+import io.airlift.log.Logger;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static com.facebook.presto.jdbc.internal.airlift.http.client.FullJsonResponseHandler.createFullJsonResponseHandler;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.HttpUriBuilder.uriBuilderFrom;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.Request.Builder.prepareDelete;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.Request.Builder.prepareGet;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.Request.Builder.preparePost;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.StaticBodyGenerator.createStaticBodyGenerator;
+import static com.facebook.presto.jdbc.internal.airlift.http.client.StatusResponseHandler.createStatusResponseHandler;
+import static com.facebook.presto.jdbc.internal.airlift.json.JsonCodec.jsonCodec;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_CATALOG;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_CLEAR_TRANSACTION_ID;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_LANGUAGE;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_SCHEMA;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_SESSION;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_SOURCE;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_STARTED_TRANSACTION_ID;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_TIME_ZONE;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_TRANSACTION_ID;
+import static com.facebook.presto.jdbc.internal.client.PrestoHeaders.PRESTO_USER;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Non-blocking implementation of the Presto client protocol. Unlike {@link com.facebook.presto.jdbc.internal.client.StatementClient},
+ * it doesn't park a thread while the query is running: the next page is requested from the callback of the previous response
+ * and each page is handed to the listener as soon as it arrives, so the caller decides whether the rows are accumulated or not.
+ * The responses are processed in the given executor rather than the threads of the HTTP client.
+ */
+public class AsyncStatementClient implements Closeable {
+    private final static Logger LOGGER = Logger.get(AsyncStatementClient.class);
+    private static final JsonCodec<QueryResults> QUERY_RESULTS_JSON_CODEC = jsonCodec(QueryResults.class);
+    private static final FullJsonResponseHandler<QueryResults> RESPONSE_HANDLER = createFullJsonResponseHandler(QUERY_RESULTS_JSON_CODEC);
+
+    // only used for delaying the retries when the coordinator is overloaded, the requests themselves are asynchronous.
+    private static final ScheduledExecutorService RETRY_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "presto-client-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpClient httpClient;
+    private final ClientSession session;
+    private final String query;
+    private final Consumer<QueryResults> pageListener;
+    private final Executor executor;
+    private final Duration requestTimeout;
+    private final CompletableFuture<QueryResults> finalResults = new CompletableFuture<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile QueryResults currentResults;
+    private volatile String startedTransactionId;
+    private volatile boolean clearTransactionId;
+
+    public AsyncStatementClient(HttpClient httpClient, ClientSession session, String query, Consumer<QueryResults> pageListener, Executor executor) {
+        this.httpClient = httpClient;
+        this.session = session;
+        this.query = query;
+        this.pageListener = pageListener;
+        this.executor = executor;
+        this.requestTimeout = session.getClientRequestTimeout();
+    }
+
+    public CompletableFuture<QueryResults> start() {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("Query is already started");
+        }
+        execute(buildQueryRequest(), System.nanoTime(), 0);
+        return finalResults;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public QueryResults current() {
+        return currentResults;
+    }
+
+    public CompletableFuture<QueryResults> finalResults() {
+        return finalResults;
+    }
+
+    public boolean isFailed() {
+        if (finalResults.isCompletedExceptionally()) {
+            return true;
+        }
+        QueryResults results = currentResults;
+        return results != null && results.getError() != null;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public String getStartedTransactionId() {
+        return startedTransactionId;
+    }
+
+    public boolean isClearTransactionId() {
+        return clearTransactionId;
+    }
+
+    private Request buildQueryRequest() {
+        Request.Builder builder = prepareRequest(preparePost(), uriBuilderFrom(session.getServer()).replacePath("/v1/statement").build())
+                .setBodyGenerator(createStaticBodyGenerator(query, UTF_8));
+
+        if (session.getSource() != null) {
+            builder.setHeader(PRESTO_SOURCE, session.getSource());
+        }
+        if (session.getCatalog() != null) {
+            builder.setHeader(PRESTO_CATALOG, session.getCatalog());
+        }
+        if (session.getSchema() != null) {
+            builder.setHeader(PRESTO_SCHEMA, session.getSchema());
+        }
+        builder.setHeader(PRESTO_TIME_ZONE, session.getTimeZoneId());
+        builder.setHeader(PRESTO_LANGUAGE, session.getLocale().toLanguageTag());
+        for (Map.Entry<String, String> entry : session.getProperties().entrySet()) {
+            builder.addHeader(PRESTO_SESSION, entry.getKey() + "=" + entry.getValue());
+        }
+        builder.setHeader(PRESTO_TRANSACTION_ID, session.getTransactionId() == null ? "NONE" : session.getTransactionId());
+
+        return builder.build();
+    }
+
+    private Request.Builder prepareRequest(Request.Builder builder, URI uri) {
+        return builder.setHeader(PRESTO_USER, session.getUser()).setUri(uri);
+    }
+
+    private void execute(Request request, long firstAttempt, int attempts) {
+        if (closed.get()) {
+            return;
+        }
+
+        ListenableFuture<JsonResponse<QueryResults>> future = httpClient.executeAsync(request, RESPONSE_HANDLER);
+        Futures.addCallback(future, new FutureCallback<JsonResponse<QueryResults>>() {
+            @Override
+            public void onSuccess(JsonResponse<QueryResults> response) {
+                if (response.getStatusCode() == 503) {
+                    retry(request, firstAttempt, attempts, new RuntimeException("Presto server is overloaded"));
+                    return;
+                }
+
+                if (response.getStatusCode() != 200 || !response.hasValue()) {
+                    finalResults.completeExceptionally(requestFailedException(request, response));
+                    return;
+                }
+
+                try {
+                    processResponse(response);
+                } catch (Throwable e) {
+                    finalResults.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                retry(request, firstAttempt, attempts, t);
+            }
+        }, executor);
+    }
+
+    private void retry(Request request, long firstAttempt, int attempts, Throwable cause) {
+        if (closed.get()) {
+            return;
+        }
+
+        long elapsedMillis = NANOSECONDS.toMillis(System.nanoTime() - firstAttempt);
+        if (elapsedMillis > requestTimeout.toMillis()) {
+            finalResults.completeExceptionally(new RuntimeException("Error fetching next at " + request.getUri() +
+                    " returned an invalid response: " + cause.getMessage(), cause));
+            return;
+        }
+
+        LOGGER.debug(cause, "Retrying request to Presto server %s", request.getUri());
+        long delay = Math.min(100L * (1 << Math.min(attempts, 5)), 2000L);
+        RETRY_EXECUTOR.schedule(() -> execute(request, firstAttempt, attempts + 1), delay, MILLISECONDS);
+    }
+
+    private void processResponse(JsonResponse<QueryResults> response) {
+        String startedTransactionId = response.getHeader(PRESTO_STARTED_TRANSACTION_ID);
+        if (startedTransactionId != null) {
+            this.startedTransactionId = startedTransactionId;
+        }
+        if (response.getHeader(PRESTO_CLEAR_TRANSACTION_ID) != null) {
+            clearTransactionId = true;
+        }
+
+        QueryResults results = response.getValue();
+        currentResults = results;
+
+        // the listener is called before the next page is requested, which gives us a natural back-pressure
+        pageListener.accept(results);
+
+        if (results.getNextUri() == null || closed.get()) {
+            finalResults.complete(results);
+        } else {
+            execute(prepareRequest(prepareGet(), results.getNextUri()).build(), System.nanoTime(), 0);
+        }
+    }
+
+    private RuntimeException requestFailedException(Request request, JsonResponse<QueryResults> response) {
+        if (!response.hasValue()) {
+            return new RuntimeException(String.format("Error fetching next at %s returned an invalid response: %s [Error: %s]",
+                    request.getUri(), response, response.getResponseBody()), response.getException());
+        }
+        return new RuntimeException(String.format("Error fetching next at %s returned %s: %s",
+                request.getUri(), response.getStatusCode(), response.getStatusMessage()));
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        QueryResults results = currentResults;
+        URI uri = results == null ? null : results.getNextUri();
+        if (uri != null) {
+            httpClient.executeAsync(prepareRequest(prepareDelete(), uri).build(), createStatusResponseHandler());
+        }
+        finalResults.complete(results);
+    }
+}
@@ -64,6 +64,11 @@ public class PrestoEventExplorer extends AbstractEventExplorer {
                 return "count(distinct %s)";
             case APPROXIMATE_UNIQUE:
                 return "approx_distinct(%s)";
+            case PERCENTILE_50:
+            case PERCENTILE_90:
+            case PERCENTILE_95:
+            case PERCENTILE_99:
+                return String.format("approx_percentile(%%s, %s)", aggType.getPercentile());
             default:
                 throw new IllegalArgumentException("aggregation type is not supported");
         }
@@ -74,8 +79,13 @@ public class PrestoEventExplorer extends AbstractEventExplorer {
         return "CAST(approx_set(%s) AS VARBINARY)";
     }
 
+    @Override
+    public String getIntermediateForPercentileFunction() {
+        return "numeric_histogram(100, %s)";
+    }
+
     @Override
     public String getFinalForApproximateUniqueFunction() {
-        return "cardinality(CAST(%s AS HYPERLOGLOG))";
+        return "cardinality(merge(CAST(%s AS HYPERLOGLOG)))";
     }
 }
\ No newline at end of file
@@ -40,6 +40,7 @@ import java.util.stream.IntStream;
 
 import static java.lang.String.format;
 import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
+import static org.rakam.report.QueryLane.DASHBOARD;
 
 public class PrestoFunnelQueryExecutor implements FunnelQueryExecutor {
     private final QueryExecutorService executor;
@@ -81,7 +82,7 @@ public class PrestoFunnelQueryExecutor implements FunnelQueryExecutor {
                     .collect(Collectors.joining(" UNION ALL ")) + " ORDER BY 1 ASC";
         }
 
-        return new DelegateQueryExecution(executor.executeQuery(project, "WITH \n" + stepQueries + " " + query),
+        return new DelegateQueryExecution(executor.executeQuery(project, "WITH \n" + stepQueries + " " + query, DASHBOARD),
                 result -> {
                     result.setProperty("calculatedUserSets", calculatedUserSets);
                     return result;
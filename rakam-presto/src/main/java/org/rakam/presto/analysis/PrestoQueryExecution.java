@@ -11,24 +11,23 @@ import com.facebook.presto.jdbc.internal.client.ClientSession;
 import com.facebook.presto.jdbc.internal.client.ClientTypeSignatureParameter;
 import com.facebook.presto.jdbc.internal.client.ErrorLocation;
 import com.facebook.presto.jdbc.internal.client.QueryResults;
-import com.facebook.presto.jdbc.internal.client.StatementClient;
 import com.facebook.presto.jdbc.internal.client.StatementStats;
 import com.facebook.presto.jdbc.internal.guava.collect.ImmutableSet;
-import com.facebook.presto.jdbc.internal.guava.collect.Lists;
 import com.facebook.presto.jdbc.internal.guava.net.HostAndPort;
 import com.facebook.presto.jdbc.internal.guava.net.HttpHeaders;
 import com.facebook.presto.jdbc.internal.spi.type.StandardTypes;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.airlift.log.Logger;
-import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.collection.FieldType;
 import org.rakam.collection.SchemaField;
+import org.rakam.report.ColumnarQueryResult;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryResult;
 import org.rakam.report.QueryStats;
-import org.rakam.util.RakamException;
 import org.rakam.util.SentryUtil;
 
 import java.net.InetSocketAddress;
@@ -40,6 +39,7 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -47,10 +47,10 @@ import java.util.Locale;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import static com.facebook.presto.jdbc.internal.airlift.http.client.Request.Builder.fromRequest;
-import static com.facebook.presto.jdbc.internal.airlift.json.JsonCodec.jsonCodec;
 import static com.facebook.presto.jdbc.internal.guava.base.Preconditions.checkNotNull;
 import static com.facebook.presto.jdbc.internal.spi.type.ParameterKind.TYPE;
 import static java.time.ZoneOffset.UTC;
@@ -65,30 +65,38 @@ public class PrestoQueryExecution implements QueryExecution {
                     .setSocksProxy(getSystemSocksProxy()), new JettyIoPool("presto-jdbc", new JettyIoPoolConfig()),
             ImmutableSet.of(new UserAgentRequestFilter("rakam")));
 
-    // doesn't seem to be a good way but presto client uses a synchronous http client
-    // so it blocks the thread when executing queries
-    private static final ExecutorService QUERY_EXECUTOR = Executors.newWorkStealingPool();
-    private final List<List<Object>> data = Lists.newArrayList();
-    private static final com.facebook.presto.jdbc.internal.airlift.json.JsonCodec<QueryResults> QUERY_RESULTS_JSON_CODEC = jsonCodec(QueryResults.class);
-    private List<SchemaField> columns;
-    private String transactionId;
+    // the pages are parsed outside of the HTTP client threads so that large pages don't delay the responses of the other queries
+    private static final ExecutorService RESULT_EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setNameFormat("presto-result-%d").setDaemon(true).build());
+
+    // the rows are accumulated in columnar format if there is no page consumer
+    private ColumnarQueryResult.Builder resultBuilder;
+    private final BiConsumer<List<SchemaField>, List<List<Object>>> pageConsumer;
+    private volatile List<SchemaField> columns;
+    private volatile String transactionId;
 
     private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
     public static final DateTimeFormatter PRESTO_TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
     public static final DateTimeFormatter PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS z");
 
-    private StatementClient client;
+    private final AsyncStatementClient client;
     private final Instant startTime;
 
     public PrestoQueryExecution(ClientSession session, String query) {
+        this(session, query, null);
+    }
+
+    /**
+     * If the page consumer is set, the rows are pushed to the consumer as soon as Presto returns them
+     * and they're not accumulated in the final {@link QueryResult}.
+     */
+    public PrestoQueryExecution(ClientSession session, String query, BiConsumer<List<SchemaField>, List<List<Object>>> pageConsumer) {
         this.startTime = Instant.now();
+        this.pageConsumer = pageConsumer;
 
-        try {
-            client = new StatementClient(HTTP_CLIENT, QUERY_RESULTS_JSON_CODEC, session, query);
-        } catch (RuntimeException e) {
-            throw new RakamException("Presto server is not active: "+e.getMessage(), HttpResponseStatus.BAD_GATEWAY);
-        }
-        QUERY_EXECUTOR.execute(new QueryTracker());
+        // the connection errors are not thrown here, the result is completed with the error
+        client = new AsyncStatementClient(HTTP_CLIENT, session, query, this::transformAndAdd, RESULT_EXECUTOR);
+        client.start().whenComplete(this::onComplete);
     }
 
     public static FieldType fromPrestoType(String rawType, Iterator<String> parameter) {
@@ -138,8 +146,12 @@ public class PrestoQueryExecution implements QueryExecution {
             return new QueryStats(QueryStats.State.FAILED);
         }
 
-        StatementStats stats = (!client.isValid() ? client.finalResults() : client.current())
-                .getStats();
+        QueryResults current = client.current();
+        if (current == null) {
+            return new QueryStats(QueryStats.State.QUEUED);
+        }
+
+        StatementStats stats = current.getStats();
 
         int totalSplits = stats.getTotalSplits();
         int percentage = totalSplits == 0 ? 0 : stats.getCompletedSplits() * 100 / totalSplits;
@@ -200,99 +212,107 @@ public class PrestoQueryExecution implements QueryExecution {
         }
     }
 
-    private class QueryTracker implements Runnable {
-        @Override
-        public void run() {
-            try {
-                while (client.isValid() && client.advance()) {
-                    transformAndAdd(client.current());
-                }
-
-                // update transaction ID if necessary
-                if (client.isClearTransactionId()) {
-                    transactionId = null;
-                }
-                if (client.getStartedtransactionId() != null) {
-                    transactionId = client.getStartedtransactionId();
-                }
-
-                if (client.isFailed()) {
-                    com.facebook.presto.jdbc.internal.client.QueryError error = client.finalResults().getError();
-                    ErrorLocation errorLocation = error.getErrorLocation();
-                    QueryError queryError = new QueryError(error.getFailureInfo().getMessage(),
-                            error.getSqlState(),
-                            error.getErrorCode(),
-                            errorLocation != null ? errorLocation.getLineNumber() : null,
-                            errorLocation != null ? errorLocation.getColumnNumber() : null);
-                    SentryUtil.logQueryError(getQuery(), queryError, PrestoQueryExecutor.class);
-                    result.complete(QueryResult.errorResult(queryError));
-                } else {
-                    transformAndAdd(client.finalResults());
-
-                    ImmutableMap<String, Object> stats = ImmutableMap.of(
-                            QueryResult.EXECUTION_TIME, startTime.until(Instant.now(), ChronoUnit.MILLIS));
+    private void onComplete(QueryResults finalResults, Throwable throwable) {
+        // update transaction ID if necessary
+        if (client.isClearTransactionId()) {
+            transactionId = null;
+        }
+        if (client.getStartedTransactionId() != null) {
+            transactionId = client.getStartedTransactionId();
+        }
 
-                    result.complete(new QueryResult(columns, data, stats));
-                }
-            } catch (Exception e) {
-                QueryError queryError = QueryError.create(e.getMessage());
-                SentryUtil.logQueryError(getQuery(), queryError, PrestoQueryExecutor.class);
-                result.complete(QueryResult.errorResult(queryError));
+        if (throwable != null) {
+            QueryError queryError = QueryError.create(throwable.getMessage());
+            SentryUtil.logQueryError(getQuery(), queryError, PrestoQueryExecutor.class);
+            result.complete(QueryResult.errorResult(queryError));
+        } else if (finalResults != null && finalResults.getError() != null) {
+            com.facebook.presto.jdbc.internal.client.QueryError error = finalResults.getError();
+            ErrorLocation errorLocation = error.getErrorLocation();
+            QueryError queryError = new QueryError(error.getFailureInfo().getMessage(),
+                    error.getSqlState(),
+                    error.getErrorCode(),
+                    errorLocation != null ? errorLocation.getLineNumber() : null,
+                    errorLocation != null ? errorLocation.getColumnNumber() : null);
+            SentryUtil.logQueryError(getQuery(), queryError, PrestoQueryExecutor.class);
+            result.complete(QueryResult.errorResult(queryError));
+        } else if (client.isClosed()) {
+            result.complete(QueryResult.errorResult(QueryError.create("Query is killed")));
+        } else {
+            ImmutableMap<String, Object> stats = ImmutableMap.of(
+                    QueryResult.EXECUTION_TIME, startTime.until(Instant.now(), ChronoUnit.MILLIS));
+
+            if (resultBuilder == null) {
+                result.complete(new QueryResult(columns, ImmutableList.of(), stats));
+            } else {
+                result.complete(resultBuilder.build(stats));
             }
         }
+    }
 
-        private void transformAndAdd(QueryResults result) {
-            if (result.getError() != null || result.getColumns() == null) {
-                return;
-            }
+    private void transformAndAdd(QueryResults result) {
+        if (result.getError() != null || result.getColumns() == null) {
+            return;
+        }
 
-            if (columns == null) {
-                columns = result.getColumns().stream()
-                        .map(c -> {
-                            List<ClientTypeSignatureParameter> arguments = c.getTypeSignature().getArguments();
-                            return new SchemaField(c.getName(), fromPrestoType(c.getTypeSignature().getRawType(),
-                                    arguments.stream()
-                                            .filter(argument -> argument.getKind() == TYPE)
-                                            .map(argument -> argument.getTypeSignature().getRawType()).iterator()));
-                        })
-                        .collect(Collectors.toList());
-            }
+        if (columns == null) {
+            columns = result.getColumns().stream()
+                    .map(c -> {
+                        List<ClientTypeSignatureParameter> arguments = c.getTypeSignature().getArguments();
+                        return new SchemaField(c.getName(), fromPrestoType(c.getTypeSignature().getRawType(),
+                                arguments.stream()
+                                        .filter(argument -> argument.getKind() == TYPE)
+                                        .map(argument -> argument.getTypeSignature().getRawType()).iterator()));
+                    })
+                    .collect(Collectors.toList());
+        }
 
-            if (result.getData() == null) {
-                return;
-            }
+        if (result.getData() == null) {
+            return;
+        }
 
-            for (List<Object> objects : result.getData()) {
-                Object[] row = new Object[columns.size()];
-
-                for (int i = 0; i < objects.size(); i++) {
-                    String type = result.getColumns().get(i).getTypeSignature().getRawType();
-                    Object value = objects.get(i);
-                    if (value != null) {
-                        if (type.equals(StandardTypes.TIMESTAMP)) {
-                            try {
-                                row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_FORMAT).toInstant(UTC);
-                            } catch (Exception e) {
-                                LOGGER.error(e, "Error while parsing Presto TIMESTAMP.");
-                            }
-                        } else if (type.equals(StandardTypes.TIMESTAMP_WITH_TIME_ZONE)) {
-                            try {
-                                row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT).toInstant(UTC);
-                            } catch (Exception e) {
-                                LOGGER.error(e, "Error while parsing Presto TIMESTAMP WITH TIMEZONE.");
-                            }
-                        } else if (type.equals(StandardTypes.DATE)) {
-                            row[i] = LocalDate.parse((CharSequence) value);
-                        } else {
-                            row[i] = objects.get(i);
+        List<List<Object>> page = pageConsumer != null ? new ArrayList<>() : null;
+        if (pageConsumer == null && resultBuilder == null) {
+            resultBuilder = new ColumnarQueryResult.Builder(columns);
+        }
+
+        for (List<Object> objects : result.getData()) {
+            Object[] row = new Object[columns.size()];
+
+            for (int i = 0; i < objects.size(); i++) {
+                String type = result.getColumns().get(i).getTypeSignature().getRawType();
+                Object value = objects.get(i);
+                if (value != null) {
+                    if (type.equals(StandardTypes.TIMESTAMP)) {
+                        try {
+                            row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_FORMAT).toInstant(UTC);
+                        } catch (Exception e) {
+                            LOGGER.error(e, "Error while parsing Presto TIMESTAMP.");
                         }
+                    } else if (type.equals(StandardTypes.TIMESTAMP_WITH_TIME_ZONE)) {
+                        try {
+                            row[i] = LocalDateTime.parse((CharSequence) value, PRESTO_TIMESTAMP_WITH_TIMEZONE_FORMAT).toInstant(UTC);
+                        } catch (Exception e) {
+                            LOGGER.error(e, "Error while parsing Presto TIMESTAMP WITH TIMEZONE.");
+                        }
+                    } else if (type.equals(StandardTypes.DATE)) {
+                        row[i] = LocalDate.parse((CharSequence) value);
                     } else {
                         row[i] = objects.get(i);
                     }
+                } else {
+                    row[i] = objects.get(i);
                 }
+            }
 
-                data.add(Arrays.asList(row));
+            if (page != null) {
+                page.add(Arrays.asList(row));
+            } else {
+                resultBuilder.appendRow(Arrays.asList(row));
             }
         }
+
+        if (page != null) {
+            pageConsumer.accept(columns, page);
+        }
     }
 }
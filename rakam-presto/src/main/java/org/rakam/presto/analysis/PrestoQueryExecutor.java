@@ -16,6 +16,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 import static com.facebook.presto.jdbc.internal.client.ClientSession.withTransactionId;
@@ -57,6 +58,11 @@ public class PrestoQueryExecutor implements QueryExecutor {
         return new PrestoQueryExecution(withTransactionId(defaultSession, transactionId), query);
     }
 
+    @Override
+    public PrestoQueryExecution executeStreamingQuery(String query, BiConsumer<List<SchemaField>, List<List<Object>>> pageConsumer) {
+        return new PrestoQueryExecution(defaultSession, query, pageConsumer);
+    }
+
     public PrestoQueryExecution executeRawQuery(String query, Map<String, String> sessionProperties, String catalog) {
         return new PrestoQueryExecution(new ClientSession(
                 prestoConfig.getAddress(),
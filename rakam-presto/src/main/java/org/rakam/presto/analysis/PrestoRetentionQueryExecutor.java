@@ -44,6 +44,7 @@ import static java.lang.String.format;
 import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
 import static org.rakam.analysis.RetentionQueryExecutor.DateUnit.*;
 import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.report.QueryLane.DASHBOARD;
 import static org.rakam.util.ValidationUtil.checkArgument;
 
 public class PrestoRetentionQueryExecutor extends AbstractRetentionQueryExecutor {
@@ -131,7 +132,7 @@ public class PrestoRetentionQueryExecutor extends AbstractRetentionQueryExecutor
                 range.map(v -> String.format("AND data.date + interval '%d' day >= returning_action.date", v)).orElse(""),
                 dimension.map(v -> "GROUP BY 1, 2").orElse(""));
 
-        return new DelegateQueryExecution(executor.executeQuery(project, query),
+        return new DelegateQueryExecution(executor.executeQuery(project, query, DASHBOARD),
                 result -> {
                     result.setProperty("calculatedUserSets", missingPreComputedTables);
                     if (!result.isFailed()) {
@@ -0,0 +1,135 @@
+package org.rakam;
+
+import com.facebook.presto.jdbc.internal.airlift.http.client.jetty.JettyHttpClient;
+import com.facebook.presto.jdbc.internal.airlift.units.Duration;
+import com.facebook.presto.jdbc.internal.client.ClientSession;
+import com.facebook.presto.jdbc.internal.client.QueryResults;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.rakam.presto.analysis.AsyncStatementClient;
+import org.rakam.presto.analysis.PrestoQueryExecution;
+import org.rakam.report.QueryResult;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestAsyncStatementClient {
+    private static final String COLUMNS = "[{\"name\":\"a\",\"type\":\"bigint\",\"typeSignature\":" +
+            "{\"rawType\":\"bigint\",\"typeArguments\":[],\"literalArguments\":[],\"arguments\":[]}}]";
+
+    private HttpServer server;
+    private URI address;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/statement", this::handle);
+        server.start();
+        address = URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @AfterClass
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+
+        String body;
+        if (path.equals("/v1/statement")) {
+            body = results("1", "[[1]]", true);
+        } else if (path.equals("/v1/statement/test/1")) {
+            body = results("2", "[[2],[3]]", true);
+        } else {
+            body = results(null, "[[4]]", false);
+        }
+
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private String results(String next, String data, boolean running) {
+        return "{\"id\":\"test\",\"infoUri\":\"" + address + "/v1/query/test\"," +
+                (next != null ? "\"nextUri\":\"" + address + "/v1/statement/test/" + next + "\"," : "") +
+                "\"columns\":" + COLUMNS + ",\"data\":" + data + "," +
+                "\"stats\":{\"state\":\"" + (running ? "RUNNING" : "FINISHED") + "\",\"queued\":false,\"scheduled\":true," +
+                "\"nodes\":1,\"totalSplits\":1,\"queuedSplits\":0,\"runningSplits\":0,\"completedSplits\":1," +
+                "\"userTimeMillis\":0,\"cpuTimeMillis\":0,\"wallTimeMillis\":0,\"processedRows\":0,\"processedBytes\":0}}";
+    }
+
+    private ClientSession session() {
+        return new ClientSession(address, "rakam", "test", "default", "default", "UTC",
+                Locale.ENGLISH, ImmutableMap.of(), null, false, new Duration(1, MINUTES));
+    }
+
+    @Test
+    public void testFetchesAllPages() throws Exception {
+        requests.set(0);
+        QueryResult result = new PrestoQueryExecution(session(), "select 1").getResult().join();
+
+        assertFalse(result.isFailed());
+        assertEquals(requests.get(), 3);
+        assertEquals(result.getMetadata().size(), 1);
+        assertEquals(result.getResult(), ImmutableList.of(
+                ImmutableList.of(1L), ImmutableList.of(2L), ImmutableList.of(3L), ImmutableList.of(4L)));
+    }
+
+    @Test
+    public void testPushesPagesIncrementally() throws Exception {
+        List<Integer> pageSizes = new ArrayList<>();
+        try (JettyHttpClient httpClient = new JettyHttpClient()) {
+            AsyncStatementClient client = new AsyncStatementClient(httpClient, session(), "select 1",
+                    page -> pageSizes.add(Iterables.size(page.getData())), Runnable::run);
+            QueryResults finalResults = client.start().join();
+
+            assertNull(finalResults.getError());
+            assertEquals(pageSizes, ImmutableList.of(1, 2, 1));
+        }
+    }
+
+    @Test
+    public void testStreamsPagesToConsumer() throws Exception {
+        List<List<List<Object>>> pages = new ArrayList<>();
+        List<String> threads = new ArrayList<>();
+        QueryResult result = new PrestoQueryExecution(session(), "select 1", (columns, page) -> {
+            pages.add(page);
+            threads.add(Thread.currentThread().getName());
+        }).getResult().join();
+
+        assertFalse(result.isFailed());
+        assertEquals(result.getMetadata().size(), 1);
+        assertTrue(result.getResult().isEmpty());
+        assertEquals(pages, ImmutableList.of(
+                ImmutableList.of(ImmutableList.of(1L)),
+                ImmutableList.of(ImmutableList.of(2L), ImmutableList.of(3L)),
+                ImmutableList.of(ImmutableList.of(4L))));
+        // the rows are not parsed in the threads of the HTTP client
+        assertTrue(threads.stream().allMatch(thread -> thread.startsWith("presto-result")), threads.toString());
+    }
+}
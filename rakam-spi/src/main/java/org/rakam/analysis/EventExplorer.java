@@ -51,6 +51,14 @@ public interface EventExplorer {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * The aggregation that stores the distribution of a measure in the pre-computed tables as a map of bucket
+     * values to their weights so that the percentiles of any range of the table can be computed by merging them.
+     */
+    default String getIntermediateForPercentileFunction() {
+        throw new UnsupportedOperationException("Percentiles can't be pre-aggregated in this database, use the raw event data.");
+    }
+
     enum TimestampTransformation {
         HOUR_OF_DAY("Date category", "Hour of day"),
         DAY_OF_MONTH("Date category", "Day of month"),
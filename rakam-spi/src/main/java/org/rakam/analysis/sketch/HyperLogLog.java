@@ -0,0 +1,205 @@
+package org.rakam.analysis.sketch;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Mergeable distinct count estimator. Small sets are kept as a list of hashes which is exact until it reaches the
+ * memory of the dense registers, then the sketch is converted to the dense HyperLogLog representation.
+ * <p>
+ * The serialized form starts with the format and precision bytes; the dense form is followed by one byte per register.
+ * The values are hashed by their text form with the first 64 bits of md5 and the registers are laid out like the
+ * sketches of the Postgresql backend, so its dense sketches can be deserialized and merged here and the sketches
+ * written with {@link #serializeDense()} can be merged in Postgresql. The text form of the integers and strings is the
+ * same in both; the doubles and timestamps may be formatted differently and end up in different registers.
+ */
+public class HyperLogLog {
+    private static final HashFunction HASH_FUNCTION = Hashing.md5();
+    private static final byte SPARSE = 0;
+    private static final byte DENSE = 1;
+
+    private final int indexBits;
+    private byte[] registers;
+    private long[] hashes;
+    private int hashCount;
+
+    public HyperLogLog() {
+        this(11);
+    }
+
+    public HyperLogLog(int indexBits) {
+        checkArgument(indexBits >= 4 && indexBits <= 16, "indexBits must be between 4 and 16");
+        this.indexBits = indexBits;
+        this.hashes = new long[4];
+    }
+
+    public static long hash(Object value) {
+        // same as ('x' || substr(md5(value::text), 1, 16))::bit(64)::bigint in Postgresql
+        return Longs.fromByteArray(HASH_FUNCTION.hashString(value.toString(), UTF_8).asBytes());
+    }
+
+    public void add(Object value) {
+        if (value != null) {
+            addHash(hash(value));
+        }
+    }
+
+    public void addHash(long hash) {
+        if (registers != null) {
+            addToRegisters(hash);
+            return;
+        }
+
+        for (int i = 0; i < hashCount; i++) {
+            if (hashes[i] == hash) {
+                return;
+            }
+        }
+
+        if (hashCount == hashes.length) {
+            // the dense registers use one byte per register
+            if (hashes.length * 8 >= (1 << indexBits)) {
+                toDense();
+                addToRegisters(hash);
+                return;
+            }
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        }
+        hashes[hashCount++] = hash;
+    }
+
+    public void merge(HyperLogLog other) {
+        checkArgument(indexBits == other.indexBits, "sketches with different precisions can't be merged");
+        if (other.registers == null) {
+            for (int i = 0; i < other.hashCount; i++) {
+                addHash(other.hashes[i]);
+            }
+            return;
+        }
+
+        if (registers == null) {
+            toDense();
+        }
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+        }
+    }
+
+    public long cardinality() {
+        if (registers == null) {
+            return hashCount;
+        }
+
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is more accurate for the small cardinalities
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public HyperLogLog copy() {
+        HyperLogLog copy = new HyperLogLog(indexBits);
+        copy.merge(this);
+        return copy;
+    }
+
+    public byte[] serialize() {
+        ByteBuffer buffer;
+        if (registers == null) {
+            buffer = ByteBuffer.allocate(6 + hashCount * 8);
+            buffer.put(SPARSE).put((byte) indexBits).putInt(hashCount);
+            for (int i = 0; i < hashCount; i++) {
+                buffer.putLong(hashes[i]);
+            }
+        } else {
+            buffer = ByteBuffer.allocate(2 + registers.length);
+            buffer.put(DENSE).put((byte) indexBits).put(registers);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Serializes the sketch in the dense form even if it's small, the Postgresql backend only reads the dense form.
+     */
+    public byte[] serializeDense() {
+        if (registers != null) {
+            return serialize();
+        }
+        HyperLogLog copy = copy();
+        copy.toDense();
+        return copy.serialize();
+    }
+
+    public static HyperLogLog deserialize(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte format = buffer.get();
+        HyperLogLog sketch = new HyperLogLog(buffer.get());
+        switch (format) {
+            case SPARSE:
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    sketch.addHash(buffer.getLong());
+                }
+                break;
+            case DENSE:
+                checkArgument(buffer.remaining() == 1 << sketch.indexBits, "invalid register count");
+                sketch.registers = new byte[1 << sketch.indexBits];
+                sketch.hashes = null;
+                buffer.get(sketch.registers);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown HyperLogLog format: " + format);
+        }
+        return sketch;
+    }
+
+    private void toDense() {
+        registers = new byte[1 << indexBits];
+        for (int i = 0; i < hashCount; i++) {
+            addToRegisters(hashes[i]);
+        }
+        hashes = null;
+        hashCount = 0;
+    }
+
+    private void addToRegisters(long hash) {
+        int index = (int) (hash >>> (64 - indexBits));
+        // the marker bit limits the rank for the hashes that have only zeros after the index bits
+        long rest = (hash << indexBits) | (1L << (indexBits - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.rakam.analysis.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Mergeable top-k estimator that keeps a fixed number of counters. When all the counters are in use, the item with
+ * the smallest count is replaced and its count is carried over to the new item as the overestimation error.
+ */
+public class SpaceSaving {
+    private static final byte VERSION = 1;
+    private static final Comparator<Counter> ORDER = Comparator.<Counter>comparingLong(counter -> counter.count)
+            .thenComparing(counter -> counter.item);
+
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private final TreeSet<Counter> sorted;
+
+    public SpaceSaving(int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = capacity;
+        this.counters = new HashMap<>();
+        this.sorted = new TreeSet<>(ORDER);
+    }
+
+    public void offer(Object item) {
+        if (item != null) {
+            offer(item.toString(), 1, 0);
+        }
+    }
+
+    public void offer(String item, long count) {
+        offer(item, count, 0);
+    }
+
+    private void offer(String item, long count, long error) {
+        Counter counter = counters.get(item);
+        if (counter != null) {
+            sorted.remove(counter);
+            counter.count += count;
+            counter.error += error;
+            sorted.add(counter);
+            return;
+        }
+
+        if (counters.size() < capacity) {
+            counter = new Counter(item, count, error);
+        } else {
+            Counter smallest = sorted.pollFirst();
+            counters.remove(smallest.item);
+            counter = new Counter(item, smallest.count + count, smallest.count + error);
+        }
+        counters.put(item, counter);
+        sorted.add(counter);
+    }
+
+    public void merge(SpaceSaving other) {
+        // the items missing in a full summary may have occurred at most as many times as its smallest counter
+        long missingInThis = minimumCount();
+        long missingInOther = other.minimumCount();
+
+        List<Counter> merged = new ArrayList<>(counters.size() + other.counters.size());
+        for (Counter counter : counters.values()) {
+            Counter otherCounter = other.counters.get(counter.item);
+            merged.add(otherCounter == null ?
+                    new Counter(counter.item, counter.count + missingInOther, counter.error + missingInOther) :
+                    new Counter(counter.item, counter.count + otherCounter.count, counter.error + otherCounter.error));
+        }
+        for (Counter counter : other.counters.values()) {
+            if (!counters.containsKey(counter.item)) {
+                merged.add(new Counter(counter.item, counter.count + missingInThis, counter.error + missingInThis));
+            }
+        }
+
+        merged.sort(ORDER.reversed());
+        counters.clear();
+        sorted.clear();
+        for (Counter counter : merged.subList(0, Math.min(capacity, merged.size()))) {
+            counters.put(counter.item, counter);
+            sorted.add(counter);
+        }
+    }
+
+    public List<Entry> topK(int k) {
+        List<Entry> entries = new ArrayList<>(Math.min(k, counters.size()));
+        for (Counter counter : sorted.descendingSet()) {
+            if (entries.size() == k) {
+                break;
+            }
+            entries.add(new Entry(counter.item, counter.count, counter.error));
+        }
+        return entries;
+    }
+
+    public SpaceSaving copy() {
+        SpaceSaving copy = new SpaceSaving(capacity);
+        for (Counter counter : counters.values()) {
+            copy.offer(counter.item, counter.count, counter.error);
+        }
+        return copy;
+    }
+
+    public byte[] serialize() {
+        List<byte[]> items = new ArrayList<>(counters.size());
+        int size = 1 + 4 + 4;
+        for (Counter counter : counters.values()) {
+            byte[] item = counter.item.getBytes(UTF_8);
+            items.add(item);
+            size += 4 + item.length + 16;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION).putInt(capacity).putInt(counters.size());
+        int i = 0;
+        for (Counter counter : counters.values()) {
+            byte[] item = items.get(i++);
+            buffer.putInt(item.length).put(item).putLong(counter.count).putLong(counter.error);
+        }
+        return buffer.array();
+    }
+
+    public static SpaceSaving deserialize(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte version = buffer.get();
+        checkArgument(version == VERSION, "Unknown SpaceSaving version: %s", version);
+
+        SpaceSaving sketch = new SpaceSaving(buffer.getInt());
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] item = new byte[buffer.getInt()];
+            buffer.get(item);
+            sketch.offer(new String(item, UTF_8), buffer.getLong(), buffer.getLong());
+        }
+        return sketch;
+    }
+
+    private long minimumCount() {
+        return counters.size() < capacity ? 0 : sorted.first().count;
+    }
+
+    private static class Counter {
+        private final String item;
+        private long count;
+        private long error;
+
+        private Counter(String item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    public static class Entry {
+        public final String item;
+        public final long count;
+        public final long error;
+
+        public Entry(String item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
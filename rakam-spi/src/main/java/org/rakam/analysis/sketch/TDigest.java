@@ -0,0 +1,199 @@
+package org.rakam.analysis.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Mergeable quantile estimator. Values are buffered and periodically merged into centroids sorted by their means,
+ * a centroid may only grow while its weight is below the bound of the scale function so that the centroids near
+ * the tails stay small and the extreme quantiles remain accurate.
+ */
+public class TDigest {
+    private static final byte VERSION = 1;
+
+    private final double compression;
+
+    private double[] means;
+    private double[] weights;
+    private int centroidCount;
+
+    private final double[] bufferValues;
+    private final double[] bufferWeights;
+    private int bufferCount;
+
+    private double totalWeight;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public TDigest() {
+        this(100);
+    }
+
+    public TDigest(double compression) {
+        checkArgument(compression >= 10, "compression must be at least 10");
+        this.compression = compression;
+        int capacity = (int) Math.ceil(compression) * 2;
+        this.means = new double[capacity];
+        this.weights = new double[capacity];
+        this.bufferValues = new double[capacity * 4];
+        this.bufferWeights = new double[capacity * 4];
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    public void add(double value, double weight) {
+        checkArgument(!Double.isNaN(value), "value is NaN");
+        checkArgument(weight > 0, "weight must be positive");
+        if (bufferCount == bufferValues.length) {
+            compress();
+        }
+        bufferValues[bufferCount] = value;
+        bufferWeights[bufferCount] = weight;
+        bufferCount++;
+        totalWeight += weight;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(TDigest other) {
+        for (int i = 0; i < other.centroidCount; i++) {
+            add(other.means[i], other.weights[i]);
+        }
+        for (int i = 0; i < other.bufferCount; i++) {
+            add(other.bufferValues[i], other.bufferWeights[i]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public double size() {
+        return totalWeight;
+    }
+
+    public double quantile(double q) {
+        checkArgument(q >= 0 && q <= 1, "quantile must be between 0 and 1");
+        compress();
+        if (centroidCount == 0) {
+            return Double.NaN;
+        }
+        if (centroidCount == 1) {
+            return means[0];
+        }
+
+        double target = q * totalWeight;
+        double firstCenter = weights[0] / 2;
+        if (target < firstCenter) {
+            return min + (means[0] - min) * (target / firstCenter);
+        }
+
+        double cumulative = 0;
+        for (int i = 0; i < centroidCount - 1; i++) {
+            double center = cumulative + weights[i] / 2;
+            double nextCenter = cumulative + weights[i] + weights[i + 1] / 2;
+            if (target <= nextCenter) {
+                return means[i] + (means[i + 1] - means[i]) * (target - center) / (nextCenter - center);
+            }
+            cumulative += weights[i];
+        }
+
+        double lastCenter = totalWeight - weights[centroidCount - 1] / 2;
+        double lastHalf = totalWeight - lastCenter;
+        return means[centroidCount - 1] + (max - means[centroidCount - 1]) * Math.min(1, (target - lastCenter) / lastHalf);
+    }
+
+    public TDigest copy() {
+        TDigest copy = new TDigest(compression);
+        copy.merge(this);
+        return copy;
+    }
+
+    public byte[] serialize() {
+        compress();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 * 3 + 4 + centroidCount * 16);
+        buffer.put(VERSION).putDouble(compression).putDouble(min).putDouble(max).putInt(centroidCount);
+        for (int i = 0; i < centroidCount; i++) {
+            buffer.putDouble(means[i]).putDouble(weights[i]);
+        }
+        return buffer.array();
+    }
+
+    public static TDigest deserialize(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte version = buffer.get();
+        checkArgument(version == VERSION, "Unknown TDigest version: %s", version);
+
+        TDigest digest = new TDigest(buffer.getDouble());
+        double min = buffer.getDouble();
+        double max = buffer.getDouble();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            digest.add(buffer.getDouble(), buffer.getDouble());
+        }
+        if (count > 0) {
+            digest.min = min;
+            digest.max = max;
+        }
+        return digest;
+    }
+
+    private void compress() {
+        if (bufferCount == 0) {
+            return;
+        }
+
+        Integer[] order = new Integer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> bufferValues[i]));
+
+        int count = centroidCount + bufferCount;
+        double[] newMeans = new double[Math.max(means.length, count)];
+        double[] newWeights = new double[newMeans.length];
+        int size = 0;
+        double weightSoFar = 0;
+
+        int centroid = 0, buffered = 0;
+        while (centroid < centroidCount || buffered < bufferCount) {
+            double mean, weight;
+            if (buffered == bufferCount || (centroid < centroidCount && means[centroid] <= bufferValues[order[buffered]])) {
+                mean = means[centroid];
+                weight = weights[centroid++];
+            } else {
+                int index = order[buffered++];
+                mean = bufferValues[index];
+                weight = bufferWeights[index];
+            }
+
+            if (size > 0) {
+                double proposed = newWeights[size - 1] + weight;
+                double q0 = weightSoFar / totalWeight;
+                double q2 = (weightSoFar + proposed) / totalWeight;
+                if (proposed <= totalWeight * Math.min(maxSize(q0), maxSize(q2))) {
+                    newWeights[size - 1] = proposed;
+                    newMeans[size - 1] += (mean - newMeans[size - 1]) * weight / proposed;
+                    continue;
+                }
+                weightSoFar += newWeights[size - 1];
+            }
+
+            newMeans[size] = mean;
+            newWeights[size] = weight;
+            size++;
+        }
+
+        means = newMeans;
+        weights = newWeights;
+        centroidCount = size;
+        bufferCount = 0;
+    }
+
+    private double maxSize(double q) {
+        return 4 * q * (1 - q) / compression;
+    }
+}
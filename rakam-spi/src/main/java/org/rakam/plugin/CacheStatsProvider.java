@@ -0,0 +1,15 @@
+package org.rakam.plugin;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * A cache of a module whose statistics are reported so that its size can be tuned for the traffic. The statistics are
+ * logged periodically and listed in /admin/caches, the implementations are bound with a Multibinder.
+ */
+public interface CacheStatsProvider {
+    String getCacheName();
+
+    CacheStats getCacheStats();
+
+    long getCacheSize();
+}
@@ -6,11 +6,30 @@ import org.rakam.collection.Event;
 import org.rakam.collection.FieldDependencyBuilder;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.List;
 
 
 public interface EventMapper {
     List<Cookie> map(Event event, HttpHeaders extraProperties, InetAddress sourceAddress);
 
+    /**
+     * Maps the events that are sent in the same request. The events share the request headers and the source address
+     * so the mappers that enrich the events using them can compute the enrichment once and apply it to all the events.
+     */
+    default List<Cookie> mapBatch(List<Event> events, HttpHeaders extraProperties, InetAddress sourceAddress) {
+        List<Cookie> cookies = null;
+        for (Event event : events) {
+            List<Cookie> map = map(event, extraProperties, sourceAddress);
+            if (map != null) {
+                if (cookies == null) {
+                    cookies = new ArrayList<>();
+                }
+                cookies.addAll(map);
+            }
+        }
+        return cookies;
+    }
+
     default void addFieldDependency(FieldDependencyBuilder builder) {}
 }
\ No newline at end of file
@@ -0,0 +1,66 @@
+package org.rakam.plugin;
+
+import org.rakam.collection.Event;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Decides the shard of the events in the event stores that write to a partitioned stream. The events that have the
+ * same key are written to the same shard in order. The events that don't have a key are distributed to the shards
+ * in round-robin and their order is not preserved.
+ */
+public interface EventPartitioner {
+    /**
+     * Returns the partition key of the event or null if the event can be written to any shard.
+     */
+    String getPartitionKey(Event event);
+
+    enum Strategy {
+        /**
+         * All the events of a collection are written to the same shard.
+         */
+        COLLECTION,
+        /**
+         * The events of a user are written to the same shard, the events that don't have a user are distributed.
+         */
+        USER,
+        /**
+         * The events are partitioned by the value of a field, the events that don't have the field are distributed.
+         */
+        FIELD,
+        RANDOM,
+        ROUND_ROBIN;
+
+        public static Strategy fromString(String value) {
+            return valueOf(value.toUpperCase(Locale.ENGLISH).replace('-', '_'));
+        }
+
+        public EventPartitioner create(String field) {
+            switch (this) {
+                case COLLECTION:
+                    return event -> event.project() + "|" + event.collection();
+                case USER:
+                    return fieldPartitioner("_user");
+                case FIELD:
+                    checkArgument(field != null && !field.isEmpty(), "The partitioning field is required");
+                    return fieldPartitioner(field);
+                case RANDOM:
+                    return event -> Long.toHexString(ThreadLocalRandom.current().nextLong());
+                case ROUND_ROBIN:
+                    return event -> null;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        private static EventPartitioner fieldPartitioner(String field) {
+            return event -> {
+                Object value = event.properties().get(field);
+                return value == null ? null : event.project() + "|" + value;
+            };
+        }
+    }
+}
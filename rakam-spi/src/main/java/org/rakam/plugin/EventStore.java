@@ -1,9 +1,12 @@
 package org.rakam.plugin;
 
 import org.rakam.collection.Event;
+import org.rakam.report.ChainQueryExecution;
 import org.rakam.report.QueryExecution;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Collectors;
 
 
 public interface EventStore {
@@ -20,4 +23,14 @@ public interface EventStore {
     default QueryExecution commit(String project, String collection) {
         throw new UnsupportedOperationException();
     }
+
+    /**
+     * Commits the bulk data of the collections together, the event stores may run the commits of the different
+     * collections in parallel.
+     */
+    default QueryExecution commit(String project, Collection<String> collections) {
+        return new ChainQueryExecution(collections.stream()
+                .map(collection -> commit(project, collection))
+                .collect(Collectors.toList()), null);
+    }
 }
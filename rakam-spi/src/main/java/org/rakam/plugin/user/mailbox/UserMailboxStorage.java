@@ -2,11 +2,18 @@ package org.rakam.plugin.user.mailbox;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 
 
 public interface UserMailboxStorage {
     Message send(String project, Object fromUser, Object toUser, Integer parentId, String message, Instant date);
+
+    default void sendBatch(String project, Object fromUser, List<Map.Entry<Object, String>> messages, Instant date) {
+        for (Map.Entry<Object, String> message : messages) {
+            send(project, fromUser, message.getKey(), null, message.getValue(), date);
+        }
+    }
     void createProjectIfNotExists(String projectId, boolean userKeyIsNumeric);
     MessageListener listen(String projectId, String user, Consumer<Data> messageConsumer);
     MessageListener listenAllUsers(String projectId, Consumer<Data> messageConsumer);
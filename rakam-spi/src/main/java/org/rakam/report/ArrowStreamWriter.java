@@ -0,0 +1,369 @@
+package org.rakam.report;
+
+import com.google.common.io.LittleEndianDataOutputStream;
+import com.google.flatbuffers.FlatBufferBuilder;
+import org.apache.arrow.flatbuf.Bool;
+import org.apache.arrow.flatbuf.Buffer;
+import org.apache.arrow.flatbuf.Date;
+import org.apache.arrow.flatbuf.DateUnit;
+import org.apache.arrow.flatbuf.Endianness;
+import org.apache.arrow.flatbuf.Field;
+import org.apache.arrow.flatbuf.FieldNode;
+import org.apache.arrow.flatbuf.FloatingPoint;
+import org.apache.arrow.flatbuf.Int;
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.MetadataVersion;
+import org.apache.arrow.flatbuf.Precision;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.flatbuf.Schema;
+import org.apache.arrow.flatbuf.TimeUnit;
+import org.apache.arrow.flatbuf.Timestamp;
+import org.apache.arrow.flatbuf.Type;
+import org.apache.arrow.flatbuf.Utf8;
+import org.rakam.collection.SchemaField;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes {@link ColumnarQueryResult} in Arrow IPC streaming format. The record batches are generated directly from the
+ * column vectors so the rows are never materialized. Only the flatbuffer definitions of the format are used since the
+ * Arrow memory module requires a newer Netty version than the one we use.
+ */
+public class ArrowStreamWriter {
+    public static final String CONTENT_TYPE = "application/vnd.apache.arrow.stream";
+
+    private static final int CONTINUATION_MARKER = 0xFFFFFFFF;
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+
+    private ArrowStreamWriter() {
+    }
+
+    public static void write(ColumnarQueryResult result, OutputStream output) throws IOException {
+        Stream stream = new Stream(result.getMetadata());
+        stream.writeBatch(result, output);
+        stream.finish(output);
+    }
+
+    /**
+     * Writes a result that is produced in parts, such as the pages of a query, without keeping the previous parts.
+     * The schema is generated from the column vectors of the first part, so the following parts must use the same
+     * vector types except the textual columns.
+     */
+    public static class Stream {
+        private final List<SchemaField> metadata;
+        private ColumnVector[] schema;
+
+        public Stream(List<SchemaField> metadata) {
+            this.metadata = metadata;
+        }
+
+        public void writeBatch(ColumnarQueryResult result, OutputStream output) throws IOException {
+            LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(output);
+            ColumnVector[] columns = new ColumnVector[metadata.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = result.getColumn(i);
+            }
+
+            if (schema == null) {
+                schema = columns;
+                writeSchema(out, metadata, columns);
+            } else {
+                for (int i = 0; i < columns.length; i++) {
+                    if (!isSameType(schema[i], columns[i])) {
+                        throw new IOException(String.format("The type of the column '%s' is changed in the stream", metadata.get(i).getName()));
+                    }
+                }
+            }
+
+            for (int offset = 0; offset < result.getRowCount(); offset += MAX_BATCH_SIZE) {
+                writeRecordBatch(out, columns, offset, Math.min(MAX_BATCH_SIZE, result.getRowCount() - offset));
+            }
+            out.flush();
+        }
+
+        public void finish(OutputStream output) throws IOException {
+            LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(output);
+            if (schema == null) {
+                schema = metadata.stream().map(field -> ColumnVector.create(field.getType())).toArray(ColumnVector[]::new);
+                writeSchema(out, metadata, schema);
+            }
+
+            // end of stream
+            out.writeInt(CONTINUATION_MARKER);
+            out.writeInt(0);
+            out.flush();
+        }
+    }
+
+    private static boolean isSameType(ColumnVector first, ColumnVector second) {
+        if (first instanceof ColumnVector.LongVector && second instanceof ColumnVector.LongVector) {
+            return ((ColumnVector.LongVector) first).isInteger() == ((ColumnVector.LongVector) second).isInteger();
+        }
+        return first.getClass() == second.getClass() || (isText(first) && isText(second));
+    }
+
+    private static boolean isText(ColumnVector column) {
+        return !(column instanceof ColumnVector.LongVector || column instanceof ColumnVector.DoubleVector
+                || column instanceof ColumnVector.BooleanVector || column instanceof ColumnVector.TimestampVector
+                || column instanceof ColumnVector.DateVector);
+    }
+
+    private static void writeSchema(LittleEndianDataOutputStream out, List<SchemaField> metadata, ColumnVector[] columns) throws IOException {
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        int[] fields = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            fields[i] = createField(builder, metadata.get(i).getName(), columns[i]);
+        }
+
+        int fieldsVector = Schema.createFieldsVector(builder, fields);
+        Schema.startSchema(builder);
+        Schema.addEndianness(builder, Endianness.Little);
+        Schema.addFields(builder, fieldsVector);
+        int schema = Schema.endSchema(builder);
+
+        writeMessage(out, builder, MessageHeader.Schema, schema, new byte[0]);
+    }
+
+    private static int createField(FlatBufferBuilder builder, String name, ColumnVector column) {
+        int nameOffset = builder.createString(name);
+
+        byte typeType;
+        int type;
+        if (column instanceof ColumnVector.LongVector) {
+            typeType = Type.Int;
+            type = Int.createInt(builder, ((ColumnVector.LongVector) column).isInteger() ? 32 : 64, true);
+        } else if (column instanceof ColumnVector.DoubleVector) {
+            typeType = Type.FloatingPoint;
+            type = FloatingPoint.createFloatingPoint(builder, Precision.DOUBLE);
+        } else if (column instanceof ColumnVector.BooleanVector) {
+            typeType = Type.Bool;
+            Bool.startBool(builder);
+            type = Bool.endBool(builder);
+        } else if (column instanceof ColumnVector.TimestampVector) {
+            typeType = Type.Timestamp;
+            type = Timestamp.createTimestamp(builder, TimeUnit.MICROSECOND, builder.createString("UTC"));
+        } else if (column instanceof ColumnVector.DateVector) {
+            typeType = Type.Date;
+            type = Date.createDate(builder, DateUnit.DAY);
+        } else {
+            // strings and the values that don't have a specialized vector
+            typeType = Type.Utf8;
+            Utf8.startUtf8(builder);
+            type = Utf8.endUtf8(builder);
+        }
+
+        int children = Field.createChildrenVector(builder, new int[0]);
+        Field.startField(builder);
+        Field.addName(builder, nameOffset);
+        Field.addNullable(builder, true);
+        Field.addTypeType(builder, typeType);
+        Field.addType(builder, type);
+        Field.addChildren(builder, children);
+        return Field.endField(builder);
+    }
+
+    private static void writeRecordBatch(LittleEndianDataOutputStream out, ColumnVector[] columns, int offset, int length) throws IOException {
+        BodyBuilder body = new BodyBuilder();
+        List<long[]> nodes = new ArrayList<>(columns.length);
+
+        for (ColumnVector column : columns) {
+            int nullCount = 0;
+            for (int i = 0; i < length; i++) {
+                if (column.isNull(offset + i)) {
+                    nullCount++;
+                }
+            }
+            nodes.add(new long[] {length, nullCount});
+
+            if (nullCount > 0) {
+                body.writeBitmap(length, i -> !column.isNull(offset + i));
+            } else {
+                body.emptyBuffer();
+            }
+
+            writeValues(body, column, offset, length);
+        }
+
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+
+        // the structs in flatbuffer vectors are prepended so they're written in reverse order
+        RecordBatch.startNodesVector(builder, nodes.size());
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            FieldNode.createFieldNode(builder, nodes.get(i)[0], nodes.get(i)[1]);
+        }
+        int nodesVector = builder.endVector();
+
+        RecordBatch.startBuffersVector(builder, body.buffers.size());
+        for (int i = body.buffers.size() - 1; i >= 0; i--) {
+            Buffer.createBuffer(builder, body.buffers.get(i)[0], body.buffers.get(i)[1]);
+        }
+        int buffersVector = builder.endVector();
+
+        RecordBatch.startRecordBatch(builder);
+        RecordBatch.addLength(builder, length);
+        RecordBatch.addNodes(builder, nodesVector);
+        RecordBatch.addBuffers(builder, buffersVector);
+        int recordBatch = RecordBatch.endRecordBatch(builder);
+
+        writeMessage(out, builder, MessageHeader.RecordBatch, recordBatch, body.toByteArray());
+    }
+
+    private static void writeValues(BodyBuilder body, ColumnVector column, int offset, int length) throws IOException {
+        if (column instanceof ColumnVector.LongVector) {
+            ColumnVector.LongVector vector = (ColumnVector.LongVector) column;
+            body.startBuffer();
+            for (int i = offset; i < offset + length; i++) {
+                if (vector.isInteger()) {
+                    body.out.writeInt(vector.isNull(i) ? 0 : (int) vector.getLong(i));
+                } else {
+                    body.out.writeLong(vector.isNull(i) ? 0 : vector.getLong(i));
+                }
+            }
+            body.endBuffer();
+        } else if (column instanceof ColumnVector.DoubleVector) {
+            ColumnVector.DoubleVector vector = (ColumnVector.DoubleVector) column;
+            body.startBuffer();
+            for (int i = offset; i < offset + length; i++) {
+                body.out.writeDouble(vector.isNull(i) ? 0 : vector.getDouble(i));
+            }
+            body.endBuffer();
+        } else if (column instanceof ColumnVector.BooleanVector) {
+            ColumnVector.BooleanVector vector = (ColumnVector.BooleanVector) column;
+            body.writeBitmap(length, i -> !vector.isNull(offset + i) && vector.getBoolean(offset + i));
+        } else if (column instanceof ColumnVector.TimestampVector) {
+            ColumnVector.TimestampVector vector = (ColumnVector.TimestampVector) column;
+            body.startBuffer();
+            for (int i = offset; i < offset + length; i++) {
+                body.out.writeLong(vector.isNull(i) ? 0 : vector.getEpochSecond(i) * 1_000_000 + vector.getNano(i) / 1000);
+            }
+            body.endBuffer();
+        } else if (column instanceof ColumnVector.DateVector) {
+            ColumnVector.DateVector vector = (ColumnVector.DateVector) column;
+            body.startBuffer();
+            for (int i = offset; i < offset + length; i++) {
+                body.out.writeInt(vector.isNull(i) ? 0 : vector.getEpochDay(i));
+            }
+            body.endBuffer();
+        } else if (column instanceof ColumnVector.StringVector) {
+            ColumnVector.StringVector vector = (ColumnVector.StringVector) column;
+            // each dictionary entry is encoded once per batch
+            byte[][] dictionary = new byte[vector.getDictionarySize()][];
+            byte[][] values = new byte[length][];
+            for (int i = 0; i < length; i++) {
+                if (!vector.isNull(offset + i)) {
+                    int id = vector.getDictionaryId(offset + i);
+                    if (dictionary[id] == null) {
+                        dictionary[id] = vector.getDictionaryValue(id).getBytes(UTF_8);
+                    }
+                    values[i] = dictionary[id];
+                }
+            }
+            body.writeVariableWidth(values);
+        } else {
+            byte[][] values = new byte[length][];
+            for (int i = 0; i < length; i++) {
+                String text = column instanceof ColumnVector.ObjectVector ?
+                        ((ColumnVector.ObjectVector) column).getText(offset + i) : (String) column.get(offset + i);
+                values[i] = text == null ? null : text.getBytes(UTF_8);
+            }
+            body.writeVariableWidth(values);
+        }
+    }
+
+    private static void writeMessage(LittleEndianDataOutputStream out, FlatBufferBuilder builder, byte headerType, int header, byte[] body) throws IOException {
+        Message.startMessage(builder);
+        Message.addVersion(builder, MetadataVersion.V4);
+        Message.addHeaderType(builder, headerType);
+        Message.addHeader(builder, header);
+        Message.addBodyLength(builder, body.length);
+        int message = Message.endMessage(builder);
+        builder.finish(message);
+
+        byte[] metadata = builder.sizedByteArray();
+        int padding = padding(metadata.length);
+
+        out.writeInt(CONTINUATION_MARKER);
+        out.writeInt(metadata.length + padding);
+        out.write(metadata);
+        out.write(new byte[padding]);
+        out.write(body);
+    }
+
+    private static int padding(int length) {
+        return (8 - (length & 7)) & 7;
+    }
+
+    /**
+     * Body of a record batch, each buffer is aligned to 8 bytes and its offset and length are recorded
+     * for the metadata of the batch.
+     */
+    private static class BodyBuilder {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+        private final List<long[]> buffers = new ArrayList<>();
+        private int bufferStart;
+
+        void startBuffer() {
+            bufferStart = bytes.size();
+        }
+
+        void endBuffer() throws IOException {
+            out.flush();
+            int length = bytes.size() - bufferStart;
+            buffers.add(new long[] {bufferStart, length});
+            out.write(new byte[padding(length)]);
+        }
+
+        void emptyBuffer() {
+            buffers.add(new long[] {bytes.size(), 0});
+        }
+
+        void writeBitmap(int length, IntPredicate predicate) throws IOException {
+            startBuffer();
+            for (int i = 0; i < length; i += 8) {
+                int value = 0;
+                for (int bit = 0; bit < 8 && i + bit < length; bit++) {
+                    if (predicate.test(i + bit)) {
+                        value |= 1 << bit;
+                    }
+                }
+                out.writeByte(value);
+            }
+            endBuffer();
+        }
+
+        void writeVariableWidth(byte[][] values) throws IOException {
+            startBuffer();
+            int position = 0;
+            out.writeInt(position);
+            for (byte[] value : values) {
+                if (value != null) {
+                    position += value.length;
+                }
+                out.writeInt(position);
+            }
+            endBuffer();
+
+            startBuffer();
+            for (byte[] value : values) {
+                if (value != null) {
+                    out.write(value);
+                }
+            }
+            endBuffer();
+        }
+
+        byte[] toByteArray() throws IOException {
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package org.rakam.report;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import org.rakam.collection.FieldType;
+import org.rakam.util.JsonHelper;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Type specialized storage of a column of {@link ColumnarQueryResult}. The values are kept in primitive arrays and
+ * the null values are tracked in a bitmap so that a column doesn't need an object per value.
+ */
+public abstract class ColumnVector {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    protected final BitSet nulls = new BitSet();
+    protected int size;
+
+    public static ColumnVector create(FieldType type) {
+        switch (type) {
+            case LONG:
+                return new LongVector(false);
+            case INTEGER:
+                return new LongVector(true);
+            case DOUBLE:
+            case DECIMAL:
+                return new DoubleVector();
+            case BOOLEAN:
+                return new BooleanVector();
+            case STRING:
+                return new StringVector();
+            case TIMESTAMP:
+                return new TimestampVector();
+            case DATE:
+                return new DateVector();
+            default:
+                return new ObjectVector();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isNull(int position) {
+        return nulls.get(position);
+    }
+
+    public void appendNull() {
+        ensureCapacity(size + 1);
+        nulls.set(size++);
+    }
+
+    /**
+     * Returns false if the value can't be stored in this vector without changing its representation.
+     */
+    public abstract boolean accepts(Object value);
+
+    public abstract void appendObject(Object value);
+
+    /**
+     * Boxed value for the callers that use the row based {@link QueryResult#getResult()} view.
+     */
+    public abstract Object get(int position);
+
+    public abstract void writeJson(JsonGenerator generator, SerializerProvider provider, int position) throws IOException;
+
+    public void writeCsv(StringBuilder builder, int position) {
+        if (!isNull(position)) {
+            builder.append(get(position));
+        }
+    }
+
+    protected abstract void ensureCapacity(int capacity);
+
+    protected static int grow(int currentLength, int capacity) {
+        return Math.max(capacity, Math.max(DEFAULT_CAPACITY, currentLength + (currentLength >> 1)));
+    }
+
+    public static class LongVector extends ColumnVector {
+        private final boolean integer;
+        private long[] values = new long[0];
+
+        public LongVector(boolean integer) {
+            this.integer = integer;
+        }
+
+        public void appendLong(long value) {
+            ensureCapacity(size + 1);
+            values[size++] = value;
+        }
+
+        public long getLong(int position) {
+            return values[position];
+        }
+
+        public boolean isInteger() {
+            return integer;
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value == null || value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+        }
+
+        @Override
+        public void appendObject(Object value) {
+            if (value == null) {
+                appendNull();
+            } else {
+                appendLong(((Number) value).longValue());
+            }
+        }
+
+        @Override
+        public Object get(int position) {
+            if (isNull(position)) {
+                return null;
+            }
+            return integer ? (Object) (int) values[position] : (Object) values[position];
+        }
+
+        @Override
+        public void writeJson(JsonGenerator generator, SerializerProvider provider, int position) throws IOException {
+            if (isNull(position)) {
+                generator.writeNull();
+            } else {
+                generator.writeNumber(values[position]);
+            }
+        }
+
+        @Override
+        public void writeCsv(StringBuilder builder, int position) {
+            if (!isNull(position)) {
+                builder.append(values[position]);
+            }
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+            if (values.length < capacity) {
+                values = Arrays.copyOf(values, grow(values.length, capacity));
+            }
+        }
+    }
+
+    public static class DoubleVector extends ColumnVector {
+        private double[] values = new double[0];
+
+        public void appendDouble(double value) {
+            ensureCapacity(size + 1);
+            values[size++] = value;
+        }
+
+        public double getDouble(int position) {
+            return values[position];
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value == null || value instanceof Double || value instanceof Float;
+        }
+
+        @Override
+        public void appendObject(Object value) {
+            if (value == null) {
+                appendNull();
+            } else {
+                appendDouble(((Number) value).doubleValue());
+            }
+        }
+
+        @Override
+        public Object get(int position) {
+            return isNull(position) ? null : values[position];
+        }
+
+        @Override
+        public void writeJson(JsonGenerator generator, SerializerProvider provider, int position) throws IOException {
+            if (isNull(position)) {
+                generator.writeNull();
+            } else {
+                generator.writeNumber(values[position]);
+            }
+        }
+
+        @Override
+        public void writeCsv(StringBuilder builder, int position) {
+            if (!isNull(position)) {
+                builder.append(values[position]);
+            }
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+            if (values.length < capacity) {
+                values = Arrays.copyOf(values, grow(values.length, capacity));
+            }
+        }
+    }
+
+    public static class BooleanVector extends ColumnVector {
+        private final BitSet values = new BitSet();
+
+        public void appendBoolean(boolean value) {
+            values.set(size++, value);
+        }
+
+        public boolean getBoolean(int position) {
+            return values.get(position);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value == null || value instanceof Boolean;
+        }
+
+        @Override
+        public void appendObject(Object value) {
+            if (value == null) {
+                appendNull();
+            } else {
+                appendBoolean((Boolean) value);
+            }
+        }
+
+        @Override
+        public Object get(int position) {
+            return isNull(position) ? null : values.get(position);
+        }
+
+        @Override
+        public void writeJson(JsonGenerator generator, SerializerProvider provider, int position) throws IOException {
+            if (isNull(position)) {
+                generator.writeNull();
+            } else {
+                generator.writeBoolean(values.get(position));
+            }
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+        }
+    }
+
+    /**
+     * Dictionary encoded strings, the dimension values in the analytics queries are highly repetitive.
+     */
+    public static class StringVector extends ColumnVector {
+        private final Map<String, Integer> dictionaryIndex = new HashMap<>();
+        private final List<String> dictionary = new ArrayList<>();
+        private SerializedString[] serializedDictionary;
+        private int[] ids = new int[0];
+
+        public void appendString(String value) {
+            if (value == null) {
+                appendNull();
+                return;
+            }
+
+            Integer id = dictionaryIndex.get(value);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.add(value);
+                dictionaryIndex.put(value, id);
+            }
+
+            ensureCapacity(size + 1);
+            ids[size++] = id;
+        }
+
+        public int getDictionarySize() {
+            return dictionary.size();
+        }
+
+        public int getDictionaryId(int position) {
+            return ids[position];
+        }
+
+        public String getDictionaryValue(int id) {
+            return dictionary.get(id);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value == null || value instanceof String;
+        }
+
+        @Override
+        public void appendObject(Object value) {
+            appendString((String) value);
+        }
+
+        @Override
+        public String get(int position) {
+            return isNull(position) ? null : dictionary.get(ids[position]);
+        }
+
+        @Override
+        public void writeJson(JsonGenerator generator, SerializerProvider provider, int position) throws IOException {
+            if (isNull(position)) {
+                generator.writeNull();
+                return;
+            }
+
+            // the quoted and escaped form of each dictionary entry is only generated once
+            if (serializedDictionary == null || serializedDictionary.length != dictionary.size()) {
+                serializedDictionary = new SerializedString[dictionary.size()];
+            }
+            int id = ids[position];
+            SerializedString value = serializedDictionary[id];
+            if (value == null) {
+                value = new SerializedString(dictionary.get(id));
+                serializedDictionary[id] = value;
+            }
+            generator.writeString(value);
+        }
+
+        @Override
+        public void writeCsv(StringBuilder builder, int position) {
+            if (!isNull(position)) {
+                ColumnarQueryResult.appendCsvValue(builder, dictionary.get(ids[position]));
+            }
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+            if (ids.length < capacity) {
+                ids = Arrays.copyOf(ids, grow(ids.length, capacity));
+            }
+        }
+    }
+
+    public static class TimestampVector extends ColumnVector {
+        private long[] seconds = new long[0];
+        private int[] nanos = new int[0];
+
+        public void appendTimestamp(long epochSecond, int nano) {
+            ensureCapacity(size + 1);
+            seconds[size] = epochSecond;
+            nanos[size++] = nano;
+        }
+
+        public long getEpochSecond(int position) {
+            return seconds[position];
+        }
+
+        public int getNano(int position) {
+            return nanos[position];
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value == null || value instanceof Instant;
+        }
+
+        @Override
+        public void appendObject(Object value) {
+            if (value == null) {
+                appendNull();
+            } else {
+                Instant instant = (Instant) value;
+                appendTimestamp(instant.getEpochSecond(), instant.getNano());
+            }
+        }
+
+        @Override
+        public Instant get(int position) {
+            return isNull(position) ? null : Instant.ofEpochSecond(seconds[position], nanos[position]);
+        }
+
+        @Override
+        public void writeJson(JsonGenerator generator, SerializerProvider provider, int position) throws IOException {
+            if (isNull(position)) {
+                generator.writeNull();
+            } else if (seconds[position] >= 0
+                    && provider.isEnabled(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                    && provider.isEnabled(SerializationFeature.WRITE_DATE_TIMESTAMPS_AS_NANOSECONDS)) {
+                // same representation with the InstantSerializer of jackson-datatype-jsr310
+                String nano = Integer.toString(nanos[position]);
+                StringBuilder builder = new StringBuilder(20).append(seconds[position]).append('.');
+                for (int i = nano.length(); i < 9; i++) {
+                    builder.append('0');
+                }
+                generator.writeNumber(builder.append(nano).toString());
+            } else {
+                provider.defaultSerializeValue(get(position), generator);
+            }
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+            if (seconds.length < capacity) {
+                int length = grow(seconds.length, capacity);
+                seconds = Arrays.copyOf(seconds, length);
+                nanos = Arrays.copyOf(nanos, length);
+            }
+        }
+    }
+
+    public static class DateVector extends ColumnVector {
+        private int[] days = new int[0];
+
+        public void appendDate(int epochDay) {
+            ensureCapacity(size + 1);
+            days[size++] = epochDay;
+        }
+
+        public int getEpochDay(int position) {
+            return days[position];
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value == null || value instanceof LocalDate;
+        }
+
+        @Override
+        public void appendObject(Object value) {
+            if (value == null) {
+                appendNull();
+            } else {
+                appendDate((int) ((LocalDate) value).toEpochDay());
+            }
+        }
+
+        @Override
+        public LocalDate get(int position) {
+            return isNull(position) ? null : LocalDate.ofEpochDay(days[position]);
+        }
+
+        @Override
+        public void writeJson(JsonGenerator generator, SerializerProvider provider, int position) throws IOException {
+            if (isNull(position)) {
+                generator.writeNull();
+            } else {
+                provider.defaultSerializeValue(get(position), generator);
+            }
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+            if (days.length < capacity) {
+                days = Arrays.copyOf(days, grow(days.length, capacity));
+            }
+        }
+    }
+
+    /**
+     * Fallback for the types that don't have a specialized representation such as arrays, maps and binary values.
+     */
+    public static class ObjectVector extends ColumnVector {
+        private Object[] values = new Object[0];
+
+        public static ObjectVector copyOf(ColumnVector vector) {
+            ObjectVector objectVector = new ObjectVector();
+            for (int i = 0; i < vector.size(); i++) {
+                objectVector.appendObject(vector.get(i));
+            }
+            return objectVector;
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return true;
+        }
+
+        @Override
+        public void appendObject(Object value) {
+            ensureCapacity(size + 1);
+            if (value == null) {
+                nulls.set(size);
+            }
+            values[size++] = value;
+        }
+
+        @Override
+        public Object get(int position) {
+            return values[position];
+        }
+
+        @Override
+        public void writeJson(JsonGenerator generator, SerializerProvider provider, int position) throws IOException {
+            provider.defaultSerializeValue(values[position], generator);
+        }
+
+        /**
+         * Text representation of the value for the formats that don't have a nested type, the complex values are encoded as JSON.
+         */
+        public String getText(int position) {
+            Object value = values[position];
+            if (value == null) {
+                return null;
+            }
+            if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                return value.toString();
+            }
+            return JsonHelper.encode(value);
+        }
+
+        @Override
+        public void writeCsv(StringBuilder builder, int position) {
+            if (!isNull(position)) {
+                ColumnarQueryResult.appendCsvValue(builder, getText(position));
+            }
+        }
+
+        @Override
+        protected void ensureCapacity(int capacity) {
+            if (values.length < capacity) {
+                values = Arrays.copyOf(values, grow(values.length, capacity));
+            }
+        }
+    }
+}
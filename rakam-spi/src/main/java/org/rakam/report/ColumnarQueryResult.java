@@ -0,0 +1,208 @@
+package org.rakam.report;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.SchemaField;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * {@link QueryResult} that keeps the data in type specialized column vectors instead of a list of boxed rows.
+ * {@link #getResult()} returns a read-only row view over the columns for the existing callers and the JSON
+ * serialization writes the primitive values directly without materializing the rows.
+ */
+public class ColumnarQueryResult extends QueryResult {
+    private final ColumnVector[] columns;
+    private final int rowCount;
+
+    private ColumnarQueryResult(List<SchemaField> metadata, ColumnVector[] columns, int rowCount, Map<String, Object> properties) {
+        super(metadata, new RowView(columns, rowCount), properties);
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Converts the row based results that are not generated by the columnar builders.
+     */
+    public static ColumnarQueryResult of(QueryResult result) {
+        if (result instanceof ColumnarQueryResult) {
+            return (ColumnarQueryResult) result;
+        }
+
+        Builder builder = new Builder(result.getMetadata() == null ? ImmutableList.of() : result.getMetadata());
+        if (result.getResult() != null) {
+            for (List<Object> row : result.getResult()) {
+                builder.appendRow(row);
+            }
+        }
+        return builder.build(result.getProperties());
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public ColumnVector getColumn(int index) {
+        return columns[index];
+    }
+
+    public void writeCsv(Writer writer) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        List<SchemaField> metadata = getMetadata();
+        for (int i = 0; i < metadata.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            appendCsvValue(builder, metadata.get(i).getName());
+        }
+        builder.append("\r\n");
+
+        for (int row = 0; row < rowCount; row++) {
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                columns[i].writeCsv(builder, row);
+            }
+            builder.append("\r\n");
+
+            if (builder.length() > 8192) {
+                writer.append(builder);
+                builder.setLength(0);
+            }
+        }
+
+        writer.append(builder);
+        writer.flush();
+    }
+
+    static void appendCsvValue(StringBuilder builder, String value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                quote = true;
+                break;
+            }
+        }
+
+        if (!quote) {
+            builder.append(value);
+            return;
+        }
+
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                builder.append('"');
+            }
+            builder.append(c);
+        }
+        builder.append('"');
+    }
+
+    public static class Builder {
+        private final List<SchemaField> metadata;
+        private final ColumnVector[] columns;
+
+        public Builder(List<SchemaField> metadata) {
+            this.metadata = metadata;
+            this.columns = new ColumnVector[metadata.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = ColumnVector.create(metadata.get(i).getType());
+            }
+        }
+
+        public ColumnVector getColumn(int index) {
+            return columns[index];
+        }
+
+        /**
+         * Appends a boxed value, the column falls back to the generic representation if the value doesn't fit to
+         * the specialized vector of the column type.
+         */
+        public void appendObject(int index, Object value) {
+            ColumnVector column = columns[index];
+            if (!column.accepts(value)) {
+                column = ColumnVector.ObjectVector.copyOf(column);
+                columns[index] = column;
+            }
+            column.appendObject(value);
+        }
+
+        public void appendRow(List<Object> row) {
+            for (int i = 0; i < columns.length; i++) {
+                appendObject(i, i < row.size() ? row.get(i) : null);
+            }
+        }
+
+        public ColumnarQueryResult build(Map<String, Object> properties) {
+            int rowCount = columns.length == 0 ? 0 : columns[0].size();
+            for (ColumnVector column : columns) {
+                checkArgument(column.size() == rowCount, "columns have different number of rows");
+            }
+            return new ColumnarQueryResult(metadata, columns, rowCount, properties);
+        }
+    }
+
+    @JsonSerialize(using = RowViewSerializer.class)
+    private static class RowView extends AbstractList<List<Object>> {
+        private final ColumnVector[] columns;
+        private final int rowCount;
+
+        private RowView(ColumnVector[] columns, int rowCount) {
+            this.columns = columns;
+            this.rowCount = rowCount;
+        }
+
+        @Override
+        public List<Object> get(int row) {
+            if (row < 0 || row >= rowCount) {
+                throw new IndexOutOfBoundsException("Row: " + row + ", size: " + rowCount);
+            }
+
+            return new AbstractList<Object>() {
+                @Override
+                public Object get(int index) {
+                    return columns[index].get(row);
+                }
+
+                @Override
+                public int size() {
+                    return columns.length;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return rowCount;
+        }
+    }
+
+    public static class RowViewSerializer extends JsonSerializer<RowView> {
+        @Override
+        public void serialize(RowView value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            ColumnVector[] columns = value.columns;
+            generator.writeStartArray();
+            for (int row = 0; row < value.rowCount; row++) {
+                generator.writeStartArray();
+                for (ColumnVector column : columns) {
+                    column.writeJson(generator, provider, row);
+                }
+                generator.writeEndArray();
+            }
+            generator.writeEndArray();
+        }
+    }
+}
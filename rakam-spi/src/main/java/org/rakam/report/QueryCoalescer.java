@@ -0,0 +1,177 @@
+package org.rakam.report;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight layer for the queries: if a query with the same key is already running, the new caller is attached to
+ * the running execution instead of sending the same query to the database again. The underlying execution is only killed
+ * when all the callers that share it kill their executions. Each caller gets its own copy of the result so that the
+ * properties set by a caller are not visible to the others.
+ */
+public class QueryCoalescer {
+    private final ConcurrentHashMap<QueryKey, SharedExecution> inFlight = new ConcurrentHashMap<>();
+
+    public QueryExecution execute(String project, String normalizedQuery, Supplier<QueryExecution> task) {
+        QueryKey key = new QueryKey(project, normalizedQuery);
+
+        while (true) {
+            SharedExecution existing = inFlight.get(key);
+            if (existing != null) {
+                if (existing.attach()) {
+                    return new AttachedQueryExecution(existing);
+                }
+                // the execution is killed or finished in the meantime
+                inFlight.remove(key, existing);
+                continue;
+            }
+
+            SharedExecution shared = new SharedExecution(normalizedQuery);
+            if (inFlight.putIfAbsent(key, shared) != null) {
+                continue;
+            }
+
+            QueryExecution execution;
+            try {
+                execution = task.get();
+            } catch (RuntimeException e) {
+                inFlight.remove(key, shared);
+                shared.fail(e);
+                throw e;
+            }
+
+            shared.setExecution(execution);
+            execution.getResult().whenComplete((result, ex) -> inFlight.remove(key, shared));
+            if (execution.isFinished()) {
+                inFlight.remove(key, shared);
+            }
+
+            return new AttachedQueryExecution(shared);
+        }
+    }
+
+    public int getInFlightQueryCount() {
+        return inFlight.size();
+    }
+
+    private static class SharedExecution {
+        // starts from 1 for the caller that creates the execution
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final CompletableFuture<QueryExecution> execution = new CompletableFuture<>();
+        private final CompletableFuture<QueryResult> result = execution.thenCompose(QueryExecution::getResult);
+        private final String query;
+
+        SharedExecution(String query) {
+            this.query = query;
+        }
+
+        boolean attach() {
+            while (true) {
+                int current = references.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (references.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void detach() {
+            if (references.decrementAndGet() == 0) {
+                execution.thenAccept(QueryExecution::kill);
+            }
+        }
+
+        void setExecution(QueryExecution queryExecution) {
+            execution.complete(queryExecution);
+        }
+
+        void fail(Throwable e) {
+            references.set(0);
+            execution.completeExceptionally(e);
+        }
+    }
+
+    private static class AttachedQueryExecution implements QueryExecution {
+        private final SharedExecution shared;
+        private final AtomicBoolean killed = new AtomicBoolean();
+
+        private AttachedQueryExecution(SharedExecution shared) {
+            this.shared = shared;
+        }
+
+        // the creator of the shared execution sets it before the other callers can see it except the short window
+        // between registering and starting the query, the callers must not be blocked in that window.
+        private QueryExecution execution() {
+            if (!shared.execution.isDone() || shared.execution.isCompletedExceptionally()) {
+                return null;
+            }
+            return shared.execution.join();
+        }
+
+        @Override
+        public QueryStats currentStats() {
+            QueryExecution execution = execution();
+            if (execution == null) {
+                return new QueryStats(shared.execution.isCompletedExceptionally() ? QueryStats.State.FAILED : QueryStats.State.QUEUED);
+            }
+            return execution.currentStats();
+        }
+
+        @Override
+        public boolean isFinished() {
+            QueryExecution execution = execution();
+            if (execution == null) {
+                return shared.execution.isCompletedExceptionally();
+            }
+            return execution.isFinished();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult() {
+            return shared.result.thenApply(QueryResult::copy);
+        }
+
+        @Override
+        public String getQuery() {
+            QueryExecution execution = execution();
+            return execution == null ? shared.query : execution.getQuery();
+        }
+
+        @Override
+        public void kill() {
+            if (killed.compareAndSet(false, true)) {
+                shared.detach();
+            }
+        }
+    }
+
+    private static class QueryKey {
+        private final String project;
+        private final String query;
+
+        private QueryKey(String project, String query) {
+            this.project = project;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof QueryKey)) return false;
+
+            QueryKey queryKey = (QueryKey) o;
+            return project.equals(queryKey.project) && query.equals(queryKey.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(project, query);
+        }
+    }
+}
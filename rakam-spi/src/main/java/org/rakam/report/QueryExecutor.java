@@ -2,9 +2,39 @@ package org.rakam.report;
 
 
 import com.facebook.presto.sql.tree.QualifiedName;
+import com.google.common.collect.ImmutableList;
+import org.rakam.collection.SchemaField;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public interface QueryExecutor {
     QueryExecution executeRawQuery(String sqlQuery);
     QueryExecution executeRawStatement(String sqlQuery);
     String formatTableReference(String project, QualifiedName name);
+
+    /**
+     * Pushes the rows to the page consumer as the database returns them instead of accumulating them in the
+     * result, the result of the execution only has the metadata. The executors that can't fetch the rows
+     * incrementally push all the rows as a single page.
+     */
+    default QueryExecution executeStreamingQuery(String sqlQuery, BiConsumer<List<SchemaField>, List<List<Object>>> pageConsumer) {
+        QueryExecution execution = executeRawQuery(sqlQuery);
+        CompletableFuture<QueryResult> result = execution.getResult().thenApply(queryResult -> {
+            if (queryResult.isFailed()) {
+                return queryResult;
+            }
+            pageConsumer.accept(queryResult.getMetadata(), queryResult.getResult());
+            return new QueryResult(queryResult.getMetadata(), ImmutableList.of(), queryResult.getProperties());
+        });
+
+        return new DelegateQueryExecution(execution, Function.identity()) {
+            @Override
+            public CompletableFuture<QueryResult> getResult() {
+                return result;
+            }
+        };
+    }
 }
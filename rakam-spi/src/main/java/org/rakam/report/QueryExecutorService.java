@@ -5,7 +5,9 @@ import com.facebook.presto.sql.parser.SqlParser;
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.facebook.presto.sql.tree.Query;
 import com.facebook.presto.sql.tree.QuerySpecification;
+import com.facebook.presto.sql.tree.Statement;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.rakam.analysis.MaterializedViewService;
 import org.rakam.analysis.MaterializedViewService.MaterializedViewExecution;
@@ -23,7 +25,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -31,6 +35,7 @@ import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static java.lang.String.format;
 import static org.rakam.report.QueryResult.EXECUTION_TIME;
 
+@Singleton
 public class QueryExecutorService {
     private final SqlParser parser = new SqlParser();
 
@@ -39,21 +44,71 @@ public class QueryExecutorService {
     private final MaterializedViewService materializedViewService;
     private final Metastore metastore;
     private final Clock clock;
+    private final QueryScheduler scheduler;
+    private final QueryCoalescer coalescer;
     private volatile Set<String> projectCache;
 
-    @Inject
     public QueryExecutorService(QueryExecutor executor, QueryMetadataStore queryMetadataStore, Metastore metastore, MaterializedViewService materializedViewService, Clock clock) {
+        this(executor, queryMetadataStore, metastore, materializedViewService, clock, new QuerySchedulerConfig());
+    }
+
+    @Inject
+    public QueryExecutorService(QueryExecutor executor, QueryMetadataStore queryMetadataStore, Metastore metastore, MaterializedViewService materializedViewService, Clock clock, QuerySchedulerConfig schedulerConfig) {
         this.executor = executor;
         this.queryMetadataStore = queryMetadataStore;
         this.materializedViewService = materializedViewService;
         this.metastore = metastore;
         this.clock = clock;
+        this.scheduler = new QueryScheduler(schedulerConfig);
+        this.coalescer = schedulerConfig.getCoalesceIdenticalQueries() ? new QueryCoalescer() : null;
     }
 
     public QueryExecution executeQuery(String project, String sqlQuery, int limit) {
+        return executeQuery(project, sqlQuery, limit, QueryLane.INTERACTIVE);
+    }
+
+    public QueryExecution executeQuery(String project, String sqlQuery, QueryLane lane) {
+        return executeQuery(project, sqlQuery, 10000, lane);
+    }
+
+    public QueryExecution executeQuery(String project, String sqlQuery, int limit, QueryLane lane) {
+        if (!projectExists(project)) {
+            throw new IllegalArgumentException("Project is not valid");
+        }
+        // the materialized views referenced by the query are refreshed in the same slot with the query
+        Supplier<QueryExecution> task = () -> scheduler.schedule(project, lane, sqlQuery, () -> startQuery(project, sqlQuery, limit, executor::executeRawQuery));
+        if (coalescer == null) {
+            return task.get();
+        }
+
+        // identical queries that are running at the same time share the same execution
+        return coalescer.execute(project, normalizeQuery(sqlQuery) + " LIMIT " + limit, task);
+    }
+
+    /**
+     * Pushes the rows of the query to the page consumer as they're fetched instead of returning them in the result.
+     * The query is not shared with the identical queries since the rows are not kept.
+     */
+    public QueryExecution executeStreamingQuery(String project, String sqlQuery, int limit, BiConsumer<List<SchemaField>, List<List<Object>>> pageConsumer) {
         if (!projectExists(project)) {
             throw new IllegalArgumentException("Project is not valid");
         }
+        return scheduler.schedule(project, QueryLane.INTERACTIVE, sqlQuery,
+                () -> startQuery(project, sqlQuery, limit, query -> executor.executeStreamingQuery(query, pageConsumer)));
+    }
+
+    /**
+     * Runs a query that is not sent through this service, such as a materialized view refresh, with the same admission control.
+     */
+    public QueryExecution schedule(String project, QueryLane lane, String query, Supplier<QueryExecution> task) {
+        return scheduler.schedule(project, lane, query, task);
+    }
+
+    public QueryScheduler.SchedulerStats getSchedulerStats() {
+        return scheduler.getStats();
+    }
+
+    private QueryExecution startQuery(String project, String sqlQuery, int limit, Function<String, QueryExecution> queryRunner) {
         HashMap<MaterializedView, MaterializedViewExecution> materializedViews = new HashMap<>();
         String query;
 
@@ -73,7 +128,7 @@ public class QueryExecutorService {
 
 
         if (queryExecutions.isEmpty()) {
-            QueryExecution execution = executor.executeRawQuery(query);
+            QueryExecution execution = queryRunner.apply(query);
             if (materializedViews.isEmpty()) {
                 return execution;
             } else {
@@ -105,7 +160,7 @@ public class QueryExecutorService {
                     }
                 }
 
-                return executor.executeRawQuery(query);
+                return queryRunner.apply(query);
             }), result -> {
                 if (!result.isFailed()) {
                     Map<String, Long> collect = materializedViews.entrySet().stream().collect(Collectors.toMap(v -> v.getKey().name, v -> v.getKey().lastUpdate.toEpochMilli()));
@@ -126,6 +181,19 @@ public class QueryExecutorService {
         return executeQuery(project, sqlQuery);
     }
 
+    private String normalizeQuery(String query) {
+        Statement statement;
+        try {
+            synchronized (parser) {
+                statement = parser.createStatement(query);
+            }
+        } catch (ParsingException e) {
+            return query.trim();
+        }
+
+        return QueryFormatter.format(statement, QualifiedName::toString);
+    }
+
     private synchronized void updateProjectCache() {
         projectCache = metastore.getProjects();
     }
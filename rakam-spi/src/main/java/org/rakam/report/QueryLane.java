@@ -0,0 +1,20 @@
+package org.rakam.report;
+
+/**
+ * Scheduling lanes of {@link QueryScheduler}. When a slot becomes available, the queued queries in a lane
+ * are only considered if there is no queued query in the lanes before it that can be started.
+ */
+public enum QueryLane {
+    /**
+     * Ad-hoc queries sent by the users, i.e. /query/execute
+     */
+    INTERACTIVE,
+    /**
+     * Reports that are rendered in dashboards such as event explorer, funnel and retention queries.
+     */
+    DASHBOARD,
+    /**
+     * Maintenance work such as materialized view refreshes and pre-computation queries.
+     */
+    BACKGROUND
+}
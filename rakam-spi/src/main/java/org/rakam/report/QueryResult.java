@@ -52,6 +52,14 @@ public class QueryResult {
         return new QueryResult(null, null, error, null);
     }
 
+    /**
+     * Returns a shallow copy of the result that shares the rows with this result, the properties set on the copy
+     * are not visible to this result.
+     */
+    public QueryResult copy() {
+        return new QueryResult(metadata, result, error, properties);
+    }
+
     public Map<String, Object> getProperties() {
         return properties;
     }
@@ -0,0 +1,360 @@
+package org.rakam.report;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Admission control for the queries that are sent to the database. A query is started immediately if the global,
+ * per-project and per-lane limits allow it, otherwise it's queued until a running query finishes or the queue timeout expires.
+ * <p>
+ * When a slot becomes available, the lanes are visited in the order of {@link QueryLane} and the projects in a lane are
+ * visited in round-robin order so that a single project with many queued queries can't starve the others.
+ */
+public class QueryScheduler {
+    private final QuerySchedulerConfig config;
+    private final Map<QueryLane, LaneQueue> lanes;
+    private final Map<String, Integer> runningPerProject = new HashMap<>();
+    private final ScheduledThreadPoolExecutor timeoutExecutor;
+    private final ExecutorService dispatchExecutor;
+
+    private final AtomicLong totalQueued = new AtomicLong();
+    private final AtomicLong totalRejected = new AtomicLong();
+    private final AtomicLong totalTimedOut = new AtomicLong();
+
+    private int running;
+    private int queued;
+
+    public QueryScheduler(QuerySchedulerConfig config) {
+        this.config = config;
+        this.lanes = new EnumMap<>(QueryLane.class);
+        for (QueryLane lane : QueryLane.values()) {
+            lanes.put(lane, new LaneQueue());
+        }
+        this.timeoutExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("query-scheduler-timeout").setDaemon(true).build());
+        // the timeouts of the dispatched queries are cancelled, they must not stay in the queue until they expire
+        this.timeoutExecutor.setRemoveOnCancelPolicy(true);
+        this.dispatchExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("query-scheduler-dispatch-%s").setDaemon(true).build());
+    }
+
+    public QueryExecution schedule(String project, QueryLane lane, String query, Supplier<QueryExecution> task) {
+        ScheduledQueryExecution execution = new ScheduledQueryExecution(project, lane, query, task);
+
+        synchronized (this) {
+            if (canStart(project, lane)) {
+                acquire(execution);
+            } else {
+                if (queued >= config.getMaxQueuedQueries()) {
+                    totalRejected.incrementAndGet();
+                    return QueryExecution.completedQueryExecution(query,
+                            QueryResult.errorResult(QueryError.create("The query is rejected because there are too many queued queries")));
+                }
+
+                lanes.get(lane).add(execution);
+                queued++;
+                totalQueued.incrementAndGet();
+                execution.expiration = timeoutExecutor.schedule(() -> expire(execution), config.getQueueTimeout().toMillis(), MILLISECONDS);
+                return execution;
+            }
+        }
+
+        try {
+            execution.start();
+        } catch (RuntimeException e) {
+            release(execution);
+            throw e;
+        }
+        return execution;
+    }
+
+    public synchronized SchedulerStats getStats() {
+        Map<QueryLane, LaneStats> laneStats = new EnumMap<>(QueryLane.class);
+        lanes.forEach((lane, queue) -> laneStats.put(lane, new LaneStats(queue.running, queue.size)));
+        return new SchedulerStats(running, queued, totalQueued.get(), totalRejected.get(), totalTimedOut.get(), laneStats);
+    }
+
+    private boolean canStart(String project, QueryLane lane) {
+        return running < config.getMaxConcurrentQueries()
+                && lanes.get(lane).running < config.getMaxConcurrentQueries(lane)
+                && runningPerProject.getOrDefault(project, 0) < config.getMaxConcurrentQueriesPerProject();
+    }
+
+    private void acquire(ScheduledQueryExecution execution) {
+        running++;
+        lanes.get(execution.lane).running++;
+        runningPerProject.merge(execution.project, 1, Integer::sum);
+    }
+
+    private void release(ScheduledQueryExecution execution) {
+        List<ScheduledQueryExecution> next;
+        synchronized (this) {
+            running--;
+            lanes.get(execution.lane).running--;
+            runningPerProject.compute(execution.project, (key, value) -> value == null || value <= 1 ? null : value - 1);
+            next = pollRunnable();
+        }
+
+        // the slot may be released from a thread of the database driver, start the queued queries in a separate thread
+        for (ScheduledQueryExecution scheduled : next) {
+            dispatchExecutor.execute(() -> {
+                try {
+                    scheduled.start();
+                } catch (Throwable e) {
+                    scheduled.result.complete(QueryResult.errorResult(QueryError.create("Error while starting queued query: " + e.getMessage())));
+                    release(scheduled);
+                }
+            });
+        }
+    }
+
+    private List<ScheduledQueryExecution> pollRunnable() {
+        List<ScheduledQueryExecution> executions = new ArrayList<>();
+        for (QueryLane lane : QueryLane.values()) {
+            LaneQueue queue = lanes.get(lane);
+            while (running < config.getMaxConcurrentQueries() && queue.running < config.getMaxConcurrentQueries(lane)) {
+                ScheduledQueryExecution execution = queue.poll();
+                if (execution == null) {
+                    break;
+                }
+                queued--;
+                execution.expiration.cancel(false);
+                acquire(execution);
+                executions.add(execution);
+            }
+        }
+        return executions;
+    }
+
+    private void expire(ScheduledQueryExecution execution) {
+        synchronized (this) {
+            if (!lanes.get(execution.lane).remove(execution)) {
+                return;
+            }
+            queued--;
+        }
+        totalTimedOut.incrementAndGet();
+        execution.result.complete(QueryResult.errorResult(QueryError.create(
+                String.format("The query is timed out after waiting in the queue for %s (query.queue-timeout)", config.getQueueTimeout()))));
+    }
+
+    @VisibleForTesting
+    int getPendingTimeouts() {
+        return timeoutExecutor.getQueue().size();
+    }
+
+    private synchronized int getQueuePosition(ScheduledQueryExecution execution) {
+        int position = 0;
+        for (QueryLane lane : QueryLane.values()) {
+            if (lane == execution.lane) {
+                return position + lanes.get(lane).positionOf(execution);
+            }
+            position += lanes.get(lane).size;
+        }
+        return position;
+    }
+
+    private class LaneQueue {
+        // insertion order is used for round-robin scheduling between projects
+        private final LinkedHashMap<String, ArrayDeque<ScheduledQueryExecution>> projectQueues = new LinkedHashMap<>();
+        private int running;
+        private int size;
+
+        void add(ScheduledQueryExecution execution) {
+            projectQueues.computeIfAbsent(execution.project, key -> new ArrayDeque<>()).add(execution);
+            size++;
+        }
+
+        ScheduledQueryExecution poll() {
+            Iterator<Map.Entry<String, ArrayDeque<ScheduledQueryExecution>>> iterator = projectQueues.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, ArrayDeque<ScheduledQueryExecution>> entry = iterator.next();
+                if (runningPerProject.getOrDefault(entry.getKey(), 0) >= config.getMaxConcurrentQueriesPerProject()) {
+                    continue;
+                }
+
+                ScheduledQueryExecution execution = entry.getValue().poll();
+                iterator.remove();
+                // move the project to the end of the queue
+                if (!entry.getValue().isEmpty()) {
+                    projectQueues.put(entry.getKey(), entry.getValue());
+                }
+                size--;
+                return execution;
+            }
+            return null;
+        }
+
+        boolean remove(ScheduledQueryExecution execution) {
+            ArrayDeque<ScheduledQueryExecution> queue = projectQueues.get(execution.project);
+            if (queue == null || !queue.remove(execution)) {
+                return false;
+            }
+            if (queue.isEmpty()) {
+                projectQueues.remove(execution.project);
+            }
+            size--;
+            return true;
+        }
+
+        int positionOf(ScheduledQueryExecution execution) {
+            ArrayDeque<ScheduledQueryExecution> queue = projectQueues.get(execution.project);
+            if (queue == null) {
+                return 0;
+            }
+            int position = 0;
+            for (ScheduledQueryExecution item : queue) {
+                if (item == execution) {
+                    break;
+                }
+                position++;
+            }
+            return position;
+        }
+    }
+
+    private class ScheduledQueryExecution implements QueryExecution {
+        private final String project;
+        private final QueryLane lane;
+        private final String query;
+        private final Supplier<QueryExecution> task;
+        private final long queuedAt;
+        private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+        // guarded by the scheduler, set when the query is queued
+        private ScheduledFuture<?> expiration;
+        private volatile QueryExecution delegate;
+        private volatile long startedAt;
+        private volatile boolean killed;
+
+        private ScheduledQueryExecution(String project, QueryLane lane, String query, Supplier<QueryExecution> task) {
+            this.project = project;
+            this.lane = lane;
+            this.query = query;
+            this.task = task;
+            this.queuedAt = System.currentTimeMillis();
+        }
+
+        private void start() {
+            if (killed || result.isDone()) {
+                release(this);
+                result.complete(QueryResult.errorResult(QueryError.create("Query is killed")));
+                return;
+            }
+
+            startedAt = System.currentTimeMillis();
+            QueryExecution execution = task.get();
+            delegate = execution;
+            execution.getResult().whenComplete((queryResult, ex) -> {
+                release(this);
+                if (ex != null) {
+                    result.completeExceptionally(ex);
+                } else {
+                    result.complete(queryResult);
+                }
+            });
+
+            if (killed) {
+                execution.kill();
+            }
+        }
+
+        @Override
+        public QueryStats currentStats() {
+            QueryExecution execution = delegate;
+            if (execution == null) {
+                if (result.isDone()) {
+                    return new QueryStats(QueryStats.State.FAILED);
+                }
+                return QueryStats.queued(System.currentTimeMillis() - queuedAt, getQueuePosition(this));
+            }
+            return execution.currentStats().withQueuedTime(startedAt - queuedAt);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult() {
+            return result;
+        }
+
+        @Override
+        public String getQuery() {
+            QueryExecution execution = delegate;
+            return execution != null ? execution.getQuery() : query;
+        }
+
+        @Override
+        public void kill() {
+            killed = true;
+            QueryExecution execution = delegate;
+            if (execution != null) {
+                execution.kill();
+                return;
+            }
+
+            boolean removed;
+            synchronized (QueryScheduler.this) {
+                removed = lanes.get(lane).remove(this);
+                if (removed) {
+                    queued--;
+                    expiration.cancel(false);
+                }
+            }
+            if (removed) {
+                result.complete(QueryResult.errorResult(QueryError.create("Query is killed")));
+            }
+        }
+    }
+
+    public static class SchedulerStats {
+        public final int running;
+        public final int queued;
+        public final long totalQueued;
+        public final long totalRejected;
+        public final long totalTimedOut;
+        public final Map<QueryLane, LaneStats> lanes;
+
+        @JsonCreator
+        public SchedulerStats(int running, int queued, long totalQueued, long totalRejected, long totalTimedOut, Map<QueryLane, LaneStats> lanes) {
+            this.running = running;
+            this.queued = queued;
+            this.totalQueued = totalQueued;
+            this.totalRejected = totalRejected;
+            this.totalTimedOut = totalTimedOut;
+            this.lanes = lanes;
+        }
+    }
+
+    public static class LaneStats {
+        public final int running;
+        public final int queued;
+
+        @JsonCreator
+        public LaneStats(int running, int queued) {
+            this.running = running;
+            this.queued = queued;
+        }
+    }
+}
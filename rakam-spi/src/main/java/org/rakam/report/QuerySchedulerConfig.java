@@ -0,0 +1,120 @@
+package org.rakam.report;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+import io.airlift.units.Duration;
+
+import javax.validation.constraints.Min;
+
+public class QuerySchedulerConfig {
+    private int maxConcurrentQueries = 100;
+    private int maxConcurrentQueriesPerProject = 10;
+    private int maxConcurrentInteractiveQueries = 50;
+    private int maxConcurrentDashboardQueries = 50;
+    private int maxConcurrentBackgroundQueries = 20;
+    private int maxQueuedQueries = 5000;
+    private Duration queueTimeout = Duration.valueOf("2m");
+    private boolean coalesceIdenticalQueries = true;
+
+    @Config("query.max-concurrent-queries")
+    @ConfigDescription("Maximum number of queries that can run concurrently on the database")
+    public QuerySchedulerConfig setMaxConcurrentQueries(int maxConcurrentQueries) {
+        this.maxConcurrentQueries = maxConcurrentQueries;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentQueries() {
+        return maxConcurrentQueries;
+    }
+
+    @Config("query.max-concurrent-queries-per-project")
+    public QuerySchedulerConfig setMaxConcurrentQueriesPerProject(int maxConcurrentQueriesPerProject) {
+        this.maxConcurrentQueriesPerProject = maxConcurrentQueriesPerProject;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentQueriesPerProject() {
+        return maxConcurrentQueriesPerProject;
+    }
+
+    @Config("query.interactive.max-concurrent-queries")
+    public QuerySchedulerConfig setMaxConcurrentInteractiveQueries(int maxConcurrentInteractiveQueries) {
+        this.maxConcurrentInteractiveQueries = maxConcurrentInteractiveQueries;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentInteractiveQueries() {
+        return maxConcurrentInteractiveQueries;
+    }
+
+    @Config("query.dashboard.max-concurrent-queries")
+    public QuerySchedulerConfig setMaxConcurrentDashboardQueries(int maxConcurrentDashboardQueries) {
+        this.maxConcurrentDashboardQueries = maxConcurrentDashboardQueries;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentDashboardQueries() {
+        return maxConcurrentDashboardQueries;
+    }
+
+    @Config("query.background.max-concurrent-queries")
+    public QuerySchedulerConfig setMaxConcurrentBackgroundQueries(int maxConcurrentBackgroundQueries) {
+        this.maxConcurrentBackgroundQueries = maxConcurrentBackgroundQueries;
+        return this;
+    }
+
+    @Min(1)
+    public int getMaxConcurrentBackgroundQueries() {
+        return maxConcurrentBackgroundQueries;
+    }
+
+    @Config("query.max-queued-queries")
+    @ConfigDescription("Queries are rejected when the number of queued queries exceeds this value")
+    public QuerySchedulerConfig setMaxQueuedQueries(int maxQueuedQueries) {
+        this.maxQueuedQueries = maxQueuedQueries;
+        return this;
+    }
+
+    @Min(0)
+    public int getMaxQueuedQueries() {
+        return maxQueuedQueries;
+    }
+
+    @Config("query.queue-timeout")
+    public QuerySchedulerConfig setQueueTimeout(String queueTimeout) {
+        this.queueTimeout = Duration.valueOf(queueTimeout);
+        return this;
+    }
+
+    public Duration getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    @Config("query.coalesce-identical-queries")
+    @ConfigDescription("Share the execution of a query with the identical queries of the same project that are sent while it's running")
+    public QuerySchedulerConfig setCoalesceIdenticalQueries(boolean coalesceIdenticalQueries) {
+        this.coalesceIdenticalQueries = coalesceIdenticalQueries;
+        return this;
+    }
+
+    public boolean getCoalesceIdenticalQueries() {
+        return coalesceIdenticalQueries;
+    }
+
+    public int getMaxConcurrentQueries(QueryLane lane) {
+        switch (lane) {
+            case INTERACTIVE:
+                return maxConcurrentInteractiveQueries;
+            case DASHBOARD:
+                return maxConcurrentDashboardQueries;
+            case BACKGROUND:
+                return maxConcurrentBackgroundQueries;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+}
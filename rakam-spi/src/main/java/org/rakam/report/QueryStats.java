@@ -12,6 +12,8 @@ public class QueryStats {
     public final Long userTime;
     public final Long cpuTime;
     public final Long wallTime;
+    public final Long queuedTime;
+    public final Integer queuePosition;
 
     @JsonCreator
     public QueryStats(@JsonProperty("percentage") Integer percentage,
@@ -21,7 +23,9 @@ public class QueryStats {
                       @JsonProperty("processedBytes") Long processedBytes,
                       @JsonProperty("userTime") Long userTime,
                       @JsonProperty("cpuTime") Long cpuTime,
-                      @JsonProperty("wallTime") Long wallTime) {
+                      @JsonProperty("wallTime") Long wallTime,
+                      @JsonProperty("queuedTime") Long queuedTime,
+                      @JsonProperty("queuePosition") Integer queuePosition) {
         this.percentage = percentage;
         this.state = state;
         this.node = node;
@@ -30,12 +34,26 @@ public class QueryStats {
         this.cpuTime = cpuTime;
         this.wallTime = wallTime;
         this.processedBytes = processedBytes;
+        this.queuedTime = queuedTime;
+        this.queuePosition = queuePosition;
+    }
+
+    public QueryStats(Integer percentage, State state, Integer node, Long processedRows, Long processedBytes, Long userTime, Long cpuTime, Long wallTime) {
+        this(percentage, state, node, processedRows, processedBytes, userTime, cpuTime, wallTime, null, null);
     }
 
     public QueryStats(State state) {
         this(null, state, null, null, null, null, null, null);
     }
 
+    public static QueryStats queued(long queuedTime, int queuePosition) {
+        return new QueryStats(0, State.QUEUED, null, null, null, null, null, null, queuedTime, queuePosition);
+    }
+
+    public QueryStats withQueuedTime(long queuedTime) {
+        return new QueryStats(percentage, state, node, processedRows, processedBytes, userTime, cpuTime, wallTime, queuedTime, null);
+    }
+
     public enum  State {
         /**
          * Query has been accepted and is awaiting execution.
@@ -8,6 +8,9 @@ import com.facebook.presto.sql.tree.QualifiedNameReference;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.EventExplorer;
 import org.rakam.analysis.MaterializedViewService;
+import org.rakam.analysis.sketch.TDigest;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
 import org.rakam.report.DelegateQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutorService;
@@ -20,6 +23,7 @@ import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,11 +43,13 @@ import static org.rakam.analysis.EventExplorer.ReferenceType.COLUMN;
 import static org.rakam.analysis.EventExplorer.ReferenceType.REFERENCE;
 import static org.rakam.analysis.EventExplorer.TimestampTransformation.HOUR;
 import static org.rakam.analysis.EventExplorer.TimestampTransformation.fromString;
+import static org.rakam.report.QueryLane.DASHBOARD;
 import static org.rakam.report.realtime.AggregationType.COUNT;
 import static org.rakam.util.ValidationUtil.checkProject;
 
 public abstract class AbstractEventExplorer implements EventExplorer {
     private final static String TIME_INTERVAL_ERROR_MESSAGE = "Date interval is too big. Please narrow the date range or use different date dimension.";
+    private final static int MAX_PERCENTILE_ROWS = 100000;
     private static SqlParser sqlParser = new SqlParser();
     private final QueryExecutorService executor;
 
@@ -190,6 +196,9 @@ public abstract class AbstractEventExplorer implements EventExplorer {
         }
 
 
+        // the histograms of the pre-computed table are merged after they're fetched
+        boolean mergePercentiles = preComputedTable.isPresent() && measure.aggregation.isPercentile();
+
         String computeQuery;
         if (preComputedTable.isPresent()) {
             String filters = preComputedTable.get().getKey().dimensions.stream()
@@ -209,7 +218,7 @@ public abstract class AbstractEventExplorer implements EventExplorer {
                             filterExpression,
                             timeFilter
                     ).filter(e -> e != null && !e.isEmpty()).collect(Collectors.joining(" AND ")),
-                    groupBy);
+                    mergePercentiles ? "" : groupBy);
         } else {
             String where = timeFilter + (filterExpression == null ? "" : (" AND " + filterExpression));
 
@@ -250,6 +259,13 @@ public abstract class AbstractEventExplorer implements EventExplorer {
         }
 
 
+        if (mergePercentiles) {
+            int keys = (grouping != null ? 1 : 0) + (segment != null ? 1 : 0);
+            String table = preComputedTable.get().getValue();
+            return new DelegateQueryExecution(executor.executeQuery(project, computeQuery, MAX_PERCENTILE_ROWS, DASHBOARD),
+                    result -> mergePercentiles(result, keys, measure.aggregation.getPercentile(), table));
+        }
+
         String query = null;
         Optional<AggregationType> intermediateAggregation = getIntermediateAggregation(measure.aggregation);
 
@@ -312,7 +328,7 @@ public abstract class AbstractEventExplorer implements EventExplorer {
 
         String table = preComputedTable.map(e -> e.getValue()).orElse(null);
 
-        return new DelegateQueryExecution(executor.executeQuery(project, query), result -> {
+        return new DelegateQueryExecution(executor.executeQuery(project, query, DASHBOARD), result -> {
             if (table != null) {
                 result.setProperty("olapTable", table);
             }
@@ -320,6 +336,49 @@ public abstract class AbstractEventExplorer implements EventExplorer {
         });
     }
 
+    /**
+     * Merges the histograms of the rows that have the same group and segment values into a t-digest and returns the
+     * percentile of each group, the rows are ordered and limited like the other aggregations.
+     */
+    private static QueryResult mergePercentiles(QueryResult result, int keys, double percentile, String table) {
+        if (result.isFailed()) {
+            return result;
+        }
+
+        Map<List<Object>, TDigest> digests = new HashMap<>();
+        for (List<Object> row : result.getResult()) {
+            Map<?, ?> histogram = (Map<?, ?>) row.get(keys);
+            if (histogram == null) {
+                continue;
+            }
+            TDigest digest = digests.computeIfAbsent(new ArrayList<>(row.subList(0, keys)), key -> new TDigest());
+            for (Map.Entry<?, ?> bucket : histogram.entrySet()) {
+                double weight = ((Number) bucket.getValue()).doubleValue();
+                if (weight > 0) {
+                    digest.add(Double.parseDouble(bucket.getKey().toString()), weight);
+                }
+            }
+        }
+
+        List<List<Object>> rows = digests.entrySet().stream()
+                .filter(entry -> entry.getValue().size() > 0)
+                .map(entry -> {
+                    List<Object> row = new ArrayList<>(entry.getKey());
+                    row.add(entry.getValue().quantile(percentile));
+                    return row;
+                })
+                .sorted(Comparator.comparing((List<Object> row) -> (Double) row.get(keys)).reversed())
+                .limit(100)
+                .collect(Collectors.toList());
+
+        List<SchemaField> metadata = new ArrayList<>(result.getMetadata().subList(0, keys));
+        metadata.add(new SchemaField("value", FieldType.DOUBLE));
+
+        QueryResult merged = new QueryResult(metadata, rows, result.getProperties());
+        merged.setProperty("olapTable", table);
+        return merged;
+    }
+
     private String generateComputeQuery(Reference grouping, Reference segment, String collection) {
         StringBuilder selectBuilder = new StringBuilder();
         if (grouping != null) {
@@ -369,6 +428,12 @@ public abstract class AbstractEventExplorer implements EventExplorer {
                 return "sum(%s)";
             case COUNT_UNIQUE:
                 throw new UnsupportedOperationException();
+            case PERCENTILE_50:
+            case PERCENTILE_90:
+            case PERCENTILE_95:
+            case PERCENTILE_99:
+                // the histograms are merged by mergePercentiles
+                return "%s";
             case APPROXIMATE_UNIQUE:
                 return getFinalForApproximateUniqueFunction();
             default:
@@ -408,7 +473,7 @@ public abstract class AbstractEventExplorer implements EventExplorer {
                                             " from continuous._event_explorer_metrics where %s group by 1", timePredicate);
         }
 
-        return executor.executeQuery(project, query, 20000).getResult();
+        return executor.executeQuery(project, query, 20000, DASHBOARD).getResult();
     }
 
     @Override
@@ -11,7 +11,33 @@ public enum AggregationType {
     MINIMUM,
     MAXIMUM,
     AVERAGE,
-    APPROXIMATE_UNIQUE;
+    APPROXIMATE_UNIQUE,
+    PERCENTILE_50(.5),
+    PERCENTILE_90(.9),
+    PERCENTILE_95(.95),
+    PERCENTILE_99(.99),
+    TOP_K;
+
+    private final double percentile;
+
+    AggregationType() {
+        this(Double.NaN);
+    }
+
+    AggregationType(double percentile) {
+        this.percentile = percentile;
+    }
+
+    public boolean isPercentile() {
+        return !Double.isNaN(percentile);
+    }
+
+    public double getPercentile() {
+        if (!isPercentile()) {
+            throw new IllegalStateException(name() + " is not a percentile aggregation");
+        }
+        return percentile;
+    }
 
     @JsonCreator
     public static AggregationType get(String name) {
@@ -1,6 +1,7 @@
 package org.rakam.report.realtime;
 
 import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
 import io.airlift.units.Duration;
 import io.airlift.units.MinDuration;
 
@@ -9,6 +10,8 @@ public class RealTimeConfig {
     private boolean enabled;
     private Duration windowInterval = Duration.valueOf("75s");
     private Duration slideInterval = Duration.valueOf("5s");
+    private boolean inMemoryEnabled;
+    private int maxGroupsPerReport = 10000;
 
     @Config("real-time.enabled")
     public RealTimeConfig setRealtimeModuleEnabled(boolean enabled) {
@@ -44,4 +47,30 @@ public class RealTimeConfig {
         this.slideInterval = Duration.valueOf(slideInterval);
         return this;
     }
+
+    public boolean isInMemoryEnabled()
+    {
+        return inMemoryEnabled;
+    }
+
+    @Config("realtime.in-memory.enabled")
+    @ConfigDescription("Serves the real-time reports from the windows that are kept in memory. The windows only contain " +
+            "the events collected by the node, enable it only if a single node collects the events.")
+    public RealTimeConfig setInMemoryEnabled(boolean inMemoryEnabled)
+    {
+        this.inMemoryEnabled = inMemoryEnabled;
+        return this;
+    }
+
+    public int getMaxGroupsPerReport()
+    {
+        return maxGroupsPerReport;
+    }
+
+    @Config("realtime.in-memory.max-groups")
+    public RealTimeConfig setMaxGroupsPerReport(int maxGroupsPerReport)
+    {
+        this.maxGroupsPerReport = maxGroupsPerReport;
+        return this;
+    }
 }
@@ -0,0 +1,158 @@
+package org.rakam.util;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.Encoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static java.lang.String.format;
+
+/**
+ * Writes the records in Avro binary format with a plan that is compiled once for each schema instead of walking
+ * the schema for each record as {@link GenericDatumWriter} does. The fields that are not accepted by the filter are
+ * not written so the output should be read with the schema of the remaining fields.
+ */
+public class AvroRecordWriter {
+    private final LoadingCache<Schema, FieldWriter[]> plans;
+
+    public AvroRecordWriter(Predicate<Schema.Field> fieldFilter) {
+        // the weak keys are compared by identity, the plans of the old schemas are collected when a schema is changed
+        this.plans = CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Schema, FieldWriter[]>() {
+            @Override
+            public FieldWriter[] load(Schema schema) throws Exception {
+                List<FieldWriter> writers = new ArrayList<>();
+                for (Schema.Field field : schema.getFields()) {
+                    if (fieldFilter.test(field)) {
+                        writers.add(new FieldWriter(field, compile(field.schema())));
+                    }
+                }
+                return writers.toArray(new FieldWriter[writers.size()]);
+            }
+        });
+    }
+
+    public void write(GenericRecord record, Encoder out) throws IOException {
+        for (FieldWriter writer : plans.getUnchecked(record.getSchema())) {
+            writer.write(record, out);
+        }
+    }
+
+    private static ValueWriter compile(Schema schema) {
+        switch (schema.getType()) {
+            case NULL:
+                return (value, out) -> out.writeNull();
+            case BOOLEAN:
+                return (value, out) -> out.writeBoolean((Boolean) value);
+            case INT:
+                return (value, out) -> out.writeInt(((Number) value).intValue());
+            case LONG:
+                return (value, out) -> out.writeLong(((Number) value).longValue());
+            case FLOAT:
+                return (value, out) -> out.writeFloat(((Number) value).floatValue());
+            case DOUBLE:
+                return (value, out) -> out.writeDouble(((Number) value).doubleValue());
+            case STRING:
+                return (value, out) -> out.writeString((CharSequence) value);
+            case BYTES:
+                return (value, out) -> out.writeBytes((ByteBuffer) value);
+            case ARRAY:
+                ValueWriter elementWriter = compile(schema.getElementType());
+                return (value, out) -> {
+                    Collection<?> array = (Collection<?>) value;
+                    out.writeArrayStart();
+                    out.setItemCount(array.size());
+                    for (Object element : array) {
+                        out.startItem();
+                        elementWriter.write(element, out);
+                    }
+                    out.writeArrayEnd();
+                };
+            case MAP:
+                ValueWriter valueWriter = compile(schema.getValueType());
+                return (value, out) -> {
+                    Map<?, ?> map = (Map<?, ?>) value;
+                    out.writeMapStart();
+                    out.setItemCount(map.size());
+                    for (Map.Entry<?, ?> entry : map.entrySet()) {
+                        out.startItem();
+                        out.writeString((CharSequence) entry.getKey());
+                        valueWriter.write(entry.getValue(), out);
+                    }
+                    out.writeMapEnd();
+                };
+            case UNION:
+                return compileUnion(schema);
+            default:
+                // the collection schemas don't have the named types
+                GenericDatumWriter<Object> writer = new GenericDatumWriter<>(schema);
+                return writer::write;
+        }
+    }
+
+    private static ValueWriter compileUnion(Schema schema) {
+        List<Schema> types = schema.getTypes();
+        ValueWriter[] writers = new ValueWriter[types.size()];
+        for (int i = 0; i < types.size(); i++) {
+            writers[i] = compile(types.get(i));
+        }
+
+        Integer nullIndex = schema.getIndexNamed(Schema.Type.NULL.getName());
+        if (nullIndex != null && types.size() == 2) {
+            // the fields of the collections are nullable values
+            int valueIndex = 1 - nullIndex;
+            ValueWriter writer = writers[valueIndex];
+            return (value, out) -> {
+                if (value == null) {
+                    out.writeIndex(nullIndex);
+                    out.writeNull();
+                } else {
+                    out.writeIndex(valueIndex);
+                    writer.write(value, out);
+                }
+            };
+        }
+
+        return (value, out) -> {
+            int index = GenericData.get().resolveUnion(schema, value);
+            out.writeIndex(index);
+            writers[index].write(value, out);
+        };
+    }
+
+    private interface ValueWriter {
+        void write(Object value, Encoder out) throws IOException;
+    }
+
+    private static class FieldWriter {
+        private final int position;
+        private final Schema.Field field;
+        private final ValueWriter writer;
+
+        private FieldWriter(Schema.Field field, ValueWriter writer) {
+            this.position = field.pos();
+            this.field = field;
+            this.writer = writer;
+        }
+
+        private void write(GenericRecord record, Encoder out) throws IOException {
+            try {
+                writer.write(record.get(position), out);
+            } catch (NullPointerException | ClassCastException e) {
+                throw new IllegalArgumentException(format("Invalid value for field %s (%s): %s",
+                        field.name(), field.schema(), e.getMessage()), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.rakam.util;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.avro.io.BinaryEncoder;
+
+import java.io.IOException;
+
+/**
+ * Avro binary encoder that writes into a {@link ByteBuf} without an intermediate buffer so that the records can be
+ * encoded directly into the pooled buffers that are handed to the clients. The strings are encoded into the buffer
+ * without creating a byte array for each of them.
+ */
+public class ByteBufEncoder extends BinaryEncoder {
+    private ByteBuf buffer;
+
+    public ByteBufEncoder(ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
+    public ByteBuf getBuffer() {
+        return buffer;
+    }
+
+    public ByteBufEncoder setBuffer(ByteBuf buffer) {
+        this.buffer = buffer;
+        return this;
+    }
+
+    @Override
+    public void writeBoolean(boolean b) throws IOException {
+        buffer.writeByte(b ? 1 : 0);
+    }
+
+    @Override
+    public void writeInt(int n) throws IOException {
+        int value = (n << 1) ^ (n >> 31);
+        while ((value & ~0x7F) != 0) {
+            buffer.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte(value);
+    }
+
+    @Override
+    public void writeLong(long n) throws IOException {
+        long value = (n << 1) ^ (n >> 63);
+        while ((value & ~0x7FL) != 0) {
+            buffer.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.writeByte((int) value);
+    }
+
+    @Override
+    public void writeFloat(float f) throws IOException {
+        buffer.writeInt(Integer.reverseBytes(Float.floatToRawIntBits(f)));
+    }
+
+    @Override
+    public void writeDouble(double d) throws IOException {
+        buffer.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(d)));
+    }
+
+    @Override
+    public void writeFixed(byte[] bytes, int start, int len) throws IOException {
+        buffer.writeBytes(bytes, start, len);
+    }
+
+    @Override
+    public void writeString(String string) throws IOException {
+        int length = utf8Length(string);
+        writeInt(length);
+        if (length == 0) {
+            return;
+        }
+
+        buffer.ensureWritable(length);
+        int index = buffer.writerIndex();
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer.setByte(index++, c);
+            } else if (c < 0x800) {
+                buffer.setByte(index++, 0xC0 | (c >> 6));
+                buffer.setByte(index++, 0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (isSurrogatePair(string, i)) {
+                    int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                    buffer.setByte(index++, 0xF0 | (codePoint >> 18));
+                    buffer.setByte(index++, 0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer.setByte(index++, 0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer.setByte(index++, 0x80 | (codePoint & 0x3F));
+                } else {
+                    // String.getBytes replaces the malformed surrogates the same way
+                    buffer.setByte(index++, '?');
+                }
+            } else {
+                buffer.setByte(index++, 0xE0 | (c >> 12));
+                buffer.setByte(index++, 0x80 | ((c >> 6) & 0x3F));
+                buffer.setByte(index++, 0x80 | (c & 0x3F));
+            }
+        }
+        buffer.writerIndex(index);
+    }
+
+    static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (isSurrogatePair(string, i)) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 1;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isSurrogatePair(String string, int index) {
+        return Character.isHighSurrogate(string.charAt(index)) && index + 1 < string.length()
+                && Character.isLowSurrogate(string.charAt(index + 1));
+    }
+
+    @Override
+    protected void writeZero() throws IOException {
+        buffer.writeByte(0);
+    }
+
+    @Override
+    public int bytesBuffered() {
+        return 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+}
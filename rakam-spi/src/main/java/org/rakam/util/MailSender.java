@@ -31,6 +31,20 @@ public class MailSender {
 
     public void sendMail(String toEmail, String title, String textContent, Optional<String> richText)
             throws MessagingException {
+        Transport.send(createMessage(toEmail, title, textContent, richText));
+    }
+
+    /**
+     * Opens a connection to the SMTP server that is used for all the mails sent with the returned batch.
+     */
+    public Batch openBatch() throws MessagingException {
+        Transport transport = session.getTransport();
+        transport.connect();
+        return new Batch(transport);
+    }
+
+    private Message createMessage(String toEmail, String title, String textContent, Optional<String> richText)
+            throws MessagingException {
         Message msg = new MimeMessage(session);
         msg.setFrom(fromAddress);
         msg.addRecipient(TO, new InternetAddress(toEmail));
@@ -43,6 +57,26 @@ public class MailSender {
             mp.addBodyPart(htmlPart);
             msg.setContent(mp);
         }
-        Transport.send(msg);
+        msg.saveChanges();
+        return msg;
+    }
+
+    public class Batch implements AutoCloseable {
+        private final Transport transport;
+
+        private Batch(Transport transport) {
+            this.transport = transport;
+        }
+
+        public void sendMail(String toEmail, String title, String textContent, Optional<String> richText)
+                throws MessagingException {
+            Message msg = createMessage(toEmail, title, textContent, richText);
+            transport.sendMessage(msg, msg.getAllRecipients());
+        }
+
+        @Override
+        public void close() throws MessagingException {
+            transport.close();
+        }
     }
 }
@@ -0,0 +1,86 @@
+package org.rakam.analysis.sketch;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TestSketches {
+    @Test
+    public void testHyperLogLogMerge() throws Exception {
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+        for (int i = 0; i < 100000; i++) {
+            first.add(i);
+            second.add(i + 50000);
+        }
+
+        first.merge(HyperLogLog.deserialize(second.serialize()));
+        long estimate = HyperLogLog.deserialize(first.serialize()).cardinality();
+        assertTrue(Math.abs(estimate - 150000) < 150000 * 0.05, "estimate: " + estimate);
+    }
+
+    @Test
+    public void testHyperLogLogSparseIsExact() throws Exception {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 100; i++) {
+            sketch.add("user" + (i % 40));
+        }
+
+        assertEquals(HyperLogLog.deserialize(sketch.serialize()).cardinality(), 40);
+    }
+
+    @Test
+    public void testHyperLogLogMatchesPostgresql() throws Exception {
+        // ('x' || substr(md5('user48'), 1, 16))::bit(64)::bigint
+        assertEquals(HyperLogLog.hash("user48"), -7926197561972725664L);
+        assertEquals(HyperLogLog.hash(42), HyperLogLog.hash("42"));
+
+        HyperLogLog sketch = new HyperLogLog();
+        sketch.add("user48");
+        byte[] dense = sketch.serializeDense();
+        assertEquals(dense.length, 2 + 2048);
+        assertEquals(dense[0], 1);
+        assertEquals(dense[1], 11);
+        // rakam_hll_add puts the value to the register 1168 with the rank 7
+        assertEquals(dense[2 + 1168], 7);
+        assertEquals(HyperLogLog.deserialize(dense).cardinality(), 1);
+    }
+
+    @Test
+    public void testTDigestQuantiles() throws Exception {
+        Random random = new Random(0);
+        TDigest first = new TDigest();
+        TDigest second = new TDigest();
+        for (int i = 0; i < 100000; i++) {
+            (i % 2 == 0 ? first : second).add(random.nextDouble() * 1000);
+        }
+
+        first.merge(TDigest.deserialize(second.serialize()));
+        assertEquals(first.size(), 100000.0);
+        assertEquals(first.quantile(.5), 500, 10);
+        assertEquals(first.quantile(.99), 990, 2);
+        assertEquals(first.quantile(0), TDigest.deserialize(first.serialize()).quantile(0));
+    }
+
+    @Test
+    public void testSpaceSavingTopK() throws Exception {
+        SpaceSaving first = new SpaceSaving(10);
+        SpaceSaving second = new SpaceSaving(10);
+        for (int i = 0; i < 1000; i++) {
+            first.offer("frequent" + (i % 3));
+            first.offer("rare" + i);
+            second.offer("frequent0");
+        }
+
+        first.merge(SpaceSaving.deserialize(second.serialize()));
+        List<SpaceSaving.Entry> top = first.topK(3);
+        assertEquals(top.get(0).item, "frequent0");
+        assertTrue(top.get(0).count - top.get(0).error <= 1334 && top.get(0).count >= 1334);
+        assertEquals(top.get(1).item.substring(0, 8), "frequent");
+        assertEquals(top.get(2).item.substring(0, 8), "frequent");
+    }
+}
@@ -0,0 +1,114 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.flatbuf.Schema;
+import org.apache.arrow.flatbuf.Type;
+import org.rakam.collection.SchemaField;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+
+public class TestArrowStreamWriter {
+    @Test
+    public void testStream() throws Exception {
+        ColumnarQueryResult.Builder builder = new ColumnarQueryResult.Builder(ImmutableList.of(
+                new SchemaField("name", STRING), new SchemaField("count", LONG)));
+        builder.appendRow(Arrays.asList("a", 1L));
+        builder.appendRow(Arrays.asList(null, 2L));
+        builder.appendRow(Arrays.asList("bc", null));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ArrowStreamWriter.write(builder.build(ImmutableMap.of()), output);
+        ByteBuffer stream = ByteBuffer.wrap(output.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+        Message schemaMessage = readMessage(stream);
+        assertEquals(schemaMessage.headerType(), MessageHeader.Schema);
+        Schema schema = (Schema) schemaMessage.header(new Schema());
+        assertEquals(schema.fieldsLength(), 2);
+        assertEquals(schema.fields(0).name(), "name");
+        assertEquals(schema.fields(0).typeType(), Type.Utf8);
+        assertEquals(schema.fields(1).typeType(), Type.Int);
+
+        Message batchMessage = readMessage(stream);
+        assertEquals(batchMessage.headerType(), MessageHeader.RecordBatch);
+        RecordBatch batch = (RecordBatch) batchMessage.header(new RecordBatch());
+        assertEquals(batch.length(), 3);
+        assertEquals(batch.nodes(0).nullCount(), 1);
+        assertEquals(batch.nodes(1).nullCount(), 1);
+
+        ByteBuffer body = stream.slice().order(ByteOrder.LITTLE_ENDIAN);
+        // validity, offsets and data buffers of the string column
+        assertEquals((int) body.get((int) batch.buffers(0).offset()), 0b101);
+        int offsets = (int) batch.buffers(1).offset();
+        assertEquals(body.getInt(offsets + 12), 3);
+        // values of the long column
+        assertEquals(body.getLong((int) batch.buffers(4).offset() + 8), 2L);
+
+        stream.position(stream.position() + (int) batchMessage.bodyLength());
+        assertEquals(stream.getInt(), 0xFFFFFFFF);
+        assertEquals(stream.getInt(), 0);
+        assertEquals(stream.remaining(), 0);
+    }
+
+    @Test
+    public void testStreamInParts() throws Exception {
+        ImmutableList<SchemaField> metadata = ImmutableList.of(new SchemaField("count", LONG));
+        ArrowStreamWriter.Stream writer = new ArrowStreamWriter.Stream(metadata);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (long page = 0; page < 2; page++) {
+            ColumnarQueryResult.Builder builder = new ColumnarQueryResult.Builder(metadata);
+            builder.appendRow(Arrays.asList(page));
+            builder.appendRow(Arrays.asList(page));
+            writer.writeBatch(builder.build(ImmutableMap.of()), output);
+        }
+        writer.finish(output);
+        ByteBuffer stream = ByteBuffer.wrap(output.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(readMessage(stream).headerType(), MessageHeader.Schema);
+        for (int i = 0; i < 2; i++) {
+            Message batchMessage = readMessage(stream);
+            assertEquals(batchMessage.headerType(), MessageHeader.RecordBatch);
+            assertEquals(((RecordBatch) batchMessage.header(new RecordBatch())).length(), 2);
+            stream.position(stream.position() + (int) batchMessage.bodyLength());
+        }
+
+        assertEquals(stream.getInt(), 0xFFFFFFFF);
+        assertEquals(stream.getInt(), 0);
+        assertEquals(stream.remaining(), 0);
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ArrowStreamWriter.Stream(ImmutableList.of(new SchemaField("name", STRING))).finish(output);
+        ByteBuffer stream = ByteBuffer.wrap(output.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+        Schema schema = (Schema) readMessage(stream).header(new Schema());
+        assertEquals(schema.fields(0).typeType(), Type.Utf8);
+        assertEquals(stream.getInt(), 0xFFFFFFFF);
+        assertEquals(stream.getInt(), 0);
+    }
+
+    private Message readMessage(ByteBuffer stream) {
+        assertEquals(stream.getInt(), 0xFFFFFFFF);
+        int length = stream.getInt();
+        assertEquals(length % 8, 0);
+
+        ByteBuffer metadata = stream.slice().order(ByteOrder.LITTLE_ENDIAN);
+        metadata.limit(length);
+        stream.position(stream.position() + length);
+        return Message.getRootAsMessage(metadata);
+    }
+}
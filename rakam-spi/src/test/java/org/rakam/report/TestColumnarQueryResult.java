@@ -0,0 +1,69 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.collection.SchemaField;
+import org.rakam.util.JsonHelper;
+import org.testng.annotations.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestColumnarQueryResult {
+    private ColumnarQueryResult build() {
+        ColumnarQueryResult.Builder builder = new ColumnarQueryResult.Builder(ImmutableList.of(
+                new SchemaField("name", STRING), new SchemaField("count", LONG),
+                new SchemaField("ratio", DOUBLE), new SchemaField("active", BOOLEAN)));
+        builder.appendRow(Arrays.asList("a", 1L, 0.5, true));
+        builder.appendRow(Arrays.asList("b,\"c\"", null, 1.5, false));
+        builder.appendRow(Arrays.asList("a", 3L, null, null));
+        return builder.build(ImmutableMap.of());
+    }
+
+    @Test
+    public void testRowView() throws Exception {
+        ColumnarQueryResult result = build();
+
+        assertEquals(result.getRowCount(), 3);
+        assertEquals(result.getResult().get(0), ImmutableList.of("a", 1L, 0.5, true));
+        assertNull(result.getResult().get(1).get(1));
+        assertEquals(((ColumnVector.StringVector) result.getColumn(0)).getDictionarySize(), 2);
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        String json = JsonHelper.encode(build());
+
+        assertTrue(json.contains("\"result\":[[\"a\",1,0.5,true],[\"b,\\\"c\\\"\",null,1.5,false],[\"a\",3,null,null]]"), json);
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        StringWriter writer = new StringWriter();
+        build().writeCsv(writer);
+
+        assertEquals(writer.toString(), "name,count,ratio,active\r\n" +
+                "a,1,0.5,true\r\n" +
+                "\"b,\"\"c\"\"\",,1.5,false\r\n" +
+                "a,3,,\r\n");
+    }
+
+    @Test
+    public void testFallbackToObjectVector() throws Exception {
+        ColumnarQueryResult.Builder builder = new ColumnarQueryResult.Builder(ImmutableList.of(new SchemaField("value", LONG)));
+        builder.appendRow(Arrays.asList(1L));
+        builder.appendRow(Arrays.asList("not a number"));
+        ColumnarQueryResult result = builder.build(ImmutableMap.of());
+
+        assertTrue(result.getColumn(0) instanceof ColumnVector.ObjectVector);
+        assertEquals(result.getResult(), ImmutableList.of(ImmutableList.of(1L), ImmutableList.of("not a number")));
+    }
+}
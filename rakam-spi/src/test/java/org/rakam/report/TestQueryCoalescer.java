@@ -0,0 +1,125 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TestQueryCoalescer {
+    @Test
+    public void testIdenticalQueriesShareExecution() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        AtomicInteger executed = new AtomicInteger();
+        CompletableFuture<QueryResult> result = new CompletableFuture<>();
+
+        QueryExecution first = coalescer.execute("test", "select 1", () -> execution(executed, result));
+        QueryExecution second = coalescer.execute("test", "select 1", () -> execution(executed, result));
+        QueryExecution otherProject = coalescer.execute("test1", "select 1", () -> execution(executed, new CompletableFuture<>()));
+
+        assertEquals(executed.get(), 2);
+
+        QueryResult queryResult = QueryResult.empty();
+        result.complete(queryResult);
+        assertEquals(first.getResult().join(), queryResult);
+        assertEquals(second.getResult().join(), queryResult);
+        assertFalse(otherProject.isFinished());
+
+        coalescer.execute("test", "select 1", () -> execution(executed, new CompletableFuture<>()));
+        assertEquals(executed.get(), 3);
+    }
+
+    @Test
+    public void testKillOnlyWhenAllCallersKill() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        AtomicInteger executed = new AtomicInteger();
+        CompletableFuture<QueryResult> result = new CompletableFuture<>();
+
+        QueryExecution first = coalescer.execute("test", "select 1", () -> execution(executed, result));
+        QueryExecution second = coalescer.execute("test", "select 1", () -> execution(executed, result));
+
+        first.kill();
+        first.kill();
+        assertFalse(result.isDone());
+
+        second.kill();
+        assertTrue(result.isDone());
+        assertEquals(coalescer.getInFlightQueryCount(), 0);
+    }
+
+    @Test
+    public void testCallersDontShareProperties() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        AtomicInteger executed = new AtomicInteger();
+        CompletableFuture<QueryResult> result = new CompletableFuture<>();
+
+        QueryExecution first = coalescer.execute("test", "select 1", () -> execution(executed, result));
+        QueryExecution second = coalescer.execute("test", "select 1", () -> execution(executed, result));
+        result.complete(new QueryResult(ImmutableList.of(), ImmutableList.of()));
+
+        QueryResult firstResult = first.getResult().join();
+        QueryResult secondResult = second.getResult().join();
+        assertNotSame(firstResult, secondResult);
+
+        firstResult.setProperty(QueryResult.EXECUTION_TIME, 10);
+        assertEquals(firstResult.getProperties().get(QueryResult.EXECUTION_TIME), 10);
+        assertNull(secondResult.getProperties());
+    }
+
+    @Test
+    public void testAttachedCallerIsNotBlockedBeforeStart() throws Exception {
+        QueryCoalescer coalescer = new QueryCoalescer();
+        AtomicInteger executed = new AtomicInteger();
+        AtomicReference<QueryExecution> attached = new AtomicReference<>();
+
+        coalescer.execute("test", "select 1", () -> {
+            // the query is registered but not started yet
+            QueryExecution execution = coalescer.execute("test", "select 1", () -> execution(executed, new CompletableFuture<>()));
+            assertEquals(execution.currentStats().state, QueryStats.State.QUEUED);
+            assertFalse(execution.isFinished());
+            assertEquals(execution.getQuery(), "select 1");
+            attached.set(execution);
+            return execution(executed, new CompletableFuture<>());
+        });
+
+        assertEquals(executed.get(), 1);
+        assertEquals(attached.get().currentStats().state, QueryStats.State.RUNNING);
+    }
+
+    private static QueryExecution execution(AtomicInteger executed, CompletableFuture<QueryResult> result) {
+        executed.incrementAndGet();
+        return new QueryExecution() {
+            @Override
+            public QueryStats currentStats() {
+                return new QueryStats(QueryStats.State.RUNNING);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return result.isDone();
+            }
+
+            @Override
+            public CompletableFuture<QueryResult> getResult() {
+                return result;
+            }
+
+            @Override
+            public String getQuery() {
+                return "select 1";
+            }
+
+            @Override
+            public void kill() {
+                result.complete(QueryResult.errorResult(QueryError.create("killed")));
+            }
+        };
+    }
+}
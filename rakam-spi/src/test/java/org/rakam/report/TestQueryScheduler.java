@@ -0,0 +1,168 @@
+package org.rakam.report;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.rakam.report.QueryLane.BACKGROUND;
+import static org.rakam.report.QueryLane.DASHBOARD;
+import static org.rakam.report.QueryLane.INTERACTIVE;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TestQueryScheduler {
+    @Test
+    public void testGlobalLimit() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler(new QuerySchedulerConfig().setMaxConcurrentQueries(1));
+
+        TestingExecution first = new TestingExecution("first");
+        TestingExecution second = new TestingExecution("second");
+        QueryExecution firstExecution = scheduler.schedule("test", INTERACTIVE, "first", first::start);
+        QueryExecution secondExecution = scheduler.schedule("test", INTERACTIVE, "second", second::start);
+
+        assertTrue(first.started);
+        assertFalse(second.started);
+        assertEquals(secondExecution.currentStats().state, QueryStats.State.QUEUED);
+        assertEquals(scheduler.getStats().queued, 1);
+
+        first.finish();
+        assertTrue(firstExecution.getResult().isDone());
+        second.awaitStart();
+        second.finish();
+        assertFalse(secondExecution.getResult().get(5, TimeUnit.SECONDS).isFailed());
+        assertEquals(scheduler.getStats().running, 0);
+        // the timeout of the dispatched query is cancelled
+        assertEquals(scheduler.getPendingTimeouts(), 0);
+    }
+
+    @Test
+    public void testLanePriorityAndProjectFairness() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler(new QuerySchedulerConfig().setMaxConcurrentQueries(1));
+
+        List<String> started = new ArrayList<>();
+        TestingExecution running = new TestingExecution("running");
+        scheduler.schedule("a", INTERACTIVE, "running", running::start);
+
+        List<TestingExecution> executions = new ArrayList<>();
+        for (String[] query : new String[][]{{"a", "background"}, {"a", "a1"}, {"a", "a2"}, {"b", "b1"}}) {
+            TestingExecution execution = new TestingExecution(query[1], started);
+            executions.add(execution);
+            scheduler.schedule(query[0], query[1].equals("background") ? BACKGROUND : DASHBOARD, query[1], execution::start);
+        }
+
+        running.finish();
+        for (int i = 0; i < executions.size(); i++) {
+            TestingExecution next = awaitNext(executions);
+            next.finish();
+        }
+
+        assertEquals(started, ImmutableList.of("a1", "b1", "a2", "background"));
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler(new QuerySchedulerConfig()
+                .setMaxConcurrentQueriesPerProject(1).setQueueTimeout("100ms"));
+
+        scheduler.schedule("test", INTERACTIVE, "first", () -> new TestingExecution("first").start());
+        QueryExecution queued = scheduler.schedule("test", INTERACTIVE, "second", () -> new TestingExecution("second").start());
+
+        QueryResult result = queued.getResult().get(5, TimeUnit.SECONDS);
+        assertTrue(result.isFailed());
+        assertTrue(result.getError().message.contains("query.queue-timeout"), result.getError().message);
+        assertEquals(scheduler.getStats().totalTimedOut, 1);
+        assertEquals(scheduler.getStats().queued, 0);
+    }
+
+    @Test
+    public void testRejectWhenQueueIsFull() throws Exception {
+        QueryScheduler scheduler = new QueryScheduler(new QuerySchedulerConfig()
+                .setMaxConcurrentQueries(1).setMaxQueuedQueries(0));
+
+        scheduler.schedule("test", INTERACTIVE, "first", () -> new TestingExecution("first").start());
+        QueryExecution rejected = scheduler.schedule("test", INTERACTIVE, "second", () -> new TestingExecution("second").start());
+
+        assertTrue(rejected.getResult().join().isFailed());
+        assertEquals(scheduler.getStats().totalRejected, 1);
+    }
+
+    private static TestingExecution awaitNext(List<TestingExecution> executions) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            for (TestingExecution execution : executions) {
+                if (execution.started && !execution.result.isDone()) {
+                    return execution;
+                }
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("No query is started");
+    }
+
+    private static class TestingExecution implements QueryExecution {
+        private final String query;
+        private final List<String> startOrder;
+        private final CompletableFuture<QueryResult> result = new CompletableFuture<>();
+        private final CountDownLatch startLatch = new CountDownLatch(1);
+        private volatile boolean started;
+
+        private TestingExecution(String query) {
+            this(query, null);
+        }
+
+        private TestingExecution(String query, List<String> startOrder) {
+            this.query = query;
+            this.startOrder = startOrder;
+        }
+
+        TestingExecution start() {
+            if (startOrder != null) {
+                synchronized (startOrder) {
+                    startOrder.add(query);
+                }
+            }
+            started = true;
+            startLatch.countDown();
+            return this;
+        }
+
+        @Override
+        public QueryStats currentStats() {
+            return new QueryStats(QueryStats.State.RUNNING);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return result.isDone();
+        }
+
+        @Override
+        public CompletableFuture<QueryResult> getResult() {
+            return result;
+        }
+
+        @Override
+        public String getQuery() {
+            return query;
+        }
+
+        @Override
+        public void kill() {
+            result.complete(QueryResult.empty());
+        }
+
+        void finish() {
+            result.complete(QueryResult.empty());
+        }
+
+        void awaitStart() throws InterruptedException {
+            assertTrue(startLatch.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.rakam.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.rakam.collection.SchemaField;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import static org.rakam.collection.FieldType.ARRAY_STRING;
+import static org.rakam.collection.FieldType.BOOLEAN;
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.INTEGER;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.MAP_LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.rakam.util.AvroUtil.convertAvroSchema;
+import static org.testng.Assert.assertEquals;
+
+public class TestAvroRecordWriter {
+    private static final Schema SCHEMA = convertAvroSchema(ImmutableList.of(
+            new SchemaField("_user", STRING),
+            new SchemaField("count", INTEGER),
+            new SchemaField("time", LONG),
+            new SchemaField("price", DOUBLE),
+            new SchemaField("active", BOOLEAN),
+            new SchemaField("tags", ARRAY_STRING),
+            new SchemaField("totals", MAP_LONG),
+            new SchemaField("title", STRING)));
+
+    @Test
+    public void testSameOutputWithGenericWriter() throws Exception {
+        GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("_user", "user");
+        record.put("count", -42);
+        record.put("time", 1458240000000L);
+        record.put("price", 10.5);
+        record.put("active", true);
+        record.put("tags", ImmutableList.of("a", "", "\u011f\u00fc\u015f"));
+        record.put("totals", ImmutableMap.of("x", 1L, "y", Long.MIN_VALUE));
+        record.put("title", "emoji \uD83D\uDE00 and a broken \uD83D surrogate");
+
+        assertEquals(write(new AvroRecordWriter(field -> true), record), writeGeneric(SCHEMA, record));
+    }
+
+    @Test
+    public void testNullValues() throws Exception {
+        GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("title", "title");
+
+        assertEquals(write(new AvroRecordWriter(field -> true), record), writeGeneric(SCHEMA, record));
+    }
+
+    @Test
+    public void testFilteredFields() throws Exception {
+        GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("_user", "user");
+        record.put("count", 1);
+        record.put("title", "title");
+
+        Schema filteredSchema = Schema.createRecord("collection", null, null, false);
+        filteredSchema.setFields(SCHEMA.getFields().stream()
+                .filter(field -> !field.name().startsWith("_"))
+                .map(field -> new Schema.Field(field.name(), field.schema(), null, field.defaultValue()))
+                .collect(Collectors.toList()));
+        GenericRecord filteredRecord = new GenericData.Record(filteredSchema);
+        for (Schema.Field field : filteredSchema.getFields()) {
+            filteredRecord.put(field.name(), record.get(field.name()));
+        }
+
+        assertEquals(write(new AvroRecordWriter(field -> !field.name().startsWith("_")), record),
+                writeGeneric(filteredSchema, filteredRecord));
+    }
+
+    @Test
+    public void testUtf8Length() throws Exception {
+        for (String value : Arrays.asList("", "ascii", "\u011f\u00fc\u015f", "\u20ac", "\uD83D\uDE00", "\uD83D", "\uDE00a", "a\uD83D")) {
+            assertEquals(ByteBufEncoder.utf8Length(value), value.getBytes(StandardCharsets.UTF_8).length, value);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidValue() throws Exception {
+        GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("count", "not a number");
+
+        write(new AvroRecordWriter(field -> true), record);
+    }
+
+    private static byte[] write(AvroRecordWriter writer, GenericRecord record) throws Exception {
+        ByteBuf buffer = Unpooled.buffer(16);
+        writer.write(record, new ByteBufEncoder(buffer));
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.readBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] writeGeneric(Schema schema, GenericRecord record) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        new GenericDatumWriter<>(schema).write(record, encoder);
+        return out.toByteArray();
+    }
+}
@@ -25,6 +25,7 @@ import io.swagger.models.Tag;
 import org.flywaydb.core.Flyway;
 import org.rakam.analysis.AdminHttpService;
 import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.CacheStatsLogger;
 import org.rakam.analysis.ContinuousQueryHttpService;
 import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.analysis.CustomParameter;
@@ -41,6 +42,7 @@ import org.rakam.http.ForHttpServer;
 import org.rakam.http.HttpServerConfig;
 import org.rakam.http.WebServiceModule;
 import org.rakam.http.WebServiceModule.ProjectPermissionParameterFactory;
+import org.rakam.plugin.CacheStatsProvider;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.EventProcessor;
 import org.rakam.plugin.InjectionHook;
@@ -48,6 +50,7 @@ import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.user.AbstractUserService;
 import org.rakam.plugin.user.UserStorage;
 import org.rakam.plugin.user.mailbox.UserMailboxStorage;
+import org.rakam.report.QuerySchedulerConfig;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.WebSocketService;
 
@@ -139,6 +142,8 @@ public final class ServiceStarter {
 
             Multibinder.newSetBinder(binder, EventMapper.class);
             Multibinder.newSetBinder(binder, InjectionHook.class);
+            Multibinder.newSetBinder(binder, CacheStatsProvider.class);
+            binder.bind(CacheStatsLogger.class).asEagerSingleton();
             OptionalBinder.newOptionalBinder(binder, AbstractUserService.class);
             OptionalBinder.newOptionalBinder(binder, ContinuousQueryService.class);
             OptionalBinder.newOptionalBinder(binder, UserStorage.class);
@@ -189,6 +194,7 @@ public final class ServiceStarter {
 
             bindConfig(binder).to(HttpServerConfig.class);
             bindConfig(binder).to(ProjectConfig.class);
+            bindConfig(binder).to(QuerySchedulerConfig.class);
 
             binder.bind(EventLoopGroup.class)
                     .annotatedWith(ForHttpServer.class)
@@ -1,9 +1,13 @@
 package org.rakam.analysis;
 
+import com.google.common.cache.CacheStats;
 import org.rakam.bootstrap.SystemRegistry;
 import org.rakam.bootstrap.SystemRegistry.ModuleDescriptor;
 import org.rakam.collection.FieldType;
 import org.rakam.config.ProjectConfig;
+import org.rakam.plugin.CacheStatsProvider;
+import org.rakam.report.QueryExecutorService;
+import org.rakam.report.QueryScheduler.SchedulerStats;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.annotations.Api;
 import org.rakam.server.http.annotations.ApiOperation;
@@ -22,6 +26,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Path("/admin")
@@ -30,11 +35,15 @@ public class AdminHttpService extends HttpService {
     private final SystemRegistry systemRegistry;
     private final ActiveModuleList activeModules;
     private final ProjectConfig projectConfig;
+    private final QueryExecutorService queryExecutorService;
+    private final Set<CacheStatsProvider> caches;
 
     @Inject
-    public AdminHttpService(SystemRegistry systemRegistry, ProjectConfig projectConfig, ActiveModuleListBuilder activeModuleListBuilder) {
+    public AdminHttpService(SystemRegistry systemRegistry, ProjectConfig projectConfig, ActiveModuleListBuilder activeModuleListBuilder, QueryExecutorService queryExecutorService, Set<CacheStatsProvider> caches) {
         this.systemRegistry = systemRegistry;
         this.projectConfig = projectConfig;
+        this.queryExecutorService = queryExecutorService;
+        this.caches = caches;
         activeModules = activeModuleListBuilder.build();
     }
 
@@ -56,6 +65,24 @@ public class AdminHttpService extends HttpService {
         return Arrays.stream(FieldType.values()).collect(Collectors.toMap(FieldType::name, FieldType::getPrettyName));
     }
 
+    @ApiOperation(value = "Get query scheduler stats",
+            authorizations = @Authorization(value = "master_key")
+    )
+    @GET
+    @Path("/query_scheduler")
+    public SchedulerStats getQuerySchedulerStats() {
+        return queryExecutorService.getSchedulerStats();
+    }
+
+    @ApiOperation(value = "Get cache stats",
+            authorizations = @Authorization(value = "master_key")
+    )
+    @GET
+    @Path("/caches")
+    public Map<String, CacheInfo> getCacheStats() {
+        return caches.stream().collect(Collectors.toMap(CacheStatsProvider::getCacheName, CacheInfo::new));
+    }
+
     @ApiOperation(value = "Check lock key",
             authorizations = @Authorization(value = "master_key")
     )
@@ -75,5 +102,22 @@ public class AdminHttpService extends HttpService {
         return activeModules;
     }
 
+    public static class CacheInfo {
+        public final long size;
+        public final double hitRate;
+        public final long hitCount;
+        public final long missCount;
+        public final long evictionCount;
+
+        public CacheInfo(CacheStatsProvider cache) {
+            CacheStats stats = cache.getCacheStats();
+            this.size = cache.getCacheSize();
+            this.hitRate = stats.hitRate();
+            this.hitCount = stats.hitCount();
+            this.missCount = stats.missCount();
+            this.evictionCount = stats.evictionCount();
+        }
+    }
+
 
 }
@@ -0,0 +1,40 @@
+package org.rakam.analysis;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.airlift.log.Logger;
+import org.rakam.plugin.CacheStatsProvider;
+
+import javax.inject.Inject;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs the statistics of the caches of the modules periodically so that their sizes can be tuned for the traffic.
+ */
+public class CacheStatsLogger {
+    private final static Logger LOGGER = Logger.get(CacheStatsLogger.class);
+    private static final long LOG_INTERVAL_MINUTES = 5;
+
+    private final Set<CacheStatsProvider> caches;
+
+    @Inject
+    public CacheStatsLogger(Set<CacheStatsProvider> caches) {
+        this.caches = caches;
+        if (!caches.isEmpty()) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("cache-stats-logger").setDaemon(true).build());
+            executor.scheduleAtFixedRate(this::log, LOG_INTERVAL_MINUTES, LOG_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+
+    private void log() {
+        for (CacheStatsProvider cache : caches) {
+            CacheStats stats = cache.getCacheStats();
+            LOGGER.info("Cache %s: size %d, hit rate %.3f, hits %d, misses %d, evictions %d", cache.getCacheName(),
+                    cache.getCacheSize(), stats.hitRate(), stats.hitCount(), stats.missCount(), stats.evictionCount());
+        }
+    }
+}
@@ -4,6 +4,7 @@ import org.rakam.collection.SchemaField;
 import org.rakam.plugin.MaterializedView;
 import org.rakam.report.QueryError;
 import org.rakam.report.QueryExecution;
+import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
 import org.rakam.server.http.HttpService;
 import org.rakam.server.http.RakamHttpRequest;
@@ -25,16 +26,20 @@ import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
+import static org.rakam.report.QueryLane.BACKGROUND;
+
 @Path("/materialized-view")
 @Api(value = "/materialized-view", nickname = "materializedView", description = "Materialized View", tags = "materialized-view")
 public class MaterializedViewHttpService extends HttpService {
     private final MaterializedViewService service;
     private final QueryHttpService queryService;
+    private final QueryExecutorService queryExecutorService;
 
     @Inject
-    public MaterializedViewHttpService(MaterializedViewService service, QueryHttpService queryService) {
+    public MaterializedViewHttpService(MaterializedViewService service, QueryHttpService queryService, QueryExecutorService queryExecutorService) {
         this.service = service;
         this.queryService = queryService;
+        this.queryExecutorService = queryExecutorService;
     }
 
     @JsonRequest
@@ -116,14 +121,14 @@ public class MaterializedViewHttpService extends HttpService {
             @ApiResponse(code = 400, message = "Project does not exist.")})
     public void update(RakamHttpRequest request) {
         queryService.handleServerSentQueryExecution(request, MaterializedViewRequest.class,
-                (project, query) -> {
+                (project, query) -> queryExecutorService.schedule(project, BACKGROUND, null, () -> {
                     QueryExecution execution = service.lockAndUpdateView(project, service.get(project, query.name)).queryExecution;
                     if (execution == null) {
                         QueryResult result = QueryResult.errorResult(new QueryError("There is another process that updates materialized view", null, null, null, null));
                         return QueryExecution.completedQueryExecution(null, result);
                     }
                     return execution;
-                });
+                }));
     }
 
     public static class MaterializedViewRequest {
@@ -16,10 +16,23 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.Ints;
 import io.airlift.log.Logger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.EventLoopGroup;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
 import org.rakam.collection.SchemaField;
 import org.rakam.http.ForHttpServer;
+import org.rakam.report.ArrowStreamWriter;
+import org.rakam.report.ColumnarQueryResult;
 import org.rakam.report.QueryExecution;
 import org.rakam.report.QueryExecutorService;
 import org.rakam.report.QueryResult;
@@ -31,7 +44,6 @@ import org.rakam.server.http.annotations.ApiParam;
 import org.rakam.server.http.annotations.ApiResponse;
 import org.rakam.server.http.annotations.ApiResponses;
 import org.rakam.server.http.annotations.Authorization;
-import org.rakam.server.http.annotations.BodyParam;
 import org.rakam.server.http.annotations.IgnoreApi;
 import org.rakam.server.http.annotations.JsonRequest;
 import org.rakam.util.JsonHelper;
@@ -42,9 +54,13 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
@@ -55,10 +71,17 @@ import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.ACCEPT;
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONNECTION;
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 import static org.rakam.analysis.ApiKeyService.AccessKeyType.READ_KEY;
 import static org.rakam.server.http.HttpServer.errorMessage;
+import static org.rakam.server.http.HttpServer.returnError;
 import static org.rakam.util.JsonHelper.encode;
 import static org.rakam.util.JsonHelper.jsonObject;
 
@@ -67,6 +90,8 @@ import static org.rakam.util.JsonHelper.jsonObject;
 @Produces({"application/json"})
 public class QueryHttpService extends HttpService {
     private static final Logger LOGGER = Logger.get(QueryHttpService.class);
+    private static final String CSV_CONTENT_TYPE = "text/csv";
+
     private final QueryExecutorService executorService;
     private final ApiKeyService apiKeyService;
     private EventLoopGroup eventLoopGroup;
@@ -78,20 +103,183 @@ public class QueryHttpService extends HttpService {
     }
 
 
+    @POST
     @Path("/execute")
-    @ApiOperation(value = "Analyze events",
+    @ApiOperation(value = "Analyze events", request = ExecuteQuery.class, response = QueryResult.class,
+            notes = "The result is returned in Arrow IPC streaming format if the Accept header is application/vnd.apache.arrow.stream and as CSV if it's text/csv.",
             authorizations = @Authorization(value = "read_key")
     )
-    @JsonRequest
-    public CompletableFuture<QueryResult> execute(@Named("project") String project, @BodyParam ExecuteQuery query) {
-        return executorService.executeQuery(project, query.query, query.limit == null ? 5000 : query.limit).getResult().thenApply(result -> {
-            if (result.isFailed()) {
-                throw new RakamException(result.getError().toString(), BAD_REQUEST);
+    public void execute(@HeaderParam("Accept") String contentType, @Named("project") String project, RakamHttpRequest request) {
+        request.bodyHandler(body -> {
+            if (body == null || body.isEmpty()) {
+                returnError(request, "Request body is empty", BAD_REQUEST);
+                return;
+            }
+
+            ExecuteQuery query;
+            try {
+                query = JsonHelper.readSafe(body, ExecuteQuery.class);
+            } catch (IOException | RuntimeException e) {
+                returnError(request, "JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST);
+                return;
+            }
+            if (query == null) {
+                returnError(request, "query is required", BAD_REQUEST);
+                return;
+            }
+
+            int limit = query.limit == null ? 5000 : query.limit;
+            // the Arrow record batches are written as the pages of the query arrive instead of buffering the result
+            ArrowResponse arrowResponse = contentType != null && contentType.contains(ArrowStreamWriter.CONTENT_TYPE) ?
+                    new ArrowResponse(request) : null;
+
+            QueryExecution execution;
+            try {
+                execution = arrowResponse != null ?
+                        executorService.executeStreamingQuery(project, query.query, limit, arrowResponse) :
+                        executorService.executeQuery(project, query.query, limit);
+            } catch (RakamException e) {
+                returnError(request, e.getMessage(), e.getStatusCode());
+                return;
+            } catch (ClassCastException e) {
+                returnError(request, "Only SELECT queries are supported", BAD_REQUEST);
+                return;
+            } catch (RuntimeException e) {
+                returnError(request, "Couldn't execute query: " + e.getMessage(), BAD_REQUEST);
+                return;
             }
-            return result;
+
+            execution.getResult().whenComplete((result, ex) -> {
+                if (arrowResponse != null) {
+                    arrowResponse.finish(result, ex);
+                } else {
+                    sendResult(request, contentType, result, ex);
+                }
+            });
         });
     }
 
+    /**
+     * Writes the pages of a query as Arrow record batches in a chunked response. The headers are sent with the first
+     * page so that the query can still fail with an error status until then; a failure after the first page closes the
+     * connection before the end of the stream.
+     */
+    private static class ArrowResponse implements BiConsumer<List<SchemaField>, List<List<Object>>> {
+        private final RakamHttpRequest request;
+        private ArrowStreamWriter.Stream stream;
+        private boolean failed;
+
+        private ArrowResponse(RakamHttpRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public synchronized void accept(List<SchemaField> columns, List<List<Object>> page) {
+            if (failed) {
+                return;
+            }
+            if (stream == null) {
+                stream = new ArrowStreamWriter.Stream(columns);
+                HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
+                response.headers().set(CONTENT_TYPE, ArrowStreamWriter.CONTENT_TYPE);
+                HttpHeaders.setTransferEncodingChunked(response);
+                if (HttpHeaders.isKeepAlive(request)) {
+                    response.headers().set(CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+                }
+                request.context().write(response);
+            }
+
+            ColumnarQueryResult.Builder builder = new ColumnarQueryResult.Builder(columns);
+            for (List<Object> row : page) {
+                builder.appendRow(row);
+            }
+            write(output -> stream.writeBatch(builder.build(null), output), false);
+        }
+
+        synchronized void finish(QueryResult result, Throwable ex) {
+            if (stream == null) {
+                // nothing is sent yet, the result only has the metadata if the query is successful
+                sendResult(request, ArrowStreamWriter.CONTENT_TYPE, result, ex);
+                return;
+            }
+            if (failed) {
+                return;
+            }
+            if (ex != null || result.isFailed()) {
+                if (ex != null) {
+                    LOGGER.error(ex, "Error while streaming query result");
+                } else {
+                    LOGGER.error("Error while streaming query result: %s", result.getError());
+                }
+                failed = true;
+                request.context().close();
+                return;
+            }
+            write(output -> stream.finish(output), true);
+        }
+
+        private void write(ArrowWriteFunction function, boolean last) {
+            ByteBuf buffer = Unpooled.buffer();
+            try (ByteBufOutputStream output = new ByteBufOutputStream(buffer)) {
+                function.write(output);
+            } catch (IOException e) {
+                buffer.release();
+                LOGGER.error(e, "Error while serializing query result");
+                failed = true;
+                request.context().close();
+                return;
+            }
+
+            request.context().writeAndFlush(new DefaultHttpContent(buffer));
+            if (last) {
+                ChannelFuture lastContentFuture = request.context().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+                if (!HttpHeaders.isKeepAlive(request)) {
+                    lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+                }
+            }
+        }
+    }
+
+    private interface ArrowWriteFunction {
+        void write(OutputStream output) throws IOException;
+    }
+
+    private static void sendResult(RakamHttpRequest request, String contentType, QueryResult result, Throwable ex) {
+        if (ex != null) {
+            LOGGER.error(ex, "Error while executing query");
+            returnError(request, "Couldn't execute query: Internal error", INTERNAL_SERVER_ERROR);
+            return;
+        }
+        if (result.isFailed()) {
+            returnError(request, result.getError().toString(), BAD_REQUEST);
+            return;
+        }
+
+        ByteBuf buffer = Unpooled.buffer();
+        String responseType;
+        try (ByteBufOutputStream output = new ByteBufOutputStream(buffer)) {
+            if (contentType != null && contentType.contains(ArrowStreamWriter.CONTENT_TYPE)) {
+                responseType = ArrowStreamWriter.CONTENT_TYPE;
+                ArrowStreamWriter.write(ColumnarQueryResult.of(result), output);
+            } else if (contentType != null && contentType.contains(CSV_CONTENT_TYPE)) {
+                responseType = CSV_CONTENT_TYPE;
+                ColumnarQueryResult.of(result).writeCsv(new OutputStreamWriter(output, UTF_8));
+            } else {
+                responseType = "application/json";
+                output.write(JsonHelper.encodeAsBytes(result));
+            }
+        } catch (IOException e) {
+            buffer.release();
+            LOGGER.error(e, "Error while serializing query result");
+            returnError(request, "Couldn't serialize query result", INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, buffer);
+        response.headers().set(CONTENT_TYPE, responseType);
+        request.response(response).end();
+    }
+
     @GET
     @Consumes("text/event-stream")
     @IgnoreApi
@@ -109,15 +297,18 @@ public class QueryHttpService extends HttpService {
     }
 
     public <T> void handleServerSentQueryExecution(RakamHttpRequest request, Class<T> clazz, BiFunction<String, T, QueryExecution> executorFunction, ApiKeyService.AccessKeyType keyType, boolean killOnConnectionClose) {
-        if (!Objects.equals(request.headers().get(ACCEPT), "text/event-stream")) {
-            request.response("The endpoint only supports text/event-stream as Accept header", HttpResponseStatus.NOT_ACCEPTABLE).end();
+        String accept = request.headers().get(ACCEPT);
+        // the clients that read the results into dataframes get the final result as an Arrow stream instead of the events
+        boolean arrow = accept != null && accept.contains(ArrowStreamWriter.CONTENT_TYPE);
+        if (!arrow && !Objects.equals(accept, "text/event-stream")) {
+            request.response("The endpoint only supports text/event-stream and " + ArrowStreamWriter.CONTENT_TYPE + " as Accept header",
+                    HttpResponseStatus.NOT_ACCEPTABLE).end();
             return;
         }
 
-        RakamHttpRequest.StreamResponse response = request.streamResponse();
         List<String> data = request.params().get("data");
         if (data == null || data.isEmpty()) {
-            response.send("result", encode(errorMessage("data query parameter is required", BAD_REQUEST))).end();
+            sendError(request, arrow, "data query parameter is required");
             return;
         }
 
@@ -125,7 +316,7 @@ public class QueryHttpService extends HttpService {
         try {
             query = JsonHelper.readSafe(data.get(0), clazz);
         } catch (IOException e) {
-            response.send("result", encode(errorMessage("JSON couldn't parsed: " + e.getMessage(), BAD_REQUEST))).end();
+            sendError(request, arrow, "JSON couldn't parsed: " + e.getMessage());
             return;
         }
 
@@ -133,7 +324,7 @@ public class QueryHttpService extends HttpService {
         if (apiKey == null || data.isEmpty()) {
             String message = "api_key query parameter is required";
             SentryUtil.logException(request, new RakamException(message, BAD_REQUEST));
-            response.send("result", encode(errorMessage(message, BAD_REQUEST))).end();
+            sendError(request, arrow, message);
             return;
         }
 
@@ -144,15 +335,27 @@ public class QueryHttpService extends HttpService {
             execute = executorFunction.apply(project, query);
         } catch (RakamException e) {
             SentryUtil.logException(request, e);
-            response.send("result", encode(errorMessage("Couldn't execute query: " + e.getMessage(), BAD_REQUEST))).end();
+            sendError(request, arrow, "Couldn't execute query: " + e.getMessage());
             return;
         } catch (Exception e) {
             LOGGER.error(e, "Error while executing query");
-            response.send("result", encode(errorMessage("Couldn't execute query: Internal error", BAD_REQUEST))).end();
+            sendError(request, arrow, "Couldn't execute query: Internal error");
             return;
         }
 
-        handleServerSentQueryExecution(request, execute, killOnConnectionClose);
+        if (arrow) {
+            execute.getResult().whenComplete((result, ex) -> sendResult(request, accept, result, ex));
+        } else {
+            handleServerSentQueryExecution(request, execute, killOnConnectionClose);
+        }
+    }
+
+    private void sendError(RakamHttpRequest request, boolean arrow, String message) {
+        if (arrow) {
+            returnError(request, message, BAD_REQUEST);
+        } else {
+            request.streamResponse().send("result", encode(errorMessage(message, BAD_REQUEST))).end();
+        }
     }
 
     public void handleServerSentQueryExecution(RakamHttpRequest request, QueryExecution query, boolean killOnConnectionClose) {
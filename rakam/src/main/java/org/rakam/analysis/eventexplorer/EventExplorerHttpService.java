@@ -175,6 +175,11 @@ public class EventExplorerHttpService extends HttpService {
                 return Optional.of("sum(%s)");
             case COUNT_UNIQUE:
                 throw new UnsupportedOperationException("Not supported yet.");
+            case PERCENTILE_50:
+            case PERCENTILE_90:
+            case PERCENTILE_95:
+            case PERCENTILE_99:
+                return Optional.of(eventExplorer.getIntermediateForPercentileFunction());
             case APPROXIMATE_UNIQUE:
                 return Optional.of(eventExplorer.getIntermediateForApproximateUniqueFunction());
             default:
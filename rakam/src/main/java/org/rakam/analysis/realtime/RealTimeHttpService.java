@@ -5,7 +5,6 @@ import com.facebook.presto.sql.tree.Expression;
 import com.facebook.presto.sql.tree.QualifiedName;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
 import com.google.inject.Singleton;
 import io.airlift.units.Duration;
 import org.rakam.analysis.ContinuousQueryService;
@@ -36,6 +35,7 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -56,19 +56,27 @@ import static org.rakam.util.ValidationUtil.checkTableColumn;
 public class RealTimeHttpService extends HttpService {
     private final ContinuousQueryService service;
     private final QueryExecutor executor;
+    private final RealTimeWindowEngine engine;
     private final SqlParser sqlParser = new SqlParser();
     private final Duration slide;
     private final Duration window;
+    private final boolean inMemoryEnabled;
 
     private final String timestampToEpochFunction;
 
+    public RealTimeHttpService(ContinuousQueryService service, QueryExecutor executor, RealTimeConfig config, String timestampToEpochFunction) {
+        this(service, executor, config, timestampToEpochFunction, new RealTimeWindowEngine(service, config));
+    }
+
     @Inject
-    public RealTimeHttpService(ContinuousQueryService service, QueryExecutor executor, RealTimeConfig config, @TimestampToEpochFunction String timestampToEpochFunction) {
+    public RealTimeHttpService(ContinuousQueryService service, QueryExecutor executor, RealTimeConfig config, @TimestampToEpochFunction String timestampToEpochFunction, RealTimeWindowEngine engine) {
         this.service = requireNonNull(service, "service is null");
         this.executor = requireNonNull(executor, "executor is null");
+        this.engine = requireNonNull(engine, "engine is null");
         RealTimeConfig realTimeConfig = requireNonNull(config, "config is null");
         this.window = realTimeConfig.getWindowInterval();
         this.slide = realTimeConfig.getSlideInterval();
+        this.inMemoryEnabled = realTimeConfig.isInMemoryEnabled();
         this.timestampToEpochFunction = requireNonNull(timestampToEpochFunction, "timestampToEpochFunction is null");
     }
 
@@ -87,6 +95,10 @@ public class RealTimeHttpService extends HttpService {
     @ApiOperation(value = "Create report", authorizations = @Authorization(value = "master_key"))
     @Path("/create")
     public CompletableFuture<JsonResponse> createTable(@Named("project") String project, @BodyParam RealTimeReport report) {
+        if (!inMemoryEnabled && report.measures.stream().anyMatch(measure -> isInMemoryOnly(measure.aggregation))) {
+            throw new RakamException("Percentiles and TOP_K are only supported when the in-memory real-time windows are enabled.", BAD_REQUEST);
+        }
+
         String sqlQuery = new StringBuilder().append("select ")
                 .append(format("(cast(" + timestampToEpochFunction + "(_time) as bigint) / %d) as _time, ", slide.roundTo(TimeUnit.SECONDS)))
                 .append(createFinalSelect(report.measures, report.dimensions))
@@ -105,8 +117,13 @@ public class RealTimeHttpService extends HttpService {
                 report.table_name,
                 sqlQuery,
                 ImmutableList.of(),
-                ImmutableMap.of("realtime", true, "aggregation", report.measures));
-        return service.create(project, query, false).getResult().thenApply(JsonResponse::map);
+                ImmutableMap.of("realtime", true, "aggregation", report.measures, "report", report));
+        return service.create(project, query, false).getResult().thenApply(result -> {
+            if (!result.isFailed()) {
+                engine.register(project, report);
+            }
+            return JsonResponse.map(result);
+        });
     }
 
     @JsonRequest
@@ -152,6 +169,19 @@ public class RealTimeHttpService extends HttpService {
         long previousWindow = (dateStart == null ? (last_update - window.toMillis()) : dateStart.toEpochMilli()) / (slide.toMillis());
         long currentWindow = (dateEnd == null ? last_update : dateEnd.toEpochMilli()) / slide.toMillis();
 
+        if (expression == null) {
+            Optional<Object> inMemoryResult = engine.query(project, tableName, measure,
+                    noDimension ? ImmutableList.of() : dimensions, aggregate, previousWindow, currentWindow);
+            if (inMemoryResult.isPresent()) {
+                return CompletableFuture.completedFuture(new RealTimeQueryResult(previousWindow * slide.toMillis() / 1000,
+                        currentWindow * slide.toMillis() / 1000, inMemoryResult.get()));
+            }
+        }
+
+        if (isInMemoryOnly(measure.aggregation)) {
+            throw new RakamException("Percentiles and TOP_K are only available for the time range kept in memory without a filter.", BAD_REQUEST);
+        }
+
         Object timeCol = aggregate ? currentWindow : "_time";
         String sqlQuery = format("select %s, %s %s from %s where %s %s %s ORDER BY 1 ASC LIMIT 5000",
                 timeCol + " * cast(" + slide.toMillis()+" as bigint)",
@@ -178,7 +208,7 @@ public class RealTimeHttpService extends HttpService {
 
             if (!finalAggregate) {
                 if (noDimension) {
-                    List<List<Object>> newData = Lists.newLinkedList();
+                    List<List<Object>> newData = new ArrayList<>((int) (currentWindow - previousWindow));
                     Map<Long, List<Object>> collect = data.stream().collect(Collectors.toMap(a -> (Long) a.get(0), a -> a));
                     for (long current = previousWindow * slide.toMillis(); current < currentWindow * slide.toMillis(); current += slide.toMillis()) {
 
@@ -234,6 +264,7 @@ public class RealTimeHttpService extends HttpService {
         // TODO: Check if it's a real-time report.
         return service.delete(project, tableName).thenApply(result -> {
             if (result) {
+                engine.unregister(project, tableName);
                 return JsonResponse.success();
             } else {
                 return JsonResponse.error("Couldn't delete report. Most probably it doesn't exist");
@@ -247,13 +278,15 @@ public class RealTimeHttpService extends HttpService {
         if (dimensions != null && !dimensions.isEmpty())
             builder.append(" " + dimensions.stream().collect(Collectors.joining(", ")) + ", ");
 
-        for (int i = 0; i < measures.size(); i++) {
-            if (measures.get(i).aggregation == AggregationType.AVERAGE) {
-                throw new RakamException("Average aggregation is not supported in realtime service.", BAD_REQUEST);
+        List<String> columns = new ArrayList<>(measures.size());
+        for (RealTimeReport.Measure measure : measures) {
+            if (isInMemoryOnly(measure.aggregation)) {
+                // the t-digests and the top-k summaries are not stored in the table, they're served from the in-memory windows
+                continue;
             }
 
             String format;
-            switch (measures.get(i).aggregation) {
+            switch (measure.aggregation) {
                 case MAXIMUM:
                     format = "max(%s)";
                     break;
@@ -269,18 +302,28 @@ public class RealTimeHttpService extends HttpService {
                 case APPROXIMATE_UNIQUE:
                     format = "approx_set(%s)";
                     break;
+                case AVERAGE:
+                    // the average is combined from the sum and count of the windows
+                    format = "sum(%s) as %1$s_average_sum, count(%1$s)";
+                    break;
                 default:
-                    throw new IllegalArgumentException("aggregation type couldn't found.");
+                    throw new RakamException("Aggregation " + measure.aggregation + " is not supported in realtime service.", BAD_REQUEST);
             }
 
-            builder.append(String.format(format + " as %s_%s ", measures.get(i).column,
-                    measures.get(i).column, measures.get(i).aggregation.name().toLowerCase()));
-            if (i < measures.size() - 1) {
-                builder.append(", ");
-            }
+            String suffix = measure.aggregation == AggregationType.AVERAGE ? "average_count" : measure.aggregation.name().toLowerCase();
+            columns.add(String.format(format + " as %s_%s ", measure.column, measure.column, suffix));
         }
 
-        return builder.toString();
+        if (columns.isEmpty()) {
+            // the select list would end with the separator of the time and dimension columns
+            columns.add("count(*) as _count");
+        }
+
+        return builder.append(columns.stream().collect(Collectors.joining(", "))).toString();
+    }
+
+    private static boolean isInMemoryOnly(AggregationType aggregationType) {
+        return aggregationType.isPercentile() || aggregationType == AggregationType.TOP_K;
     }
 
     private String combineFunction(AggregationType aggregationType) {
@@ -294,6 +337,8 @@ public class RealTimeHttpService extends HttpService {
                 return "max(%s)";
             case APPROXIMATE_UNIQUE:
                 return "cardinality(merge(%s))";
+            case AVERAGE:
+                return "cast(sum(%1$s_sum) as double) / nullif(sum(%1$s_count), 0)";
             default:
                 throw new NotImplementedException();
         }
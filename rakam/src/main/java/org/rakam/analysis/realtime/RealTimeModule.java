@@ -8,9 +8,11 @@ import org.rakam.config.MetadataConfig;
 import org.rakam.report.realtime.RealTimeConfig;
 import org.rakam.util.ConditionalModule;
 import org.rakam.plugin.EventMapper;
+import org.rakam.plugin.EventProcessor;
 import org.rakam.plugin.RakamModule;
 import org.rakam.plugin.TimestampEventMapper;
 import org.rakam.server.http.HttpService;
+import org.rakam.server.http.WebSocketService;
 
 import static io.airlift.configuration.ConfigurationModule.bindConfig;
 
@@ -25,6 +27,12 @@ public class RealTimeModule extends RakamModule {
         Multibinder<HttpService> multiBinder = Multibinder.newSetBinder(binder, HttpService.class);
         multiBinder.addBinding().to(RealTimeHttpService.class);
 
+        Multibinder<WebSocketService> webSocketServices = Multibinder.newSetBinder(binder, WebSocketService.class);
+        webSocketServices.addBinding().to(RealTimeWebSocketService.class);
+
+        Multibinder<EventProcessor> eventProcessors = Multibinder.newSetBinder(binder, EventProcessor.class);
+        eventProcessors.addBinding().to(RealTimeWindowEngine.class);
+
         Multibinder<EventMapper> mappers = Multibinder.newSetBinder(binder, EventMapper.class);
         mappers.permitDuplicates().addBinding().to(TimestampEventMapper.class);
 
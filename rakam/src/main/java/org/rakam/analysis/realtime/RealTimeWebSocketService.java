@@ -0,0 +1,196 @@
+package org.rakam.analysis.realtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import io.airlift.log.Logger;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.AttributeKey;
+import org.rakam.analysis.ApiKeyService;
+import org.rakam.analysis.realtime.RealTimeHttpService.RealTimeQueryResult;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.report.realtime.RealTimeConfig;
+import org.rakam.report.realtime.RealTimeReport;
+import org.rakam.server.http.WebSocketService;
+import org.rakam.server.http.annotations.Api;
+import org.rakam.server.http.annotations.ApiOperation;
+import org.rakam.server.http.annotations.Authorization;
+import org.rakam.util.JsonHelper;
+
+import javax.inject.Inject;
+import javax.ws.rs.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.rakam.analysis.ApiKeyService.AccessKeyType.READ_KEY;
+
+/**
+ * Pushes the windows of real-time reports to the subscribers instead of polling /realtime/get. The clients fetch
+ * the history once from /realtime/get, then every slide interval they receive the window that is just closed and
+ * the current window that is still being filled. The result of a subscription is computed once per slide from the
+ * in-memory windows of {@link RealTimeWindowEngine} and the same frame is written to all the channels that subscribed
+ * to the same report, measure and dimensions, so the cost depends on the number of reports rather than the viewers.
+ * Since the windows only contain the events collected by this node, the service is only available when
+ * realtime.in-memory.enabled is set on a single node deployment; the subscriptions are rejected otherwise.
+ */
+@Path("/realtime/subscribe")
+@Api(value = "/realtime/subscribe", description = "Websocket service for subscribing real-time reports",
+        tags = "realtime", consumes = "ws", produces = "ws", protocols = "ws")
+@Singleton
+public class RealTimeWebSocketService extends WebSocketService {
+    private static final Logger LOGGER = Logger.get(RealTimeWebSocketService.class);
+    private static final AttributeKey<Subscription> SUBSCRIPTION = AttributeKey.valueOf("realtime_subscription");
+
+    private final RealTimeWindowEngine engine;
+    private final ApiKeyService apiKeyService;
+    private final boolean enabled;
+    private final long slideMillis;
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    @Inject
+    public RealTimeWebSocketService(RealTimeWindowEngine engine, ApiKeyService apiKeyService, RealTimeConfig config) {
+        this.engine = engine;
+        this.apiKeyService = apiKeyService;
+        this.enabled = config.isInMemoryEnabled();
+        this.slideMillis = config.getSlideInterval().toMillis();
+
+        if (enabled) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("realtime-push").setDaemon(true).build());
+            executor.scheduleAtFixedRate(this::push, slideMillis - System.currentTimeMillis() % slideMillis,
+                    slideMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    @ApiOperation(value = "Subscribe real-time report",
+            notes = "Parameters: project, read_key, table_name, measure, aggregation and optional comma separated dimensions",
+            response = RealTimeQueryResult.class,
+            authorizations = @Authorization(value = "read_key")
+    )
+    public void onOpen(WebSocketRequest request) {
+        ChannelHandlerContext context = request.context();
+        if (!enabled) {
+            context.writeAndFlush(new CloseWebSocketFrame(1011, "Subscriptions require realtime.in-memory.enabled, use /realtime/get instead"));
+            context.close();
+            return;
+        }
+
+        String project = getParam(request, "project");
+        String apiKey = getParam(request, "read_key");
+        String tableName = getParam(request, "table_name");
+        String column = getParam(request, "measure");
+        String aggregation = getParam(request, "aggregation");
+        if (project == null || apiKey == null || tableName == null || column == null || aggregation == null) {
+            context.writeAndFlush(new CloseWebSocketFrame(1008, "project, read_key, table_name, measure and aggregation parameters are required"));
+            context.close();
+            return;
+        }
+        if (!apiKeyService.checkPermission(project, READ_KEY, apiKey)) {
+            context.writeAndFlush(new CloseWebSocketFrame(1008, "read_key is invalid"));
+            context.close();
+            return;
+        }
+
+        AggregationType aggregationType;
+        try {
+            aggregationType = AggregationType.get(aggregation);
+        } catch (IllegalArgumentException e) {
+            context.writeAndFlush(new CloseWebSocketFrame(1008, "aggregation is invalid"));
+            context.close();
+            return;
+        }
+
+        String dimensionsParam = getParam(request, "dimensions");
+        List<String> dimensions = dimensionsParam == null || dimensionsParam.isEmpty() ?
+                ImmutableList.of() : ImmutableList.copyOf(Arrays.asList(dimensionsParam.split(",")));
+
+        String key = String.join("\u0000", project, tableName, column, aggregationType.name(), String.join(",", dimensions));
+        Subscription subscription = subscriptions.compute(key, (k, existing) -> {
+            Subscription value = existing == null ? new Subscription(key, project, tableName,
+                    new RealTimeReport.Measure(column, aggregationType), dimensions) : existing;
+            value.channels.add(context.channel());
+            return value;
+        });
+        context.attr(SUBSCRIPTION).set(subscription);
+    }
+
+    @Override
+    public void onMessage(ChannelHandlerContext ctx, String message) {
+        // the subscription is defined by the parameters of the handshake request
+    }
+
+    @Override
+    public void onClose(ChannelHandlerContext ctx) {
+        Subscription subscription = ctx.attr(SUBSCRIPTION).get();
+        if (subscription == null) {
+            return;
+        }
+        subscriptions.computeIfPresent(subscription.key, (k, value) -> {
+            value.channels.remove(ctx.channel());
+            return value.channels.isEmpty() ? null : value;
+        });
+    }
+
+    private void push() {
+        long currentWindow = System.currentTimeMillis() / slideMillis;
+        for (Subscription subscription : subscriptions.values()) {
+            try {
+                Optional<Object> result = engine.query(subscription.project, subscription.tableName, subscription.measure,
+                        subscription.dimensions, false, currentWindow - 1, currentWindow + 1);
+                if (!result.isPresent()) {
+                    // the windows are not in memory yet, the client keeps the result of /realtime/get
+                    continue;
+                }
+
+                ByteBuf buffer = Unpooled.copiedBuffer(JsonHelper.encodeAsBytes(new RealTimeQueryResult(
+                        (currentWindow - 1) * slideMillis / 1000, (currentWindow + 1) * slideMillis / 1000, result.get())));
+                try {
+                    for (Channel channel : subscription.channels) {
+                        if (channel.isWritable()) {
+                            channel.writeAndFlush(new TextWebSocketFrame(buffer.duplicate().retain()));
+                        }
+                    }
+                } finally {
+                    buffer.release();
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error(e, "Error while pushing real-time report %s", subscription.tableName);
+            }
+        }
+    }
+
+    private static String getParam(WebSocketRequest request, String name) {
+        List<String> values = request.params().get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static class Subscription {
+        private final String key;
+        private final String project;
+        private final String tableName;
+        private final RealTimeReport.Measure measure;
+        private final List<String> dimensions;
+        private final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+
+        private Subscription(String key, String project, String tableName, RealTimeReport.Measure measure, List<String> dimensions) {
+            this.key = key;
+            this.project = project;
+            this.tableName = tableName;
+            this.measure = measure;
+            this.dimensions = dimensions;
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package org.rakam.analysis.realtime;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import io.airlift.log.Logger;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.cookie.Cookie;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.sketch.HyperLogLog;
+import org.rakam.analysis.sketch.SpaceSaving;
+import org.rakam.analysis.sketch.TDigest;
+import org.rakam.automation.ExpressionCompiler;
+import org.rakam.collection.Event;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.plugin.EventProcessor;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.report.realtime.RealTimeConfig;
+import org.rakam.report.realtime.RealTimeReport;
+import org.rakam.util.JsonHelper;
+
+import javax.inject.Inject;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static java.lang.Boolean.TRUE;
+
+/**
+ * Keeps the windows of the real-time reports in memory so that the dashboards that poll the reports are served without
+ * querying the continuous query tables. Each report has a ring buffer of slide interval buckets per dimension group
+ * that is fed from the collect path. The reads fall back to the continuous query tables if the requested range is
+ * not covered by the buckets, e.g. right after the node is started.
+ * The buckets only contain the events that are collected by this node, so the in-memory windows are only complete
+ * when a single node collects the events of the project, see realtime.in-memory.enabled.
+ */
+@Singleton
+public class RealTimeWindowEngine implements EventProcessor {
+    private static final Logger LOGGER = Logger.get(RealTimeWindowEngine.class);
+    private static final long REPORT_REFRESH_MILLIS = 60_000;
+
+    private final ContinuousQueryService service;
+    private final boolean enabled;
+    private final long slideMillis;
+    private final int ringSize;
+    private final int maxGroups;
+    private final ConcurrentHashMap<String, ProjectReports> projects = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher;
+
+    @Inject
+    public RealTimeWindowEngine(ContinuousQueryService service, RealTimeConfig config) {
+        this.service = service;
+        this.enabled = config.isInMemoryEnabled();
+        this.slideMillis = config.getSlideInterval().toMillis();
+        // the current window that is being filled and one extra bucket for the late events
+        this.ringSize = (int) (config.getWindowInterval().toMillis() / slideMillis) + 2;
+        this.maxGroups = config.getMaxGroupsPerReport();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("realtime-report-refresher").setDaemon(true).build());
+        if (enabled) {
+            refresher.scheduleWithFixedDelay(this::refreshAll, REPORT_REFRESH_MILLIS, REPORT_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public List<Cookie> map(Event event, HttpHeaders requestHeaders, InetAddress sourceAddress, HttpHeaders responseHeaders) {
+        if (!enabled) {
+            return null;
+        }
+
+        Map<String, ReportWindows> reports = getReports(event.project());
+        if (reports.isEmpty()) {
+            return null;
+        }
+
+        Object time = event.getAttribute("_time");
+        long window = (time instanceof Number ? ((Number) time).longValue() : System.currentTimeMillis()) / slideMillis;
+        for (ReportWindows report : reports.values()) {
+            report.add(event, window);
+        }
+        return null;
+    }
+
+    public void register(String project, RealTimeReport report) {
+        if (!enabled) {
+            return;
+        }
+        ReportWindows windows = createReportWindows(report);
+        if (windows != null) {
+            getReports(project).putIfAbsent(report.table_name, windows);
+        }
+    }
+
+    public void unregister(String project, String tableName) {
+        ProjectReports reports = projects.get(project);
+        if (reports != null) {
+            reports.reports.remove(tableName);
+        }
+    }
+
+    /**
+     * Returns the result of the report in the same format with the continuous query tables or empty if the
+     * windows between fromWindow and toWindow are not in memory.
+     */
+    public Optional<Object> query(String project, String tableName, RealTimeReport.Measure measure, List<String> dimensions,
+                                  boolean aggregate, long fromWindow, long toWindow) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+
+        ReportWindows report = getReports(project).get(tableName);
+        if (report == null || report.overflowed || fromWindow < report.trackingSince || toWindow - fromWindow >= ringSize) {
+            return Optional.empty();
+        }
+
+        int measureIndex = -1;
+        for (int i = 0; i < report.measures.size(); i++) {
+            RealTimeReport.Measure item = report.measures.get(i);
+            if (item.column.equals(measure.column) && item.aggregation == measure.aggregation) {
+                measureIndex = i;
+            }
+        }
+        if (measureIndex == -1 || measure.aggregation == AggregationType.COUNT_UNIQUE) {
+            return Optional.empty();
+        }
+
+        int[] dimensionIndexes = new int[dimensions.size()];
+        for (int i = 0; i < dimensions.size(); i++) {
+            dimensionIndexes[i] = report.dimensions.indexOf(dimensions.get(i));
+            if (dimensionIndexes[i] == -1) {
+                return Optional.empty();
+            }
+        }
+
+        AggregationType aggregation = measure.aggregation;
+        if (aggregate) {
+            Map<List<Object>, MeasureState> merged = new LinkedHashMap<>();
+            for (Map.Entry<List<Object>, GroupWindows> entry : report.groups.entrySet()) {
+                List<Object> key = project(entry.getKey(), dimensionIndexes);
+                for (long window = fromWindow; window <= toWindow; window++) {
+                    MeasureState state = entry.getValue().snapshot(window, measureIndex);
+                    if (state != null) {
+                        merged.computeIfAbsent(key, k -> new MeasureState(aggregation)).merge(state);
+                    }
+                }
+            }
+
+            if (dimensions.isEmpty()) {
+                MeasureState state = merged.get(ImmutableList.of());
+                return Optional.of(state == null ? 0 : valueOrZero(state));
+            }
+
+            List<List<Object>> rows = new ArrayList<>(merged.size());
+            merged.forEach((key, state) -> rows.add(row(toWindow * slideMillis, key, state)));
+            return Optional.of(rows);
+        }
+
+        TreeMap<Long, Map<List<Object>, MeasureState>> windows = new TreeMap<>();
+        for (Map.Entry<List<Object>, GroupWindows> entry : report.groups.entrySet()) {
+            List<Object> key = project(entry.getKey(), dimensionIndexes);
+            for (long window = fromWindow; window <= toWindow; window++) {
+                MeasureState state = entry.getValue().snapshot(window, measureIndex);
+                if (state != null) {
+                    windows.computeIfAbsent(window, k -> new LinkedHashMap<>())
+                            .computeIfAbsent(key, k -> new MeasureState(aggregation)).merge(state);
+                }
+            }
+        }
+
+        List<List<Object>> rows = new ArrayList<>();
+        if (dimensions.isEmpty()) {
+            // zero-fill the windows that don't have any event
+            for (long window = fromWindow; window < toWindow; window++) {
+                Map<List<Object>, MeasureState> states = windows.get(window);
+                MeasureState state = states == null ? null : states.get(ImmutableList.of());
+                rows.add(Arrays.asList(window * slideMillis, state == null ? 0 : valueOrZero(state)));
+            }
+        } else {
+            windows.forEach((window, states) -> states.forEach((key, state) -> rows.add(row(window * slideMillis, key, state))));
+        }
+        return Optional.of(rows);
+    }
+
+    private static List<Object> project(List<Object> key, int[] dimensionIndexes) {
+        if (dimensionIndexes.length == 0) {
+            return ImmutableList.of();
+        }
+        Object[] values = new Object[dimensionIndexes.length];
+        for (int i = 0; i < dimensionIndexes.length; i++) {
+            values[i] = key.get(dimensionIndexes[i]);
+        }
+        return Arrays.asList(values);
+    }
+
+    private static List<Object> row(long time, List<Object> key, MeasureState state) {
+        List<Object> row = new ArrayList<>(key.size() + 2);
+        row.add(time);
+        row.addAll(key);
+        row.add(state.value());
+        return row;
+    }
+
+    private static Object valueOrZero(MeasureState state) {
+        Object value = state.value();
+        return value == null ? 0 : value;
+    }
+
+    private Map<String, ReportWindows> getReports(String project) {
+        ProjectReports reports = projects.get(project);
+        if (reports == null) {
+            ProjectReports created = new ProjectReports();
+            reports = projects.putIfAbsent(project, created);
+            if (reports == null) {
+                reports = created;
+                // the reports are loaded in the background, the events are not blocked by the metadata database
+                refresher.execute(() -> refresh(project));
+            }
+        }
+        return reports.reports;
+    }
+
+    private void refreshAll() {
+        for (String project : projects.keySet()) {
+            refresh(project);
+        }
+    }
+
+    /**
+     * Syncs the reports of the project with the continuous queries since the reports may be created or deleted from
+     * the other nodes. The reports that are registered on this node but not listed yet are kept.
+     */
+    private void refresh(String project) {
+        ProjectReports existing = projects.get(project);
+        if (existing == null) {
+            return;
+        }
+
+        List<ContinuousQuery> queries;
+        try {
+            queries = service.list(project);
+        } catch (Exception e) {
+            LOGGER.error(e, "Error while loading real-time reports of project %s", project);
+            return;
+        }
+
+        Set<String> listed = new HashSet<>();
+        for (ContinuousQuery query : queries) {
+            Object report = query.options.get("report");
+            if (!TRUE.equals(query.options.get("realtime")) || report == null) {
+                continue;
+            }
+            listed.add(query.tableName);
+
+            if (!existing.reports.containsKey(query.tableName)) {
+                ReportWindows windows = createReportWindows(JsonHelper.convert(report, RealTimeReport.class));
+                if (windows != null) {
+                    existing.reports.putIfAbsent(query.tableName, windows);
+                }
+            }
+        }
+
+        for (String tableName : existing.listed) {
+            if (!listed.contains(tableName)) {
+                existing.reports.remove(tableName);
+            }
+        }
+        existing.listed = listed;
+    }
+
+    private ReportWindows createReportWindows(RealTimeReport report) {
+        Predicate<Event> filter = null;
+        if (report.filter != null) {
+            try {
+                filter = ExpressionCompiler.compile(report.filter);
+            } catch (Exception e) {
+                LOGGER.warn("The filter of real-time report %s can't be evaluated in memory, the report will be served from the continuous query table", report.table_name);
+                return null;
+            }
+        }
+        return new ReportWindows(report, filter, System.currentTimeMillis() / slideMillis);
+    }
+
+    private static class ProjectReports {
+        private final Map<String, ReportWindows> reports = new ConcurrentHashMap<>();
+        // the reports of the last listing, only the reports that disappear from the listing are removed
+        private volatile Set<String> listed = ImmutableSet.of();
+    }
+
+    private class ReportWindows {
+        private final Set<String> collections;
+        private final Predicate<Event> filter;
+        private final List<String> dimensions;
+        private final List<RealTimeReport.Measure> measures;
+        private final long trackingSince;
+        private final ConcurrentHashMap<List<Object>, GroupWindows> groups = new ConcurrentHashMap<>();
+        private volatile boolean overflowed;
+
+        private ReportWindows(RealTimeReport report, Predicate<Event> filter, long trackingSince) {
+            this.collections = new HashSet<>(report.collections);
+            this.filter = filter;
+            this.dimensions = report.dimensions == null ? ImmutableList.of() : report.dimensions;
+            this.measures = report.measures;
+            // the current window is partially processed
+            this.trackingSince = trackingSince + 1;
+        }
+
+        void add(Event event, long window) {
+            if (!collections.contains(event.collection()) || (filter != null && !filter.test(event))) {
+                return;
+            }
+
+            GenericRecord properties = event.properties();
+            Object[] key = new Object[dimensions.size()];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = normalize(properties.get(dimensions.get(i)));
+            }
+
+            List<Object> groupKey = Arrays.asList(key);
+            GroupWindows group = groups.get(groupKey);
+            if (group == null) {
+                if (groups.size() >= maxGroups) {
+                    // the results would be incomplete, the continuous query table is used for this report
+                    overflowed = true;
+                    return;
+                }
+                group = groups.computeIfAbsent(groupKey, k -> new GroupWindows(ringSize, measures));
+            }
+            group.add(window, properties);
+        }
+    }
+
+    private static Object normalize(Object value) {
+        return value instanceof CharSequence ? value.toString() : value;
+    }
+
+    private static class GroupWindows {
+        private final List<RealTimeReport.Measure> measures;
+        private final long[] windows;
+        private final MeasureState[][] states;
+
+        private GroupWindows(int ringSize, List<RealTimeReport.Measure> measures) {
+            this.measures = measures;
+            this.windows = new long[ringSize];
+            this.states = new MeasureState[ringSize][];
+        }
+
+        synchronized void add(long window, GenericRecord properties) {
+            int slot = (int) Math.floorMod(window, (long) windows.length);
+            MeasureState[] slotStates = states[slot];
+            if (slotStates == null || windows[slot] != window) {
+                if (slotStates != null && windows[slot] > window) {
+                    // the window of the event is already evicted
+                    return;
+                }
+                slotStates = new MeasureState[measures.size()];
+                for (int i = 0; i < slotStates.length; i++) {
+                    slotStates[i] = new MeasureState(measures.get(i).aggregation);
+                }
+                states[slot] = slotStates;
+                windows[slot] = window;
+            }
+
+            for (int i = 0; i < slotStates.length; i++) {
+                slotStates[i].add(normalize(properties.get(measures.get(i).column)));
+            }
+        }
+
+        synchronized MeasureState snapshot(long window, int measure) {
+            int slot = (int) Math.floorMod(window, (long) windows.length);
+            MeasureState[] slotStates = states[slot];
+            if (slotStates == null || windows[slot] != window) {
+                return null;
+            }
+            MeasureState copy = new MeasureState(slotStates[measure].aggregation);
+            copy.merge(slotStates[measure]);
+            return copy;
+        }
+    }
+
+    /**
+     * Mergeable state of a measure in a window.
+     */
+    static class MeasureState {
+        // the extra counters keep the error of the top items low
+        private static final int TOP_K_CAPACITY = 100;
+        private static final int TOP_K_SIZE = 10;
+
+        private final AggregationType aggregation;
+        private final HyperLogLog unique;
+        private final TDigest digest;
+        private final SpaceSaving topK;
+        private long count;
+        private long longSum;
+        private double doubleSum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private boolean integral = true;
+
+        MeasureState(AggregationType aggregation) {
+            this.aggregation = aggregation;
+            this.unique = aggregation == AggregationType.APPROXIMATE_UNIQUE ? new HyperLogLog() : null;
+            this.digest = aggregation.isPercentile() ? new TDigest() : null;
+            this.topK = aggregation == AggregationType.TOP_K ? new SpaceSaving(TOP_K_CAPACITY) : null;
+        }
+
+        void add(Object value) {
+            if (value == null) {
+                return;
+            }
+            count++;
+
+            if (unique != null) {
+                unique.add(value);
+            } else if (topK != null) {
+                topK.offer(value);
+            } else if (value instanceof Number) {
+                Number number = (Number) value;
+                if (value instanceof Double || value instanceof Float) {
+                    integral = false;
+                    doubleSum += number.doubleValue();
+                } else {
+                    longSum += number.longValue();
+                }
+                min = Math.min(min, number.doubleValue());
+                max = Math.max(max, number.doubleValue());
+                if (digest != null && !Double.isNaN(number.doubleValue())) {
+                    digest.add(number.doubleValue());
+                }
+            }
+        }
+
+        void merge(MeasureState other) {
+            count += other.count;
+            longSum += other.longSum;
+            doubleSum += other.doubleSum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            integral &= other.integral;
+            if (unique != null) {
+                unique.merge(other.unique);
+            }
+            if (digest != null) {
+                digest.merge(other.digest);
+            }
+            if (topK != null) {
+                topK.merge(other.topK);
+            }
+        }
+
+        Object value() {
+            switch (aggregation) {
+                case COUNT:
+                    return count;
+                case SUM:
+                    return integral ? (Object) longSum : (Object) (longSum + doubleSum);
+                case MINIMUM:
+                    return count == 0 ? null : integral ? (Object) (long) min : (Object) min;
+                case MAXIMUM:
+                    return count == 0 ? null : integral ? (Object) (long) max : (Object) max;
+                case AVERAGE:
+                    return count == 0 ? null : (longSum + doubleSum) / count;
+                case APPROXIMATE_UNIQUE:
+                    return unique.cardinality();
+                case PERCENTILE_50:
+                case PERCENTILE_90:
+                case PERCENTILE_95:
+                case PERCENTILE_99:
+                    return digest.size() == 0 ? null : digest.quantile(aggregation.getPercentile());
+                case TOP_K:
+                    return topK.topK(TOP_K_SIZE);
+                default:
+                    throw new IllegalStateException("Unsupported aggregation: " + aggregation);
+            }
+        }
+    }
+}
@@ -2,8 +2,27 @@ package org.rakam.automation;
 
 import org.rakam.plugin.user.User;
 
+import java.util.List;
 import java.util.function.Supplier;
 
 public interface AutomationAction<T> {
     String process(String project, Supplier<User> user, T actionData);
+
+    /**
+     * Processes the action for the users that triggered the same rule action, the implementations may override it
+     * to send a single request for all the users.
+     */
+    default void processBatch(String project, List<Supplier<User>> users, T actionData) {
+        for (Supplier<User> user : users) {
+            process(project, user, actionData);
+        }
+    }
+
+    /**
+     * The synchronous actions are executed in the collect request because their result is returned to the client,
+     * the others are executed in the background by {@link AutomationActionQueue}.
+     */
+    default boolean isSynchronous() {
+        return false;
+    }
 }
@@ -0,0 +1,125 @@
+package org.rakam.automation;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Singleton;
+import io.airlift.log.Logger;
+import org.rakam.plugin.user.User;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executes the asynchronous rule actions outside of the collect requests. The actions are queued when a rule matches,
+ * a fixed number of workers drain the queue and the users of the same rule action are passed to
+ * {@link AutomationAction#processBatch(String, List, Object)} together. The queue is bounded, the actions are dropped
+ * instead of blocking the ingestion when the workers can't keep up.
+ */
+@Singleton
+public class AutomationActionQueue {
+    private static final Logger LOGGER = Logger.get(AutomationActionQueue.class);
+
+    private final BlockingQueue<Task> queue;
+    private final int batchSize;
+    private final AtomicLong dropped = new AtomicLong();
+
+    @Inject
+    public AutomationActionQueue(AutomationConfig config) {
+        this.queue = new ArrayBlockingQueue<>(config.getActionQueueSize());
+        this.batchSize = config.getActionBatchSize();
+
+        ExecutorService workers = Executors.newFixedThreadPool(config.getActionThreads(), new ThreadFactoryBuilder()
+                .setNameFormat("automation-action-%s").setDaemon(true).build());
+        for (int i = 0; i < config.getActionThreads(); i++) {
+            workers.execute(this::work);
+        }
+    }
+
+    public void submit(String project, AutomationRule.SerializableAction action, Supplier<User> user) {
+        if (!queue.offer(new Task(project, action, user))) {
+            if (dropped.getAndIncrement() % 1000 == 0) {
+                LOGGER.warn("Automation action queue is full, %d actions are dropped so far", dropped.get());
+            }
+        }
+    }
+
+    public long getDroppedActions() {
+        return dropped.get();
+    }
+
+    private void work() {
+        List<Task> tasks = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                tasks.add(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queue.drainTo(tasks, batchSize - 1);
+
+            Map<BatchKey, List<Supplier<User>>> batches = new LinkedHashMap<>();
+            for (Task task : tasks) {
+                batches.computeIfAbsent(new BatchKey(task.project, task.action), k -> new ArrayList<>()).add(task.user);
+            }
+            tasks.clear();
+
+            batches.forEach((key, users) -> {
+                try {
+                    key.action.getAction().processBatch(key.project, users, key.action.value);
+                } catch (Exception e) {
+                    LOGGER.error(e, "Error while processing automation action %s", key.action.type);
+                }
+            });
+        }
+    }
+
+    private static class Task {
+        private final String project;
+        private final AutomationRule.SerializableAction action;
+        private final Supplier<User> user;
+
+        private Task(String project, AutomationRule.SerializableAction action, Supplier<User> user) {
+            this.project = project;
+            this.action = action;
+            this.user = user;
+        }
+    }
+
+    private static class BatchKey {
+        private final String project;
+        private final AutomationRule.SerializableAction action;
+
+        private BatchKey(String project, AutomationRule.SerializableAction action) {
+            this.project = project;
+            this.action = action;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey batchKey = (BatchKey) o;
+            // the actions of the same rule are the same instances until the rules are reloaded
+            return project.equals(batchKey.project) && action == batchKey.action;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(project, System.identityHashCode(action));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.rakam.automation;
+
+import io.airlift.configuration.Config;
+import io.airlift.configuration.ConfigDescription;
+
+public class AutomationConfig {
+    private int actionThreads = 4;
+    private int actionQueueSize = 10000;
+    private int actionBatchSize = 100;
+
+    public int getActionThreads() {
+        return actionThreads;
+    }
+
+    @Config("automation.action.threads")
+    @ConfigDescription("The number of threads that execute the actions of the automation rules")
+    public AutomationConfig setActionThreads(int actionThreads) {
+        this.actionThreads = actionThreads;
+        return this;
+    }
+
+    public int getActionQueueSize() {
+        return actionQueueSize;
+    }
+
+    @Config("automation.action.queue-size")
+    @ConfigDescription("The maximum number of pending actions, the actions are dropped when the queue is full")
+    public AutomationConfig setActionQueueSize(int actionQueueSize) {
+        this.actionQueueSize = actionQueueSize;
+        return this;
+    }
+
+    public int getActionBatchSize() {
+        return actionBatchSize;
+    }
+
+    @Config("automation.action.batch-size")
+    @ConfigDescription("The maximum number of users that are processed together for the same action")
+    public AutomationConfig setActionBatchSize(int actionBatchSize) {
+        this.actionBatchSize = actionBatchSize;
+        return this;
+    }
+}
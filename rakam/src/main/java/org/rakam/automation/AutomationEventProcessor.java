@@ -31,6 +31,7 @@ public class AutomationEventProcessor implements EventProcessor {
     private final UserAutomationService service;
     private final UserStorage userStorage;
     private final EncryptionConfig encryptionConfig;
+    private final AutomationActionQueue actionQueue;
 
     private static final List<Cookie> clearData;
 
@@ -42,16 +43,37 @@ public class AutomationEventProcessor implements EventProcessor {
 
 
     @Inject
-    public AutomationEventProcessor(UserAutomationService service, UserStorage userStorage, EncryptionConfig encryptionConfig) {
+    public AutomationEventProcessor(UserAutomationService service, UserStorage userStorage, EncryptionConfig encryptionConfig,
+                                    AutomationActionQueue actionQueue) {
         this.service = service;
         this.userStorage = userStorage;
         this.encryptionConfig = encryptionConfig;
+        this.actionQueue = actionQueue;
     }
 
     @Override
     public List<Cookie> map(Event event, HttpHeaders extraProperties, InetAddress sourceAddress, HttpHeaders responseHeaders) {
-        final List<AutomationRule> automationRules = service.list(event.project());
-        if (automationRules == null) {
+        List<AutomationRuleIndex.CollectionRule> rules = service.getIndex(event.project()).getRules(event.collection());
+        if (rules.isEmpty()) {
+            return null;
+        }
+
+        // the filters are evaluated before the cookie so that the events that can't advance any scenario skip the HMAC check
+        boolean[][] matchedSteps = null;
+        for (int i = 0; i < rules.size(); i++) {
+            AutomationRuleIndex.CollectionRule rule = rules.get(i);
+            if (!rule.rule.isActive) {
+                continue;
+            }
+            boolean[] matches = rule.matchSteps(event);
+            if (matches != null) {
+                if (matchedSteps == null) {
+                    matchedSteps = new boolean[rules.size()][];
+                }
+                matchedSteps[i] = matches;
+            }
+        }
+        if (matchedSteps == null) {
             return null;
         }
 
@@ -67,10 +89,13 @@ public class AutomationEventProcessor implements EventProcessor {
 
         ScenarioState[] newStates = null;
         int newIdx = 0;
-        for (AutomationRule automationRule : automationRules) {
-            if (!automationRule.isActive) {
+        Supplier<User> user = null;
+        for (int i = 0; i < rules.size(); i++) {
+            boolean[] matches = matchedSteps[i];
+            if (matches == null) {
                 continue;
             }
+            AutomationRule automationRule = rules.get(i).rule;
             int ruleId = automationRule.id;
             ScenarioState state = null;
             if(value != null) {
@@ -81,9 +106,18 @@ public class AutomationEventProcessor implements EventProcessor {
                 }
             }
 
+            if (state != null && state.state >= automationRule.scenarios.size()) {
+                // the scenario is changed after the state is stored
+                state.state = 0;
+                state.threshold = 0;
+            }
+            if (!matches[state == null ? 0 : state.state]) {
+                continue;
+            }
+
             if(state == null) {
                 if(newStates == null) {
-                    newStates = new ScenarioState[automationRules.size()];
+                    newStates = new ScenarioState[(value == null ? 0 : value.length) + rules.size()];
 
                     if(value != null) {
                         for (ScenarioState scenarioState : value) {
@@ -96,35 +130,29 @@ public class AutomationEventProcessor implements EventProcessor {
             }
 
             AutomationRule.ScenarioStep scenarioStep = automationRule.scenarios.get(state.state);
-            if (event.collection().equals(scenarioStep.collection) && scenarioStep.filterPredicate.test(event)) {
-
-                stateChanged |= updateState(scenarioStep, state, event);
+            stateChanged |= updateState(scenarioStep, state, event);
+
+            if(state.state >= automationRule.scenarios.size()) {
+                state.state = 0;
+                state.threshold = 0;
+                // state is already changed
+                if (user == null) {
+                    user = new UserSupplier(event);
+                }
 
-                if(state.state >= automationRule.scenarios.size()) {
-                    state.state = 0;
-                    state.threshold = 0;
-                    // state is already changed
-                    if(actions == null) {
-                        actions = new ArrayList<>();
+                for (AutomationRule.SerializableAction action : automationRule.actions) {
+                    if (!action.getAction().isSynchronous()) {
+                        // the user is fetched by the worker thread
+                        actionQueue.submit(event.project(), action, user);
+                        continue;
                     }
 
-                    for (AutomationRule.SerializableAction action : automationRule.actions) {
-                        Supplier<User> supplier = new Supplier<User>() {
-                            private User user;
-
-                            @Override
-                            public User get() {
-                                if (user == null) {
-                                    String userAttr = event.getAttribute("_user");
-                                    if (userAttr != null) {
-                                        user = userStorage.getUser(event.project(), userAttr).join();
-                                    }
-                                }
-                                return user;
-                            }
-                        };
-
-                        action.getAction().process(event.project(), supplier, action.value);
+                    String result = action.getAction().process(event.project(), user, action.value);
+                    if (result != null) {
+                        if (actions == null) {
+                            actions = new ArrayList<>();
+                        }
+                        actions.add(result);
                     }
                 }
             }
@@ -159,6 +187,9 @@ public class AutomationEventProcessor implements EventProcessor {
         StringBuilder builder = new StringBuilder();
         for (ScenarioState scenarioState : states) {
             if(scenarioState != null) {
+                if(builder.length() != 0) {
+                    builder.append(',');
+                }
                 builder.append(scenarioState.ruleId).append(':').append(scenarioState.state).append(':').append(scenarioState.threshold);
             }
         }
@@ -232,12 +263,32 @@ public class AutomationEventProcessor implements EventProcessor {
                     }
                     value[i] = scenarioState;
                 }
-                break;
+                return value;
             }
         }
         return null;
     }
 
+    private class UserSupplier implements Supplier<User> {
+        private final Event event;
+        private User user;
+
+        private UserSupplier(Event event) {
+            this.event = event;
+        }
+
+        @Override
+        public synchronized User get() {
+            if (user == null) {
+                String userAttr = event.getAttribute("_user");
+                if (userAttr != null) {
+                    user = userStorage.getUser(event.project(), userAttr).join();
+                }
+            }
+            return user;
+        }
+    }
+
     private static class ScenarioState {
         public final int ruleId;
         public int state;
@@ -19,6 +19,7 @@ public class AutomationModule extends RakamModule {
     @Override
     protected void setup(Binder binder) {
         configBinder(binder).bindConfig(EncryptionConfig.class);
+        configBinder(binder).bindConfig(AutomationConfig.class);
         Multibinder<EventProcessor> eventProcessors = Multibinder.newSetBinder(binder, EventProcessor.class);
         eventProcessors.addBinding().to(AutomationEventProcessor.class);
         Multibinder.newSetBinder(binder, UserActionService.class);
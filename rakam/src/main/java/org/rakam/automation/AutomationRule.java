@@ -123,5 +123,9 @@ public class AutomationRule {
                 }
             }
         }
+
+        public String filterExpression() {
+            return filter;
+        }
     }
 }
@@ -0,0 +1,89 @@
+package org.rakam.automation;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Rules of a project grouped by the collections that their scenario steps listen. The index is built when the rules
+ * of the project are loaded, so the events of the collections that are not used in any rule are skipped without
+ * iterating the rules and the step predicates of a collection are resolved once instead of per event. The filters
+ * are compiled against the schema of the collection, see {@link ExpressionCompiler#compile(String, List)}.
+ */
+public class AutomationRuleIndex {
+    private final List<AutomationRule> rules;
+    private final Map<String, List<CollectionRule>> rulesByCollection;
+
+    public AutomationRuleIndex(List<AutomationRule> rules, Function<String, List<SchemaField>> schemas) {
+        this.rules = ImmutableList.copyOf(rules);
+
+        Map<String, List<CollectionRule>> rulesByCollection = new HashMap<>();
+        for (AutomationRule rule : rules) {
+            Map<String, Predicate<Event>[]> predicates = new HashMap<>();
+            for (int i = 0; i < rule.scenarios.size(); i++) {
+                AutomationRule.ScenarioStep step = rule.scenarios.get(i);
+                predicates.computeIfAbsent(step.collection, k -> new Predicate[rule.scenarios.size()])[i] =
+                        compileForSchema(step, schemas.apply(step.collection));
+            }
+            predicates.forEach((collection, stepPredicates) -> rulesByCollection
+                    .computeIfAbsent(collection, k -> new ArrayList<>())
+                    .add(new CollectionRule(rule, stepPredicates)));
+        }
+        this.rulesByCollection = ImmutableMap.copyOf(rulesByCollection);
+    }
+
+    private static Predicate<Event> compileForSchema(AutomationRule.ScenarioStep step, List<SchemaField> schema) {
+        String filter = step.filterExpression();
+        if (filter == null || filter.isEmpty() || schema == null) {
+            return step.filterPredicate;
+        }
+        try {
+            return ExpressionCompiler.compile(filter, schema);
+        } catch (UnsupportedOperationException e) {
+            return step.filterPredicate;
+        }
+    }
+
+    public List<AutomationRule> getRules() {
+        return rules;
+    }
+
+    public List<CollectionRule> getRules(String collection) {
+        return rulesByCollection.getOrDefault(collection, ImmutableList.of());
+    }
+
+    public static class CollectionRule {
+        public final AutomationRule rule;
+        // the predicates of the steps that listen the collection, the other steps are null
+        private final Predicate<Event>[] stepPredicates;
+
+        private CollectionRule(AutomationRule rule, Predicate<Event>[] stepPredicates) {
+            this.rule = rule;
+            this.stepPredicates = stepPredicates;
+        }
+
+        /**
+         * Returns the steps that the event satisfies or null if the event can't advance any step of the rule.
+         */
+        public boolean[] matchSteps(Event event) {
+            boolean[] matches = null;
+            for (int i = 0; i < stepPredicates.length; i++) {
+                if (stepPredicates[i] != null && stepPredicates[i].test(event)) {
+                    if (matches == null) {
+                        matches = new boolean[stepPredicates.length];
+                    }
+                    matches[i] = true;
+                }
+            }
+            return matches;
+        }
+    }
+}
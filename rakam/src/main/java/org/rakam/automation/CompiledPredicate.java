@@ -0,0 +1,75 @@
+package org.rakam.automation;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.collection.Event;
+
+import java.util.function.Predicate;
+
+/**
+ * Base class of the predicates generated by {@link ExpressionCompiler}. The positions of the referenced fields are
+ * resolved once per Avro schema, the generated code reads the fields with {@link GenericRecord#get(int)}.
+ */
+public abstract class CompiledPredicate implements Predicate<Event> {
+    private final String[] fields;
+    private volatile FieldPositions positions;
+
+    protected CompiledPredicate(String[] fields) {
+        this.fields = fields;
+    }
+
+    protected final int[] positions(GenericRecord record) {
+        Schema schema = record.getSchema();
+        FieldPositions current = positions;
+        if (current == null || current.schema != schema) {
+            current = new FieldPositions(schema, fields);
+            positions = current;
+        }
+        return current.positions;
+    }
+
+    protected static Object get(GenericRecord record, int position) {
+        return position < 0 ? null : record.get(position);
+    }
+
+    protected static int compare(Number value, long literal) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return Long.compare(value.longValue(), literal);
+        }
+        return Double.compare(value.doubleValue(), literal);
+    }
+
+    protected static boolean isComparable(Object first, Object second) {
+        return (first instanceof Number && second instanceof Number) ||
+                (first instanceof CharSequence && second instanceof CharSequence) ||
+                (first instanceof Boolean && second instanceof Boolean);
+    }
+
+    protected static int compare(Object first, Object second) {
+        if (first instanceof Number) {
+            Number number = (Number) second;
+            if (number instanceof Double || number instanceof Float || first instanceof Double || first instanceof Float) {
+                return Double.compare(((Number) first).doubleValue(), number.doubleValue());
+            }
+            return compare((Number) first, number.longValue());
+        }
+        if (first instanceof Boolean) {
+            return Boolean.compare((Boolean) first, (Boolean) second);
+        }
+        return first.toString().compareTo(second.toString());
+    }
+
+    private static class FieldPositions {
+        private final Schema schema;
+        private final int[] positions;
+
+        private FieldPositions(Schema schema, String[] fields) {
+            this.schema = schema;
+            this.positions = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                Schema.Field field = schema.getField(fields[i]);
+                positions[i] = field == null ? -1 : field.pos();
+            }
+        }
+    }
+}
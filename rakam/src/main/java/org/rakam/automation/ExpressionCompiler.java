@@ -1,124 +1,319 @@
 package org.rakam.automation;
 
 import com.facebook.presto.sql.parser.SqlParser;
+import com.facebook.presto.sql.tree.ArithmeticUnaryExpression;
 import com.facebook.presto.sql.tree.AstVisitor;
+import com.facebook.presto.sql.tree.BooleanLiteral;
 import com.facebook.presto.sql.tree.ComparisonExpression;
+import com.facebook.presto.sql.tree.DoubleLiteral;
 import com.facebook.presto.sql.tree.Expression;
 import com.facebook.presto.sql.tree.IsNotNullPredicate;
 import com.facebook.presto.sql.tree.IsNullPredicate;
 import com.facebook.presto.sql.tree.LikePredicate;
 import com.facebook.presto.sql.tree.Literal;
 import com.facebook.presto.sql.tree.LogicalBinaryExpression;
+import com.facebook.presto.sql.tree.LongLiteral;
 import com.facebook.presto.sql.tree.Node;
+import com.facebook.presto.sql.tree.NotExpression;
+import com.facebook.presto.sql.tree.NullLiteral;
 import com.facebook.presto.sql.tree.QualifiedNameReference;
 import com.facebook.presto.sql.tree.StringLiteral;
 import com.google.common.base.Throwables;
-import net.openhft.compiler.CompilerUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import net.openhft.compiler.CachedCompiler;
 import org.rakam.collection.Event;
+import org.rakam.collection.FieldType;
+import org.rakam.collection.SchemaField;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import static org.rakam.util.ValidationUtil.checkTableColumn;
 
+/**
+ * Compiles SQL filter expressions to {@link Predicate} classes. When the schema of the collection is known,
+ * the comparisons are generated for the type of the fields so the values are compared as primitives without
+ * dispatching on their classes.
+ * <p>
+ * The predicates are cached by the normalized expression and the types of the referenced fields. Each class is loaded
+ * by its own class loader and the cache doesn't hold the predicates strongly, so the classes are unloaded when the
+ * rules that use them are removed.
+ */
 public final class ExpressionCompiler {
+    private static final AtomicInteger CLASS_ID = new AtomicInteger();
+    private static final String PACKAGE = "org.rakam.automation.compiled";
+    private static final Cache<String, Predicate<Event>> CACHE = CacheBuilder.newBuilder().weakValues().build();
 
     private ExpressionCompiler() throws InstantiationException {
         throw new InstantiationException("The class is not created for instantiation");
     }
 
     public static Predicate<Event> compile(String expressionStr) throws UnsupportedOperationException {
+        return compile(expressionStr, ImmutableList.of());
+    }
+
+    public static Predicate<Event> compile(String expressionStr, List<SchemaField> schema) throws UnsupportedOperationException {
         final Expression expression = new SqlParser().createExpression(expressionStr);
-        final String javaExp = new JavaSourceAstVisitor().process(expression, false);
-        String className = "org.rakam.automation.compiled.Predicate1";
-        String javaCode = String.format("package org.rakam.automation.compiled;\n" +
-                "import org.rakam.collection.Event;\n" +
-                "import org.apache.avro.generic.GenericRecord;\n" +
-                "import java.lang.Comparable;\n" +
-                "import java.util.function.Predicate;\n" +
-                "public class Predicate1 implements Predicate<Event> {\n" +
-                "    public boolean test(Event event) {\n" +
-                "        GenericRecord props = event.properties();\n" +
-                "        return %s;\n" +
-                "    }\n" +
-                "}\n", javaExp);
+
+        Map<String, FieldType> types = new HashMap<>();
+        for (SchemaField field : schema) {
+            types.put(field.getName(), field.getType());
+        }
+
+        JavaSourceAstVisitor visitor = new JavaSourceAstVisitor(types);
+        final String javaExp = visitor.process(expression, null);
+
+        String cacheKey = expression.toString() + visitor.fields.stream()
+                .map(field -> "\n" + field + ":" + types.get(field)).collect(Collectors.joining());
+        Predicate<Event> predicate = CACHE.getIfPresent(cacheKey);
+        if (predicate == null) {
+            predicate = load(javaExp, visitor);
+            CACHE.put(cacheKey, predicate);
+        }
+        return predicate;
+    }
+
+    private static Predicate<Event> load(String javaExp, JavaSourceAstVisitor visitor) {
+        String simpleName = "Predicate" + CLASS_ID.incrementAndGet();
+
+        StringBuilder code = new StringBuilder()
+                .append("package ").append(PACKAGE).append(";\n")
+                .append("import org.rakam.automation.CompiledPredicate;\n")
+                .append("import org.rakam.collection.Event;\n")
+                .append("import org.apache.avro.generic.GenericRecord;\n")
+                .append("import org.apache.avro.util.Utf8;\n")
+                .append("public class ").append(simpleName).append(" extends CompiledPredicate {\n");
+        for (int i = 0; i < visitor.strings.size(); i++) {
+            code.append("    private static final Utf8 S").append(i).append(" = new Utf8(")
+                    .append(javaString(visitor.strings.get(i))).append(");\n");
+        }
+        code.append("    public ").append(simpleName).append("() {\n")
+                .append("        super(new String[] {")
+                .append(visitor.fields.stream().map(ExpressionCompiler::javaString).collect(Collectors.joining(", ")))
+                .append("});\n")
+                .append("    }\n")
+                .append("    public boolean test(Event event) {\n")
+                .append("        GenericRecord props = event.properties();\n")
+                .append("        int[] positions = positions(props);\n");
+        for (int i = 0; i < visitor.fields.size(); i++) {
+            code.append("        Object f").append(i).append(" = get(props, positions[").append(i).append("]);\n");
+        }
+        code.append("        return ").append(javaExp).append(";\n")
+                .append("    }\n")
+                .append("}\n");
 
         try {
-            Class aClass = CompilerUtils.CACHED_COMPILER.loadFromJava(className, javaCode);
-            return (Predicate) aClass.newInstance();
-        } catch (ClassNotFoundException|InstantiationException|IllegalAccessException e) {
+            // a separate compiler and class loader for each class, otherwise they're referenced until the JVM exits
+            ClassLoader classLoader = new ClassLoader(ExpressionCompiler.class.getClassLoader()) {};
+            Class<?> aClass = new CachedCompiler(null, null).loadFromJava(classLoader, PACKAGE + "." + simpleName, code.toString());
+            return (Predicate<Event>) aClass.newInstance();
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
             throw Throwables.propagate(e);
         }
     }
 
-    private static class JavaSourceAstVisitor extends AstVisitor<String, Boolean> {
-        public String visitLogicalBinaryExpression(LogicalBinaryExpression node, Boolean context) {
-            return formatBinaryExpression(getLogicalContext(node.getType()), node.getLeft(), node.getRight(), context);
+    private static String javaString(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    private static class JavaSourceAstVisitor extends AstVisitor<String, Void> {
+        private final Map<String, FieldType> types;
+        private final List<String> fields = new ArrayList<>();
+        private final List<String> strings = new ArrayList<>();
+
+        private JavaSourceAstVisitor(Map<String, FieldType> types) {
+            this.types = types;
         }
 
         @Override
-        protected String visitComparisonExpression(ComparisonExpression node, Boolean context) {
-            return String.format(getComparisonFormat(node.getType()), process(node.getRight(), context), process(node.getLeft(), context));
+        protected String visitLogicalBinaryExpression(LogicalBinaryExpression node, Void context) {
+            return '(' + process(node.getLeft(), context) + ' ' + getLogicalContext(node.getType()) + ' ' + process(node.getRight(), context) + ')';
         }
 
-        private String formatBinaryExpression(String operator, Expression left, Expression right, boolean unmangleNames)
-        {
-            return '(' + process(left, unmangleNames) + ' ' + operator + ' ' + process(right, unmangleNames) + ')';
+        @Override
+        protected String visitNotExpression(NotExpression node, Void context) {
+            return "!(" + process(node.getValue(), context) + ')';
         }
 
         @Override
-        protected String visitLikePredicate(LikePredicate node, Boolean context) {
-            StringBuilder builder = new StringBuilder();
-            // TODO: handle this in a proper way.
-            if(!(node.getPattern() instanceof StringLiteral)) {
-                throw new UnsupportedOperationException();
+        protected String visitComparisonExpression(ComparisonExpression node, Void context) {
+            Expression left = negateLiteral(node.getLeft());
+            Expression right = negateLiteral(node.getRight());
+            String operator = getComparisonOperator(node.getType());
+
+            if (left instanceof QualifiedNameReference && right instanceof Literal) {
+                return compareWithLiteral((QualifiedNameReference) left, operator, (Literal) right);
+            }
+            if (left instanceof Literal && right instanceof QualifiedNameReference) {
+                return compareWithLiteral((QualifiedNameReference) right, flip(operator), (Literal) left);
+            }
+            if (left instanceof QualifiedNameReference && right instanceof QualifiedNameReference) {
+                String first = process(left, context);
+                String second = process(right, context);
+                return String.format("(isComparable(%1$s, %2$s) && compare(%1$s, %2$s) %3$s 0)", first, second, operator);
             }
+            throw new UnsupportedOperationException();
+        }
 
-            String value = ((StringLiteral) node.getPattern()).getValue();
+        private static Expression negateLiteral(Expression expression) {
+            if (expression instanceof ArithmeticUnaryExpression &&
+                    ((ArithmeticUnaryExpression) expression).getSign() == ArithmeticUnaryExpression.Sign.MINUS) {
+                Expression value = ((ArithmeticUnaryExpression) expression).getValue();
+                if (value instanceof LongLiteral) {
+                    return new LongLiteral(Long.toString(-((LongLiteral) value).getValue()));
+                }
+                if (value instanceof DoubleLiteral) {
+                    return new DoubleLiteral(Double.toString(-((DoubleLiteral) value).getValue()));
+                }
+            }
+            return expression;
+        }
 
-            String process = process(node.getValue(), context);
-            builder.append('(')
-                    .append(process).append(" instanceof String && ((String) ").append(process).append(").");
+        private String compareWithLiteral(QualifiedNameReference reference, String operator, Literal literal) {
+            if (literal instanceof NullLiteral) {
+                // comparisons with null are never true
+                return "false";
+            }
 
-            boolean starts = false;
-            boolean ends = false;
-            int length = value.length();
-            for (int i = -1; (i = value.indexOf('%', i + 1)) != -1; ) {
-                if(i == 0) starts = true;
-                else if(i + 1 == length) ends = true;
-                else throw new UnsupportedOperationException();
+            String field = process(reference, null);
+            FieldType type = types.get(reference.getName().getSuffix());
+
+            if (literal instanceof LongLiteral || literal instanceof DoubleLiteral) {
+                String value = literal instanceof LongLiteral ? ((LongLiteral) literal).getValue() + "L" :
+                        Double.toString(((DoubleLiteral) literal).getValue());
+                if (type == FieldType.LONG || type == FieldType.TIME || type == FieldType.TIMESTAMP) {
+                    return String.format("(%1$s != null && ((Long) %1$s).longValue() %2$s %3$s)", field, operator, value);
+                }
+                if (type == FieldType.INTEGER || type == FieldType.DATE) {
+                    return String.format("(%1$s != null && ((Integer) %1$s).intValue() %2$s %3$s)", field, operator, value);
+                }
+                if (type == FieldType.DOUBLE) {
+                    return String.format("(%1$s != null && ((Double) %1$s).doubleValue() %2$s %3$s)", field, operator, value);
+                }
+                if (literal instanceof LongLiteral) {
+                    return String.format("(%1$s instanceof Number && compare((Number) %1$s, %3$s) %2$s 0)", field, operator, value);
+                }
+                return String.format("(%1$s instanceof Number && ((Number) %1$s).doubleValue() %2$s %3$s)", field, operator, value);
+            }
+
+            if (literal instanceof StringLiteral) {
+                String value = ((StringLiteral) literal).getValue();
+                String nullCheck = type == FieldType.STRING ? field + " != null" : field + " instanceof CharSequence";
+                switch (operator) {
+                    case "==":
+                        return String.format("(%1$s instanceof Utf8 ? %2$s.equals(%1$s) : %3$s.equals(%1$s))",
+                                field, addString(value), javaString(value));
+                    case "!=":
+                        return String.format("(%4$s && !(%1$s instanceof Utf8 ? %2$s.equals(%1$s) : %3$s.equals(%1$s)))",
+                                field, addString(value), javaString(value), nullCheck);
+                    default:
+                        return String.format("(%1$s && %2$s.toString().compareTo(%3$s) %4$s 0)", nullCheck, field, javaString(value), operator);
+                }
             }
 
-            if(starts && ends) {
-                builder.append("contains(\"").append(value.substring(1, length - 1)).append("\")");
-            } else
-            if(ends) {
-                builder.append("endsWith(\"").append(value.substring(0, length - 1)).append("\")");
-            } else
-            if(starts) {
-                builder.append("startsWith(\"").append(value.substring(1, length - 2)).append("\")");
+            if (literal instanceof BooleanLiteral && (operator.equals("==") || operator.equals("!="))) {
+                String nullCheck = type == FieldType.BOOLEAN ? field + " != null" : field + " instanceof Boolean";
+                return String.format("(%1$s && ((Boolean) %2$s).booleanValue() %3$s %4$s)", nullCheck, field, operator,
+                        ((BooleanLiteral) literal).getValue());
             }
 
+            throw new UnsupportedOperationException();
+        }
+
+        private String addString(String value) {
+            int index = strings.indexOf(value);
+            if (index == -1) {
+                index = strings.size();
+                strings.add(value);
+            }
+            return "S" + index;
+        }
+
+        @Override
+        protected String visitLikePredicate(LikePredicate node, Void context) {
+            if (!(node.getPattern() instanceof StringLiteral) || !(node.getValue() instanceof QualifiedNameReference)) {
+                throw new UnsupportedOperationException();
+            }
             if (node.getEscape() != null) {
                 throw new UnsupportedOperationException();
             }
 
-            builder.append(')');
+            String value = ((StringLiteral) node.getPattern()).getValue();
+            String field = process(node.getValue(), context);
+
+            boolean anyPrefix = false;
+            boolean anySuffix = false;
+            int length = value.length();
+            for (int i = -1; (i = value.indexOf('%', i + 1)) != -1; ) {
+                if (i == 0) anyPrefix = true;
+                else if (i + 1 == length) anySuffix = true;
+                else throw new UnsupportedOperationException();
+            }
+            if (value.indexOf('_') != -1) {
+                throw new UnsupportedOperationException();
+            }
+
+            String method;
+            if (anyPrefix && anySuffix) {
+                method = "contains(" + javaString(value.substring(1, Math.max(1, length - 1))) + ")";
+            } else if (anyPrefix) {
+                method = "endsWith(" + javaString(value.substring(1)) + ")";
+            } else if (anySuffix) {
+                method = "startsWith(" + javaString(value.substring(0, length - 1)) + ")";
+            } else {
+                method = "equals(" + javaString(value) + ")";
+            }
 
-            return builder.toString();
+            return String.format("(%1$s instanceof CharSequence && %1$s.toString().%2$s)", field, method);
         }
 
         @Override
-        protected String visitQualifiedNameReference(QualifiedNameReference node, Boolean unmangleNames) {
+        protected String visitQualifiedNameReference(QualifiedNameReference node, Void context) {
             if (node.getName().getPrefix().isPresent()) {
                 throw new IllegalArgumentException("field reference is invalid");
             }
-            final String suffix = node.getName().getSuffix();
-            return "props.get(\""+checkTableColumn(suffix, "field reference is invalid")+"\")";
+            String name = checkTableColumn(node.getName().getSuffix(), "field reference is invalid");
+            int index = fields.indexOf(name);
+            if (index == -1) {
+                index = fields.size();
+                fields.add(name);
+            }
+            return "f" + index;
         }
 
         @Override
-        protected String visitLiteral(Literal node, Boolean context) {
-            return node.toString();
+        protected String visitBooleanLiteral(BooleanLiteral node, Void context) {
+            return Boolean.toString(node.getValue());
         }
 
         private String getLogicalContext(LogicalBinaryExpression.Type type) {
@@ -132,37 +327,52 @@ public final class ExpressionCompiler {
             }
         }
 
-        private String getComparisonFormat(ComparisonExpression.Type type) {
+        private String getComparisonOperator(ComparisonExpression.Type type) {
             switch (type) {
                 case EQUAL:
-                    return "%2$s instanceof Comparable && ((Comparable) %2$s).equals(%1$s)";
+                    return "==";
                 case NOT_EQUAL:
-                    return "%2$s instanceof Comparable && !((Comparable) %2$s).equals(%1$s)";
+                    return "!=";
                 case LESS_THAN:
-                    return "%2$s instanceof Comparable && ((Comparable) %2$s).compareTo(%1$s) > 0";
+                    return "<";
                 case GREATER_THAN:
-                    return "%2$s instanceof Comparable && ((Comparable) %2$s).compareTo(%1$s) < 0";
+                    return ">";
                 case GREATER_THAN_OR_EQUAL:
-                    return "%2$s instanceof Comparable && ((Comparable) %2$s).compareTo(%1$s) <= 0";
+                    return ">=";
                 case LESS_THAN_OR_EQUAL:
-                    return "%2$s instanceof Comparable && ((Comparable) %2$s).compareTo(%1$s) >= 0";
+                    return "<=";
                 default:
-                    throw new IllegalStateException();
+                    throw new UnsupportedOperationException();
+            }
+        }
+
+        private static String flip(String operator) {
+            switch (operator) {
+                case "<":
+                    return ">";
+                case ">":
+                    return "<";
+                case "<=":
+                    return ">=";
+                case ">=":
+                    return "<=";
+                default:
+                    return operator;
             }
         }
 
         @Override
-        protected String visitIsNotNullPredicate(IsNotNullPredicate node, Boolean context) {
-            return process(node.getValue(), context) + " != null";
+        protected String visitIsNotNullPredicate(IsNotNullPredicate node, Void context) {
+            return "(" + process(node.getValue(), context) + " != null)";
         }
 
         @Override
-        protected String visitIsNullPredicate(IsNullPredicate node, Boolean context) {
-            return process(node.getValue(), context) + " == null";
+        protected String visitIsNullPredicate(IsNullPredicate node, Void context) {
+            return "(" + process(node.getValue(), context) + " == null)";
         }
 
         @Override
-        protected String visitNode(Node node, Boolean context) {
+        protected String visitNode(Node node, Void context) {
             throw new UnsupportedOperationException();
         }
     }
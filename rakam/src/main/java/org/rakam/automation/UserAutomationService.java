@@ -5,6 +5,7 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.inject.name.Named;
 import org.rakam.analysis.JDBCPoolDataSource;
+import org.rakam.analysis.metadata.Metastore;
 import org.rakam.util.JsonHelper;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
@@ -21,19 +22,19 @@ import java.util.concurrent.TimeUnit;
 public class UserAutomationService {
 
     private final DBI dbi;
-    private final LoadingCache<String, List<AutomationRule>> rules;
+    private final LoadingCache<String, AutomationRuleIndex> rules;
     private final Set<AutomationAction> automationActions;
 
     @Inject
-    public UserAutomationService(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource, Set<AutomationAction> automationActions) {
+    public UserAutomationService(@Named("report.metadata.store.jdbc") JDBCPoolDataSource dataSource, Set<AutomationAction> automationActions, Metastore metastore) {
         dbi = new DBI(dataSource);
         this.automationActions = automationActions;
 
-        rules = CacheBuilder.newBuilder().refreshAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, List<AutomationRule>>() {
+        rules = CacheBuilder.newBuilder().refreshAfterWrite(1, TimeUnit.MINUTES).build(new CacheLoader<String, AutomationRuleIndex>() {
             @Override
-            public List<AutomationRule> load(String project) throws Exception {
+            public AutomationRuleIndex load(String project) throws Exception {
                 try(Handle handle = dbi.open()) {
-                    return handle.createQuery("SELECT id, is_active, event_filters, actions, custom_data FROM automation_rules WHERE project = :project")
+                    return new AutomationRuleIndex(handle.createQuery("SELECT id, is_active, event_filters, actions, custom_data FROM automation_rules WHERE project = :project")
                             .bind("project", project)
                             .map((i, resultSet, statementContext) -> {
                                 List<AutomationRule.SerializableAction> actions = Arrays.asList(JsonHelper.read(resultSet.getString(4), AutomationRule.SerializableAction[].class));
@@ -49,7 +50,7 @@ public class UserAutomationService {
                                         actions,
                                         resultSet.getString(5));
                             })
-                            .list();
+                            .list(), collection -> metastore.getCollection(project, collection));
                 }
             }
         });
@@ -88,7 +89,7 @@ public class UserAutomationService {
                     .bind("project", project)
                     .bind("id", id).execute();
         }
-        Optional<AutomationRule> any = rules.getUnchecked(project).stream().filter(r -> r.id == id).findAny();
+        Optional<AutomationRule> any = rules.getUnchecked(project).getRules().stream().filter(r -> r.id == id).findAny();
         if(any.isPresent()) {
             any.get().setActive(false);
         } else {
@@ -102,7 +103,7 @@ public class UserAutomationService {
                     .bind("project", project)
                     .bind("id", id).execute();
         }
-        Optional<AutomationRule> any = rules.getUnchecked(project).stream().filter(r -> r.id == id).findAny();
+        Optional<AutomationRule> any = rules.getUnchecked(project).getRules().stream().filter(r -> r.id == id).findAny();
         if(any.isPresent()) {
             any.get().setActive(true);
         } else {
@@ -141,6 +142,10 @@ public class UserAutomationService {
 
 
     public List<AutomationRule> list(String project) {
+        return rules.getUnchecked(project).getRules();
+    }
+
+    public AutomationRuleIndex getIndex(String project) {
         return rules.getUnchecked(project);
     }
 }
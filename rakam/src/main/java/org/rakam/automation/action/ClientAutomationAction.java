@@ -22,6 +22,11 @@ public class ClientAutomationAction implements AutomationAction<ClientAutomation
         });
     }
 
+    @Override
+    public boolean isSynchronous() {
+        return true;
+    }
+
     public static class Template {
         public final String template;
         public final Map<String, String> variables;
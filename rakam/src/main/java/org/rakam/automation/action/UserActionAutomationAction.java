@@ -8,7 +8,9 @@ import org.rakam.plugin.user.User;
 import org.rakam.plugin.user.UserActionService;
 
 import javax.inject.Inject;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -28,6 +30,15 @@ public class UserActionAutomationAction implements AutomationAction<UserActionAu
         return null;
     }
 
+    @Override
+    public void processBatch(String project, List<Supplier<User>> users, UserAction actionData) {
+        List<User> resolvedUsers = users.stream().map(Supplier::get)
+                .filter(Objects::nonNull).collect(Collectors.toList());
+        if (!resolvedUsers.isEmpty()) {
+            userActionServiceMap.get(actionData.actionName).send(project, resolvedUsers, actionData.actionData);
+        }
+    }
+
     public static class UserAction {
         public final String actionName;
         public final Object actionData;
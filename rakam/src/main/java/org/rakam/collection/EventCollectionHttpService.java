@@ -7,7 +7,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.cfg.ContextAttributes;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import io.airlift.log.Logger;
 import io.airlift.slice.Slice;
@@ -27,7 +26,6 @@ import org.rakam.analysis.metadata.Metastore;
 import org.rakam.plugin.EventMapper;
 import org.rakam.plugin.EventProcessor;
 import org.rakam.plugin.EventStore;
-import org.rakam.report.ChainQueryExecution;
 import org.rakam.report.QueryExecution;
 import org.rakam.server.http.HttpRequestException;
 import org.rakam.server.http.HttpServer;
@@ -155,6 +153,39 @@ public class EventCollectionHttpService extends HttpService {
             }
         }
 
+        return processEvent(event, requestHeaders, remoteAddress, responseHeaders, responseAttachment);
+    }
+
+    private List<Cookie> mapEvents(RakamHttpRequest request, List<Event> events, HttpHeaders requestHeaders, InetAddress remoteAddress, HttpHeaders responseHeaders) {
+        List<Cookie> responseAttachment = null;
+        for (EventMapper mapper : eventMappers) {
+            try {
+                // the events share the request so the mappers compute the request-level enrichments once.
+                final List<Cookie> map = mapper.mapBatch(events, requestHeaders, remoteAddress);
+                if (map != null) {
+                    if (responseAttachment == null) {
+                        responseAttachment = new ArrayList<>();
+                    }
+
+                    responseAttachment.addAll(map);
+                }
+            } catch (RakamException e) {
+                SentryUtil.logException(request, e);
+                HttpServer.returnError(request, e.getMessage(), e.getStatusCode());
+            } catch (HttpRequestException e) {
+                HttpServer.returnError(request, e.getMessage(), e.getStatusCode());
+            } catch (Exception e) {
+                throw new RuntimeException("An error occurred while processing event in " + mapper.getClass().getName(), e);
+            }
+        }
+
+        for (Event event : events) {
+            responseAttachment = processEvent(event, requestHeaders, remoteAddress, responseHeaders, responseAttachment);
+        }
+        return responseAttachment;
+    }
+
+    private List<Cookie> processEvent(Event event, HttpHeaders requestHeaders, InetAddress remoteAddress, HttpHeaders responseHeaders, List<Cookie> responseAttachment) {
         for (EventProcessor eventProcessor : eventProcessors) {
             try {
                 final List<Cookie> map = eventProcessor.map(event, requestHeaders, remoteAddress, responseHeaders);
@@ -442,21 +473,15 @@ public class EventCollectionHttpService extends HttpService {
             collections = metastore.getCollectionNames(project);
         }
 
-        ImmutableList.Builder<QueryExecution> builder = ImmutableList.<QueryExecution>builder();
-        QueryExecution execution = null;
-        for (String collection : collections) {
-            try {
-                execution = eventStore.commit(project, collection);
-                builder.add(execution);
-            } catch (UnsupportedOperationException e) {
-                if (execution != null) {
-                    response.send("result", encode(errorMessage("Commit feature is not supported but this event store. /bulk endpoint commits automatically.", PRECONDITION_FAILED))).end();
-                    return;
-                }
-            }
+        QueryExecution execution;
+        try {
+            execution = eventStore.commit(project, collections);
+        } catch (UnsupportedOperationException e) {
+            response.send("result", encode(errorMessage("Commit feature is not supported but this event store. /bulk endpoint commits automatically.", PRECONDITION_FAILED))).end();
+            return;
         }
 
-        queryHttpService.handleServerSentQueryExecution(request, new ChainQueryExecution(builder.build(), null), false);
+        queryHttpService.handleServerSentQueryExecution(request, execution, false);
     }
 
     private static final int[] EMPTY_INT_ARRAY = new int[0];
@@ -534,15 +559,7 @@ public class EventCollectionHttpService extends HttpService {
 
                 InetAddress remoteAddress = getRemoteAddress(request.getRemoteAddress());
 
-                for (Event event : events.events) {
-                    List<Cookie> mapperEntries = mapEvent(request, event, headers, remoteAddress, responseHeaders);
-                    if (mapperEntries != null) {
-                        if (entries == null) {
-                            entries = new ArrayList<>();
-                        }
-                        entries.addAll(mapperEntries);
-                    }
-                }
+                entries = mapEvents(request, events.events, headers, remoteAddress, responseHeaders);
 
                 response = responseFunction.apply(events.events, responseHeaders);
 
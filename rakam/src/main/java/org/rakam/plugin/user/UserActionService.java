@@ -3,6 +3,7 @@ package org.rakam.plugin.user;
 import org.rakam.report.QueryResult;
 import org.rakam.server.http.HttpService;
 
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 public abstract class UserActionService<T> extends HttpService {
@@ -10,4 +11,14 @@ public abstract class UserActionService<T> extends HttpService {
     public abstract CompletableFuture<Long> batch(String project, CompletableFuture<QueryResult> queryResult, T config);
     public abstract String getName();
     public abstract boolean send(String project, User user, T config);
+
+    public long send(String project, List<User> users, T config) {
+        long sent = 0;
+        for (User user : users) {
+            if (send(project, user, config)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
 }
@@ -165,23 +165,52 @@ public class UserEmailActionService extends UserActionService<UserEmailActionSer
         Object email = user.properties.get(config.columnName);
 
         if(email != null && email instanceof String) {
-                StringTemplate template = new StringTemplate(config.content);
-
-                String format = template.format(name -> {
-                    Object o = user.properties.get(name);
-                    if (o != null && o instanceof String) {
-                        return o.toString();
-                    } else {
-                        return config.defaultValues.get(name);
-                    }
-                });
-
-                return sendInternal((String) email, config, format);
+                return sendInternal((String) email, config, formatContent(user, config));
         } else {
             return false;
         }
     }
 
+    @Override
+    public long send(String project, List<User> users, EmailActionConfig config) {
+        long sentEmails = 0;
+        // a single SMTP connection is used for all the users
+        try (MailSender.Batch batch = mailSender.openBatch()) {
+            for (User user : users) {
+                Object email = user.properties.get(config.columnName);
+                if (!(email instanceof String)) {
+                    continue;
+                }
+
+                String content = formatContent(user, config);
+                try {
+                    batch.sendMail((String) email, config.title, content,
+                            config.richText ? Optional.of(content) : Optional.empty());
+                    sentEmails++;
+                } catch (AddressException e) {
+                    // invalid email address of the user
+                } catch (MessagingException e) {
+                    // the server may reject a recipient, the connection is used for the remaining users
+                    LOGGER.warn(e, "Error while sending email to user %s", user.id);
+                }
+            }
+        } catch (MessagingException e) {
+            LOGGER.error(e);
+        }
+        return sentEmails;
+    }
+
+    private String formatContent(User user, EmailActionConfig config) {
+        return new StringTemplate(config.content).format(name -> {
+            Object o = user.properties.get(name);
+            if (o != null && o instanceof String) {
+                return o.toString();
+            } else {
+                return config.defaultValues.get(name);
+            }
+        });
+    }
+
     private boolean sendInternal(String toEmail, EmailActionConfig config, String content) {
         try {
             mailSender.sendMail(toEmail, config.title, content,
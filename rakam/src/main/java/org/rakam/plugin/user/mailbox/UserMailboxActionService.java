@@ -26,6 +26,8 @@ import javax.inject.Named;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import java.time.Instant;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -88,6 +90,17 @@ public class UserMailboxActionService extends UserActionService<UserMailboxActio
         return true;
     }
 
+    @Override
+    public long send(String project, List<User> users, MailAction config) {
+        // a user may be in the list more than once, each of them is a separate message
+        List<Map.Entry<Object, String>> messages = new ArrayList<>(users.size());
+        for (User user : users) {
+            messages.add(new SimpleImmutableEntry<>(user.id, config.message));
+        }
+        mailboxStorage.sendBatch(project, config.fromUser, messages, Instant.now());
+        return messages.size();
+    }
+
     public static class MailAction {
         public final String fromUser;
         public final String message;
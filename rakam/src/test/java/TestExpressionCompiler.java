@@ -0,0 +1,63 @@
+import com.google.common.collect.ImmutableList;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.rakam.automation.ExpressionCompiler;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.rakam.collection.FieldType.DOUBLE;
+import static org.rakam.collection.FieldType.LONG;
+import static org.rakam.collection.FieldType.STRING;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class TestExpressionCompiler {
+    private static final Schema SCHEMA = SchemaBuilder.record("test").fields()
+            .optionalString("country").optionalLong("value").optionalDouble("price").endRecord();
+    private static final List<SchemaField> FIELDS = ImmutableList.of(
+            new SchemaField("country", STRING), new SchemaField("value", LONG), new SchemaField("price", DOUBLE));
+
+    private static Event event(Object country, Long value, Double price) {
+        GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("country", country);
+        record.put("value", value);
+        record.put("price", price);
+        return new Event("test", "test", null, null, record);
+    }
+
+    @Test
+    public void testTypedComparisons() throws Exception {
+        Predicate<Event> predicate = ExpressionCompiler.compile("country = 'US' and value > 10 and price <= 2.5", FIELDS);
+
+        assertTrue(predicate.test(event("US", 11L, 2.5)));
+        assertTrue(predicate.test(event(new Utf8("US"), 11L, 1.0)));
+        assertFalse(predicate.test(event("TR", 11L, 1.0)));
+        assertFalse(predicate.test(event("US", 10L, 1.0)));
+        assertFalse(predicate.test(event("US", null, 1.0)));
+        assertFalse(predicate.test(event(null, 11L, 1.0)));
+    }
+
+    @Test
+    public void testUntypedComparisons() throws Exception {
+        Predicate<Event> predicate = ExpressionCompiler.compile("-5 < value or country like 'T%' or unknown is not null");
+
+        assertTrue(predicate.test(event(null, -4L, null)));
+        assertTrue(predicate.test(event("TR", -6L, null)));
+        assertFalse(predicate.test(event("US", -6L, null)));
+        assertFalse(predicate.test(event(null, null, null)));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        Predicate<Event> predicate = ExpressionCompiler.compile("value  >  10", FIELDS);
+        assertSame(ExpressionCompiler.compile("value > 10", FIELDS), predicate);
+    }
+}
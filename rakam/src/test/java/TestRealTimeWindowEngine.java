@@ -0,0 +1,155 @@
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.rakam.analysis.ContinuousQueryService;
+import org.rakam.analysis.realtime.RealTimeWindowEngine;
+import org.rakam.analysis.sketch.SpaceSaving;
+import org.rakam.collection.Event;
+import org.rakam.collection.SchemaField;
+import org.rakam.plugin.ContinuousQuery;
+import org.rakam.report.QueryExecution;
+import org.rakam.report.realtime.AggregationType;
+import org.rakam.report.realtime.RealTimeConfig;
+import org.rakam.report.realtime.RealTimeReport;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.rakam.report.realtime.AggregationType.AVERAGE;
+import static org.rakam.report.realtime.AggregationType.COUNT;
+import static org.rakam.report.realtime.AggregationType.SUM;
+import static org.rakam.report.realtime.AggregationType.TOP_K;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class TestRealTimeWindowEngine {
+    private static final Schema SCHEMA = SchemaBuilder.record("test").fields()
+            .optionalLong("_time").optionalString("country").optionalLong("value").endRecord();
+    private static final long SLIDE = 5000;
+
+    private RealTimeWindowEngine createEngine() {
+        RealTimeWindowEngine engine = new RealTimeWindowEngine(new EmptyContinuousQueryService(), new RealTimeConfig().setInMemoryEnabled(true));
+        engine.register("test", new RealTimeReport("test", ImmutableList.of(
+                new RealTimeReport.Measure("value", COUNT),
+                new RealTimeReport.Measure("value", SUM),
+                new RealTimeReport.Measure("value", AVERAGE)),
+                "test", ImmutableList.of("pageview"), null, ImmutableList.of("country")));
+        return engine;
+    }
+
+    private void send(RealTimeWindowEngine engine, String collection, long window, String country, long value) {
+        GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("_time", window * SLIDE);
+        record.put("country", country);
+        record.put("value", value);
+        engine.map(new Event("test", collection, null, null, record), null, null, null);
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        RealTimeWindowEngine engine = createEngine();
+        long base = System.currentTimeMillis() / SLIDE + 2;
+
+        send(engine, "pageview", base, "US", 10);
+        send(engine, "pageview", base + 1, "US", 20);
+        send(engine, "pageview", base + 1, "TR", 30);
+        send(engine, "other", base + 1, "TR", 30);
+
+        assertEquals(engine.query("test", "test", measure(COUNT), ImmutableList.of(), true, base, base + 2), Optional.of(3L));
+        assertEquals(engine.query("test", "test", measure(SUM), ImmutableList.of(), true, base, base + 2), Optional.of(60L));
+        assertEquals(engine.query("test", "test", measure(AVERAGE), ImmutableList.of(), true, base, base + 2), Optional.of(20.0));
+        Object byCountry = engine.query("test", "test", measure(SUM), ImmutableList.of("country"), true, base, base + 2).get();
+        assertEquals(ImmutableSet.copyOf((List) byCountry),
+                ImmutableSet.of(ImmutableList.of((base + 2) * SLIDE, "US", 30L), ImmutableList.of((base + 2) * SLIDE, "TR", 30L)));
+    }
+
+    @Test
+    public void testTimeSeriesIsZeroFilled() throws Exception {
+        RealTimeWindowEngine engine = createEngine();
+        long base = System.currentTimeMillis() / SLIDE + 2;
+
+        send(engine, "pageview", base, "US", 10);
+        send(engine, "pageview", base + 2, "US", 20);
+
+        assertEquals(engine.query("test", "test", measure(COUNT), ImmutableList.of(), false, base, base + 3),
+                Optional.of(ImmutableList.of(
+                        ImmutableList.of(base * SLIDE, 1L),
+                        ImmutableList.of((base + 1) * SLIDE, 0),
+                        ImmutableList.of((base + 2) * SLIDE, 1L))));
+    }
+
+    @Test
+    public void testTopK() throws Exception {
+        RealTimeWindowEngine engine = new RealTimeWindowEngine(new EmptyContinuousQueryService(), new RealTimeConfig().setInMemoryEnabled(true));
+        engine.register("test", new RealTimeReport("test", ImmutableList.of(new RealTimeReport.Measure("country", TOP_K)),
+                "test", ImmutableList.of("pageview"), null, ImmutableList.of()));
+        long base = System.currentTimeMillis() / SLIDE + 2;
+
+        send(engine, "pageview", base, "US", 1);
+        send(engine, "pageview", base, "TR", 1);
+        send(engine, "pageview", base + 1, "US", 1);
+
+        List<SpaceSaving.Entry> top = (List<SpaceSaving.Entry>) engine.query("test", "test",
+                new RealTimeReport.Measure("country", TOP_K), ImmutableList.of(), true, base, base + 2).get();
+        assertEquals(top.size(), 2);
+        assertEquals(top.get(0).item, "US");
+        assertEquals(top.get(0).count, 2);
+        assertEquals(top.get(1).item, "TR");
+    }
+
+    @Test
+    public void testFallbackForUncoveredRange() throws Exception {
+        RealTimeWindowEngine engine = createEngine();
+        long now = System.currentTimeMillis() / SLIDE;
+
+        assertFalse(engine.query("test", "test", measure(COUNT), ImmutableList.of(), true, now - 10, now).isPresent());
+        assertFalse(engine.query("test", "test", measure(COUNT), ImmutableList.of("city"), true, now + 2, now + 3).isPresent());
+        assertFalse(engine.query("test", "unknown", measure(COUNT), ImmutableList.of(), true, now + 2, now + 3).isPresent());
+    }
+
+    private static RealTimeReport.Measure measure(AggregationType aggregation) {
+        return new RealTimeReport.Measure("value", aggregation);
+    }
+
+    private static class EmptyContinuousQueryService extends ContinuousQueryService {
+        public EmptyContinuousQueryService() {
+            super(null);
+        }
+
+        @Override
+        public List<ContinuousQuery> list(String project) {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public QueryExecution create(String project, ContinuousQuery report, boolean replayHistoricalData) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> delete(String project, String tableName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Map<String, List<SchemaField>> getSchemas(String project) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean test(String project, String query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public QueryExecution refresh(String project, String tableName) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -4,6 +4,7 @@ import org.rakam.analysis.ContinuousQueryService;
 import org.rakam.report.realtime.RealTimeConfig;
 import org.rakam.report.realtime.AggregationType;
 import org.rakam.analysis.realtime.RealTimeHttpService;
+import org.rakam.analysis.realtime.RealTimeWindowEngine;
 import org.rakam.analysis.realtime.RealTimeHttpService.RealTimeQueryResult;
 import org.rakam.report.realtime.RealTimeReport;
 import org.rakam.report.QueryExecutor;
@@ -19,7 +20,8 @@ public abstract class TestRealtimeModule {
 
     @Test
     public void testCreate() throws Exception {
-        RealTimeHttpService service = new RealTimeHttpService(getContinuousQueryService(), getQueryExecutor(), new RealTimeConfig(), getTimestampToEpochFunction());
+        RealTimeHttpService service = new RealTimeHttpService(getContinuousQueryService(), getQueryExecutor(), new RealTimeConfig(), getTimestampToEpochFunction(),
+                new RealTimeWindowEngine(getContinuousQueryService(), new RealTimeConfig()));
         RealTimeReport report = new RealTimeReport("test", ImmutableList.of(new RealTimeReport.Measure("test", COUNT)), "test", ImmutableList.of("testcollection"), null, null);
         service.createTable("test", report);
 
@@ -36,7 +38,8 @@ public abstract class TestRealtimeModule {
 
     @Test
     public void testGet() throws Exception {
-        RealTimeHttpService service = new RealTimeHttpService(getContinuousQueryService(), getQueryExecutor(), new RealTimeConfig(), getTimestampToEpochFunction());
+        RealTimeHttpService service = new RealTimeHttpService(getContinuousQueryService(), getQueryExecutor(), new RealTimeConfig(), getTimestampToEpochFunction(),
+                new RealTimeWindowEngine(getContinuousQueryService(), new RealTimeConfig()));
         RealTimeReport report = new RealTimeReport("test", ImmutableList.of(new RealTimeReport.Measure("test", COUNT)), "test", ImmutableList.of("testcollection"), null, null);
         service.createTable("test", report);
 
@@ -45,7 +48,8 @@ public abstract class TestRealtimeModule {
 
     @Test
     public void testDelete() throws Exception {
-        RealTimeHttpService service = new RealTimeHttpService(getContinuousQueryService(), getQueryExecutor(), new RealTimeConfig(), getTimestampToEpochFunction());
+        RealTimeHttpService service = new RealTimeHttpService(getContinuousQueryService(), getQueryExecutor(), new RealTimeConfig(), getTimestampToEpochFunction(),
+                new RealTimeWindowEngine(getContinuousQueryService(), new RealTimeConfig()));
         RealTimeReport report = new RealTimeReport("test", ImmutableList.of(new RealTimeReport.Measure("test", COUNT)), "test", ImmutableList.of("testcollection"), null, null);
         service.createTable("test", report);
         service.deleteTable("test", "test");